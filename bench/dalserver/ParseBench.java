@@ -0,0 +1,144 @@
+/*
+ * ParseBench.java
+ * $ID*
+ */
+
+package dalserver;
+
+import dalserver.scs.ScsQuery;
+import dalserver.sia.SiapKeywordFactory;
+import dalserver.ssa.SsapKeywordFactory;
+import dalserver.ssa.SsapParamSet;
+import java.util.Date;
+import java.util.NoSuchElementException;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks for request parameter parsing, coordinate and date
+ * parsing, configuration (keyword table) parsing, and construction of
+ * the SSA and SIA keyword factories, all of which are executed for
+ * every service request.
+ *
+ * @version	1.0, 25-Oct-2016
+ * @author	DTody
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBench {
+
+    /** Sample text for KeywordTable parsing. */
+    private String keywordText;
+
+    /** Coordinate parser. */
+    private ScsQuery scsQuery;
+
+    @Setup
+    public void setup() throws Exception {
+	StringBuilder sb = new StringBuilder();
+	sb.append("# Sample service configuration\n[service]\n");
+	for (int i=0;  i < 200;  i++)
+	    sb.append("keyword").append(i).append(" = value of keyword ")
+		.append(i).append('\n');
+	keywordText = sb.toString();
+
+	scsQuery = new ScsQuery("postgresql", null);
+    }
+
+    @Benchmark
+    public ParamSet ssapParamSet() throws Exception {
+	SsapParamSet params = new SsapParamSet();
+	params.setValue("POS", "180.0,-30.0");
+	params.setValue("SIZE", "0.25");
+	params.setValue("BAND", "4.0E-7/5.0E-7,6.0E-7/7.0E-7");
+	params.setValue("TIME", "2010-01-01T00:00:00/2012-12-31T23:59:59");
+	params.setValue("FORMAT", "votable");
+	return (params);
+    }
+
+    @Benchmark
+    public RangeList numericRangeList() throws Exception {
+	return (new RangeList("1.0/2.0,3.5/4.5,5.0/,/0.5;source",
+	    ParamType.FLOAT, true));
+    }
+
+    @Benchmark
+    public RangeList isoDateRangeList() throws Exception {
+	return (new RangeList("2010-01-01/2010-06-30,2011-01-01T12:00:00/",
+	    ParamType.ISODATE, true));
+    }
+
+    @Benchmark
+    public Date parseIsoDate() throws Exception {
+	return (DateParser.parse("2012-06-15T12:34:56.789Z"));
+    }
+
+    @Benchmark
+    public double parseHMS() {
+	return (scsQuery.parseHMS("12:34:56.789") +
+	    scsQuery.parseHMS("-05:43:21.09") + scsQuery.parseHMS("182.25"));
+    }
+
+    /** Per-row coordinate parsing, as in the SCS query row loop. */
+    @Benchmark
+    public double parseCoord() {
+	return (CoordParser.parse("12:34:56.789") +
+	    CoordParser.parse("-05 43 21.09") + CoordParser.parse("182.25"));
+    }
+
+    /** Baseline: the StringTokenizer/Float parser replaced by CoordParser. */
+    @Benchmark
+    public double parseCoordLegacy() {
+	return (legacyParse("12:34:56.789") +
+	    legacyParse("-05 43 21.09") + legacyParse("182.25"));
+    }
+
+    private static double legacyParse(String hms) {
+	boolean negative = false;
+	String str = hms.trim();
+	if (str.startsWith("-")) {
+	    str = str.substring(1);
+	    negative = true;
+	}
+
+	StringTokenizer tok = new StringTokenizer(str);
+	double scale = 60.0;
+	double value = 0;
+
+	for (int i=0;  i < 3;  i++) {
+	    try {
+		String token = tok.nextToken(" :");
+		if (i == 0)
+		    value = new Float(token);
+		else {
+		    value += (new Float(token) / scale);
+		    scale *= 60;
+		}
+	    } catch (NoSuchElementException ex) {
+		continue;
+	    }
+	}
+
+	return (negative ? -value : value);
+    }
+
+    @Benchmark
+    public KeywordTable keywordTable() {
+	return (new KeywordTable(keywordText));
+    }
+
+    @Benchmark
+    public SsapKeywordFactory ssapKeywordFactory() {
+	return (new SsapKeywordFactory("main", "1.1"));
+    }
+
+    @Benchmark
+    public SiapKeywordFactory siapKeywordFactory() {
+	return (new SiapKeywordFactory("main", "2.0"));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * RequestResponseBench.java
+ * $ID*
+ */
+
+package dalserver;
+
+import dalserver.ssa.SsapParamSet;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * JMH benchmarks for building, ordering and serializing a query response
+ * table (RequestResponse).  The table has the shape of a typical cone
+ * search or SSA response: an identifier, a position, a spectral
+ * location, and a few additional numeric and text columns.
+ *
+ * @version	1.0, 25-Oct-2016
+ * @author	DTody
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestResponseBench {
+
+    /** Output stream which discards all output. */
+    static class NullOutputStream extends OutputStream {
+	public void write(int b) { }
+	public void write(byte[] b, int off, int len) { }
+    }
+
+    /** Create an empty response table with typical query fields. */
+    static RequestResponse newResponse() throws DalServerException {
+	RequestResponse r = new RequestResponse();
+	r.setDescription("Benchmark query response");
+	r.setType("results");
+	r.addInfo("QUERY_STATUS", new TableInfo("QUERY_STATUS", "OK"));
+
+	r.addField(new TableField("Score", "Score", null, "double", null,
+	    null, "", "meta.code.qual", "Query score"));
+	r.addField(new TableField("id", "id", null, "char", "*",
+	    null, "", "meta.id", "Object ID"));
+	r.addField(new TableField("ra", "ra", null, "double", null,
+	    "deg", "", "pos.eq.ra", "Right ascension"));
+	r.addField(new TableField("dec", "dec", null, "double", null,
+	    "deg", "", "pos.eq.dec", "Declination"));
+	r.addField(new TableField("SpatialLocation", "SpatialLocation", null,
+	    "double", "2", "deg", "", "pos.eq", "Spatial position"));
+	r.addField(new TableField("SpectralLocation", "SpectralLocation",
+	    null, "double", null, "m", "", "em.wl", "Spectral location"));
+	r.addField(new TableField("mag", "mag", null, "float", null,
+	    "mag", "", "phot.mag", "Magnitude"));
+	r.addField(new TableField("nobs", "nobs", null, "int", null,
+	    null, "", "meta.number", "Number of observations"));
+	r.addField(new TableField("title", "title", null, "char", "*",
+	    null, "", "meta.title", "Dataset title"));
+	return (r);
+    }
+
+    /** Add n rows of synthetic data to a response table. */
+    static void addRows(RequestResponse r, int n)
+	throws DalServerException, DalOverflowException {
+
+	r.setMaxrec(Integer.MAX_VALUE);
+	for (int i=0;  i < n;  i++) {
+	    double ra = (i * 0.137) % 360.0;
+	    double dec = ((i * 0.071) % 180.0) - 90.0;
+
+	    r.addRow();
+	    r.setValue("Score", 0.0);
+	    r.setValue("id", "obj" + i);
+	    r.setValue("ra", ra);
+	    r.setValue("dec", dec);
+	    r.setValue("SpatialLocation", ra + " " + dec);
+	    r.setValue("SpectralLocation", 4.0E-7 + (i % 1000) * 1.0E-10);
+	    r.setValue("mag", 12.0 + (i % 97) * 0.1);
+	    r.setValue("nobs", i % 50);
+	    r.setValue("title", "Observation " + i);
+	}
+    }
+
+    /** Table construction, from 10^3 to 10^6 rows. */
+    @State(Scope.Benchmark)
+    public static class BuildState {
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int nrows;
+    }
+
+    /** A prebuilt table, for output benchmarks. */
+    @State(Scope.Benchmark)
+    public static class TableState {
+	@Param({ "1000", "100000" })
+	public int nrows;
+
+	public RequestResponse response;
+	public OutputStream out = new NullOutputStream();
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+	    response = newResponse();
+	    addRows(response, nrows);
+	}
+    }
+
+    /** A fresh table for each invocation, for operations which modify it. */
+    @State(Scope.Benchmark)
+    public static class ScoreState {
+	@Param({ "1000", "100000" })
+	public int nrows;
+
+	public RequestResponse response;
+	public SsapParamSet params;
+
+	@Setup(Level.Trial)
+	public void init() throws Exception {
+	    params = new SsapParamSet();
+	    params.setValue("POS", "180.0,0.0");
+	    params.setValue("BAND", "4.0E-7/5.0E-7");
+	}
+
+	@Setup(Level.Invocation)
+	public void setup() throws Exception {
+	    response = newResponse();
+	    addRows(response, nrows);
+	}
+    }
+
+    @Benchmark
+    public RequestResponse addRows(BuildState state) throws Exception {
+	RequestResponse r = newResponse();
+	addRows(r, state.nrows);
+	return (r);
+    }
+
+    @Benchmark
+    public void writeVOTable(TableState state) throws Exception {
+	state.response.writeVOTable(state.out);
+    }
+
+    @Benchmark
+    public void writeVOTableBinary2(TableState state) throws Exception {
+	state.response.writeVOTable(state.out,
+	    VOTableRowSink.BINARY2_SERIALIZATION);
+    }
+
+    @Benchmark
+    public void writeFits(TableState state) throws Exception {
+	state.response.writeFits(state.out);
+    }
+
+    @Benchmark
+    public void writeCsv(TableState state) throws Exception {
+	state.response.writeCsv(state.out);
+    }
+
+    @Benchmark
+    public void writeTsv(TableState state) throws Exception {
+	state.response.writeTsv(state.out);
+    }
+
+    @Benchmark
+    public void writeText(TableState state) throws Exception {
+	state.response.writeText(state.out);
+    }
+
+    @Benchmark
+    public void writeHTML(TableState state) throws Exception {
+	state.response.writeHTML(state.out);
+    }
+
+    @Benchmark
+    public RequestResponse sort(ScoreState state) throws Exception {
+	state.response.sort("mag", 1);
+	return (state.response);
+    }
+
+    @Benchmark
+    public RequestResponse score(ScoreState state) throws Exception {
+	state.response.score(state.params, "Score");
+	return (state.response);
+    }
+}
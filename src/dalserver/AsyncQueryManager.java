@@ -0,0 +1,649 @@
+/*
+ * AsyncQueryManager.java
+ * $ID*
+ */
+
+package dalserver;
+
+import ca.nrc.cadc.uws.ErrorSummary;
+import ca.nrc.cadc.uws.ErrorType;
+import ca.nrc.cadc.uws.ExecutionPhase;
+import ca.nrc.cadc.uws.Job;
+import ca.nrc.cadc.uws.JobWriter;
+import ca.nrc.cadc.uws.Parameter;
+import ca.nrc.cadc.uws.Result;
+import ca.nrc.cadc.uws.server.JobRunner;
+import ca.nrc.cadc.uws.server.JobUpdater;
+import ca.nrc.cadc.uws.server.MemoryJobPersistence;
+import ca.nrc.cadc.uws.server.SimpleJobManager;
+import ca.nrc.cadc.uws.server.SyncOutput;
+import ca.nrc.cadc.uws.server.ThreadPoolExecutor;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.Logger;
+
+/**
+ * Executes expensive synchronous queries (a large cone search, or a wide
+ * image or spectral query) as asynchronous jobs.  Such a query ties up a
+ * servlet thread and the client connection for the entire query, and a
+ * client which times out will often retry, doubling the load.  Instead,
+ * the service estimates the cost of the query up front, and if it exceeds
+ * a threshold the query is run by a bounded pool of job threads, with the
+ * response spooled to disk.  The client receives a 303 (See Other)
+ * redirect to a UWS job document, which it may poll until the job is
+ * COMPLETED, and then retrieve the result given in the job.
+ *
+ * <p>The jobs are managed by the OpenCADC UWS framework (as for TAP),
+ * with in-memory job persistence.  The job and its result are served by
+ * the service itself, as the getJob and getJobResult operations:
+ *
+ * <pre>
+ *   &lt;service&gt;?REQUEST=getJob&amp;JOBID=&lt;id&gt;
+ *   &lt;service&gt;?REQUEST=getJobResult&amp;JOBID=&lt;id&gt;
+ * </pre>
+ *
+ * <p>The cost of a query is estimated as the number of rows it will
+ * return: the fraction of the sky covered by the search radius times the
+ * number of rows in the table, summed over the targets of a multi-position
+ * query, and limited by MAXREC.  The table row count
+ * is given by the tableRows parameter, or else is obtained from the DBMS
+ * table statistics (and cached).  The following parameters configure
+ * the asynchronous execution for a service:
+ *
+ * <pre>
+ *   asyncThreshold	Estimated rows above which a query is run
+ *			asynchronously [0, disabled]
+ *   asyncThreads	Number of job threads [4]
+ *   asyncMaxJobs	Maximum queued or executing jobs [32]
+ *   asyncDir		Directory for spooled results [java.io.tmpdir]
+ *   asyncRetention	Time a job and its result are kept, sec [86400]
+ *   tableRows		Number of rows in the service table [DBMS statistics]
+ * </pre>
+ *
+ * Finished jobs and their results are removed once the retention time has
+ * passed, by a background sweeper shared by all services.
+ */
+public class AsyncQueryManager extends SimpleJobManager {
+    private static final Logger log = Logger.getLogger(AsyncQueryManager.class);
+
+    /** Registry of job managers, keyed by serviceName. */
+    private static final Map<String,AsyncQueryManager> managers =
+	new HashMap<String,AsyncQueryManager>();
+
+    /** Pending job tasks, keyed by job ID. */
+    private static final Map<String,Task> tasks =
+	new ConcurrentHashMap<String,Task>();
+
+    /** Interval at which expired jobs are removed, msec. */
+    private static final long SWEEP_INTERVAL = 60 * 1000L;
+
+    /** Sweeper thread, shared by all job managers. */
+    private static ScheduledExecutorService sweeper = null;
+
+    /** Manager identity and configuration. */
+    private String name;
+    private long threshold;
+    private int maxJobs;
+    private File spoolDir;
+    private long retention;
+
+    private MemoryJobPersistence persist;
+    private final AtomicInteger active = new AtomicInteger();
+    private long lastSweep = 0;
+
+
+    /**
+     * A query to be executed asynchronously.  The query writes the
+     * complete response to the given output stream, which is spooled to
+     * disk to be returned as the job result.
+     */
+    public interface Query {
+	void execute(OutputStream out) throws Exception;
+    }
+
+    /** The query and result of a job. */
+    private static class Task {
+	AsyncQueryManager manager;
+	Query query;
+	String contentType;
+	String resultUrl;
+	File file;
+	long created = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Get the asynchronous job manager for a service, creating it if
+     * necessary.  If asynchronous execution is not enabled for the service
+     * null is returned.
+     *
+     * @param	params		Service parameter set
+     */
+    public static AsyncQueryManager getManager(ParamSet params)
+	throws DalServerException {
+
+	String value = params.getValue("asyncThreshold");
+	if (value == null || value.trim().length() == 0)
+	    return (null);
+	try {
+	    if (Long.parseLong(value.trim()) <= 0)
+		return (null);
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException("Bad asyncThreshold: " + value);
+	}
+
+	String name = params.getValue("serviceName");
+	if (name == null)
+	    throw new DalServerException("async queries require serviceName");
+
+	synchronized (managers) {
+	    AsyncQueryManager manager = managers.get(name);
+	    if (manager == null) {
+		manager = new AsyncQueryManager(name, params);
+		managers.put(name, manager);
+		startSweeper();
+	    }
+	    return (manager);
+	}
+    }
+
+    /**
+     * Start the sweeper, which removes expired jobs even when no new
+     * jobs are submitted.  Called with the managers lock held.
+     */
+    private static void startSweeper() {
+	if (sweeper != null)
+	    return;
+
+	sweeper = Executors.newSingleThreadScheduledExecutor(
+	    new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "async-job-sweeper");
+		    t.setDaemon(true);
+		    return (t);
+		}
+	    });
+
+	sweeper.scheduleWithFixedDelay(new Runnable() {
+	    public void run() {
+		List<AsyncQueryManager> all;
+		synchronized (managers) {
+		    all = new ArrayList<AsyncQueryManager>(managers.values());
+		}
+		for (AsyncQueryManager manager : all) {
+		    try {
+			manager.sweep();
+		    } catch (Exception ex) {
+			log.error(manager.getName() + ": job sweep failed: " +
+			    ex.getMessage());
+		    }
+		}
+	    }
+	}, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /** Create a job manager for a service. */
+    private AsyncQueryManager(String name, ParamSet params)
+	throws DalServerException {
+
+	super();
+	this.name = name;
+
+	int nthreads;
+	try {
+	    threshold = Long.parseLong(params.getValue("asyncThreshold").trim());
+	    nthreads = Integer.parseInt(value(params, "asyncThreads", "4"));
+	    maxJobs = Integer.parseInt(value(params, "asyncMaxJobs", "32"));
+	    retention = Long.parseLong(
+		value(params, "asyncRetention", "86400")) * 1000L;
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException(
+		"Bad async query parameter: " + ex.getMessage());
+	}
+
+	String dir = params.getValue("asyncDir");
+	if (dir == null)
+	    dir = System.getProperty("java.io.tmpdir");
+	spoolDir = new File(dir, "async-" + name.replaceAll("[^\\w.-]", "_"));
+	if (!spoolDir.isDirectory() && !spoolDir.mkdirs())
+	    throw new DalServerException("cannot create async directory " +
+		spoolDir);
+
+	persist = new MemoryJobPersistence();
+	setJobPersistence(persist);
+	setJobExecutor(new ThreadPoolExecutor(persist, Runner.class,
+	    Math.max(1, nthreads), "async-" + name));
+    }
+
+    private static String value(ParamSet params, String name, String def) {
+	String value = params.getValue(name);
+	return ((value == null || value.trim().length() == 0) ?
+	    def : value.trim());
+    }
+
+
+    // -------- Cost Estimation -----------
+
+    /**
+     * Test whether a query is expensive enough to be executed
+     * asynchronously.
+     *
+     * @param	params		Request parameter set (with MAXREC)
+     * @param	radius		Search radius, degrees, or NaN if the query
+     *				has no positional constraint
+     */
+    public boolean isExpensive(ParamSet params, double radius)
+	throws DalServerException {
+
+	return (isExpensive(params, new double[] { radius }));
+    }
+
+    /**
+     * Test whether a multi-position query is expensive enough to be
+     * executed asynchronously.  The cost is summed over the targets.
+     *
+     * @param	params		Request parameter set (with MAXREC)
+     * @param	radii		Search radius of each target, degrees; a
+     *				target with no positional constraint (NaN)
+     *				makes the query cost unknown
+     */
+    public boolean isExpensive(ParamSet params, double[] radii)
+	throws DalServerException {
+
+	if (radii.length == 0)
+	    return (false);
+	for (double radius : radii)
+	    if (Double.isNaN(radius))
+		return (false);
+
+	long maxrec = -1;
+	String value = params.getValue("MAXREC");
+	if (value != null && value.trim().length() > 0) {
+	    try {
+		maxrec = Long.parseLong(value.trim());
+	    } catch (NumberFormatException ex) {
+		throw new DalServerException("Bad MAXREC value: " + value);
+	    }
+	}
+
+	long tableRows = getTableRows(params);
+	if (tableRows < 0)
+	    return (false);
+
+	long nrows = 0;
+	for (double radius : radii) {
+	    nrows += estimateRows(tableRows, radius, -1);
+	    if (maxrec >= 0 && nrows >= maxrec) {
+		nrows = maxrec;
+		break;
+	    }
+	}
+	return (nrows > threshold);
+    }
+
+    /**
+     * Estimate the number of rows returned by a positional query, assuming
+     * the table rows are evenly distributed over the sky.
+     *
+     * @param	tableRows	Number of rows in the table
+     * @param	radius		Search radius, degrees
+     * @param	maxrec		Maximum rows returned, or -1 if no limit
+     */
+    public static long estimateRows(long tableRows, double radius,
+	long maxrec) {
+
+	double r = Math.toRadians(Math.min(Math.abs(radius), 180.0));
+	long nrows = Math.round(tableRows * (1.0 - Math.cos(r)) / 2.0);
+	if (maxrec >= 0)
+	    nrows = Math.min(nrows, maxrec);
+	return (nrows);
+    }
+
+    /**
+     * Get the search radius of a cone search, given as SR in degrees.
+     * NaN is returned if SR is not given.
+     *
+     * @param	sr		The SR parameter value, or null
+     */
+    public static double coneRadius(String sr) throws DalServerException {
+	if (sr == null || sr.trim().length() == 0)
+	    return (Double.NaN);
+
+	try {
+	    return (Double.parseDouble(sr.trim()));
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException("Bad SR value: " + sr);
+	}
+    }
+
+    /**
+     * Compute the search radius for a query region given as SIZE (the
+     * full width, or width,height, in degrees), i.e., half the diagonal.
+     * NaN is returned if SIZE is not given.
+     *
+     * @param	size		The SIZE parameter value, or null
+     */
+    public static double sizeRadius(String size) throws DalServerException {
+	if (size == null || size.trim().length() == 0)
+	    return (Double.NaN);
+
+	try {
+	    String[] s = size.split(",");
+	    double w = Double.parseDouble(s[0].trim());
+	    double h = (s.length > 1) ? Double.parseDouble(s[1].trim()) : w;
+	    return (Math.sqrt(w*w + h*h) / 2.0);
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException("Bad SIZE value: " + size);
+	}
+    }
+
+    /**
+     * Compute the search radius for a spectral query, for which SIZE is
+     * the diameter of the search aperture in degrees.  NaN is returned if
+     * SIZE is not given.
+     *
+     * @param	size		The SIZE parameter value, or null
+     */
+    public static double apertureRadius(String size)
+	throws DalServerException {
+
+	if (size == null || size.trim().length() == 0)
+	    return (Double.NaN);
+
+	try {
+	    return (Double.parseDouble(size.trim()) / 2.0);
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException("Bad SIZE value: " + size);
+	}
+    }
+
+    /**
+     * Get the number of rows in the service table, from the tableRows
+     * parameter or the DBMS statistics, or -1 if unknown.
+     */
+    private long getTableRows(ParamSet params) {
+	String value = params.getValue("tableRows");
+	if (value != null && value.trim().length() > 0) {
+	    try {
+		return (Long.parseLong(value.trim()));
+	    } catch (NumberFormatException ex) {
+		log.warn("bad tableRows value: " + value);
+		return (-1);
+	    }
+	}
+
+	String tableName = params.getValue("tableName");
+	String schemaName = params.getValue("schemaName");
+	String dbType = params.getValue("dbType");
+	if (tableName == null || dbType == null ||
+	    dbType.equalsIgnoreCase("builtin")) {
+	    return (-1);
+	}
+
+	// Reading the statistics is cheap, but they change slowly, so they
+	// are cached with the table column definitions.
+
+	long ttl = ColumnCache.DEFAULT_TTL;
+	Param p = params.getParam("columnCacheTTL");
+	if (p != null && p.isSet())
+	    ttl = (long) p.intValue() * 1000;
+
+	List<Object> cacheKey = Arrays.asList((Object) "tableRows",
+	    params.getValue("serviceName"), params.getValue("jdbcUrl"),
+	    params.getValue("dbName"), schemaName, tableName);
+
+	Long nrows = (Long) ColumnCache.get(cacheKey, ttl);
+	if (nrows == null) {
+	    long version = ColumnCache.getVersion();
+	    DbmsQuery dbms = null;
+	    try {
+		dbms = new DbmsQuery(dbType, params.getValue("jdbcDriver"));
+		dbms.connect(DbmsConnectionPool.getPool(params));
+		nrows = dbms.estimateRowCount(schemaName, tableName);
+	    } catch (DalServerException ex) {
+		log.warn("cannot estimate rows of " + tableName + ": " +
+		    ex.getMessage());
+		nrows = new Long(-1);
+	    } finally {
+		if (dbms != null)
+		    dbms.disconnect();
+	    }
+	    ColumnCache.put(cacheKey, nrows, version, ttl);
+	}
+
+	return (nrows.longValue() > 0 ? nrows.longValue() : -1);
+    }
+
+
+    // -------- Job Execution -----------
+
+    /**
+     * Submit a query to be executed as an asynchronous job.
+     *
+     * @param	request		The original (synchronous) request
+     * @param	contentType	MIME type of the query response
+     * @param	query		The query to be executed
+     *
+     * @return			The URL of the job, to which the client
+     *				should be redirected
+     */
+    public String submit(HttpServletRequest request, String contentType,
+	Query query) throws DalServerException {
+
+	sweep();
+	if (active.incrementAndGet() > maxJobs) {
+	    active.decrementAndGet();
+	    throw new DalServerException("Too many queries in progress; " +
+		"please try again later");
+	}
+
+	String baseUrl = request.getRequestURL().toString();
+	Task task = new Task();
+	task.manager = this;
+	task.query = query;
+	task.contentType = contentType;
+
+	try {
+	    Job job = new Job();
+	    job.setExecutionPhase(ExecutionPhase.PENDING);
+	    job.setRequestPath(request.getRequestURI());
+	    job.setRemoteIP(request.getRemoteAddr());
+	    job.setRunID(request.getParameter("RUNID"));
+
+	    List<Parameter> plist = new ArrayList<Parameter>();
+	    for (Enumeration<?> e = request.getParameterNames();
+		e.hasMoreElements(); ) {
+		String pname = (String) e.nextElement();
+		for (String pvalue : request.getParameterValues(pname))
+		    plist.add(new Parameter(pname, pvalue));
+	    }
+	    job.setParameterList(plist);
+
+	    job = create(job);
+	    String jobId = job.getID();
+	    task.resultUrl = baseUrl + "?REQUEST=getJobResult&JOBID=" + jobId;
+	    task.file = new File(spoolDir, jobId);
+	    tasks.put(jobId, task);
+
+	    execute(job);
+	    log.info(name + ": query run as async job " + jobId);
+	    return (baseUrl + "?REQUEST=getJob&JOBID=" + jobId);
+
+	} catch (Exception ex) {
+	    active.decrementAndGet();
+	    throw new DalServerException("cannot start async query: " +
+		ex.getMessage());
+	}
+    }
+
+    /**
+     * Write the UWS job document for a job.
+     *
+     * @param	jobId		The job ID
+     * @param	response	The servlet response
+     */
+    public void writeJob(String jobId, HttpServletResponse response)
+	throws DalServerException, IOException {
+
+	Job job = getJob(jobId);
+	response.setContentType("text/xml");
+	OutputStream out = response.getOutputStream();
+	new JobWriter().write(job, out);
+	out.close();
+    }
+
+    /**
+     * Write the result of a completed job, i.e., the query response.
+     *
+     * @param	jobId		The job ID
+     * @param	response	The servlet response
+     */
+    public void writeResult(String jobId, HttpServletResponse response)
+	throws DalServerException, IOException {
+
+	Job job = getJob(jobId);
+	Task task = tasks.get(jobId);
+	if (job.getExecutionPhase() != ExecutionPhase.COMPLETED ||
+	    task == null || !task.file.isFile()) {
+	    throw new DalServerException("Job " + jobId + " has no result (" +
+		job.getExecutionPhase() + ")");
+	}
+
+	response.setContentType(task.contentType);
+	response.setHeader("Content-Length", Long.toString(task.file.length()));
+	OutputStream out = response.getOutputStream();
+	InputStream in = new FileInputStream(task.file);
+	try {
+	    byte[] buf = new byte[8192];
+	    for (int n;  (n = in.read(buf)) > 0;  )
+		out.write(buf, 0, n);
+	} finally {
+	    in.close();
+	    out.close();
+	}
+    }
+
+    private Job getJob(String jobId) throws DalServerException {
+	if (jobId == null)
+	    throw new DalServerException("No JOBID specified");
+	try {
+	    return (get(jobId));
+	} catch (Exception ex) {
+	    throw new DalServerException("Unknown job " + jobId);
+	}
+    }
+
+    /** Remove the jobs and spooled results which have expired. */
+    private void sweep() {
+	long now = System.currentTimeMillis();
+	synchronized (this) {
+	    if (now - lastSweep < SWEEP_INTERVAL)
+		return;
+	    lastSweep = now;
+	}
+
+	for (Iterator<Map.Entry<String,Task>> it = tasks.entrySet().iterator();
+	    it.hasNext(); ) {
+
+	    Map.Entry<String,Task> entry = it.next();
+	    Task task = entry.getValue();
+	    if (task.manager != this || task.query != null ||
+		now - task.created < retention) {
+		continue;
+	    }
+
+	    it.remove();
+	    task.file.delete();
+	    persist.delete(entry.getKey());
+	}
+    }
+
+    /** Return the name of the service. */
+    public String getName() { return (name); }
+
+    /** Return the number of queued or executing jobs. */
+    public int getActiveCount() { return (active.get()); }
+
+
+    /**
+     * UWS job runner for an asynchronous query.  This is instantiated by
+     * the UWS executor for each job; the query to be run is looked up by
+     * the job ID.
+     */
+    public static class Runner implements JobRunner {
+	private Job job;
+	private JobUpdater jobUpdater;
+
+	public void setJob(Job job) { this.job = job; }
+	public void setJobUpdater(JobUpdater ju) { this.jobUpdater = ju; }
+	public void setSyncOutput(SyncOutput so) { }
+
+	public void run() {
+	    String jobId = job.getID();
+	    Task task = tasks.get(jobId);
+	    File tmp = null;
+
+	    try {
+		if (task == null) {
+		    jobUpdater.setPhase(jobId, ExecutionPhase.QUEUED,
+			ExecutionPhase.ERROR, new ErrorSummary(
+			"job query not found", ErrorType.FATAL), new Date());
+		    return;
+		}
+
+		ExecutionPhase phase = jobUpdater.setPhase(jobId,
+		    ExecutionPhase.QUEUED, ExecutionPhase.EXECUTING, new Date());
+		if (phase == null)
+		    return;		// aborted while queued
+
+		try {
+		    // Spool the response to a temporary file, renamed once
+		    // it is complete.
+		    tmp = new File(task.file.getPath() + ".tmp");
+		    OutputStream out = new BufferedOutputStream(
+			new FileOutputStream(tmp), 65536);
+		    try {
+			task.query.execute(out);
+		    } finally {
+			out.close();
+		    }
+		    if (!tmp.renameTo(task.file))
+			throw new IOException("cannot rename " + tmp);
+
+		    List<Result> results = new ArrayList<Result>();
+		    results.add(new Result("result", new URI(task.resultUrl)));
+		    jobUpdater.setPhase(jobId, ExecutionPhase.EXECUTING,
+			ExecutionPhase.COMPLETED, results, new Date());
+
+		} catch (Exception ex) {
+		    if (tmp != null)
+			tmp.delete();
+		    String msg = (ex.getMessage() != null) ?
+			ex.getMessage() : ex.toString();
+		    log.warn("async job " + jobId + " failed: " + msg);
+		    jobUpdater.setPhase(jobId, ExecutionPhase.EXECUTING,
+			ExecutionPhase.ERROR, new ErrorSummary(msg,
+			ErrorType.FATAL), new Date());
+		}
+
+	    } catch (Exception ex) {
+		log.error("async job " + jobId + ": " + ex.getMessage());
+	    } finally {
+		if (task != null) {
+		    task.query = null;
+		    task.manager.active.decrementAndGet();
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Binary2Encoder.java
+ * $ID*
+ */
+
+package dalserver;
+
+/**
+ * Encode the rows of a RequestResponse table in the VOTable 1.3 BINARY2
+ * format.  Each row consists of a null mask, with one bit per field (most
+ * significant bit first), followed by the binary value of each field in
+ * big-endian byte order, as defined by the field datatype and arraysize.
+ * Variable length arrays are preceded by a 4 byte element count.  A value
+ * is written for every field, including those flagged as null.
+ *
+ * <p>Scalar numeric values are taken directly from the typed column
+ * storage of the RequestResponse; only arrays and strings are obtained
+ * as text.  The encoded row is returned as bytes, which the caller
+ * encodes as base64 for the VOTable STREAM element.
+ */
+class Binary2Encoder extends FieldType {
+    /** Number of fields per row. */
+    private int nfields;
+
+    /** Primitive type of each field. */
+    private int[] types;
+
+    /** Number of elements of each field, or -1 for a variable array. */
+    private int[] counts;
+
+    /** Reusable row buffer. */
+    private byte[] buf = new byte[1024];
+    private int len = 0;
+
+    /**
+     * Create a BINARY2 encoder for a table.
+     *
+     * @param	fields		The table fields in cell order, as returned
+     *				by RequestResponse.getRowFields.
+     */
+    Binary2Encoder(TableField[] fields) {
+	nfields = fields.length;
+	types = new int[nfields];
+	counts = new int[nfields];
+
+	for (int j=0;  j < nfields;  j++) {
+	    String datatype = (fields[j] == null) ? null : fields[j].getDataType();
+	    String arraysize = (fields[j] == null) ? "*" : fields[j].getArraySize();
+	    if (datatype == null || datatype.length() == 0) {
+		datatype = "char";
+		arraysize = "*";
+	    }
+
+	    types[j] = primitiveType(datatype);
+	    counts[j] = elementCount(datatype, arraysize);
+	}
+    }
+
+    /** Get the encoded row buffer. */
+    byte[] getBuffer() {
+	return (buf);
+    }
+
+    /** Get the length of the encoded row. */
+    int length() {
+	return (len);
+    }
+
+    /**
+     * Encode the current row of a RequestResponse.
+     *
+     * @param	response	The request response
+     */
+    void encode(RequestResponse response) {
+	int maskBytes = (nfields + 7) / 8;
+	len = 0;
+	ensure(maskBytes);
+	for (int i=0;  i < maskBytes;  i++)
+	    buf[len++] = 0;
+
+	for (int j=0;  j < nfields;  j++) {
+	    boolean isNull = response.isCellEmpty(j);
+	    if (counts[j] == 1 && types[j] != BIT)
+		isNull = encodeScalar(response, j, isNull);
+	    else
+		isNull = encodeArray(isNull ? null : response.getCell(j), j);
+
+	    if (isNull)
+		buf[j >> 3] |= (byte) (0x80 >>> (j & 7));
+	}
+    }
+
+    /**
+     * Encode a scalar value.  Numeric values are taken directly from
+     * the typed column storage.
+     *
+     * @return		True if the value is null.
+     */
+    private boolean encodeScalar(RequestResponse response, int j,
+	boolean isNull) {
+
+	switch (types[j]) {
+	case FLOAT:
+	case DOUBLE:
+	    double dval = isNull ? Double.NaN : response.getCellDouble(j);
+	    if (types[j] == FLOAT)
+		putInt(Float.floatToIntBits((float) dval));
+	    else
+		putLong(Double.doubleToLongBits(dval));
+	    return (Double.isNaN(dval));
+
+	case UBYTE:
+	case SHORT:
+	case INT:
+	case LONG:
+	    long lval = 0;
+	    if (!isNull) {
+		try {
+		    lval = response.getCellLong(j);
+		} catch (NumberFormatException ex) {
+		    isNull = true;
+		}
+	    }
+	    putInteger(types[j], lval);
+	    return (isNull);
+
+	case BOOLEAN:
+	    byte bval = isNull ? (byte)'?' : booleanValue(response.getCell(j));
+	    ensure(1);
+	    buf[len++] = bval;
+	    return (bval == '?');
+
+	default:
+	    // A single character.
+	    String text = isNull ? "" : response.getCell(j);
+	    putChar(types[j], (text.length() > 0) ? text.charAt(0) : 0);
+	    return (isNull);
+	}
+    }
+
+    /**
+     * Encode an array value, given as text.  Character strings are
+     * output as is; elements of other arrays are separated by white
+     * space or commas.  Fixed size arrays are truncated or padded as
+     * necessary.
+     *
+     * @return		True if the value is null.
+     */
+    private boolean encodeArray(String text, int j) {
+	int type = types[j];
+	int count = counts[j];
+	boolean isNull = (text == null);
+	if (isNull)
+	    text = "";
+
+	// Character strings.
+	if (type == CHAR || type == UNICODE) {
+	    int n = text.length();
+	    if (count < 0)
+		putInt(n);
+	    else
+		n = count;
+	    for (int i=0;  i < n;  i++)
+		putChar(type, (i < text.length()) ? text.charAt(i) : 0);
+	    return (isNull);
+	}
+
+	// Bit arrays are packed, most significant bit first.
+	if (type == BIT) {
+	    int nbits = countBits(text);
+	    if (count < 0)
+		putInt(nbits);
+	    else
+		nbits = count;
+
+	    int nbytes = (nbits + 7) / 8, bit = 0;
+	    ensure(nbytes);
+	    for (int i=0;  i < nbytes;  i++)
+		buf[len + i] = 0;
+	    for (int i=0;  i < text.length() && bit < nbits;  i++) {
+		char ch = text.charAt(i);
+		if (ch == '1')
+		    buf[len + (bit >> 3)] |= (byte) (0x80 >>> (bit & 7));
+		if (ch == '0' || ch == '1')
+		    bit++;
+	    }
+	    len += nbytes;
+	    return (isNull);
+	}
+
+	// Numeric and boolean arrays.
+	int ntokens = countTokens(text);
+	if (count < 0)
+	    putInt(ntokens);
+	else
+	    ntokens = count;
+
+	int pos = 0;
+	for (int k=0;  k < ntokens;  k++) {
+	    String token = null;
+	    pos = nextToken(text, pos);
+	    if (pos < text.length()) {
+		int end = tokenEnd(text, pos);
+		token = text.substring(pos, end);
+		pos = end;
+	    }
+	    putElement(type, token);
+	}
+
+	return (isNull);
+    }
+
+    /** Output a single array element; a null token is output as null. */
+    private void putElement(int type, String token) {
+	switch (type) {
+	case FLOAT:
+	case DOUBLE:
+	    double dval = Double.NaN;
+	    if (token != null) {
+		try {
+		    dval = Double.parseDouble(token);
+		} catch (NumberFormatException ex) {
+		    ;
+		}
+	    }
+	    if (type == FLOAT)
+		putInt(Float.floatToIntBits((float) dval));
+	    else
+		putLong(Double.doubleToLongBits(dval));
+	    break;
+
+	case BOOLEAN:
+	    ensure(1);
+	    buf[len++] = (token == null) ? (byte)'?' : booleanValue(token);
+	    break;
+
+	default:
+	    long lval = 0;
+	    if (token != null) {
+		try {
+		    lval = Long.parseLong(token);
+		} catch (NumberFormatException ex) {
+		    try {
+			lval = (long) Double.parseDouble(token);
+		    } catch (NumberFormatException ex2) {
+			;
+		    }
+		}
+	    }
+	    putInteger(type, lval);
+	}
+    }
+
+    /** Get the BINARY2 value of a boolean. */
+    private byte booleanValue(String text) {
+	if (text == null || text.length() == 0)
+	    return ((byte)'?');
+	switch (text.charAt(0)) {
+	case 'T': case 't': case '1':
+	    return ((byte)'T');
+	case 'F': case 'f': case '0':
+	    return ((byte)'F');
+	default:
+	    return ((byte)'?');
+	}
+    }
+
+    /** Output an integer value of the given type. */
+    private void putInteger(int type, long value) {
+	switch (type) {
+	case UBYTE:
+	    ensure(1);
+	    buf[len++] = (byte) value;
+	    break;
+	case SHORT:
+	    ensure(2);
+	    buf[len++] = (byte) (value >>> 8);
+	    buf[len++] = (byte) value;
+	    break;
+	case INT:
+	    putInt((int) value);
+	    break;
+	default:
+	    putLong(value);
+	}
+    }
+
+    /** Output a character. */
+    private void putChar(int type, char ch) {
+	if (type == UNICODE) {
+	    ensure(2);
+	    buf[len++] = (byte) (ch >>> 8);
+	    buf[len++] = (byte) ch;
+	} else {
+	    ensure(1);
+	    buf[len++] = (byte) ((ch < 256) ? ch : '?');
+	}
+    }
+
+    private void putInt(int value) {
+	ensure(4);
+	buf[len++] = (byte) (value >>> 24);
+	buf[len++] = (byte) (value >>> 16);
+	buf[len++] = (byte) (value >>> 8);
+	buf[len++] = (byte) value;
+    }
+
+    private void putLong(long value) {
+	putInt((int) (value >>> 32));
+	putInt((int) value);
+    }
+
+    /** Ensure that the row buffer has room for n more bytes. */
+    private void ensure(int n) {
+	if (len + n > buf.length) {
+	    byte[] newbuf = new byte[Math.max(buf.length * 2, len + n)];
+	    System.arraycopy(buf, 0, newbuf, 0, len);
+	    buf = newbuf;
+	}
+    }
+}
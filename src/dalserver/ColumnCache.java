@@ -0,0 +1,116 @@
+/*
+ * ColumnCache.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of the column definitions of DBMS tables queried by a
+ * service.  Reading the column metadata of a table with
+ * DatabaseMetaData.getColumns is a catalog query which on some DBMS
+ * (e.g., PostgreSQL and Oracle) may take longer than the data query
+ * itself, and the resulting table fields need to be defined and
+ * configured (see {@link ConfigTable}) for each request.  The query code
+ * may instead save the resolved column definitions here, keyed by the
+ * data source, schema and table, and reuse them for subsequent requests.
+ *
+ * <p>The cached value is opaque to the cache, and must not be modified
+ * once cached.  Entries expire after a time to live (TTL) given by the
+ * caller; a TTL of zero disables caching.  All entries are invalidated
+ * when the service configuration is reloaded ({@link Config}), or by a
+ * call to {@link #invalidate}.
+ */
+public class ColumnCache {
+
+    /** Default time to live of a cached entry, msec. */
+    public static final long DEFAULT_TTL = 300000;
+
+    /** Global cache version, incremented when the cache is invalidated. */
+    private static final AtomicLong version = new AtomicLong(0);
+
+    /** Cached column definitions. */
+    private static final Map<List<Object>,Entry> cache =
+	new ConcurrentHashMap<List<Object>,Entry>();
+
+    /** A cached entry. */
+    private static class Entry {
+	Object columns;
+	long version;
+	long loadTime;
+
+	Entry(Object columns, long version, long loadTime) {
+	    this.columns = columns;
+	    this.version = version;
+	    this.loadTime = loadTime;
+	}
+    }
+
+    /** Static class. */
+    private ColumnCache() { }
+
+    /**
+     * Get the cached column definitions for a table.
+     *
+     * @param	key		Key identifying the data source and table,
+     *				e.g., (serviceName, url, schema, table)
+     * @param	ttl		Maximum age of a cached entry, msec
+     *
+     * @return			The cached column definitions, or null if
+     *				there is no current entry.
+     */
+    public static Object get(List<Object> key, long ttl) {
+	Entry entry = cache.get(key);
+	if (entry == null)
+	    return (null);
+
+	if (entry.version != version.get() ||
+	    System.currentTimeMillis() - entry.loadTime >= ttl) {
+
+	    cache.remove(key);
+	    return (null);
+	}
+
+	return (entry.columns);
+    }
+
+    /**
+     * Save the column definitions for a table.
+     *
+     * @param	key		Key identifying the data source and table
+     * @param	columns		The column definitions (read only)
+     * @param	v		The cache version ({@link #getVersion})
+     *				obtained before the table metadata was read
+     * @param	ttl		Maximum age of a cached entry, msec
+     */
+    public static void put(List<Object> key, Object columns, long v,
+	long ttl) {
+
+	if (ttl > 0 && v == version.get())
+	    cache.put(key, new Entry(columns, v, System.currentTimeMillis()));
+    }
+
+    /**
+     * Invalidate all cached column definitions.  This should be called
+     * whenever table definitions or the service configuration change.
+     */
+    public static void invalidate() {
+	version.incrementAndGet();
+	cache.clear();
+    }
+
+    /** Get the current cache version. */
+    public static long getVersion() {
+	return (version.get());
+    }
+
+    /** Get the number of cached entries. */
+    public static int size() {
+	return (cache.size());
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * ColumnStore.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.util.*;
+
+/**
+ * Typed columnar storage for the table data of a RequestResponse.
+ * Each table field is stored as a column: numeric fields as primitive
+ * double or long values, and all other fields as dictionary-encoded
+ * strings.  Whether a cell is set is recorded in a bitmap.  Columns grow
+ * in fixed size chunks of rows, so adding rows never copies existing data.
+ * Values are converted to text only when requested, normally at
+ * serialization time.
+ *
+ * <p>The string value of a cell is always exactly the value that was set.
+ * A string value set in a numeric column is stored in binary form only
+ * if it is the canonical text representation of that number (as produced
+ * by Double.toString or Long.toString), otherwise the text is kept
+ * verbatim.  Likewise the string dictionary for a column is bounded in
+ * size; once full, further distinct values are stored verbatim.
+ */
+class ColumnStore {
+    /** Column types. */
+    static final int STRING = 0;
+    static final int DOUBLE = 1;
+    static final int LONG = 2;
+
+    /** Number of rows per storage chunk (a multiple of 64). */
+    static final int CHUNK = 256;
+
+    /** Maximum number of dictionary entries per string column. */
+    static final int MAXDICT = 4096;
+
+    /** The table columns; a null entry is an unused column. */
+    private Column[] columns = new Column[0];
+
+    /** Number of table rows. */
+    private int nrows = 0;
+
+    /** Number of row chunks allocated. */
+    private int nchunks = 0;
+
+
+    /** Get the number of table rows. */
+    int size() {
+	return (nrows);
+    }
+
+    /** Get the number of columns. */
+    int getColumnCount() {
+	return (columns.length);
+    }
+
+    /**
+     * Define the type of a column.  A column may be defined after rows
+     * have been added, in which case all of its cells are initially unset.
+     * Redefining an existing column discards its data.
+     *
+     * @param	index		Column index
+     * @param	type		Column type (STRING, DOUBLE, or LONG)
+     */
+    void setColumn(int index, int type) {
+	if (index >= columns.length)
+	    columns = Arrays.copyOf(columns, index + 1);
+
+	Column col = columns[index];
+	if (col != null && col.type == type)
+	    return;
+
+	columns[index] = col = new Column(type);
+	for (int c=0;  c < nchunks;  c++)
+	    col.addChunk(c);
+    }
+
+    /** Get the type of a column, or -1 if the column is not defined. */
+    int getType(int index) {
+	if (index >= columns.length || columns[index] == null)
+	    return (-1);
+	return (columns[index].type);
+    }
+
+    /** Add a new row, with all cells unset. */
+    void addRow() {
+	if (nrows == nchunks * CHUNK) {
+	    for (Column col : columns)
+		if (col != null)
+		    col.addChunk(nchunks);
+	    nchunks++;
+	}
+	nrows++;
+    }
+
+    /**
+     * Truncate the table to the given number of rows.  The storage
+     * is retained for reuse.
+     *
+     * @param	n		New number of rows
+     */
+    void truncate(int n) {
+	for (int row=n;  row < nrows;  row++)
+	    for (Column col : columns)
+		if (col != null)
+		    col.clear(row);
+	if (n < nrows)
+	    nrows = n;
+    }
+
+    /**
+     * Set the string value of a cell.  A null value is stored as the
+     * empty string.
+     */
+    void set(int index, int row, String value) {
+	Column col = getColumn(index, row);
+	if (value == null)
+	    value = "";
+
+	switch (col.type) {
+	case DOUBLE:
+	    try {
+		double dval = Double.parseDouble(value);
+		if (Double.toString(dval).equals(value)) {
+		    col.setDouble(row, dval);
+		    return;
+		}
+	    } catch (NumberFormatException ex) {
+		;
+	    }
+	    col.setText(row, value);
+	    break;
+
+	case LONG:
+	    try {
+		long lval = Long.parseLong(value);
+		if (Long.toString(lval).equals(value)) {
+		    col.setLong(row, lval);
+		    return;
+		}
+	    } catch (NumberFormatException ex) {
+		;
+	    }
+	    col.setText(row, value);
+	    break;
+
+	default:
+	    col.setString(row, value);
+	}
+    }
+
+    /** Set the double value of a cell. */
+    void set(int index, int row, double value) {
+	Column col = getColumn(index, row);
+	if (col.type == DOUBLE)
+	    col.setDouble(row, value);
+	else
+	    set(index, row, Double.toString(value));
+    }
+
+    /** Set the integer value of a cell. */
+    void set(int index, int row, long value) {
+	Column col = getColumn(index, row);
+	if (col.type == LONG)
+	    col.setLong(row, value);
+	else
+	    set(index, row, Long.toString(value));
+    }
+
+    /** Test whether a cell value is set. */
+    boolean isSet(int index, int row) {
+	if (index >= columns.length || columns[index] == null)
+	    return (false);
+	return (columns[index].isSet(row));
+    }
+
+    /**
+     * Get the string value of a cell, or null if the value is not set.
+     */
+    String get(int index, int row) {
+	if (index >= columns.length || columns[index] == null)
+	    return (null);
+	return (columns[index].get(row));
+    }
+
+    /**
+     * Get the numeric value of a cell.  NaN is returned if the value is
+     * not set or is not numeric.
+     */
+    double getDouble(int index, int row) {
+	if (index >= columns.length || columns[index] == null)
+	    return (Double.NaN);
+	return (columns[index].getDouble(row));
+    }
+
+    /**
+     * Get the integer value of a cell.  A floating point value is
+     * truncated.
+     *
+     * @throws	NumberFormatException	if the value is not set or is
+     *					not numeric.
+     */
+    long getLong(int index, int row) throws NumberFormatException {
+	if (index >= columns.length || columns[index] == null)
+	    throw new NumberFormatException("no value");
+	return (columns[index].getLong(row));
+    }
+
+    /**
+     * Test whether a cell is empty, i.e., is not set or is set to the
+     * empty string.
+     */
+    boolean isEmpty(int index, int row) {
+	if (index >= columns.length || columns[index] == null)
+	    return (true);
+	return (columns[index].isEmpty(row));
+    }
+
+    /**
+     * Reorder the table rows.
+     *
+     * @param	order		Array giving, for each output row, the
+     *				index of the input row to be placed there.
+     */
+    void permute(int[] order) {
+	for (int i=0;  i < columns.length;  i++)
+	    if (columns[i] != null)
+		columns[i] = columns[i].permute(order, nchunks);
+    }
+
+    /** Get a column for a cell update. */
+    private Column getColumn(int index, int row) {
+	if (row < 0 || row >= nrows)
+	    throw new IndexOutOfBoundsException("row " + row);
+	if (index >= columns.length || columns[index] == null)
+	    setColumn(index, STRING);
+	return (columns[index]);
+    }
+
+
+    /**
+     * A single table column.  Data is stored in chunks of CHUNK rows.
+     */
+    private static final class Column {
+	/** Column type. */
+	final int type;
+
+	/** Bitmap of the cells which are set. */
+	long[][] isset = new long[0][];
+
+	/** Binary data, according to the column type. */
+	double[][] dvals;
+	long[][] lvals;
+	int[][] codes;
+
+	/** Verbatim text values, allocated only as needed. */
+	String[][] text = new String[0][];
+
+	/** String dictionary. */
+	ArrayList<String> dict;
+	HashMap<String,Integer> dictIndex;
+
+	Column(int type) {
+	    this.type = type;
+	    if (type == DOUBLE)
+		dvals = new double[0][];
+	    else if (type == LONG)
+		lvals = new long[0][];
+	    else {
+		codes = new int[0][];
+		dict = new ArrayList<String>();
+		dictIndex = new HashMap<String,Integer>();
+	    }
+	}
+
+	/** Allocate storage for chunk c. */
+	void addChunk(int c) {
+	    isset = Arrays.copyOf(isset, c + 1);
+	    isset[c] = new long[CHUNK / 64];
+	    text = Arrays.copyOf(text, c + 1);
+
+	    if (type == DOUBLE) {
+		dvals = Arrays.copyOf(dvals, c + 1);
+		dvals[c] = new double[CHUNK];
+	    } else if (type == LONG) {
+		lvals = Arrays.copyOf(lvals, c + 1);
+		lvals[c] = new long[CHUNK];
+	    } else {
+		codes = Arrays.copyOf(codes, c + 1);
+		codes[c] = new int[CHUNK];
+	    }
+	}
+
+	boolean isSet(int row) {
+	    int i = row % CHUNK;
+	    return ((isset[row / CHUNK][i >> 6] & (1L << (i & 63))) != 0);
+	}
+
+	void mark(int row) {
+	    int i = row % CHUNK;
+	    isset[row / CHUNK][i >> 6] |= (1L << (i & 63));
+	}
+
+	void clear(int row) {
+	    int c = row / CHUNK, i = row % CHUNK;
+	    isset[c][i >> 6] &= ~(1L << (i & 63));
+	    if (text[c] != null)
+		text[c][i] = null;
+	}
+
+	void setDouble(int row, double value) {
+	    clear(row);
+	    dvals[row / CHUNK][row % CHUNK] = value;
+	    mark(row);
+	}
+
+	void setLong(int row, long value) {
+	    clear(row);
+	    lvals[row / CHUNK][row % CHUNK] = value;
+	    mark(row);
+	}
+
+	void setText(int row, String value) {
+	    int c = row / CHUNK;
+	    if (text[c] == null)
+		text[c] = new String[CHUNK];
+	    text[c][row % CHUNK] = value;
+	    if (codes != null)
+		codes[c][row % CHUNK] = -1;
+	    mark(row);
+	}
+
+	void setString(int row, String value) {
+	    Integer code = dictIndex.get(value);
+	    if (code == null && dict.size() < MAXDICT) {
+		code = new Integer(dict.size());
+		dict.add(value);
+		dictIndex.put(value, code);
+	    }
+
+	    if (code == null)
+		setText(row, value);
+	    else {
+		clear(row);
+		codes[row / CHUNK][row % CHUNK] = code.intValue();
+		mark(row);
+	    }
+	}
+
+	String get(int row) {
+	    if (!isSet(row))
+		return (null);
+
+	    int c = row / CHUNK, i = row % CHUNK;
+	    if (text[c] != null && text[c][i] != null)
+		return (text[c][i]);
+
+	    if (type == DOUBLE)
+		return (Double.toString(dvals[c][i]));
+	    else if (type == LONG)
+		return (Long.toString(lvals[c][i]));
+	    else
+		return (dict.get(codes[c][i]));
+	}
+
+	double getDouble(int row) {
+	    if (!isSet(row))
+		return (Double.NaN);
+
+	    int c = row / CHUNK, i = row % CHUNK;
+	    if (type == DOUBLE && (text[c] == null || text[c][i] == null))
+		return (dvals[c][i]);
+	    if (type == LONG && (text[c] == null || text[c][i] == null))
+		return ((double) lvals[c][i]);
+
+	    try {
+		return (Double.parseDouble(get(row)));
+	    } catch (NumberFormatException ex) {
+		return (Double.NaN);
+	    }
+	}
+
+	long getLong(int row) throws NumberFormatException {
+	    if (!isSet(row))
+		throw new NumberFormatException("no value");
+
+	    int c = row / CHUNK, i = row % CHUNK;
+	    if (type == LONG && (text[c] == null || text[c][i] == null))
+		return (lvals[c][i]);
+	    if (type == DOUBLE && (text[c] == null || text[c][i] == null))
+		return ((long) dvals[c][i]);
+
+	    String value = get(row);
+	    try {
+		return (Long.parseLong(value));
+	    } catch (NumberFormatException ex) {
+		return ((long) Double.parseDouble(value));
+	    }
+	}
+
+	boolean isEmpty(int row) {
+	    if (!isSet(row))
+		return (true);
+
+	    int c = row / CHUNK, i = row % CHUNK;
+	    if (text[c] != null && text[c][i] != null)
+		return (text[c][i].length() == 0);
+	    if (type == STRING)
+		return (dict.get(codes[c][i]).length() == 0);
+	    return (false);
+	}
+
+	/** Return a new column with the rows reordered. */
+	Column permute(int[] order, int nchunks) {
+	    Column col = new Column(type);
+	    col.dict = dict;
+	    col.dictIndex = dictIndex;
+	    for (int c=0;  c < nchunks;  c++)
+		col.addChunk(c);
+
+	    for (int row=0;  row < order.length;  row++) {
+		int src = order[row];
+		if (!isSet(src))
+		    continue;
+
+		int sc = src / CHUNK, si = src % CHUNK;
+		int dc = row / CHUNK, di = row % CHUNK;
+
+		if (type == DOUBLE)
+		    col.dvals[dc][di] = dvals[sc][si];
+		else if (type == LONG)
+		    col.lvals[dc][di] = lvals[sc][si];
+		else
+		    col.codes[dc][di] = codes[sc][si];
+
+		if (text[sc] != null && text[sc][si] != null) {
+		    if (col.text[dc] == null)
+			col.text[dc] = new String[CHUNK];
+		    col.text[dc][di] = text[sc][si];
+		}
+		col.mark(row);
+	    }
+
+	    return (col);
+	}
+    }
+}
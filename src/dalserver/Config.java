@@ -228,10 +228,13 @@ public class Config extends HttpServlet {
 
 	// Execute the service framework configuration reload.
 	// This overwrites the Web-app web.xml file, which is automatically
-	// reloaded (if enabled) by the Web application server.
+	// reloaded (if enabled) by the Web application server.  Any cached
+	// table column definitions and query responses are discarded.
 
 	try {
 	    num_entities = reload(params, response, entityList);
+	    ColumnCache.invalidate();
+	    ResponseCache.invalidateAll();
 	} catch (DalServerException ex) {
 	    error = this.errorResponse(params, response, ex);
 	}
@@ -470,6 +473,17 @@ public class Config extends HttpServlet {
 	    }
 	}
 
+	// Output the Web-app lifecycle listener, which releases shared
+	// resources when the Web-app is reloaded or undeployed.
+
+	out.println();
+	putText(out, "<!-- Web-App Lifecycle Listeners. -->", indent);
+	out.println();
+	putElement(out, null, "<listener>", indent);
+	putElement(out, "listener-class", "dalserver.DalContextListener",
+	    indent + 2);
+	putElement(out, null, "</listener>", indent);
+
 	out.println();
 	putText(out, "<!-- Service Definitions. -->", indent);
 	out.println();
@@ -249,6 +249,19 @@ public class ConfigTable implements Iterable {
      * the Field instance.
      */
     public void addField (RequestResponse response, TableField field) {
+	if ((field = configure(field)) != null)
+	    response.addField(field);
+    }
+
+    /**
+     * Apply the table configuration to a Field.
+     *
+     * @param	field		A TableField instance
+     *
+     * @return			The Field with any custom attributes set, or
+     *				null if the Field is to be omitted.
+     */
+    public TableField configure (TableField field) {
 	ConfigField cf = this.getField(field.getName());
 
 	// If a mask value is set, the default mask action depends only
@@ -258,13 +271,13 @@ public class ConfigTable implements Iterable {
 
 	if (mask != null && !field.hintContains(mask)) {
 	    if (cf == null || cf.omit())
-		return;
+		return (null);
 	}
 
 	if (cf == null) {
-	    response.addField(field);
+	    return (field);
 	} else if (cf.omit()) {
-	    ;
+	    return (null);
 	} else {
 	    if (cf.id != null)
 		field.setId(cf.id);
@@ -287,7 +300,7 @@ public class ConfigTable implements Iterable {
 	    if (cf.utype != null)
 		field.setUtype(cf.utype);
 
-	    response.addField(field);
+	    return (field);
 	}
     }
 
@@ -0,0 +1,175 @@
+/*
+ * CoordParser.java
+ * $ID*
+ */
+
+package dalserver;
+
+/**
+ * Parser for coordinate values in sexagesimal or decimal format, e.g.,
+ * "12:34:56.78", "-05 43 21.1", "12:34.5", or "188.7366".  The value is
+ * returned in the units of the leading field (e.g., hours for RA, or
+ * degrees for DEC); the caller converts hours to degrees if necessary.
+ *
+ * <p>The parser is intended for the row loop of a query, where a
+ * coordinate may be parsed for every candidate row.  It works directly
+ * on a CharSequence (e.g., a String or a CharBuffer), computes the value
+ * in full double precision, and does not allocate any objects, except
+ * in the rare case of a decimal field with more than 15 significant
+ * digits or an exponent, which is passed to Double.parseDouble.
+ *
+ * <p>Parsing is strict: a value consists of an optional sign followed by
+ * one to three unsigned decimal fields separated by a colon and/or
+ * whitespace.  Only the last field may have a fraction, the minutes and
+ * seconds fields must be less than 60, and leading and trailing
+ * whitespace is ignored.  Any other input throws NumberFormatException.
+ */
+public class CoordParser {
+
+    /** Powers of ten exactly representable as a double. */
+    private static final double[] POW10 = {
+	1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+	1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /** Maximum significant digits for exact conversion of a field. */
+    private static final int MAX_DIGITS = 15;
+
+    /** Static class. */
+    private CoordParser() { }
+
+    /**
+     * Parse a coordinate value in sexagesimal or decimal format.
+     *
+     * @param	s		The coordinate value
+     *
+     * @return			The value in units of the leading field
+     */
+    public static double parse(CharSequence s) throws NumberFormatException {
+	if (s == null)
+	    throw new NumberFormatException("null coordinate value");
+	return (parse(s, 0, s.length()));
+    }
+
+    /**
+     * Parse a coordinate value in sexagesimal or decimal format from a
+     * region of a character sequence.
+     *
+     * @param	s		The character sequence
+     * @param	start		Index of the first character of the value
+     * @param	end		Index following the last character
+     *
+     * @return			The value in units of the leading field
+     */
+    public static double parse(CharSequence s, int start, int end)
+	throws NumberFormatException {
+
+	int i = start;
+	while (i < end && Character.isWhitespace(s.charAt(i)))
+	    i++;
+	while (end > i && Character.isWhitespace(s.charAt(end-1)))
+	    end--;
+	if (i >= end)
+	    throw new NumberFormatException("empty coordinate value");
+
+	boolean negative = false;
+	char ch = s.charAt(i);
+	if (ch == '-' || ch == '+') {
+	    negative = (ch == '-');
+	    i++;
+	}
+
+	double value = 0.0, scale = 1.0;
+	for (int field=0;  ;  field++) {
+	    int first = i;
+	    long mantissa = 0;
+	    int ndigits = 0, nsig = 0, nfrac = 0;
+	    boolean point = false;
+
+	    // Scan one unsigned decimal field.
+	    for (;  i < end;  i++) {
+		ch = s.charAt(i);
+		if (ch >= '0' && ch <= '9') {
+		    ndigits++;
+		    if (nsig < 18) {
+			mantissa = mantissa * 10 + (ch - '0');
+			if (mantissa != 0)
+			    nsig++;
+			if (point)
+			    nfrac++;
+		    } else
+			nsig++;
+		} else if (ch == '.' && !point) {
+		    point = true;
+		} else
+		    break;
+	    }
+
+	    if (ndigits == 0)
+		throw error(s, start, end);
+
+	    // A decimal value with an exponent is passed to parseDouble.
+	    if (i < end && (ch == 'e' || ch == 'E')) {
+		if (field > 0)
+		    throw error(s, start, end);
+		double v = Double.parseDouble(s.subSequence(first, end).toString());
+		return (negative ? -v : v);
+	    }
+
+	    double v;
+	    if (nsig <= MAX_DIGITS && nfrac < POW10.length)
+		v = mantissa / POW10[nfrac];
+	    else
+		v = Double.parseDouble(s.subSequence(first, i).toString());
+
+	    if (field > 0 && v >= 60.0)
+		throw error(s, start, end);
+	    value += v / scale;
+	    scale *= 60.0;
+
+	    if (i == end)
+		break;
+
+	    // Skip the field separator, a colon and/or whitespace.
+	    int sep = i;
+	    while (i < end && Character.isWhitespace(s.charAt(i)))
+		i++;
+	    if (i < end && s.charAt(i) == ':')
+		i++;
+	    while (i < end && Character.isWhitespace(s.charAt(i)))
+		i++;
+
+	    if (i == sep || i == end || point || field == 2)
+		throw error(s, start, end);
+	}
+
+	return (negative ? -value : value);
+    }
+
+    /**
+     * Test whether a coordinate value is in sexagesimal format, i.e.,
+     * has more than one field.
+     *
+     * @param	s		The coordinate value
+     */
+    public static boolean isSexagesimal(CharSequence s) {
+	int i = 0, end = s.length();
+	while (i < end && Character.isWhitespace(s.charAt(i)))
+	    i++;
+	while (end > i && Character.isWhitespace(s.charAt(end-1)))
+	    end--;
+
+	for (;  i < end;  i++) {
+	    char ch = s.charAt(i);
+	    if (ch == ':' || Character.isWhitespace(ch))
+		return (true);
+	}
+	return (false);
+    }
+
+    private static NumberFormatException error(CharSequence s,
+	int start, int end) {
+
+	return (new NumberFormatException("invalid coordinate value: '" +
+	    s.subSequence(start, end) + "'"));
+    }
+}
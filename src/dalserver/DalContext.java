@@ -146,12 +146,70 @@ public class DalContext {
 	// passed through.
 
 	RequestParams reqHandler = null;
-	Enumeration contextPars = servletContext.getInitParameterNames();
-	Enumeration configPars = servletConfig.getInitParameterNames();
 
 	// Get the DALServer global framework system parameters.
 	readProperties(DALGLOBALS, params, true);
 
+	// Get the servlet context and config parameters.
+	addInitParams(params, servletContext, servletConfig);
+
+	// Add the config parameters for this service instance.
+	// These may override the default values defined in DALGLOBALS,
+	// or in the service context.
+
+	String serviceName = params.getValue("serviceName");
+	String serviceParams = serviceName + ".properties";
+	readProperties(serviceParams, params, true);
+
+	// Get the request parameters.
+	reqHandler = new RequestParams();
+	reqHandler.getRequestParams(servletRequest, params);
+    }
+
+    /**
+     * Construct a DalContext instance for servlet initialization, when
+     * no request is yet available.
+     *
+     * @param	params			Parameter set
+     * @param	servletContext		HTTP servlet context
+     * @param	servletConfig		HTTP servlet config pars
+     *
+     * The DALServer global parameters, servlet context and config
+     * parameters, and the config parameters for the service instance
+     * (if any) are gathered and added to the given parameter set.  This
+     * allows a servlet to prepare service resources such as a DBMS
+     * connection pool before the first request arrives.
+     */
+    public DalContext(ParamSet params, ServletContext servletContext,
+	ServletConfig servletConfig) throws DalServerException {
+
+	log.debug("read DalContext for servlet initialization");
+	this.pset = params;
+	this.response = null;
+	this.job = null;
+
+	readProperties(DALGLOBALS, params, true);
+	addInitParams(params, servletContext, servletConfig);
+
+	// The service config parameters are optional here, as the service
+	// may be configured entirely via the servlet parameters.
+
+	String serviceParams = params.getValue("serviceName") + ".properties";
+	if (DalContext.class.getClassLoader().getResource(serviceParams) != null)
+	    readProperties(serviceParams, params, true);
+    }
+
+    /**
+     * Add the servlet context and servlet config parameters to the
+     * given parameter set.  Config parameters override any context
+     * parameters of the same name.
+     */
+    private void addInitParams(ParamSet params, ServletContext servletContext,
+	ServletConfig servletConfig) throws DalServerException {
+
+	Enumeration contextPars = servletContext.getInitParameterNames();
+	Enumeration configPars = servletConfig.getInitParameterNames();
+
 	// Get the servlet context parameters.
 	while (contextPars.hasMoreElements()) {
 	    String name = (String) contextPars.nextElement();
@@ -179,18 +237,6 @@ public class DalContext {
 	    } else
 		p.setValue(value);
 	}
-
-	// Add the config parameters for this service instance.
-	// These may override the default values defined in DALGLOBALS,
-	// or in the service context.
-
-	String serviceName = params.getValue("serviceName");
-	String serviceParams = serviceName + ".properties";
-	readProperties(serviceParams, params, true);
-
-	// Get the request parameters.
-	reqHandler = new RequestParams();
-	reqHandler.getRequestParams(servletRequest, params);
     }
 
     /**
@@ -0,0 +1,28 @@
+/*
+ * DalContextListener.java
+ * $ID*
+ */
+
+package dalserver;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Web-app lifecycle listener.  When the DALServer Web-app is reloaded or
+ * undeployed, the resources shared by all services are released, i.e.,
+ * the replica sets (and their health probe threads) and connection pools
+ * created by {@link DbmsDataSourceFactory}, which would otherwise hold
+ * database connections and the Web-app class loader.  The listener is
+ * registered in the web.xml generated by {@link Config}.
+ */
+public class DalContextListener implements ServletContextListener {
+
+    /** Web-app startup; nothing to do. */
+    public void contextInitialized(ServletContextEvent event) { }
+
+    /** Web-app shutdown. */
+    public void contextDestroyed(ServletContextEvent event) {
+	DbmsDataSourceFactory.closeDataSources();
+    }
+}
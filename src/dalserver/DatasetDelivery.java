@@ -0,0 +1,274 @@
+/*
+ * DatasetDelivery.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Delivery of a dataset which is an uncompressed local file, e.g., an
+ * archival image or spectrum, or a generated cutout.  Such datasets may
+ * be many GB in size and make up the bulk of the data returned by a
+ * service, so rather than copying them through a byte buffer they are
+ * transferred directly from the file channel to the client.  Where the
+ * servlet container supports it (Tomcat "sendfile") the transfer is
+ * left to the container, which passes the file to the socket within the
+ * kernel; otherwise FileChannel.transferTo is used.  A file which may be
+ * deleted while it is sent, e.g., a cached cutout, is never left to the
+ * container; the file is opened before the response is begun, and the
+ * open file is sent even if it is deleted in the meantime.
+ *
+ * <p>Single byte ranges (Range: bytes=first-last) are supported so that
+ * an interrupted transfer may be resumed, and If-Range is honored so
+ * that a range of a dataset which has since changed is not returned.
+ * The entity tag (ETag) and Last-Modified date of the dataset are
+ * computed from the file size and modification time, and a client which
+ * already has the current dataset (If-None-Match) receives a 304 status.
+ * Requests for multiple ranges are answered with the whole dataset, as
+ * permitted by RFC 7233.
+ *
+ * <p>A service requests this form of delivery by setting the service
+ * parameter "datasetFile" to the pathname of the dataset file in its
+ * accessData (or getData) method.
+ */
+public class DatasetDelivery {
+
+    /** Request attributes of the Tomcat sendfile capability. */
+    private static final String SENDFILE_SUPPORT =
+	"org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME =
+	"org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START =
+	"org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END =
+	"org.apache.tomcat.sendfile.end";
+
+    /** Files smaller than this are not worth a sendfile. */
+    private static final long SENDFILE_MIN = 48 * 1024;
+
+    /** Maximum bytes per transferTo call. */
+    private static final long CHUNK = 8L * 1024 * 1024;
+
+
+    /** All methods are static. */
+    private DatasetDelivery() { }
+
+    /**
+     * Send a dataset file to the client, honoring Range, If-Range and
+     * If-None-Match.  The content type and disposition, if any, should
+     * already have been set on the response.
+     *
+     * @param	file		The dataset file
+     * @param	request		The servlet request
+     * @param	response	The servlet response
+     * @param	timer		The request timer, or null
+     */
+    public static void send(File file, HttpServletRequest request,
+	HttpServletResponse response, RequestTimer timer) throws IOException {
+
+	send(file, request, response, timer, true);
+    }
+
+    /**
+     * Send a dataset file to the client, as for
+     * {@link #send(File,HttpServletRequest,HttpServletResponse,RequestTimer)}.
+     *
+     * @param	file		The dataset file
+     * @param	request		The servlet request
+     * @param	response	The servlet response
+     * @param	timer		The request timer, or null
+     * @param	sendfile	If false the file may be deleted while it is
+     *				sent, and is not passed to the container
+     */
+    public static void send(File file, HttpServletRequest request,
+	HttpServletResponse response, RequestTimer timer, boolean sendfile)
+	throws IOException {
+
+	// The open file remains readable if the path is deleted.
+	FileInputStream in = new FileInputStream(file);
+	try {
+	    send(file, in.getChannel(), request, response, timer, sendfile);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Send an open dataset file. */
+    private static void send(File file, FileChannel channel,
+	HttpServletRequest request, HttpServletResponse response,
+	RequestTimer timer, boolean sendfile) throws IOException {
+
+	long length = channel.size();
+	long modified = file.lastModified();
+	String etag = etag(length, modified);
+
+	response.setHeader("Accept-Ranges", "bytes");
+	response.setHeader("ETag", etag);
+	response.setDateHeader("Last-Modified", modified);
+
+	String match = request.getHeader("If-None-Match");
+	if (match != null && (match.trim().equals("*") ||
+	    match.contains(etag))) {
+	    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	    return;
+	}
+
+	// A range is returned only if the client's copy is current.
+	long[] range = null;
+	String rangeHeader = request.getHeader("Range");
+	if (rangeHeader != null && isCurrent(request, etag, modified))
+	    range = parseRange(rangeHeader, length);
+
+	long first = 0, last = length - 1;
+	if (range != null) {
+	    if (range[0] < 0) {
+		response.setHeader("Content-Range", "bytes */" + length);
+		response.sendError(
+		    HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+		return;
+	    }
+	    first = range[0];
+	    last = range[1];
+	    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+	    response.setHeader("Content-Range",
+		"bytes " + first + "-" + last + "/" + length);
+	}
+
+	// Content-Length is set as a header since the dataset may be
+	// larger than the int range of setContentLength.
+	long count = last - first + 1;
+	response.setHeader("Content-Length", Long.toString(count));
+	if (count <= 0 || "HEAD".equalsIgnoreCase(request.getMethod()))
+	    return;
+
+	if (timer != null)
+	    timer.start(RequestTimer.SERIALIZE);
+	try {
+	    if (sendfile && count >= SENDFILE_MIN &&
+		Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+		request.setAttribute(SENDFILE_FILENAME,
+		    file.getCanonicalPath());
+		request.setAttribute(SENDFILE_START, new Long(first));
+		request.setAttribute(SENDFILE_END, new Long(last + 1));
+	    } else
+		transfer(file, channel, first, count,
+		    response.getOutputStream());
+	    if (timer != null)
+		timer.addBytes(count);
+	} finally {
+	    if (timer != null)
+		timer.stop(RequestTimer.SERIALIZE);
+	}
+    }
+
+    /** Copy a range of a file to an output stream with transferTo. */
+    private static void transfer(File file, FileChannel channel, long first,
+	long count, OutputStream out) throws IOException {
+
+	WritableByteChannel target = Channels.newChannel(out);
+	long position = first, end = first + count;
+	while (position < end) {
+	    long n = channel.transferTo(position,
+		Math.min(CHUNK, end - position), target);
+	    if (n <= 0)
+		throw new EOFException(file + ": truncated at " + position);
+	    position += n;
+	}
+	out.flush();
+    }
+
+    /**
+     * Compute the entity tag of a dataset file.
+     *
+     * @param	length		The file size
+     * @param	modified	The file modification time, msec
+     */
+    public static String etag(long length, long modified) {
+	return ("\"" + Long.toHexString(length) + "-" +
+	    Long.toHexString(modified) + "\"");
+    }
+
+    /**
+     * Check whether the client's copy of a dataset is current, as given
+     * by an If-Range entity tag or date.  If there is no If-Range header
+     * the copy is assumed to be current.
+     */
+    static boolean isCurrent(HttpServletRequest request, String etag,
+	long modified) {
+
+	String ifRange = request.getHeader("If-Range");
+	if (ifRange == null)
+	    return (true);
+	ifRange = ifRange.trim();
+	if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+	    return (ifRange.equals(etag));
+
+	long date;
+	try {
+	    date = request.getDateHeader("If-Range");
+	} catch (IllegalArgumentException ex) {
+	    return (false);
+	}
+	return (date >= 0 && modified / 1000 == date / 1000);
+    }
+
+    /**
+     * Parse a Range header for a dataset of the given length.
+     *
+     * @param	header		The Range header value
+     * @param	length		The dataset length
+     *
+     * @return			The first and last byte of a single range,
+     *				{ -1, -1 } if the range is not satisfiable,
+     *				or null if the header is to be ignored
+     *				(not a single byte range).
+     */
+    public static long[] parseRange(String header, long length) {
+	header = header.trim();
+	if (!header.toLowerCase().startsWith("bytes="))
+	    return (null);
+	String spec = header.substring(6).trim();
+	if (spec.indexOf(',') >= 0)
+	    return (null);
+
+	int dash = spec.indexOf('-');
+	if (dash < 0)
+	    return (null);
+	String s1 = spec.substring(0, dash).trim();
+	String s2 = spec.substring(dash + 1).trim();
+
+	long first, last;
+	try {
+	    if (s1.length() == 0) {
+		// Suffix range, the last N bytes.
+		if (s2.length() == 0)
+		    return (null);
+		long n = Long.parseLong(s2);
+		if (n <= 0 || length == 0)
+		    return (new long[] { -1, -1 });
+		first = Math.max(0, length - n);
+		last = length - 1;
+	    } else {
+		first = Long.parseLong(s1);
+		last = (s2.length() == 0) ?
+		    length - 1 : Math.min(Long.parseLong(s2), length - 1);
+		if (first < 0 || (s2.length() > 0 &&
+		    Long.parseLong(s2) < first))
+		    return (null);
+		if (first >= length)
+		    return (new long[] { -1, -1 });
+	    }
+	} catch (NumberFormatException ex) {
+	    return (null);
+	}
+
+	return (new long[] { first, last });
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * DbmsConnectionPool.java
+ * $ID*
+ */
+
+package dalserver;
+
+import javax.sql.DataSource;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-service pool of JDBC connections.  A pool is created once for each
+ * service instance (keyed by the serviceName) the first time it is
+ * referenced, normally when the service servlet is initialized, and is
+ * shared by all subsequent requests to the service.  Connections are
+ * borrowed with {@link #getConnection} and returned to the pool by
+ * closing them, e.g., via {@link DbmsQuery#disconnect}.
+ *
+ * <p>The pool is configured by the same service parameters used to
+ * connect to the DBMS (dbType, jdbcUrl, jdbcDriver, dbName, dbUser,
+ * dbPassword), plus the following optional pool parameters:
+ *
+ * <pre>
+ *   poolMinIdle		Connections opened at startup and kept idle [1]
+ *   poolMaxActive		Maximum concurrent connections [8]
+ *   poolMaxWait		Maximum wait for a connection, msec [10000]
+ *   poolValidationQuery	Query used to validate a connection on borrow
+ *				[SELECT 1, or SELECT 1 FROM DUAL for Oracle]
+ *   poolMaxStatements		Prepared statements cached per connection
+ *				[32; 0 disables the statement cache]
+ *   jdbcReplicaUrls		Comma-delimited JDBC URLs of read replicas,
+ *				in the same form as jdbcUrl [none]
+ *   replicaRouting		leastOutstanding or roundRobin
+ *   replicaProbeInterval	Replica health probe interval, sec [10]
+ * </pre>
+ *
+ * If read replicas are given, a pool is opened to each replica as well as
+ * to the primary (jdbcUrl), and connections are routed across them as
+ * described for {@link ReplicaDataSource}.  The pool limits apply to each
+ * replica separately.  DAL queries are read-only, so any replica may be
+ * used.
+ *
+ * Each pooled connection keeps a cache of prepared statements, keyed by
+ * the SQL text.  Queries composed with {@link SqlTemplate} have SQL text
+ * which depends only upon the shape of the query, so a statement prepared
+ * by one request is reused (once closed) by later requests of the same
+ * shape on the same connection.
+ *
+ * The pool records simple usage metrics: the number of connections
+ * borrowed, the number of failures, and the mean and maximum time spent
+ * waiting for a connection.
+ */
+public class DbmsConnectionPool {
+    private static final Logger log = Logger.getLogger(DbmsConnectionPool.class);
+
+    /** Registry of service connection pools, keyed by serviceName. */
+    private static final Map<String,DbmsConnectionPool> pools =
+	new HashMap<String,DbmsConnectionPool>();
+
+    /** Pool identity. */
+    private String name;
+    private String dbType;
+    private String database;
+    private String url;
+    private String replicaUrls;
+    private String username;
+
+    /** The pool configuration, compared when the pool is reused. */
+    private Properties config;
+
+    /** The pooling DataSource, possibly a replica set. */
+    private DataSource ds;
+
+    /** The connection pools of the DataSource (one per replica). */
+    private List<BasicDataSource> members = new ArrayList<BasicDataSource>();
+
+    /** Usage metrics. */
+    private final AtomicLong nBorrowed = new AtomicLong();
+    private final AtomicLong nFailed = new AtomicLong();
+    private final AtomicLong waitTotal = new AtomicLong();
+    private final AtomicLong waitMax = new AtomicLong();
+
+
+    /**
+     * Get the connection pool for a service, creating it if necessary.
+     *
+     * @param	params		Service parameter set
+     *
+     * If a pool already exists for the named service but its connection
+     * or pool parameters no longer match (e.g., following a configuration
+     * reload which changes the password or pool size), the old pool is
+     * closed and a new one created.
+     */
+    public static DbmsConnectionPool getPool(ParamSet params)
+	throws DalServerException {
+
+	String name = params.getValue("serviceName");
+	String dbType = DbmsQuery.dbmsType(params.getValue("dbType"));
+	String jdbcUrl = params.getValue("jdbcUrl");
+	String database = params.getValue("dbName");
+	String username = params.getValue("dbUser");
+
+	if (jdbcUrl == null)
+	    throw new DalServerException("jdbcUrl not specified");
+	if (name == null)
+	    name = jdbcUrl;
+
+	String url = DbmsQuery.dbmsUrl(dbType, jdbcUrl, database);
+	String replicaUrls = null;
+	if (params.getValue("jdbcReplicaUrls") != null) {
+	    StringBuilder sb = new StringBuilder();
+	    for (String r : params.getValue("jdbcReplicaUrls").split(",")) {
+		if (r.trim().length() == 0)
+		    continue;
+		if (sb.length() > 0)
+		    sb.append(",");
+		sb.append(DbmsQuery.dbmsUrl(dbType, r.trim(), database));
+	    }
+	    if (sb.length() > 0)
+		replicaUrls = sb.toString();
+	}
+
+	Properties config = poolConfig(params, dbType, url, replicaUrls);
+
+	synchronized (pools) {
+	    DbmsConnectionPool pool = pools.get(name);
+	    if (pool != null) {
+		if (pool.config.equals(config))
+		    return (pool);
+		pool.close();
+	    }
+
+	    pool = new DbmsConnectionPool(name, dbType, database, url,
+		replicaUrls, config, params);
+	    pools.put(name, pool);
+	    return (pool);
+	}
+    }
+
+    /**
+     * Create and pre-open the connection pool for a service.  This is
+     * intended to be called when the service is initialized, so that
+     * the first client request does not pay the cost of opening
+     * database connections.
+     *
+     * @param	params		Service parameter set
+     */
+    public static DbmsConnectionPool warmup(ParamSet params)
+	throws DalServerException {
+
+	DbmsConnectionPool pool = getPool(params);
+	Connection conn = pool.getConnection();
+	try {
+	    conn.close();
+	} catch (SQLException ex) {
+	    ;
+	}
+	log.info("connection pool ready: " + pool);
+	return (pool);
+    }
+
+    /**
+     * Close the connection pool for the named service, if any.
+     *
+     * @param	name		Service name
+     */
+    public static void closePool(String name) {
+	DbmsConnectionPool pool;
+
+	synchronized (pools) {
+	    pool = pools.remove(name);
+	}
+	if (pool != null)
+	    pool.close();
+    }
+
+    /**
+     * Return all currently active connection pools.
+     */
+    public static List<DbmsConnectionPool> getPools() {
+	synchronized (pools) {
+	    return (new ArrayList<DbmsConnectionPool>(pools.values()));
+	}
+    }
+
+
+    /**
+     * Get the DataSource properties of a pool from the service parameters.
+     *
+     * @param	params		Service parameter set
+     * @param	dbType		Normalized database type
+     * @param	url		Full JDBC URL of the database
+     * @param	replicaUrls	JDBC URLs of any read replicas, or null
+     */
+    private static Properties poolConfig(ParamSet params, String dbType,
+	String url, String replicaUrls) {
+
+	String username = params.getValue("dbUser");
+	String minIdle = params.getValue("poolMinIdle", "1");
+	String maxActive = params.getValue("poolMaxActive", "8");
+	String maxWait = params.getValue("poolMaxWait", "10000");
+	String validationQuery = params.getValue("poolValidationQuery",
+	    dbType.equals("oracle") ? "SELECT 1 FROM DUAL" : "SELECT 1");
+	String maxStatements = params.getValue("poolMaxStatements", "32");
+
+	Properties props = new Properties();
+	if (params.getValue("jdbcDriver") != null)
+	    props.setProperty("driverClassName", params.getValue("jdbcDriver"));
+	props.setProperty("url", url);
+	if (username != null)
+	    props.setProperty("username", username);
+	if (params.getValue("dbPassword") != null)
+	    props.setProperty("password", params.getValue("dbPassword"));
+
+	props.setProperty("initialSize", minIdle);
+	props.setProperty("minIdle", minIdle);
+	props.setProperty("maxActive", maxActive);
+	props.setProperty("maxWait", maxWait);
+	props.setProperty("validationQuery", validationQuery);
+	props.setProperty("testOnBorrow", "true");
+	if (!maxStatements.trim().equals("0")) {
+	    props.setProperty("poolPreparedStatements", "true");
+	    props.setProperty("maxOpenPreparedStatements", maxStatements.trim());
+	}
+
+	// Postgres requires autoCommit off for setFetchSize to be effective.
+	if (dbType.equals("postgresql"))
+	    props.setProperty("defaultAutoCommit", "false");
+
+	if (replicaUrls != null) {
+	    props.setProperty("replicaUrls", replicaUrls);
+	    if (params.getValue("replicaRouting") != null)
+		props.setProperty("routing", params.getValue("replicaRouting"));
+	    if (params.getValue("replicaProbeInterval") != null)
+		props.setProperty("probeInterval",
+		    params.getValue("replicaProbeInterval"));
+	}
+
+	return (props);
+    }
+
+    /**
+     * Create a new connection pool.
+     *
+     * @param	name		Pool (service) name
+     * @param	dbType		Normalized database type
+     * @param	database	Database name
+     * @param	url		Full JDBC URL of the database
+     * @param	replicaUrls	JDBC URLs of any read replicas, or null
+     * @param	config		DataSource properties of the pool
+     * @param	params		Service parameter set
+     */
+    private DbmsConnectionPool(String name, String dbType, String database,
+	String url, String replicaUrls, Properties config, ParamSet params)
+	throws DalServerException {
+
+	this.name = name;
+	this.dbType = dbType;
+	this.database = database;
+	this.url = url;
+	this.replicaUrls = replicaUrls;
+	this.username = params.getValue("dbUser");
+	this.config = config;
+
+	DbmsQuery.loadDriver(params.getValue("jdbcDriver"));
+	DbmsDataSourceFactory factory = new DbmsDataSourceFactory();
+
+	if (replicaUrls == null) {
+	    BasicDataSource bds = factory.pooledDataSource(config);
+	    members.add(bds);
+	    this.ds = bds;
+	} else {
+	    ReplicaDataSource rds = factory.replicatedDataSource(config);
+	    for (DataSource member : rds.getMembers())
+		members.add((BasicDataSource) member);
+	    this.ds = rds;
+	}
+    }
+
+    /**
+     * Borrow a connection from the pool.  The connection is returned to
+     * the pool when it is closed.
+     */
+    public Connection getConnection() throws DalServerException {
+	long t0 = System.nanoTime();
+	Connection conn;
+
+	try {
+	    conn = ds.getConnection();
+	} catch (SQLException ex) {
+	    nFailed.incrementAndGet();
+	    throw new DalServerException(
+		"cannot get DBMS connection (" + ex.getMessage() + ")");
+	}
+
+	long wait = System.nanoTime() - t0;
+	nBorrowed.incrementAndGet();
+	waitTotal.addAndGet(wait);
+	for (long max = waitMax.get(); wait > max; max = waitMax.get()) {
+	    if (waitMax.compareAndSet(max, wait))
+		break;
+	}
+
+	return (conn);
+    }
+
+    /**
+     * Close the connection pool, closing all idle connections.
+     * Connections currently in use are closed when returned.
+     */
+    public void close() {
+	if (ds instanceof ReplicaDataSource) {
+	    ((ReplicaDataSource)ds).close();
+	    return;
+	}
+
+	try {
+	    ((BasicDataSource)ds).close();
+	} catch (SQLException ex) {
+	    log.warn("error closing connection pool " + name + ": " +
+		ex.getMessage());
+	}
+    }
+
+    /** Return the pool (service) name. */
+    public String getName() { return (name); }
+
+    /** Return the normalized database type. */
+    public String getDbType() { return (dbType); }
+
+    /** Return the database name. */
+    public String getDatabase() { return (database); }
+
+    /** Return the replica set, or null if the database is not replicated. */
+    public ReplicaDataSource getReplicaSet() {
+	return ((ds instanceof ReplicaDataSource) ?
+	    (ReplicaDataSource) ds : null);
+    }
+
+    /** Return the number of connections currently borrowed. */
+    public int getNumActive() {
+	int n = 0;
+	for (BasicDataSource bds : members)
+	    n += bds.getNumActive();
+	return (n);
+    }
+
+    /** Return the number of idle connections in the pool. */
+    public int getNumIdle() {
+	int n = 0;
+	for (BasicDataSource bds : members)
+	    n += bds.getNumIdle();
+	return (n);
+    }
+
+    /** Return the maximum number of concurrent connections. */
+    public int getMaxActive() {
+	int n = 0;
+	for (BasicDataSource bds : members)
+	    n += bds.getMaxActive();
+	return (n);
+    }
+
+    /** Return the total number of connections borrowed. */
+    public long getBorrowCount() { return (nBorrowed.get()); }
+
+    /** Return the number of failed connection requests. */
+    public long getFailureCount() { return (nFailed.get()); }
+
+    /** Return the mean time waited for a connection, in milliseconds. */
+    public double getMeanWait() {
+	long n = nBorrowed.get();
+	return (n == 0 ? 0.0 : waitTotal.get() / (n * 1.0E6));
+    }
+
+    /** Return the maximum time waited for a connection, in milliseconds. */
+    public double getMaxWait() {
+	return (waitMax.get() / 1.0E6);
+    }
+
+    /** Summarize the pool state and usage metrics. */
+    public String toString() {
+	return (String.format(
+	    "%s: active=%d idle=%d max=%d borrowed=%d failed=%d " +
+	    "wait(mean)=%.3fms wait(max)=%.3fms", name, getNumActive(),
+	    getNumIdle(), getMaxActive(), getBorrowCount(), getFailureCount(),
+	    getMeanWait(), getMaxWait()));
+    }
+}
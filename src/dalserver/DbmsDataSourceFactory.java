@@ -11,6 +11,7 @@ import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.log4j.Logger;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * JDBC DataSource management.  This class hides the details of how to obtain
@@ -20,11 +21,27 @@ import java.util.*;
  * a new DataSource may be created by reading the JDBC connection properties
  * from a Java properties file.
  *
+ * <p>A DataSource may also be a set of replicated databases (a primary and
+ * one or more read replicas), in which case a {@link ReplicaDataSource} is
+ * returned, which spreads read connections across the replicas.  Callers
+ * which write to the database should request the primary with
+ * {@link #getDataSource(String,boolean)}.
+ *
+ * <p>The DataSources created here, i.e., replica sets and the connection
+ * pools of "file:" references, are created once for each reference and
+ * shared by subsequent callers, so that each caller (e.g., each TAP job)
+ * does not create a new connection pool.  JNDI DataSources are owned by
+ * the application server and are not cached.
+ *
  * @author DTody
  */
 public class DbmsDataSourceFactory {
     private static final Logger log = Logger.getLogger(DbmsDataSourceFactory.class);
 
+    /** DataSources created here, keyed by the DataSource reference. */
+    private static final Map<String,DataSource> dataSources =
+	new ConcurrentHashMap<String,DataSource>();
+
     /** No-arg constructor. */
     public DbmsDataSourceFactory() { }
 
@@ -44,16 +61,131 @@ public class DbmsDataSourceFactory {
      * are read from a Java properties file.  This case is indicated by a
      * DataSource reference of the form "file:<path>", where <path> is the
      * pathname of the Java properties file.  A new DataSource instance is
-     * created with the specified properties.
+     * created with the specified properties.  If the properties include
+     * "replicaUrls", a replica set is created, with the primary given by
+     * "url" (see {@link #replicatedDataSource}).
+     *
+     * A replica set of other DataSources is indicated by a reference of the
+     * form "replicas:<ref>,<ref>,...[;option=value...]", where the first
+     * reference is the primary, each reference is a JNDI name or file:
+     * reference as above, and the options are the routing options of
+     * {@link ReplicaDataSource}, e.g.,
+     *
+     *   replicas:jdbc/tapuser,jdbc/tapuser-r1,jdbc/tapuser-r2;routing=roundRobin
+     *
+     * For a replica set, the returned DataSource routes read connections
+     * across the replicas.
      */
     public DataSource getDataSource(String dsref)
 	throws DalServerException {
 
-	// Check if we have a JNDI or file DataSource reference.
-	if (dsref.startsWith("file:"))
-	    return (fileDataSource(dsref.substring(5)));
+	DataSource cached = dataSources.get(dsref);
+	if (cached != null)
+	    return (cached);
+
+	// Check if we have a JNDI, file, or replicated DataSource reference.
+	DataSource ds;
+	if (dsref.startsWith("replicas:"))
+	    ds = replicaDataSource(dsref.substring(9));
+	else if (dsref.startsWith("file:"))
+	    ds = fileDataSource(dsref.substring(5));
+	else
+	    ds = jndiDataSource(dsref);
+
+	// Share the DataSources created here; if another caller got there
+	// first, discard ours.
+	if (ds instanceof ReplicaDataSource || ds instanceof BasicDataSource) {
+	    synchronized (dataSources) {
+		if ((cached = dataSources.get(dsref)) != null) {
+		    close(ds);
+		    return (cached);
+		}
+		dataSources.put(dsref, ds);
+	    }
+	}
+
+	return (ds);
+    }
+
+    /**
+     * Return a DataSource to be used either for reading or writing.
+     *
+     * @param	dsref			Reference to the DataSource
+     * @param	write			Connections will be used to write
+     *
+     * If the DataSource is a replica set and write access is required,
+     * the primary is returned, otherwise this is the same as
+     * {@link #getDataSource(String)}.
+     */
+    public DataSource getDataSource(String dsref, boolean write)
+	throws DalServerException {
+
+	DataSource ds = getDataSource(dsref);
+	if (write && ds instanceof ReplicaDataSource)
+	    return (((ReplicaDataSource)ds).getPrimary());
 	else
-	    return (jndiDataSource(dsref));
+	    return (ds);
+    }
+
+    /**
+     * Close all replica sets and connection pools created here.  This is
+     * called by {@link DalContextListener} when the Web-app is reloaded
+     * or undeployed.
+     */
+    public static void closeDataSources() {
+	synchronized (dataSources) {
+	    for (DataSource ds : dataSources.values())
+		close(ds);
+	    dataSources.clear();
+	}
+    }
+
+    /** Close a replica set or connection pool. */
+    private static void close(DataSource ds) {
+	if (ds instanceof ReplicaDataSource) {
+	    ((ReplicaDataSource)ds).close();
+	} else if (ds instanceof BasicDataSource) {
+	    try {
+		((BasicDataSource)ds).close();
+	    } catch (java.sql.SQLException ex) {
+		log.warn("closing DataSource: " + ex.getMessage());
+	    }
+	}
+    }
+
+    /**
+     * Create a replica set from a list of DataSource references.
+     *
+     * @param	spec			"<ref>,<ref>,...[;option=value...]"
+     */
+    public ReplicaDataSource replicaDataSource(String spec)
+	throws DalServerException {
+
+	String[] parts = spec.split(";");
+	Properties options = new Properties();
+	for (int i=1;  i < parts.length;  i++) {
+	    int eq = parts[i].indexOf('=');
+	    if (eq <= 0)
+		throw new DalServerException(
+		    "Bad replica option: " + parts[i]);
+	    options.setProperty(parts[i].substring(0, eq).trim(),
+		parts[i].substring(eq+1).trim());
+	}
+
+	List<String> names = new ArrayList<String>();
+	List<DataSource> members = new ArrayList<DataSource>();
+	for (String ref : parts[0].split(",")) {
+	    ref = ref.trim();
+	    if (ref.length() == 0)
+		continue;
+	    if (ref.startsWith("replicas:"))
+		throw new DalServerException("nested replica set: " + ref);
+	    names.add(ref);
+	    members.add(ref.startsWith("file:") ?
+		fileDataSource(ref.substring(5)) : jndiDataSource(ref));
+	}
+
+	return (new ReplicaDataSource(spec, names, members, options));
     }
 
     /**
@@ -86,13 +218,7 @@ public class DbmsDataSourceFactory {
     public DataSource fileDataSource(String dsref)
 	throws DalServerException {
 
-	final String DB_URL = "url";
-	final String DB_DRIVER_CLASS = "driverClassName";
-	final String DB_USERNAME = "username";
-	final String DB_PASSWORD = "password";
-
 	Properties props = new Properties();
-        BasicDataSource ds = new BasicDataSource();
         FileInputStream in = null;
          
 	// Load the DataSource properties.
@@ -102,7 +228,77 @@ public class DbmsDataSourceFactory {
         } catch (IOException ex){
 	    throw new DalServerException(
 		"Cannot read properties file: " + ex.getMessage());
-        }
+        } finally {
+	    if (in != null) {
+		try { in.close(); } catch (IOException ex) { ; }
+	    }
+	}
+
+	if (props.getProperty("replicaUrls") != null)
+	    return (replicatedDataSource(props));
+	else
+	    return (pooledDataSource(props));
+    }
+
+    /**
+     * Create a replica set of pooling DataSources given a set of JDBC
+     * connection and pool properties.
+     *
+     * @param	props			DataSource properties
+     *
+     * The properties are as for {@link #pooledDataSource}, where "url" is
+     * the primary, plus "replicaUrls", a comma-delimited list of the JDBC
+     * URLs of the read replicas, which share the other connection and pool
+     * properties.  Any routing options of {@link ReplicaDataSource} may
+     * also be given.
+     */
+    public ReplicaDataSource replicatedDataSource(Properties props)
+	throws DalServerException {
+
+	List<String> urls = new ArrayList<String>();
+	urls.add(props.getProperty("url"));
+	String replicas = props.getProperty("replicaUrls", "");
+	for (String url : replicas.split(",")) {
+	    if (url.trim().length() > 0)
+		urls.add(url.trim());
+	}
+
+	List<DataSource> members = new ArrayList<DataSource>();
+	for (String url : urls) {
+	    Properties p = new Properties();
+	    p.putAll(props);
+	    p.setProperty("url", url);
+	    members.add(pooledDataSource(p));
+	}
+
+	return (new ReplicaDataSource(props.getProperty("url"), urls,
+	    members, props));
+    }
+
+    /**
+     * Create a new pooling DataSource given a set of JDBC connection and
+     * pool properties.
+     *
+     * @param	props			DataSource properties
+     *
+     * The essential properties are "driverClassName", "url", "username",
+     * and "password".  The optional pool properties are "initialSize",
+     * "minIdle", "maxIdle", "maxActive", "maxWait" (milliseconds),
+     * "validationQuery", "testOnBorrow", "timeBetweenEvictionRunsMillis",
+     * "defaultAutoCommit", "poolPreparedStatements", and
+     * "maxOpenPreparedStatements" (per connection).  Pool properties which are not set retain
+     * the BasicDataSource defaults.  The pool itself is not created until
+     * the first connection is requested.
+     */
+    public BasicDataSource pooledDataSource(Properties props)
+	throws DalServerException {
+
+	final String DB_URL = "url";
+	final String DB_DRIVER_CLASS = "driverClassName";
+	final String DB_USERNAME = "username";
+	final String DB_PASSWORD = "password";
+
+        BasicDataSource ds = new BasicDataSource();
 
 	// Apache seems to have trouble finding the JDBC driver class
 	// ds.setDriverClassLoader(DbmsDataSourceFactory.class.getClassLoader());
@@ -114,8 +310,37 @@ public class DbmsDataSourceFactory {
 	ds.setPassword(props.getProperty(DB_PASSWORD));
 
 	// Additional optional BasicDataSource parameters.
-	// [none at present]
+	String value;
+	try {
+	    if ((value = props.getProperty("initialSize")) != null)
+		ds.setInitialSize(Integer.parseInt(value));
+	    if ((value = props.getProperty("minIdle")) != null)
+		ds.setMinIdle(Integer.parseInt(value));
+	    if ((value = props.getProperty("maxIdle")) != null)
+		ds.setMaxIdle(Integer.parseInt(value));
+	    if ((value = props.getProperty("maxActive")) != null)
+		ds.setMaxActive(Integer.parseInt(value));
+	    if ((value = props.getProperty("maxWait")) != null)
+		ds.setMaxWait(Long.parseLong(value));
+	    if ((value = props.getProperty("timeBetweenEvictionRunsMillis")) != null)
+		ds.setTimeBetweenEvictionRunsMillis(Long.parseLong(value));
+	    if ((value = props.getProperty("maxOpenPreparedStatements")) != null)
+		ds.setMaxOpenPreparedStatements(Integer.parseInt(value));
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException(
+		"Bad DataSource pool parameter: " + ex.getMessage());
+	}
+
+	if ((value = props.getProperty("validationQuery")) != null)
+	    ds.setValidationQuery(value);
+	if ((value = props.getProperty("testOnBorrow")) != null)
+	    ds.setTestOnBorrow(Boolean.parseBoolean(value));
+	if ((value = props.getProperty("defaultAutoCommit")) != null)
+	    ds.setDefaultAutoCommit(Boolean.parseBoolean(value));
+	if ((value = props.getProperty("poolPreparedStatements")) != null)
+	    ds.setPoolPreparedStatements(Boolean.parseBoolean(value));
 
+	log.debug("created pooled DataSource for " + ds.getUrl());
 	return (ds);
     }
 }
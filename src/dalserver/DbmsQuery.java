@@ -38,6 +38,14 @@ public class DbmsQuery {
     /** DBMS-specific query processing flags. */
     private boolean quoteNames = false;
 
+    /** JDBC driver classes already loaded by this JVM. */
+    private static final Set<String> drivers =
+	Collections.synchronizedSet(new HashSet<String>());
+
+    /** Degrees to radians, and half of it, as SQL literals. */
+    protected static final String D2R = "0.017453292519943295";
+    protected static final String HALF_D2R = "0.008726646259971648";
+
     /**
      * Constructor to generate a new DbmsQuery object.
      *
@@ -48,14 +56,7 @@ public class DbmsQuery {
 	throws DalServerException {
 
 	// Check that the DBMS is a supported type.
-	if (dbType.equalsIgnoreCase("MySQL"))
-	    this.dbType = "mysql";
-	else if (dbType.equalsIgnoreCase("PostgreSQL"))
-	    this.dbType = "postgresql";
-	else if (dbType.equalsIgnoreCase("Oracle"))
-	    this.dbType = "oracle";
-	else
-	    throw new DalServerException("Unsupported DBMS (" + dbType + ")");
+	this.dbType = dbmsType(dbType);
 
 	// Postgres table/col names are case sensitive, but when they appear
 	// as identifiers in a SQL expression they are automatically mapped
@@ -65,9 +66,66 @@ public class DbmsQuery {
 	//    this.quoteNames = true;
 
 	// Load the JDBC driver (not required for newer Java versions).
+	loadDriver(jdbcDriver);
+	conn = null;
+    }
+
+    /**
+     * Map a user-supplied DBMS type name to the normalized form used
+     * internally ("mysql", "postgresql", or "oracle").
+     *
+     * @param	dbType		Database type
+     */
+    public static String dbmsType(String dbType)
+	throws DalServerException {
+
+	if (dbType == null)
+	    throw new DalServerException("DBMS type not specified");
+	else if (dbType.equalsIgnoreCase("MySQL"))
+	    return ("mysql");
+	else if (dbType.equalsIgnoreCase("PostgreSQL"))
+	    return ("postgresql");
+	else if (dbType.equalsIgnoreCase("Oracle"))
+	    return ("oracle");
+	else
+	    throw new DalServerException("Unsupported DBMS (" + dbType + ")");
+    }
+
+    /**
+     * Form the full JDBC URL for a database.  For MySQL and PostgreSQL
+     * the database name is appended to the server URL; for Oracle the
+     * URL already identifies the database.
+     *
+     * @param	dbType		Normalized database type
+     * @param	url		JDBC URL of the remote DBMS.
+     * @param	database	Database name within remote DBMS.
+     */
+    public static String dbmsUrl(String dbType, String url, String database) {
+	if ((dbType.equals("mysql") || dbType.equals("postgresql")) &&
+	    database != null) {
+
+	    return (url + database);
+	}
+
+	return (url);
+    }
+
+    /**
+     * Load a JDBC driver class.  The driver is loaded only the first
+     * time it is referenced; subsequent calls for the same class
+     * are a no-op.
+     *
+     * @param	jdbcDriver	JDBC driver class
+     */
+    public static void loadDriver(String jdbcDriver)
+	throws DalServerException {
+
+	if (jdbcDriver == null || drivers.contains(jdbcDriver))
+	    return;
+
 	try {
-	    Class.forName(jdbcDriver).newInstance();
-	    conn = null;
+	    Class.forName(jdbcDriver);
+	    drivers.add(jdbcDriver);
 	} catch (Exception ex) {
 	    throw new DalServerException(ex.getMessage());
 	}
@@ -86,13 +144,7 @@ public class DbmsQuery {
 	throws DalServerException {
 
 	this.database = database;
-	String dburl = url;
-
-	if (this.dbType.equals("mysql") ||
-	    this.dbType.equals("postgresql")) {
-
-	    dburl += database;
-	}
+	String dburl = dbmsUrl(this.dbType, url, database);
 
 	try {
 	    conn = DriverManager.getConnection(dburl, username, password);
@@ -106,7 +158,21 @@ public class DbmsQuery {
 
 
     /**
-     * Disconnect from the remote database.
+     * Connect to the remote database using a connection borrowed from
+     * a service connection pool.  The connection is returned to the pool
+     * when disconnect is called.
+     *
+     * @param	pool		Connection pool for the service DBMS.
+     */
+    public void
+    connect(DbmsConnectionPool pool) throws DalServerException {
+	this.database = pool.getDatabase();
+	conn = pool.getConnection();
+    }
+
+    /**
+     * Disconnect from the remote database.  For a pooled connection
+     * this returns the connection to the pool.
      */
     public void disconnect() {
 	if (conn != null) {
@@ -115,6 +181,7 @@ public class DbmsQuery {
 	    } catch (SQLException ex) {
 		;
 	    }
+	    conn = null;
 	}
     }
 
@@ -152,4 +219,136 @@ public class DbmsQuery {
     public String dbType() {
 	return (this.dbType);
     }
+
+    /**
+     * Limit the number of rows returned by a query, in the SQL dialect of
+     * the DBMS: LIMIT for MySQL and PostgreSQL, or ROWNUM for Oracle (a
+     * subquery, so that any ORDER BY is applied before the limit).
+     *
+     * @param	query		The query to be limited
+     * @param	nrows		Maximum number of rows to be returned
+     *
+     * @return			The limited query, which may be a new query
+     *				containing the original as a subquery.
+     *
+     * To detect overflow of MAXREC exactly, the limit should be one more
+     * than the number of rows which may be returned, and every row
+     * returned by the query should produce at least one output record,
+     * i.e., any refinement of the query must be done in the DBMS.
+     */
+    public SqlTemplate limitRows(SqlTemplate query, long nrows) {
+	if (this.dbType.equals("oracle")) {
+	    SqlTemplate limited = new SqlTemplate("SELECT * FROM (");
+	    limited.append(query).append(") WHERE ROWNUM <= ").bind(nrows);
+	    return (limited);
+	} else {
+	    query.append(" LIMIT ").bind(nrows);
+	    return (query);
+	}
+    }
+
+    /**
+     * Estimate the number of rows in a table from the statistics kept by
+     * the DBMS (pg_class for PostgreSQL, information_schema for MySQL,
+     * ALL_TABLES for Oracle).  This is much cheaper than COUNT(*), but
+     * is only as current as the last ANALYZE of the table.
+     *
+     * @param	schemaName	Schema of the table, or null
+     * @param	tableName	Name of the table
+     *
+     * @return			The estimated row count, or -1 if unknown
+     */
+    public long estimateRowCount(String schemaName, String tableName)
+	throws DalServerException {
+
+	if (schemaName != null && schemaName.length() == 0)
+	    schemaName = null;
+
+	SqlTemplate query;
+	if (this.dbType.equals("postgresql")) {
+	    query = new SqlTemplate("SELECT reltuples FROM pg_class" +
+		" WHERE oid = CAST(");
+	    query.bind(schemaName == null ? tableName :
+		schemaName + "." + tableName).append(" AS regclass)");
+	} else if (this.dbType.equals("mysql")) {
+	    query = new SqlTemplate("SELECT TABLE_ROWS" +
+		" FROM information_schema.TABLES WHERE TABLE_NAME = ");
+	    query.bind(tableName).append(" AND TABLE_SCHEMA = ");
+	    if (schemaName == null)
+		query.append("DATABASE()");
+	    else
+		query.bind(schemaName);
+	} else {
+	    query = new SqlTemplate("SELECT NUM_ROWS FROM ");
+	    query.append(schemaName == null ? "USER_TABLES" : "ALL_TABLES");
+	    query.append(" WHERE TABLE_NAME = ").bind(tableName.toUpperCase());
+	    if (schemaName != null)
+		query.append(" AND OWNER = ").bind(schemaName.toUpperCase());
+	}
+
+	PreparedStatement st = null;
+	try {
+	    st = query.prepare(getConnection());
+	    ResultSet rs = st.executeQuery();
+	    long nrows = -1;
+	    if (rs.next()) {
+		nrows = rs.getLong(1);
+		if (rs.wasNull())
+		    nrows = -1;
+	    }
+	    rs.close();
+	    return (nrows);
+
+	} catch (SQLException ex) {
+	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    SqlTemplate.close(st);
+	}
+    }
+
+    /**
+     * Compose a SQL constraint testing whether a string column contains
+     * any of the given values, ignoring case, e.g., to select the rows
+     * which have one of several data formats.
+     *
+     * @param	column		SQL name of the column
+     * @param	values		Lower case values (not user input)
+     */
+    public String containsAny(String column, List<String> values) {
+	StringBuilder sb = new StringBuilder("(");
+	for (String value : values) {
+	    if (sb.length() > 1)
+		sb.append(" OR ");
+	    sb.append("LOWER(" + column + ") LIKE '%" + value + "%'");
+	}
+	return (sb.append(")").toString());
+    }
+
+    /**
+     * Append a constraint selecting rows within a cone, computed exactly
+     * in the DBMS.  The angular distance is computed with the haversine
+     * formula, which is accurate for small radii and is equivalent to the
+     * chord distance used by the cone search refinement.  Only the basic
+     * SQL functions (SIN, COS, POWER) are used, with angles in degrees
+     * converted explicitly, as Oracle has no RADIANS function.
+     *
+     * @param	query		The query
+     * @param	raColumn	SQL name of the (numeric) RA column, degrees
+     * @param	decColumn	SQL name of the (numeric) DEC column, degrees
+     * @param	ra		RA of the cone center, degrees
+     * @param	dec		DEC of the cone center, degrees
+     * @param	sr		Radius of the cone, degrees
+     */
+    public void coneConstraint(SqlTemplate query, String raColumn,
+	String decColumn, double ra, double dec, double sr) {
+
+	double halfSin = Math.sin(Math.toRadians(Math.min(sr, 180.0)) / 2.0);
+
+	query.append("(POWER(SIN((" + decColumn + " - ").bind(dec);
+	query.append(") * " + HALF_D2R + "), 2) + COS(" + decColumn +
+	    " * " + D2R + ") * ").bind(Math.cos(Math.toRadians(dec)));
+	query.append(" * POWER(SIN((" + raColumn + " - ").bind(ra);
+	query.append(") * " + HALF_D2R + "), 2) <= ").bind(halfSin * halfSin);
+	query.append(")");
+    }
 }
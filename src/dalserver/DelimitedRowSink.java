@@ -0,0 +1,80 @@
+/*
+ * DelimitedRowSink.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.io.*;
+
+/**
+ * Row sink which serializes a RequestResponse as delimiter-separated text,
+ * i.e., CSV or TSV.  The output columns and their labels are determined
+ * by the CSV keyword attributes of the table fields, as described for
+ * {@link RequestResponse#writeCsv}.
+ */
+public class DelimitedRowSink implements RowSink {
+    /** Output stream. */
+    private PrintWriter output;
+
+    /** Column delimiter, e.g., "," or a tab. */
+    private String delimChar;
+
+    /** Keys of the output columns, in output order. */
+    private String[] fieldKeys;
+
+    /** Reusable output line buffer. */
+    private StringBuilder line = new StringBuilder();
+
+    /**
+     * Create a new delimited-text row sink.
+     *
+     * @param	out		OutputStream to which the table is written.
+     * @param	delimChar	Column delimiter.
+     */
+    public DelimitedRowSink(OutputStream out, String delimChar) {
+	this.output = new PrintWriter(out);
+	this.delimChar = delimChar;
+    }
+
+    /** Output the column header line. */
+    public void begin(RequestResponse response) throws DalServerException {
+	String[][] columns = response.getCsvColumns();
+	fieldKeys = columns[0];
+
+	line.setLength(0);
+	for (int i=0;  i < columns[1].length;  i++) {
+	    if (i > 0)
+		line.append(delimChar);
+	    line.append(columns[1][i]);
+	}
+	output.println(line.toString());
+    }
+
+    /** Output the current table row. */
+    public void writeRow(RequestResponse response) throws DalServerException {
+	line.setLength(0);
+
+	for (int i=0;  i < fieldKeys.length;  i++) {
+	    String value = response.getValue(fieldKeys[i]);
+	    if (value == null)
+		value = "";
+	    boolean quoteit = (value.contains(delimChar));
+
+	    if (i > 0)
+		line.append(delimChar);
+	    if (quoteit)
+		line.append("\"");
+	    line.append(value);
+	    if (quoteit)
+		line.append("\"");
+	}
+
+	output.println(line.toString());
+    }
+
+    /** Complete the output.  There is no trailing metadata. */
+    public void end(RequestResponse response) throws DalServerException {
+	output.close();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * FieldType.java
+ * $ID*
+ */
+
+package dalserver;
+
+/**
+ * Utilities for the binary serialization of table fields, shared by the
+ * VOTable BINARY2 and FITS binary table writers.  A VOTable datatype is
+ * mapped to a primitive element type, and the arraysize to a number of
+ * elements.  Array values, which are stored as text, are parsed as
+ * element tokens separated by white space or commas.
+ */
+class FieldType {
+    /** Primitive element types. */
+    static final int BOOLEAN = 0;
+    static final int BIT = 1;
+    static final int UBYTE = 2;
+    static final int SHORT = 3;
+    static final int INT = 4;
+    static final int LONG = 5;
+    static final int CHAR = 6;
+    static final int UNICODE = 7;
+    static final int FLOAT = 8;
+    static final int DOUBLE = 9;
+
+    /** Map a VOTable datatype to a primitive type; the default is CHAR. */
+    static int primitiveType(String datatype) {
+	if (datatype == null)
+	    return (CHAR);
+	else if (datatype.equals("boolean"))
+	    return (BOOLEAN);
+	else if (datatype.equals("bit"))
+	    return (BIT);
+	else if (datatype.equals("unsignedByte"))
+	    return (UBYTE);
+	else if (datatype.equals("short"))
+	    return (SHORT);
+	else if (datatype.equals("int"))
+	    return (INT);
+	else if (datatype.equals("long"))
+	    return (LONG);
+	else if (datatype.equals("unicodeChar"))
+	    return (UNICODE);
+	else if (datatype.equals("float") || datatype.equals("floatComplex"))
+	    return (FLOAT);
+	else if (datatype.equals("double") || datatype.equals("doubleComplex"))
+	    return (DOUBLE);
+	else
+	    return (CHAR);
+    }
+
+    /** Test whether a VOTable datatype is complex. */
+    static boolean isComplex(String datatype) {
+	return (datatype != null && (datatype.equals("floatComplex") ||
+	    datatype.equals("doubleComplex")));
+    }
+
+    /**
+     * Get the number of primitive elements of a field, or -1 for a
+     * variable length array.  A character field with no arraysize is a
+     * variable length string (e.g., a TAP VARCHAR column), rather than a
+     * single character, and complex values count two elements.
+     */
+    static int elementCount(String datatype, String arraysize) {
+	int type = primitiveType(datatype);
+	if ((type == CHAR || type == UNICODE) &&
+	    (arraysize == null || arraysize.trim().length() == 0))
+	    return (-1);
+
+	int count = arrayCount(arraysize);
+	if (isComplex(datatype) && count > 0)
+	    count *= 2;
+	return (count);
+    }
+
+    /**
+     * Get the number of elements of an arraysize, or -1 for a variable
+     * length array.  Multidimensional arrays are flattened.
+     */
+    static int arrayCount(String arraysize) {
+	if (arraysize == null || arraysize.trim().length() == 0)
+	    return (1);
+	if (arraysize.indexOf('*') >= 0)
+	    return (-1);
+
+	int count = 1;
+	for (String dim : arraysize.trim().split("x")) {
+	    try {
+		count *= Integer.parseInt(dim.trim());
+	    } catch (NumberFormatException ex) {
+		return (-1);
+	    }
+	}
+	return (count);
+    }
+
+    /** Find the start of the next array element token. */
+    static int nextToken(String text, int i) {
+	while (i < text.length() && isSeparator(text.charAt(i)))
+	    i++;
+	return (i);
+    }
+
+    /** Find the end of an array element token. */
+    static int tokenEnd(String text, int i) {
+	while (i < text.length() && !isSeparator(text.charAt(i)))
+	    i++;
+	return (i);
+    }
+
+    /** Count the element tokens of an array value. */
+    static int countTokens(String text) {
+	int ntokens = 0;
+	for (int i=0;  (i = nextToken(text, i)) < text.length();  ) {
+	    i = tokenEnd(text, i);
+	    ntokens++;
+	}
+	return (ntokens);
+    }
+
+    /** Count the bits (0 or 1 characters) of a bit array value. */
+    static int countBits(String text) {
+	int nbits = 0;
+	for (int i=0;  i < text.length();  i++)
+	    if (text.charAt(i) == '0' || text.charAt(i) == '1')
+		nbits++;
+	return (nbits);
+    }
+
+    private static boolean isSeparator(char ch) {
+	return (ch == ' ' || ch == ',' || ch == '\t' || ch == '\n' ||
+	    ch == '\r');
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ * FitsRowSink.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import nom.tam.fits.*;
+import nom.tam.util.*;
+
+/**
+ * Row sink which serializes a RequestResponse as a FITS binary table
+ * (BINTABLE extension, following an empty primary HDU).  The column
+ * names, formats, and units (TTYPE, TFORM, TUNIT) are derived from the
+ * table field metadata.  Scalar numeric values are written directly from
+ * the typed column storage; null values are written as NaN for floating
+ * point columns and as the TNULL value for integer columns.
+ *
+ * <p>FITS requires the number of rows (NAXIS2), and the width of every
+ * column, to be given in the header.  If the output is a file and every
+ * column has a fixed width, the rows are written directly following the
+ * header, and NAXIS2 is patched once the table is complete.  Otherwise
+ * the rows are spooled to a temporary file, recording the row count and
+ * the maximum width of variable length columns, and the table is written
+ * when the stream ends.  In either case the table is never held in
+ * memory, and is output in FITS 2880 byte blocks.
+ *
+ * <p>If the stream is aborted (QUERY_STATUS=ERROR, see
+ * {@link RequestResponse#abortStream}) the partial table is discarded,
+ * and the output is a primary HDU with STATUS = 'ERROR' and the error
+ * message as COMMENT cards, so that a client cannot mistake the rows
+ * output so far for the complete table.  If the output itself fails, it
+ * is left incomplete.
+ */
+public class FitsRowSink implements RowSink {
+    /** FITS logical record size. */
+    private static final int BLOCK = 2880;
+
+    /** Output buffer size, in FITS blocks. */
+    private static final int NBLOCKS = 20;
+
+    /** Maximum length of a FITS string keyword value. */
+    private static final int MAXSTR = 68;
+
+    /** Output stream. */
+    private OutputStream out;
+    private BufferedDataOutputStream fitsOut;
+
+    /** Set if rows are written directly, rather than spooled. */
+    private boolean direct = false;
+    private long start, naxis2Offset;
+
+    /** Set if writing the output or spool file has failed. */
+    private boolean failed = false;
+
+    /** Row spool file, if used. */
+    private File spoolFile;
+    private DataOutputStream spool;
+
+    /** Output columns. */
+    private Column[] columns;
+
+    /** Number of table rows written. */
+    private long nrows = 0;
+
+    /** Reusable output buffer. */
+    private byte[] buf = new byte[8192];
+
+
+    /**
+     * Create a new FITS row sink.
+     *
+     * @param	out	OutputStream to which the FITS file is written.
+     */
+    public FitsRowSink(OutputStream out) {
+	this.out = out;
+    }
+
+    /** Set up the table columns, and write the header if possible. */
+    public void begin(RequestResponse response) throws DalServerException {
+	// Fields with no index are not output.
+	TableField[] fields = response.getRowFields();
+	int ncols = 0;
+	for (TableField field : fields)
+	    if (field != null)
+		ncols++;
+
+	columns = new Column[ncols];
+	boolean fixedWidth = true;
+	for (int j=0, k=0;  j < fields.length;  j++) {
+	    if (fields[j] != null) {
+		columns[k] = new Column(fields[j], j);
+		if (columns[k].count < 0)
+		    fixedWidth = false;
+		k++;
+	    }
+	}
+
+	try {
+	    fitsOut = new BufferedDataOutputStream(out, NBLOCKS * BLOCK);
+	    direct = (fixedWidth && out instanceof FileOutputStream);
+
+	    if (direct) {
+		FileChannel channel = ((FileOutputStream)out).getChannel();
+		start = channel.position();
+		writePrimaryHeader(null);
+		fitsOut.flush();
+		naxis2Offset = channel.position() + 4 * 80;
+		writeTableHeader(0);
+	    } else {
+		spoolFile = File.createTempFile("dalserver", ".spool");
+		spool = new DataOutputStream(new BufferedOutputStream(
+		    new FileOutputStream(spoolFile), NBLOCKS * BLOCK));
+	    }
+	} catch (IOException ex) {
+	    failed = true;
+	    cleanup();
+	    throw new DalServerException("cannot write FITS: " + ex.getMessage());
+	} catch (FitsException ex) {
+	    failed = true;
+	    cleanup();
+	    throw new DalServerException("cannot write FITS: " + ex.getMessage());
+	}
+    }
+
+    /** Output the current table row. */
+    public void writeRow(RequestResponse response) throws DalServerException {
+	DataOutput dout = direct ? (DataOutput) fitsOut : (DataOutput) spool;
+	try {
+	    for (Column col : columns)
+		col.write(response, dout);
+	    nrows++;
+	} catch (IOException ex) {
+	    failed = true;
+	    cleanup();
+	    throw new DalServerException("cannot write FITS: " + ex.getMessage());
+	}
+    }
+
+    /** Complete the table, or output the error if the stream failed. */
+    public void end(RequestResponse response) throws DalServerException {
+	TableInfo status = response.getInfo("QUERY_STATUS");
+	boolean aborted = (status != null && "ERROR".equals(status.getValue()));
+
+	try {
+	    if (failed && (direct || fitsOut == null)) {
+		// The output itself failed; nothing more can be written.
+		return;
+
+	    } else if (failed || aborted) {
+		String message = (status != null) ? status.getContent() : null;
+		writeError((message != null) ? message : "FITS output failed");
+
+	    } else if (direct) {
+		FitsUtil.pad(fitsOut, nrows * rowBytes());
+		fitsOut.flush();
+
+		// Patch the header with the actual number of rows.
+		String card = new HeaderCard("NAXIS2", nrows, null).toString();
+		FileChannel channel = ((FileOutputStream)out).getChannel();
+		channel.write(ByteBuffer.wrap(card.getBytes("US-ASCII")),
+		    naxis2Offset);
+	    } else {
+		spool.close();
+		spool = null;
+
+		writePrimaryHeader(null);
+		writeTableHeader(nrows);
+		copySpool();
+		FitsUtil.pad(fitsOut, nrows * rowBytes());
+		fitsOut.flush();
+	    }
+	} catch (IOException ex) {
+	    failed = true;
+	    throw new DalServerException("cannot write FITS: " + ex.getMessage());
+	} catch (FitsException ex) {
+	    failed = true;
+	    throw new DalServerException("cannot write FITS: " + ex.getMessage());
+	} finally {
+	    cleanup();
+	}
+    }
+
+    /**
+     * Replace the partial table by a primary HDU giving the error.  If
+     * rows were written directly, the file is truncated to where the
+     * output began.
+     */
+    private void writeError(String message)
+	throws IOException, FitsException {
+
+	if (direct) {
+	    fitsOut.flush();
+	    FileChannel channel = ((FileOutputStream)out).getChannel();
+	    channel.truncate(start);
+	    channel.position(start);
+	}
+	writePrimaryHeader(message);
+	fitsOut.flush();
+    }
+
+    /**
+     * Write an empty primary HDU header.
+     *
+     * @param	error	Error message, or null if the table follows
+     */
+    private void writePrimaryHeader(String error) throws FitsException {
+	Header header = new Header();
+	header.setSimple(true);
+	header.setBitpix(8);
+	header.setNaxes(0);
+	if (error == null) {
+	    header.addValue("EXTEND", true,
+		"FITS dataset may contain extensions");
+	} else {
+	    header.addValue("EXTEND", false, "no table follows");
+	    header.addValue("STATUS", "ERROR", "query status");
+	    for (int i=0;  i < error.length();  i += 70)
+		header.insertComment(
+		    error.substring(i, Math.min(error.length(), i + 70)));
+	}
+	header.write(fitsOut);
+    }
+
+    /** Write the BINTABLE extension header. */
+    private void writeTableHeader(long nrows) throws FitsException {
+	Header header = new Header();
+	header.setXtension("BINTABLE");
+	header.setBitpix(8);
+	header.setNaxes(2);
+	header.addValue("NAXIS1", rowBytes(), null);
+	header.addValue("NAXIS2", nrows, null);
+	header.addValue("PCOUNT", 0, "size of special data area");
+	header.addValue("GCOUNT", 1, "one data group");
+	header.addValue("TFIELDS", columns.length, "number of table fields");
+
+	for (int i=0;  i < columns.length;  i++) {
+	    Column col = columns[i];
+	    int n = i + 1;
+	    header.addValue("TTYPE" + n, truncate(col.name), null);
+	    header.addValue("TFORM" + n, col.tform(), null);
+	    if (col.unit != null && col.unit.length() > 0)
+		header.addValue("TUNIT" + n, truncate(col.unit), null);
+	    if (col.tnull != 0)
+		header.addValue("TNULL" + n, col.tnull, null);
+	}
+
+	header.write(fitsOut);
+    }
+
+    /**
+     * Copy the spooled rows to the output, padding variable length
+     * columns to their maximum width.
+     */
+    private void copySpool() throws IOException {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(
+	    new FileInputStream(spoolFile), NBLOCKS * BLOCK));
+
+	try {
+	    for (long row=0;  row < nrows;  row++) {
+		for (Column col : columns) {
+		    int count = (col.count < 0) ? in.readInt() : col.count;
+		    int width = (col.count < 0) ? col.maxCount : col.count;
+		    copy(in, col.byteSize(count));
+		    for (int k=count;  k < width && col.type != FieldType.BIT;  k++)
+			fitsOut.write(col.nullElement);
+		    if (col.type == FieldType.BIT)
+			pad(col.byteSize(width) - col.byteSize(count));
+		}
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Copy n bytes from the spool to the output. */
+    private void copy(DataInputStream in, int n) throws IOException {
+	while (n > 0) {
+	    int len = Math.min(n, buf.length);
+	    in.readFully(buf, 0, len);
+	    fitsOut.write(buf, 0, len);
+	    n -= len;
+	}
+    }
+
+    /** Output n zero bytes. */
+    private void pad(int n) throws IOException {
+	for (int i=0;  i < n;  i++)
+	    fitsOut.write(0);
+    }
+
+    /** Get the size in bytes of a table row. */
+    private long rowBytes() {
+	long nbytes = 0;
+	for (Column col : columns)
+	    nbytes += col.byteSize((col.count < 0) ? col.maxCount : col.count);
+	return (nbytes);
+    }
+
+    /** Truncate a string to the maximum FITS keyword value length. */
+    private String truncate(String s) {
+	return ((s.length() > MAXSTR) ? s.substring(0, MAXSTR) : s);
+    }
+
+    /** Close and delete the spool file, if any. */
+    private void cleanup() {
+	try {
+	    if (spool != null)
+		spool.close();
+	} catch (IOException ex) {
+	    ;
+	}
+	spool = null;
+
+	if (spoolFile != null)
+	    spoolFile.delete();
+	spoolFile = null;
+    }
+
+
+    /**
+     * A FITS table column.  The number of elements per row is either
+     * fixed, or variable (count < 0), in which case the maximum count is
+     * recorded as rows are written, and each spooled value is preceded
+     * by its element count.
+     */
+    private static class Column {
+	/** Index of the field in the table row. */
+	int index;
+
+	/** Column name and unit. */
+	String name, unit;
+
+	/** Primitive element type, and whether complex. */
+	int type;
+	boolean complex;
+
+	/** Number of elements, or -1 if variable. */
+	int count;
+	int maxCount = 1;
+
+	/** Integer null value (TNULL), or 0 if none. */
+	long tnull = 0;
+
+	/** Binary null element value. */
+	byte[] nullElement;
+
+	Column(TableField field, int index) {
+	    this.index = index;
+	    this.name = field.getName();
+	    if (name == null || name.length() == 0)
+		name = field.getId();
+	    if (name == null)
+		name = "col" + (index + 1);
+	    this.unit = field.getUnit();
+
+	    String datatype = field.getDataType();
+	    String arraysize = field.getArraySize();
+	    if (datatype == null || datatype.length() == 0) {
+		datatype = "char";
+		arraysize = "*";
+	    }
+
+	    type = FieldType.primitiveType(datatype);
+	    complex = FieldType.isComplex(datatype);
+	    count = FieldType.elementCount(datatype, arraysize);
+
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    DataOutputStream dos = new DataOutputStream(bos);
+	    try {
+		switch (type) {
+		case FieldType.FLOAT:
+		    dos.writeFloat(Float.NaN);
+		    break;
+		case FieldType.DOUBLE:
+		    dos.writeDouble(Double.NaN);
+		    break;
+		case FieldType.UBYTE:
+		    dos.writeByte((int) (tnull = 255));
+		    break;
+		case FieldType.SHORT:
+		    dos.writeShort((int) (tnull = Short.MIN_VALUE));
+		    break;
+		case FieldType.INT:
+		    dos.writeInt((int) (tnull = Integer.MIN_VALUE));
+		    break;
+		case FieldType.LONG:
+		    dos.writeLong(tnull = Long.MIN_VALUE);
+		    break;
+		default:
+		    dos.writeByte(0);
+		}
+	    } catch (IOException ex) {
+		;
+	    }
+	    nullElement = bos.toByteArray();
+	}
+
+	/** Get the FITS TFORM value. */
+	String tform() {
+	    int n = (count < 0) ? maxCount : count;
+	    switch (type) {
+	    case FieldType.BOOLEAN:	return (n + "L");
+	    case FieldType.BIT:		return (n + "X");
+	    case FieldType.UBYTE:	return (n + "B");
+	    case FieldType.SHORT:	return (n + "I");
+	    case FieldType.INT:		return (n + "J");
+	    case FieldType.LONG:	return (n + "K");
+	    case FieldType.FLOAT:	return (complex ? (n/2 + "C") : (n + "E"));
+	    case FieldType.DOUBLE:	return (complex ? (n/2 + "M") : (n + "D"));
+	    default:			return (n + "A");
+	    }
+	}
+
+	/** Get the size in bytes of n elements. */
+	int byteSize(int n) {
+	    switch (type) {
+	    case FieldType.BIT:		return ((n + 7) / 8);
+	    case FieldType.SHORT:	return (n * 2);
+	    case FieldType.INT:
+	    case FieldType.FLOAT:	return (n * 4);
+	    case FieldType.LONG:
+	    case FieldType.DOUBLE:	return (n * 8);
+	    default:			return (n);
+	    }
+	}
+
+	/** Write the value of this column for the current row. */
+	void write(RequestResponse response, DataOutput out)
+	    throws IOException {
+
+	    boolean isNull = response.isCellEmpty(index);
+
+	    // Scalar numeric values are taken from the typed storage.
+	    if (count == 1 && type != FieldType.CHAR &&
+		type != FieldType.UNICODE && type != FieldType.BIT &&
+		type != FieldType.BOOLEAN) {
+
+		if (type == FieldType.FLOAT || type == FieldType.DOUBLE) {
+		    double dval = isNull ? Double.NaN :
+			response.getCellDouble(index);
+		    if (type == FieldType.FLOAT)
+			out.writeFloat((float) dval);
+		    else
+			out.writeDouble(dval);
+		} else {
+		    long lval = tnull;
+		    if (!isNull) {
+			try {
+			    lval = response.getCellLong(index);
+			} catch (NumberFormatException ex) {
+			    ;
+			}
+		    }
+		    writeInteger(out, lval);
+		}
+		return;
+	    }
+
+	    String text = isNull ? "" : response.getCell(index);
+
+	    // Character strings.
+	    if (type == FieldType.CHAR || type == FieldType.UNICODE) {
+		int n = text.length();
+		if (count < 0) {
+		    out.writeInt(n);
+		    maxCount = Math.max(maxCount, n);
+		} else
+		    n = count;
+		for (int i=0;  i < n;  i++) {
+		    char ch = (i < text.length()) ? text.charAt(i) : 0;
+		    out.writeByte((ch < 256) ? ch : '?');
+		}
+		return;
+	    }
+
+	    // Bit arrays.
+	    if (type == FieldType.BIT) {
+		int nbits = FieldType.countBits(text);
+		if (count < 0) {
+		    out.writeInt(nbits);
+		    maxCount = Math.max(maxCount, nbits);
+		} else
+		    nbits = count;
+
+		// Packed most significant bit first, padded with zero bits.
+		int nbytes = byteSize(nbits), bit = 0, bits = 0, nout = 0;
+		for (int i=0;  i < text.length() && bit < nbits;  i++) {
+		    char ch = text.charAt(i);
+		    if (ch != '0' && ch != '1')
+			continue;
+		    if (ch == '1')
+			bits |= (0x80 >>> (bit & 7));
+		    if ((++bit & 7) == 0) {
+			out.writeByte(bits);
+			bits = 0;
+			nout++;
+		    }
+		}
+		for (;  nout < nbytes;  nout++) {
+		    out.writeByte(bits);
+		    bits = 0;
+		}
+		return;
+	    }
+
+	    // Numeric and logical arrays.
+	    int ntokens = FieldType.countTokens(text);
+	    if (complex && (ntokens % 2) != 0)
+		ntokens++;
+	    if (count < 0) {
+		out.writeInt(ntokens);
+		maxCount = Math.max(maxCount, ntokens);
+	    } else
+		ntokens = count;
+
+	    int pos = 0;
+	    for (int k=0;  k < ntokens;  k++) {
+		String token = null;
+		pos = FieldType.nextToken(text, pos);
+		if (pos < text.length()) {
+		    int end = FieldType.tokenEnd(text, pos);
+		    token = text.substring(pos, end);
+		    pos = end;
+		}
+		writeElement(out, token);
+	    }
+	}
+
+	/** Write a single array element given as text. */
+	private void writeElement(DataOutput out, String token)
+	    throws IOException {
+
+	    if (token == null) {
+		out.write(nullElement);
+		return;
+	    }
+
+	    switch (type) {
+	    case FieldType.FLOAT:
+	    case FieldType.DOUBLE:
+		double dval = Double.NaN;
+		try {
+		    dval = Double.parseDouble(token);
+		} catch (NumberFormatException ex) {
+		    ;
+		}
+		if (type == FieldType.FLOAT)
+		    out.writeFloat((float) dval);
+		else
+		    out.writeDouble(dval);
+		break;
+
+	    case FieldType.BOOLEAN:
+		char ch = token.charAt(0);
+		if (ch == 'T' || ch == 't' || ch == '1')
+		    out.writeByte('T');
+		else if (ch == 'F' || ch == 'f' || ch == '0')
+		    out.writeByte('F');
+		else
+		    out.writeByte(0);
+		break;
+
+	    default:
+		long lval = tnull;
+		try {
+		    lval = Long.parseLong(token);
+		} catch (NumberFormatException ex) {
+		    try {
+			lval = (long) Double.parseDouble(token);
+		    } catch (NumberFormatException ex2) {
+			;
+		    }
+		}
+		writeInteger(out, lval);
+	    }
+	}
+
+	/** Write an integer element. */
+	private void writeInteger(DataOutput out, long value)
+	    throws IOException {
+
+	    switch (type) {
+	    case FieldType.UBYTE:	out.writeByte((int) value);  break;
+	    case FieldType.SHORT:	out.writeShort((int) value);  break;
+	    case FieldType.INT:		out.writeInt((int) value);  break;
+	    default:			out.writeLong(value);
+	    }
+	}
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Healpix.java
+ * $ID*
+ */
+
+package dalserver;
+
+/**
+ * Minimal HEALPix support (NESTED scheme) for spatial indexing of
+ * catalog tables.  A table to be searched by position is given an integer
+ * column containing the HEALPix pixel index, at a fixed order, of each
+ * row position, computed at ingest time with {@link #ang2pix}.  As nested
+ * pixels within a parent pixel are numbered consecutively, a cone
+ * (circular region) on the sky maps onto a small set of pixel ranges,
+ * computed with {@link #queryDisc}, which may be searched with an ordinary
+ * B-tree index on the pixel column of any DBMS.
+ *
+ * <p>The pixel ranges computed for a cone are inclusive, i.e., they
+ * contain every pixel which intersects the cone, but may contain some
+ * pixels which do not; the query results must therefore be refined by
+ * an exact distance test.
+ *
+ * <p>Positions are given as ICRS RA and DEC in degrees.  The order
+ * (resolution) of the index may be from 0 to {@link #MAX_ORDER}; the
+ * number of pixels on a side of each base pixel is nside = 2**order.
+ */
+public class Healpix {
+
+    /** Maximum supported order (nside=2**29). */
+    public static final int MAX_ORDER = 29;
+
+    /** Default order (nside=4096, mean pixel size about 0.86 arcmin). */
+    public static final int DEFAULT_ORDER = 12;
+
+    /** Default maximum number of pixel ranges for a cone. */
+    public static final int DEFAULT_MAX_RANGES = 32;
+
+    private static final double HALFPI = Math.PI / 2.0;
+    private static final double TWOTHIRD = 2.0 / 3.0;
+
+    /** Ring number of the southernmost corner of each base pixel. */
+    private static final int[] jrll = { 2,2,2,2, 3,3,3,3, 4,4,4,4 };
+
+    /** Longitude index of the center of each base pixel. */
+    private static final int[] jpll = { 1,3,5,7, 0,2,4,6, 1,3,5,7 };
+
+
+    /** Static class. */
+    private Healpix() { }
+
+    /** Get the nside of an order. */
+    public static long nside(int order) {
+	return (1L << order);
+    }
+
+    /** Get the number of pixels on the sphere at an order. */
+    public static long npix(int order) {
+	return (12L << (2 * order));
+    }
+
+    /**
+     * Compute the nested pixel index of a position.
+     *
+     * @param	order		HEALPix order (resolution)
+     * @param	ra		Right ascension, degrees
+     * @param	dec		Declination, degrees
+     */
+    public static long ang2pix(int order, double ra, double dec) {
+	checkOrder(order);
+	long nside = 1L << order;
+	double z = Math.sin(Math.toRadians(dec));
+	double za = Math.abs(z);
+
+	double tt = (Math.toRadians(ra) / HALFPI) % 4.0;
+	if (tt < 0)
+	    tt += 4.0;
+	if (tt >= 4.0)
+	    tt = 0.0;
+
+	if (za <= TWOTHIRD) {
+	    // Equatorial region.
+	    double temp1 = nside * (0.5 + tt);
+	    double temp2 = nside * (z * 0.75);
+	    long jp = (long) (temp1 - temp2);	// ascending edge line
+	    long jm = (long) (temp1 + temp2);	// descending edge line
+	    long ifp = jp >> order;
+	    long ifm = jm >> order;
+	    int face = (int) ((ifp == ifm) ? (ifp | 4) :
+		((ifp < ifm) ? ifp : (ifm + 8)));
+
+	    long ix = jm & (nside - 1);
+	    long iy = nside - (jp & (nside - 1)) - 1;
+	    return (xyf2nest(order, ix, iy, face));
+
+	} else {
+	    // Polar region.
+	    int ntt = Math.min(3, (int) tt);
+	    double tp = tt - ntt;
+	    double tmp = (za < 0.99) ? nside * Math.sqrt(3 * (1 - za)) :
+		nside * Math.cos(Math.toRadians(dec)) / Math.sqrt((1 + za) / 3);
+
+	    long jp = Math.min((long) (tp * tmp), nside - 1);
+	    long jm = Math.min((long) ((1.0 - tp) * tmp), nside - 1);
+	    if (z >= 0)
+		return (xyf2nest(order, nside - jm - 1, nside - jp - 1, ntt));
+	    else
+		return (xyf2nest(order, jp, jm, ntt + 8));
+	}
+    }
+
+    /**
+     * Compute the position of the center of a nested pixel.
+     *
+     * @param	order		HEALPix order (resolution)
+     * @param	pix		Nested pixel index
+     *
+     * @return			A two element array containing the RA and
+     *				DEC of the pixel center, in degrees.
+     */
+    public static double[] pix2ang(int order, long pix) {
+	double[] v = pix2vec(order, pix);
+	double ra = Math.toDegrees(Math.atan2(v[1], v[0]));
+	if (ra < 0)
+	    ra += 360.0;
+	double dec = Math.toDegrees(Math.atan2(v[2],
+	    Math.sqrt(v[0]*v[0] + v[1]*v[1])));
+
+	return (new double[] { ra, dec });
+    }
+
+    /**
+     * Get the maximum angular distance from the center of any pixel at
+     * the given order to any point within the pixel, in radians.
+     */
+    public static double maxPixrad(int order) {
+	checkOrder(order);
+	double nside = (double) (1L << order);
+
+	double[] va = zphi2vec(TWOTHIRD, Math.PI / (4 * nside), -1);
+	double t1 = 1.0 - 1.0 / nside;
+	t1 *= t1;
+	double[] vb = zphi2vec(1 - t1 / 3, 0, -1);
+
+	return (angle(va, vb));
+    }
+
+    /**
+     * Compute the nested pixel ranges covering a cone.  The ranges are
+     * inclusive: every pixel which may intersect the cone is included.
+     * If necessary, ranges separated by small gaps are merged to limit
+     * the number of ranges returned, which makes the coverage less exact
+     * but keeps the resulting DBMS query compact.
+     *
+     * @param	order		HEALPix order of the indexed pixels
+     * @param	ra		Right ascension of the cone center, degrees
+     * @param	dec		Declination of the cone center, degrees
+     * @param	radius		Cone radius, degrees
+     * @param	maxRanges	Maximum number of ranges to return
+     *
+     * @return			An array of inclusive [first,last] pixel
+     *				index pairs, in increasing order.
+     */
+    public static long[] queryDisc(int order, double ra, double dec,
+	double radius, int maxRanges) {
+
+	checkOrder(order);
+	if (radius >= 180.0)
+	    return (new long[] { 0, npix(order) - 1 });
+
+	// Descend the pixel hierarchy only until the pixels are small
+	// compared to the cone, as finer pixels would only add ranges.
+	double r = Math.toRadians(Math.max(radius, 0.0));
+	int depth = 0;
+	while (depth < order && maxPixrad(depth) > r / 2)
+	    depth++;
+
+	double[] center = radec2vec(ra, dec);
+	RangeBuffer ranges = new RangeBuffer();
+	for (int face=0;  face < 12;  face++)
+	    descend(order, depth, 0, face, center, r, ranges);
+
+	ranges.limit(Math.max(1, maxRanges));
+	return (ranges.toArray());
+    }
+
+    /** Add the ranges covered by a pixel and its subpixels. */
+    private static void descend(int order, int depth, int level, long pix,
+	double[] center, double r, RangeBuffer ranges) {
+
+	// The pixel radius is increased slightly, as pixel edges are not
+	// great circles.
+	double pixrad = maxPixrad(level) * 1.05 + 1.0e-9;
+	double dist = angle(center, pix2vec(level, pix));
+
+	if (dist > r + pixrad)
+	    return;
+
+	if (level >= depth || dist + pixrad <= r) {
+	    int shift = 2 * (order - level);
+	    ranges.add(pix << shift, ((pix + 1) << shift) - 1);
+	    return;
+	}
+
+	for (int i=0;  i < 4;  i++)
+	    descend(order, depth, level + 1, 4 * pix + i, center, r, ranges);
+    }
+
+
+    // -------- Private Methods -----------
+
+    private static void checkOrder(int order) {
+	if (order < 0 || order > MAX_ORDER)
+	    throw new IllegalArgumentException("invalid HEALPix order " + order);
+    }
+
+    /** Compute the unit vector of the center of a nested pixel. */
+    private static double[] pix2vec(int order, long pix) {
+	long nside = 1L << order;
+	long npface = nside * nside;
+	int face = (int) (pix >> (2 * order));
+	long ipf = pix & (npface - 1);
+	long ix = compress(ipf);
+	long iy = compress(ipf >>> 1);
+
+	long jr = ((long) jrll[face] << order) - ix - iy - 1;
+	double fact2 = 4.0 / (12.0 * npface);
+	double z, sth = -1;
+	long nr;
+
+	if (jr < nside) {
+	    nr = jr;
+	    double tmp = (nr * nr) * fact2;
+	    z = 1 - tmp;
+	    if (z > 0.99)
+		sth = Math.sqrt(tmp * (2.0 - tmp));
+	} else if (jr > 3 * nside) {
+	    nr = nside * 4 - jr;
+	    double tmp = (nr * nr) * fact2;
+	    z = tmp - 1;
+	    if (z < -0.99)
+		sth = Math.sqrt(tmp * (2.0 - tmp));
+	} else {
+	    nr = nside;
+	    z = (2 * nside - jr) * (2 * nside * fact2);
+	}
+
+	long tmp = (long) jpll[face] * nr + ix - iy;
+	if (tmp < 0)
+	    tmp += 8 * nr;
+	double phi = (Math.PI / 4.0) * tmp / nr;
+
+	return (zphi2vec(z, phi, sth));
+    }
+
+    /** Convert z=cos(theta), phi to a unit vector; sth=sin(theta) if known. */
+    private static double[] zphi2vec(double z, double phi, double sth) {
+	if (sth < 0)
+	    sth = Math.sqrt((1.0 - z) * (1.0 + z));
+	return (new double[] { sth * Math.cos(phi), sth * Math.sin(phi), z });
+    }
+
+    /** Convert RA,DEC in degrees to a unit vector. */
+    private static double[] radec2vec(double ra, double dec) {
+	double a = Math.toRadians(ra), d = Math.toRadians(dec);
+	double cd = Math.cos(d);
+	return (new double[] { cd * Math.cos(a), cd * Math.sin(a), Math.sin(d) });
+    }
+
+    /** Angle between two unit vectors, radians. */
+    private static double angle(double[] a, double[] b) {
+	double cx = a[1]*b[2] - a[2]*b[1];
+	double cy = a[2]*b[0] - a[0]*b[2];
+	double cz = a[0]*b[1] - a[1]*b[0];
+	double dot = a[0]*b[0] + a[1]*b[1] + a[2]*b[2];
+	return (Math.atan2(Math.sqrt(cx*cx + cy*cy + cz*cz), dot));
+    }
+
+    /** Compute a nested pixel index from the face and x,y indices. */
+    private static long xyf2nest(int order, long ix, long iy, int face) {
+	return (((long) face << (2 * order)) + spread(ix) + (spread(iy) << 1));
+    }
+
+    /** Spread the bits of a value to the even bit positions. */
+    private static long spread(long v) {
+	v &= 0xffffffffL;
+	v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+	v = (v | (v << 8)) & 0x00ff00ff00ff00ffL;
+	v = (v | (v << 4)) & 0x0f0f0f0f0f0f0f0fL;
+	v = (v | (v << 2)) & 0x3333333333333333L;
+	v = (v | (v << 1)) & 0x5555555555555555L;
+	return (v);
+    }
+
+    /** Compress the even bits of a value; the inverse of spread. */
+    private static long compress(long v) {
+	v &= 0x5555555555555555L;
+	v = (v | (v >>> 1)) & 0x3333333333333333L;
+	v = (v | (v >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+	v = (v | (v >>> 4)) & 0x00ff00ff00ff00ffL;
+	v = (v | (v >>> 8)) & 0x0000ffff0000ffffL;
+	v = (v | (v >>> 16)) & 0x00000000ffffffffL;
+	return (v);
+    }
+
+
+    /** An ordered list of pixel ranges, merged as they are added. */
+    private static class RangeBuffer {
+	private long[] r = new long[64];
+	private int n = 0;
+
+	/** Add a range; ranges must be added in increasing order. */
+	void add(long first, long last) {
+	    if (n > 0 && r[n-1] + 1 >= first) {
+		r[n-1] = Math.max(r[n-1], last);
+		return;
+	    }
+	    if (n + 2 > r.length) {
+		long[] nr = new long[r.length * 2];
+		System.arraycopy(r, 0, nr, 0, n);
+		r = nr;
+	    }
+	    r[n++] = first;
+	    r[n++] = last;
+	}
+
+	/** Merge the ranges separated by the smallest gaps. */
+	void limit(int maxRanges) {
+	    while (n / 2 > maxRanges) {
+		int best = 1;
+		for (int i=3;  i < n - 1;  i += 2)
+		    if (r[i+1] - r[i] < r[best+1] - r[best])
+			best = i;
+		r[best] = r[best+2];
+		System.arraycopy(r, best + 3, r, best + 1, n - best - 3);
+		n -= 2;
+	    }
+	}
+
+	long[] toArray() {
+	    long[] out = new long[n];
+	    System.arraycopy(r, 0, out, 0, n);
+	    return (out);
+	}
+    }
+
+
+    /**
+     * Compute the pixel index of a position, or the pixel ranges of a
+     * cone.
+     *
+     * <pre>
+     *   ang2pix order ra dec
+     *   disc order ra dec radius
+     * </pre>
+     */
+    public static void main(String[] args) {
+	if (args.length >= 4 && args[0].equals("ang2pix")) {
+	    int order = Integer.parseInt(args[1]);
+	    System.out.println(ang2pix(order, Double.parseDouble(args[2]),
+		Double.parseDouble(args[3])));
+
+	} else if (args.length >= 5 && args[0].equals("disc")) {
+	    int order = Integer.parseInt(args[1]);
+	    long[] ranges = queryDisc(order, Double.parseDouble(args[2]),
+		Double.parseDouble(args[3]), Double.parseDouble(args[4]),
+		DEFAULT_MAX_RANGES);
+	    for (int i=0;  i < ranges.length;  i += 2)
+		System.out.println(ranges[i] + " " + ranges[i+1]);
+
+	} else
+	    System.out.println("usage: ang2pix order ra dec | " +
+		"disc order ra dec radius");
+    }
+}
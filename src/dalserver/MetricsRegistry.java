@@ -0,0 +1,336 @@
+/*
+ * MetricsRegistry.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Global registry of service request metrics.  For each service and
+ * operation the registry counts the requests, failed requests, table rows
+ * and bytes output, and maintains a latency histogram for the request as
+ * a whole and for each processing stage recorded by a
+ * {@link RequestTimer}.  Updates are lock free, so that recording the
+ * metrics of a request does not serialize concurrent requests.
+ *
+ * <p>The metrics may be output in the Prometheus text exposition format
+ * with {@link #writeText}, e.g., by the {@link MetricsServlet}.  The
+ * current state of the DBMS connection pools and of the response caches
+ * is included in the output.
+ */
+public class MetricsRegistry {
+
+    /** Upper bounds of the histogram buckets, seconds. */
+    static final double[] BUCKETS = {
+	0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+	0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0, 60.0
+    };
+
+    /** Upper bounds of the histogram buckets, nsec. */
+    private static final long[] bucketNanos = new long[BUCKETS.length];
+    static {
+	for (int i=0;  i < BUCKETS.length;  i++)
+	    bucketNanos[i] = (long) (BUCKETS[i] * 1.0e9);
+    }
+
+    /** Index of the whole request histogram. */
+    private static final int TOTAL = RequestTimer.NSTAGES;
+
+    /** Registered metrics, keyed by service and operation. */
+    private static final ConcurrentMap<String,Metrics> metrics =
+	new ConcurrentHashMap<String,Metrics>();
+
+
+    /** Static class. */
+    private MetricsRegistry() { }
+
+    /**
+     * Record the metrics of a completed request.  This is normally called
+     * via {@link RequestTimer#record}.
+     *
+     * @param	timer		The timer for the request
+     */
+    public static void record(RequestTimer timer) {
+	String key = timer.getService() + "\t" + timer.getOperation();
+	Metrics m = metrics.get(key);
+	if (m == null) {
+	    Metrics newm = new Metrics(timer.getService(), timer.getOperation());
+	    if ((m = metrics.putIfAbsent(key, newm)) == null)
+		m = newm;
+	}
+
+	m.requests.incrementAndGet();
+	if (timer.isFailed())
+	    m.errors.incrementAndGet();
+	m.rows.addAndGet(timer.getRows());
+	m.bytes.addAndGet(timer.getBytes());
+
+	for (int i=0;  i < RequestTimer.NSTAGES;  i++) {
+	    long nsec = timer.getTime(i);
+	    if (nsec > 0)
+		m.latency[i].observe(nsec);
+	}
+	m.latency[TOTAL].observe(timer.getElapsed());
+    }
+
+    /**
+     * Get the number of requests recorded for a service operation.
+     *
+     * @param	service		The service name
+     * @param	operation	The service operation
+     */
+    public static long getRequestCount(String service, String operation) {
+	Metrics m = metrics.get(service + "\t" + operation);
+	return ((m == null) ? 0 : m.requests.get());
+    }
+
+    /** Discard all recorded metrics. */
+    public static void reset() {
+	metrics.clear();
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format.
+     *
+     * @param	out		The output writer
+     */
+    public static void writeText(PrintWriter out) {
+	// Sort by service and operation to give a stable output.
+	Map<String,Metrics> sorted = new TreeMap<String,Metrics>(metrics);
+
+	counter(out, sorted, "dalserver_requests_total",
+	    "Number of service requests", 0);
+	counter(out, sorted, "dalserver_request_errors_total",
+	    "Number of failed service requests", 1);
+	counter(out, sorted, "dalserver_rows_total",
+	    "Number of table rows output", 2);
+	counter(out, sorted, "dalserver_bytes_total",
+	    "Number of bytes output", 3);
+
+	String name = "dalserver_request_seconds";
+	out.println("# HELP " + name + " Request latency");
+	out.println("# TYPE " + name + " histogram");
+	for (Metrics m : sorted.values())
+	    m.latency[TOTAL].write(out, name, m.labels());
+
+	name = "dalserver_stage_seconds";
+	out.println("# HELP " + name + " Request stage latency");
+	out.println("# TYPE " + name + " histogram");
+	for (Metrics m : sorted.values()) {
+	    for (int i=0;  i < RequestTimer.NSTAGES;  i++) {
+		if (m.latency[i].count.get() > 0)
+		    m.latency[i].write(out, name, m.labels() +
+			",stage=\"" + RequestTimer.stageNames[i] + "\"");
+	    }
+	}
+
+	writePools(out);
+	writeCaches(out);
+	out.flush();
+    }
+
+    /** Output one of the per-service counters. */
+    private static void counter(PrintWriter out, Map<String,Metrics> sorted,
+	String name, String help, int which) {
+
+	out.println("# HELP " + name + " " + help);
+	out.println("# TYPE " + name + " counter");
+	for (Metrics m : sorted.values()) {
+	    AtomicLong value = (which == 0) ? m.requests :
+		(which == 1) ? m.errors : (which == 2) ? m.rows : m.bytes;
+	    out.println(name + "{" + m.labels() + "} " + value.get());
+	}
+    }
+
+    /** Output the state of the DBMS connection pools. */
+    private static void writePools(PrintWriter out) {
+	List<DbmsConnectionPool> pools = DbmsConnectionPool.getPools();
+	if (pools.isEmpty())
+	    return;
+
+	out.println("# TYPE dalserver_pool_active gauge");
+	for (DbmsConnectionPool pool : pools)
+	    out.println("dalserver_pool_active" + poolLabel(pool) + " " +
+		pool.getNumActive());
+	out.println("# TYPE dalserver_pool_idle gauge");
+	for (DbmsConnectionPool pool : pools)
+	    out.println("dalserver_pool_idle" + poolLabel(pool) + " " +
+		pool.getNumIdle());
+	out.println("# TYPE dalserver_pool_max_active gauge");
+	for (DbmsConnectionPool pool : pools)
+	    out.println("dalserver_pool_max_active" + poolLabel(pool) + " " +
+		pool.getMaxActive());
+	out.println("# TYPE dalserver_pool_borrowed_total counter");
+	for (DbmsConnectionPool pool : pools)
+	    out.println("dalserver_pool_borrowed_total" + poolLabel(pool) +
+		" " + pool.getBorrowCount());
+	out.println("# TYPE dalserver_pool_failures_total counter");
+	for (DbmsConnectionPool pool : pools)
+	    out.println("dalserver_pool_failures_total" + poolLabel(pool) +
+		" " + pool.getFailureCount());
+	out.println("# TYPE dalserver_pool_wait_max_seconds gauge");
+	for (DbmsConnectionPool pool : pools)
+	    out.println("dalserver_pool_wait_max_seconds" + poolLabel(pool) +
+		" " + pool.getMaxWait() / 1000.0);
+
+	// Per-replica routing state, for replicated databases.
+	List<ReplicaDataSource> sets = new ArrayList<ReplicaDataSource>();
+	List<String> names = new ArrayList<String>();
+	for (DbmsConnectionPool pool : pools) {
+	    if (pool.getReplicaSet() != null) {
+		sets.add(pool.getReplicaSet());
+		names.add(pool.getName());
+	    }
+	}
+	if (sets.isEmpty())
+	    return;
+
+	out.println("# TYPE dalserver_replica_up gauge");
+	for (int i=0;  i < sets.size();  i++) {
+	    ReplicaDataSource rds = sets.get(i);
+	    for (int j=0;  j < rds.size();  j++)
+		out.println("dalserver_replica_up" +
+		    replicaLabel(names.get(i), rds, j) + " " +
+		    (rds.isHealthy(j) ? 1 : 0));
+	}
+	out.println("# TYPE dalserver_replica_outstanding gauge");
+	for (int i=0;  i < sets.size();  i++) {
+	    ReplicaDataSource rds = sets.get(i);
+	    for (int j=0;  j < rds.size();  j++)
+		out.println("dalserver_replica_outstanding" +
+		    replicaLabel(names.get(i), rds, j) + " " +
+		    rds.getOutstanding(j));
+	}
+	out.println("# TYPE dalserver_replica_routed_total counter");
+	for (int i=0;  i < sets.size();  i++) {
+	    ReplicaDataSource rds = sets.get(i);
+	    for (int j=0;  j < rds.size();  j++)
+		out.println("dalserver_replica_routed_total" +
+		    replicaLabel(names.get(i), rds, j) + " " +
+		    rds.getRoutedCount(j));
+	}
+    }
+
+    private static String replicaLabel(String pool, ReplicaDataSource rds,
+	int i) {
+	return ("{pool=\"" + escape(pool) + "\",replica=\"" +
+	    escape(rds.getMemberName(i)) + "\"}");
+    }
+
+    /** Output the state of the response caches. */
+    private static void writeCaches(PrintWriter out) {
+	List<ResponseCache> caches = ResponseCache.getCaches();
+	if (caches.isEmpty())
+	    return;
+
+	out.println("# TYPE dalserver_cache_hits_total counter");
+	for (ResponseCache cache : caches)
+	    out.println("dalserver_cache_hits_total" + cacheLabel(cache) +
+		" " + cache.getHitCount());
+	out.println("# TYPE dalserver_cache_misses_total counter");
+	for (ResponseCache cache : caches)
+	    out.println("dalserver_cache_misses_total" + cacheLabel(cache) +
+		" " + cache.getMissCount());
+	out.println("# TYPE dalserver_cache_not_modified_total counter");
+	for (ResponseCache cache : caches)
+	    out.println("dalserver_cache_not_modified_total" +
+		cacheLabel(cache) + " " + cache.getNotModifiedCount());
+	out.println("# TYPE dalserver_cache_evictions_total counter");
+	for (ResponseCache cache : caches)
+	    out.println("dalserver_cache_evictions_total" + cacheLabel(cache) +
+		" " + cache.getEvictionCount());
+	out.println("# TYPE dalserver_cache_spills_total counter");
+	for (ResponseCache cache : caches)
+	    out.println("dalserver_cache_spills_total" + cacheLabel(cache) +
+		" " + cache.getSpillCount());
+	out.println("# TYPE dalserver_cache_memory_bytes gauge");
+	for (ResponseCache cache : caches)
+	    out.println("dalserver_cache_memory_bytes" + cacheLabel(cache) +
+		" " + cache.getMemoryBytes());
+	out.println("# TYPE dalserver_cache_disk_bytes gauge");
+	for (ResponseCache cache : caches)
+	    out.println("dalserver_cache_disk_bytes" + cacheLabel(cache) +
+		" " + cache.getDiskBytes());
+    }
+
+    private static String cacheLabel(ResponseCache cache) {
+	return ("{service=\"" + escape(cache.getName()) + "\"}");
+    }
+
+    private static String poolLabel(DbmsConnectionPool pool) {
+	return ("{pool=\"" + escape(pool.getName()) + "\"}");
+    }
+
+    /** Escape a label value. */
+    private static String escape(String value) {
+	if (value == null)
+	    return ("");
+	return (value.replace("\\", "\\\\").replace("\"", "\\\"").
+	    replace("\n", "\\n"));
+    }
+
+
+    /** The metrics of a single service operation. */
+    private static class Metrics {
+	final String service;
+	final String operation;
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+	final AtomicLong rows = new AtomicLong();
+	final AtomicLong bytes = new AtomicLong();
+	final Histogram[] latency = new Histogram[RequestTimer.NSTAGES + 1];
+
+	Metrics(String service, String operation) {
+	    this.service = service;
+	    this.operation = operation;
+	    for (int i=0;  i < latency.length;  i++)
+		latency[i] = new Histogram();
+	}
+
+	String labels() {
+	    return ("service=\"" + escape(service) + "\",operation=\"" +
+		escape(operation) + "\"");
+	}
+    }
+
+    /** A lock free latency histogram. */
+    private static class Histogram {
+	final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+	final AtomicLong count = new AtomicLong();
+	final AtomicLong sum = new AtomicLong();
+
+	void observe(long nsec) {
+	    int i = 0;
+	    while (i < bucketNanos.length && nsec > bucketNanos[i])
+		i++;
+	    buckets.incrementAndGet(i);
+	    sum.addAndGet(nsec);
+	    count.incrementAndGet();
+	}
+
+	/** Output the histogram, with cumulative bucket counts. */
+	void write(PrintWriter out, String name, String labels) {
+	    long cumulative = 0;
+	    for (int i=0;  i < BUCKETS.length;  i++) {
+		cumulative += buckets.get(i);
+		out.println(name + "_bucket{" + labels + ",le=\"" +
+		    BUCKETS[i] + "\"} " + cumulative);
+	    }
+	    cumulative += buckets.get(BUCKETS.length);
+	    out.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " +
+		cumulative);
+	    out.println(name + "_sum{" + labels + "} " + sum.get() / 1.0e9);
+	    out.println(name + "_count{" + labels + "} " + count.get());
+	}
+    }
+}
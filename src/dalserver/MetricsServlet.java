@@ -0,0 +1,38 @@
+/*
+ * MetricsServlet.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Return the service request metrics recorded in the
+ * {@link MetricsRegistry} as plain text, in the Prometheus text exposition
+ * format.  This is configured as the "/metrics" endpoint of the DALServer
+ * Web-app (see config/metrics.conf).
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1;
+
+    /** Return a brief description of the service.  */
+    public String getServletInfo() {
+	return ("Returns the DALServer service request metrics");
+    }
+
+    /** Output the current metrics. */
+    public void doGet(HttpServletRequest request,
+	HttpServletResponse response) throws ServletException, IOException {
+
+	response.setContentType("text/plain; version=0.0.4");
+	PrintWriter out = response.getWriter();
+	MetricsRegistry.writeText(out);
+	out.close();
+    }
+}
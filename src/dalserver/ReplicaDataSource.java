@@ -0,0 +1,436 @@
+/*
+ * ReplicaDataSource.java
+ * $ID*
+ */
+
+package dalserver;
+
+import javax.sql.DataSource;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
+import java.io.PrintWriter;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A DataSource which routes connection requests across a set of replicated
+ * databases, e.g., a primary and several read replicas.  Queries are spread
+ * across the replicas, either round robin, or to the member with the least
+ * outstanding (currently borrowed) connections.  Each member is probed
+ * periodically, and a member which fails is ejected from the routing set
+ * until it has passed the probe again.  Writes (e.g., TAP upload or MyDB
+ * tables) must go to the primary, which is always the first member; see
+ * {@link #getPrimary}.
+ *
+ * <p>The routing options are given as properties:
+ *
+ * <pre>
+ *   routing		leastOutstanding or roundRobin [leastOutstanding]
+ *   primaryReads	Route reads to the primary as well [true]
+ *   probeInterval	Health probe interval, sec [10; 0 disables]
+ *   probeQuery		Probe query [validationQuery, else isValid()]
+ *   probeTimeout	Probe query timeout, sec [5]
+ *   ejectAfter		Consecutive probe failures to eject a member [2]
+ *   readmitAfter	Consecutive probe successes to readmit it [2]
+ * </pre>
+ *
+ * A member which fails to provide a connection because the database
+ * cannot be reached (SQLState class 08, or an I/O error) is ejected
+ * immediately, and the request is retried on the next member.  Other
+ * failures, e.g., a timeout waiting for a connection from a full pool,
+ * do not eject the member, though the request is still retried on the
+ * next member.  If every member has been ejected all are tried, as the
+ * probe state may be stale.
+ */
+public class ReplicaDataSource implements DataSource {
+    private static final Logger log = Logger.getLogger(ReplicaDataSource.class);
+
+    /** A member (primary or replica) of the replica set. */
+    private static class Member {
+	String name;
+	DataSource ds;
+	final AtomicInteger outstanding = new AtomicInteger();
+	final AtomicLong routed = new AtomicLong();
+	volatile boolean healthy = true;
+	int failures = 0;
+	int successes = 0;
+
+	Member(String name, DataSource ds) {
+	    this.name = name;
+	    this.ds = ds;
+	}
+    }
+
+    private String name;
+    private Member[] members;
+    private boolean leastOutstanding;
+    private boolean primaryReads;
+    private String probeQuery;
+    private int probeTimeout;
+    private int ejectAfter;
+    private int readmitAfter;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private ScheduledExecutorService prober = null;
+
+
+    /**
+     * Create a replica set.
+     *
+     * @param	name		Name of the replica set (for logging)
+     * @param	names		Member names, e.g., the JDBC URL
+     * @param	dataSources	Member DataSources, the primary first
+     * @param	options		Routing options, or null for the defaults
+     */
+    public ReplicaDataSource(String name, List<String> names,
+	List<DataSource> dataSources, Properties options)
+	throws DalServerException {
+
+	if (dataSources.isEmpty())
+	    throw new DalServerException("replica set " + name + " is empty");
+	if (options == null)
+	    options = new Properties();
+
+	this.name = name;
+	this.members = new Member[dataSources.size()];
+	for (int i=0;  i < members.length;  i++)
+	    members[i] = new Member(names.get(i), dataSources.get(i));
+
+	String routing = options.getProperty("routing", "leastOutstanding");
+	if (routing.equalsIgnoreCase("leastOutstanding"))
+	    leastOutstanding = true;
+	else if (routing.equalsIgnoreCase("roundRobin"))
+	    leastOutstanding = false;
+	else
+	    throw new DalServerException("unknown replica routing: " + routing);
+
+	primaryReads = Boolean.parseBoolean(
+	    options.getProperty("primaryReads", "true"));
+	probeQuery = options.getProperty("probeQuery",
+	    options.getProperty("validationQuery"));
+
+	int probeInterval;
+	try {
+	    probeInterval = Integer.parseInt(
+		options.getProperty("probeInterval", "10").trim());
+	    probeTimeout = Integer.parseInt(
+		options.getProperty("probeTimeout", "5").trim());
+	    ejectAfter = Math.max(1, Integer.parseInt(
+		options.getProperty("ejectAfter", "2").trim()));
+	    readmitAfter = Math.max(1, Integer.parseInt(
+		options.getProperty("readmitAfter", "2").trim()));
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException(
+		"Bad replica routing parameter: " + ex.getMessage());
+	}
+
+	if (probeInterval > 0 && members.length > 1) {
+	    prober = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "replica-probe-" +
+			    ReplicaDataSource.this.name);
+			t.setDaemon(true);
+			return (t);
+		    }
+		});
+	    prober.scheduleWithFixedDelay(new Runnable() {
+		public void run() { probe(); }
+	    }, probeInterval, probeInterval, TimeUnit.SECONDS);
+	}
+    }
+
+    /** Get the primary (read-write) DataSource. */
+    public DataSource getPrimary() {
+	return (members[0].ds);
+    }
+
+    /** Get the member DataSources, the primary first. */
+    public List<DataSource> getMembers() {
+	List<DataSource> list = new ArrayList<DataSource>();
+	for (Member m : members)
+	    list.add(m.ds);
+	return (list);
+    }
+
+    /**
+     * Get a read connection from the member selected by the routing
+     * policy.  The connection should be closed when done.
+     */
+    public Connection getConnection() throws SQLException {
+	return (route(null, null));
+    }
+
+    /** Get a read connection for the given user. */
+    public Connection getConnection(String username, String password)
+	throws SQLException {
+	return (route(username, password));
+    }
+
+    /**
+     * Select a member and get a connection.  If the member fails the
+     * next candidate is tried, and if it could not be reached it is
+     * ejected.
+     */
+    private Connection route(String username, String password)
+	throws SQLException {
+
+	SQLException error = null;
+	boolean[] tried = new boolean[members.length];
+
+	for (int attempt=0;  attempt < members.length;  attempt++) {
+	    int i = select(tried);
+	    if (i < 0)
+		break;
+	    tried[i] = true;
+	    Member m = members[i];
+
+	    try {
+		Connection conn = (username == null) ? m.ds.getConnection() :
+		    m.ds.getConnection(username, password);
+		m.routed.incrementAndGet();
+		return (track(m, conn));
+	    } catch (SQLException ex) {
+		if (isConnectionFailure(ex)) {
+		    if (m.healthy)
+			log.warn("replica " + m.name + " ejected: " +
+			    ex.getMessage());
+		    synchronized (m) {
+			m.healthy = false;
+			m.successes = 0;
+		    }
+		} else
+		    log.debug("replica " + m.name + ": " + ex.getMessage());
+		error = ex;
+	    }
+	}
+
+	if (error == null)
+	    error = new SQLException("no replica available for " + name);
+	throw error;
+    }
+
+    /**
+     * Test whether an exception indicates that the database could not be
+     * reached, i.e., a connection exception (SQLState class 08) or an I/O
+     * error, anywhere in the cause chain.  The DBCP pool wraps the driver
+     * exception, and pool exhaustion has no SQLState.
+     */
+    static boolean isConnectionFailure(Throwable ex) {
+	for (Throwable t = ex;  t != null;  t = t.getCause()) {
+	    if (t instanceof SQLException) {
+		String state = ((SQLException)t).getSQLState();
+		if (state != null && state.startsWith("08"))
+		    return (true);
+	    } else if (t instanceof java.io.IOException)
+		return (true);
+	    if (t.getCause() == t)
+		break;
+	}
+	return (false);
+    }
+
+    /**
+     * Select the next member to be tried, or -1 if all have been tried.
+     * Healthy members are preferred; if none remain the ejected members
+     * are tried as well.
+     */
+    private int select(boolean[] tried) {
+	int first = (primaryReads || members.length == 1) ? 0 : 1;
+
+	for (int pass=0;  pass < 2;  pass++) {
+	    int n = members.length - first;
+	    int start = next.getAndIncrement() & Integer.MAX_VALUE;
+	    int best = -1, bestLoad = Integer.MAX_VALUE;
+
+	    for (int k=0;  k < n;  k++) {
+		int i = first + (start + k) % n;
+		Member m = members[i];
+		if (tried[i] || (pass == 0 && !m.healthy))
+		    continue;
+		if (!leastOutstanding)
+		    return (i);
+
+		int load = m.outstanding.get();
+		if (load < bestLoad) {
+		    best = i;
+		    bestLoad = load;
+		}
+	    }
+	    if (best >= 0)
+		return (best);
+
+	    // The primary is the last resort if reads normally avoid it.
+	    if (pass == 0 && first > 0 && !tried[0] && members[0].healthy)
+		return (0);
+	}
+
+	return ((!tried[0] && first > 0) ? 0 : -1);
+    }
+
+    /**
+     * Wrap a connection to count it as outstanding for the member until
+     * it is closed.
+     */
+    private Connection track(final Member m, final Connection conn) {
+	m.outstanding.incrementAndGet();
+	final AtomicBoolean closed = new AtomicBoolean(false);
+
+	return ((Connection) Proxy.newProxyInstance(
+	    Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+	    new InvocationHandler() {
+		public Object invoke(Object proxy, Method method, Object[] args)
+		    throws Throwable {
+
+		    if (method.getName().equals("close") &&
+			closed.compareAndSet(false, true)) {
+			m.outstanding.decrementAndGet();
+		    }
+		    try {
+			return (method.invoke(conn, args));
+		    } catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		    }
+		}
+	    }));
+    }
+
+    /**
+     * Probe each member, ejecting members which fail the probe and
+     * readmitting ejected members which pass it.
+     */
+    public void probe() {
+	for (Member m : members) {
+	    boolean ok = probe(m);
+	    synchronized (m) {
+		if (ok) {
+		    m.failures = 0;
+		    if (!m.healthy && ++m.successes >= readmitAfter) {
+			m.healthy = true;
+			log.info("replica " + m.name + " readmitted");
+		    }
+		} else {
+		    m.successes = 0;
+		    if (m.healthy && ++m.failures >= ejectAfter) {
+			m.healthy = false;
+			log.warn("replica " + m.name + " ejected");
+		    }
+		}
+	    }
+	}
+    }
+
+    /** Probe a single member. */
+    private boolean probe(Member m) {
+	Connection conn = null;
+	Statement st = null;
+
+	try {
+	    conn = m.ds.getConnection();
+	    if (probeQuery == null)
+		return (conn.isValid(probeTimeout));
+
+	    st = conn.createStatement();
+	    st.setQueryTimeout(probeTimeout);
+	    st.execute(probeQuery);
+	    return (true);
+
+	} catch (SQLException ex) {
+	    log.debug("replica " + m.name + " probe failed: " + ex.getMessage());
+	    return (false);
+	} finally {
+	    SqlTemplate.close(st);
+	    if (conn != null) {
+		try { conn.close(); } catch (SQLException ex) { ; }
+	    }
+	}
+    }
+
+    /**
+     * Stop the health probe, and close any member DataSources which are
+     * connection pools created by DALServer.
+     */
+    public void close() {
+	if (prober != null)
+	    prober.shutdownNow();
+
+	for (Member m : members) {
+	    if (m.ds instanceof BasicDataSource) {
+		try {
+		    ((BasicDataSource)m.ds).close();
+		} catch (SQLException ex) {
+		    log.warn("error closing replica " + m.name + ": " +
+			ex.getMessage());
+		}
+	    }
+	}
+    }
+
+    /** Return the name of the replica set. */
+    public String getName() { return (name); }
+
+    /** Return the number of members of the replica set. */
+    public int size() { return (members.length); }
+
+    /** Return the name of a member. */
+    public String getMemberName(int i) { return (members[i].name); }
+
+    /** Test whether a member is currently in the routing set. */
+    public boolean isHealthy(int i) { return (members[i].healthy); }
+
+    /** Return the number of connections outstanding for a member. */
+    public int getOutstanding(int i) { return (members[i].outstanding.get()); }
+
+    /** Return the number of connections routed to a member. */
+    public long getRoutedCount(int i) { return (members[i].routed.get()); }
+
+    /** Summarize the state of the replica set. */
+    public String toString() {
+	StringBuilder sb = new StringBuilder(name + ":");
+	for (Member m : members) {
+	    sb.append(" ").append(m.name).append(m.healthy ? "(up," : "(down,")
+		.append(m.outstanding.get()).append(")");
+	}
+	return (sb.toString());
+    }
+
+    /*
+     * DataSource boilerplate, delegated to the primary.
+     */
+
+    public PrintWriter getLogWriter() throws SQLException {
+	return (getPrimary().getLogWriter());
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+	for (Member m : members)
+	    m.ds.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+	for (Member m : members)
+	    m.ds.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+	return (getPrimary().getLoginTimeout());
+    }
+
+    public java.util.logging.Logger getParentLogger()
+	throws SQLFeatureNotSupportedException {
+	throw new SQLFeatureNotSupportedException();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+	if (iface.isInstance(this))
+	    return (iface.cast(this));
+	throw new SQLException("not a wrapper for " + iface.getName());
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+	return (iface.isInstance(this));
+    }
+}
@@ -26,9 +26,13 @@ import dalserver.ssa.*;
  * DATATYPE, UTYPE, UCD, and so forth.  We separate the functions of
  * creating the RequestResponse object, from any subsequent serialization;
  * various serializations are possible, not necessarily limited to VOTable.
- * Since various serializations of the same model are possible, "streaming"
- * techniques cannot be used, and the entire model is built in memory
- * prior to output.
+ * By default the entire model is built in memory prior to output.
+ * Alternatively, once the response metadata has been defined, a
+ * {@link RowSink} may be attached to stream each table row directly to
+ * the chosen serializer as it is generated, so that memory use remains
+ * bounded regardless of the size of the response (see
+ * {@link #setRowSink}).  Operations which require the whole table, such
+ * as {@link #score} and {@link #sort}, are not available when streaming.
  *
  * <p>This implementation is a wrapper over the underlying VOTable classes;
  * in particular, elements of the VOTable data model are used to build up
@@ -86,11 +90,25 @@ public class RequestResponse {
     /** Global list of table elements (maintains order of definition). */
     private ArrayList<Object> atoms;
 
-    /** Table data rows. */
-    private java.util.Vector<Vector<Object>> rows;
+    /** Table data, stored by column. */
+    private ColumnStore store;
+    private boolean columnsDefined = false;
 
-    /** Active table row pointer (for get/set operations). */
-    private java.util.Vector<Object> row;
+    /** Active table row (for get/set operations), or -1 if none. */
+    private int row = -1;
+
+    /** Row sink if streaming, else null. */
+    private RowSink sink = null;
+    private boolean streamStarted = false;
+
+    /** Rows are held in memory rather than streamed, see holdRows. */
+    private boolean holdRows = false;
+
+    /** Number of rows already written to the row sink. */
+    private int nStreamed = 0;
+
+    /** Stage timer for the request, created when first referenced. */
+    private RequestTimer timer = null;
 
 
     // -------- Constructors -----------
@@ -104,14 +122,14 @@ public class RequestResponse {
 	params = new LinkedHashMap<String,TableParam>();
 	fields = new LinkedHashMap<String,TableField>();
 	atoms = new ArrayList<Object>();
-	rows = new java.util.Vector<Vector<Object>>();
+	store = new ColumnStore();
     }
 
     // -------- General Methods -----------
 
     /** The number of rows in the request response object. */
     public int size() {
-	return (rows.size());
+	return (nStreamed + store.size());
     }
 
     /** Get the current value of MAXREC. */
@@ -333,6 +351,10 @@ public class RequestResponse {
 
 	atoms.add((Object) field);
 	nFields++;
+
+	// Fields added once the table has rows are defined immediately.
+	if (columnsDefined)
+	    store.setColumn(field.getIndex(), columnType(field));
     }
 
     /** Get a table field element. */
@@ -375,12 +397,10 @@ public class RequestResponse {
 	TableField field = fields.get(key);
 	if (field == null)
 	    throw new DalServerException("unrecognized field " +"["+key+"]");
-	if (row == null)
+	if (row < 0)
 	    throw new DalServerException("table row not set");
 
-	SavotTD td = new SavotTD();
-	td.setContent((value == null) ? "" : value);
-	row.set(field.getIndex(), td);
+	store.set(field.getIndex(), row, value);
     }
 
     /**
@@ -390,7 +410,25 @@ public class RequestResponse {
      * @param	value	New value of the field.
      */
     public void setValue(String key, int value) throws DalServerException {
-	this.setValue(key, new Integer(value).toString());
+	TableField field = fields.get(key);
+	if (field != null && row >= 0 && !params.containsKey(key))
+	    store.set(field.getIndex(), row, (long) value);
+	else
+	    this.setValue(key, new Integer(value).toString());
+    }
+
+    /**
+     * Set the long integer value of a table Field or Param.
+     *
+     * @param	key	Key of field to be set in "current" row.
+     * @param	value	New value of the field.
+     */
+    public void setValue(String key, long value) throws DalServerException {
+	TableField field = fields.get(key);
+	if (field != null && row >= 0 && !params.containsKey(key))
+	    store.set(field.getIndex(), row, value);
+	else
+	    this.setValue(key, Long.toString(value));
     }
 
     /**
@@ -400,7 +438,11 @@ public class RequestResponse {
      * @param	value	New value of the field.
      */
     public void setValue(String key, double value) throws DalServerException {
-	this.setValue(key, new Double(value).toString());
+	TableField field = fields.get(key);
+	if (field != null && row >= 0 && !params.containsKey(key))
+	    store.set(field.getIndex(), row, value);
+	else
+	    this.setValue(key, new Double(value).toString());
     }
 
     /**
@@ -417,14 +459,33 @@ public class RequestResponse {
 	TableField field = fields.get(key);
 	if (field == null)
 	    throw new DalServerException("unrecognized field " +"["+key+"]");
-	if (row == null)
+	if (row < 0)
 	    throw new DalServerException("table row not set");
 
-	SavotTD td = (SavotTD)row.get(field.getIndex());
-	if (td == null)
-	    return (null);
-	else
-	    return (td.getContent());
+	return (store.get(field.getIndex(), row));
+    }
+
+    /**
+     * Get the numeric value of a table Field or Param.  NaN is returned
+     * if no value has been set, or the value is not numeric.  For a
+     * numeric field this avoids formatting and re-parsing the value.
+     *
+     * @param	key	String key of field to be accessed in "current" row.
+     */
+    public double getDoubleValue(String key) throws DalServerException {
+	TableField field = fields.get(key);
+	if (field == null || params.containsKey(key)) {
+	    String value = getValue(key);
+	    try {
+		return ((value == null) ? Double.NaN : Double.parseDouble(value));
+	    } catch (NumberFormatException ex) {
+		return (Double.NaN);
+	    }
+	}
+	if (row < 0)
+	    throw new DalServerException("table row not set");
+
+	return (store.getDouble(field.getIndex(), row));
     }
 
     /**
@@ -485,40 +546,340 @@ public class RequestResponse {
 
 
     // -------- Table DATA -----------
-    // Vector is used here so we can pass the data directly to SAVOT.
+    // Table data is stored by column in binary form where the field is
+    // numeric, and is formatted as text only when the table is output.
 
-    /** Add a new table row. */
-    public int addRow() throws DalOverflowException {
-	if (rows.size() >= maxrec) {
+    /**
+     * Add a new table row.  If the response is being streamed the
+     * previous row is complete at this point, and is written to the
+     * row sink.
+     */
+    public int addRow() throws DalOverflowException, DalServerException {
+	if (size() >= maxrec) {
 	    TableInfo info = getInfo("QUERY_STATUS");
 	    info.setValue("OVERFLOW");
 	    throw new DalOverflowException("maxrec=" + maxrec);
 	}
 
-	row = new java.util.Vector<Object>(nFields);
-	row.setSize(nFields);
-	rows.add(row);
+	if (sink != null) {
+	    if (!streamStarted)
+		startStream();
+	    else if (!holdRows)
+		flushRow();
+	}
+
+	if (!columnsDefined)
+	    defineColumns();
 
-	return (rows.size());
+	store.addRow();
+	row = store.size() - 1;
+
+	return (size());
     }
 
     /** Delete the end (most recently added) row. */
     public void deleteRow() {
-	int nrows = rows.size();
+	int nrows = store.size();
 	if (nrows > 0) {
-	    rows.remove(nrows-1);
-	    row = rows.get(rows.size()-1);
+	    store.truncate(nrows-1);
+	    row = nrows - 2;
 	}
     }
 
-    /** Set the table row to be used for sets and gets. */
+    /**
+     * Delete the given rows.  If the response is being streamed only the
+     * rows not yet output (e.g., held rows) may be deleted.
+     *
+     * @param	rows		Indices of the rows to be deleted
+     */
+    public void deleteRows(Collection<Integer> rows) {
+	int nrows = store.size();
+	boolean[] delete = new boolean[nrows];
+	int ndelete = 0;
+	for (Integer index : rows) {
+	    int i = index.intValue() - nStreamed;
+	    if (i < 0 || i >= nrows)
+		throw new ArrayIndexOutOfBoundsException(index.intValue());
+	    if (!delete[i]) {
+		delete[i] = true;
+		ndelete++;
+	    }
+	}
+	if (ndelete == 0)
+	    return;
+
+	// Move the remaining rows down, and truncate the table.
+	int[] order = new int[nrows - ndelete];
+	for (int i=0, j=0;  i < nrows;  i++)
+	    if (!delete[i])
+		order[j++] = i;
+	store.permute(order);
+	store.truncate(order.length);
+	row = order.length - 1;
+    }
+
+    /**
+     * Set the table row to be used for sets and gets.  If the response
+     * is being streamed only the current row is available, as any
+     * previous rows have already been output.
+     */
     public void setRow(int index) {
-	row = rows.get(index);
+	if (index < nStreamed || index - nStreamed >= store.size())
+	    throw new ArrayIndexOutOfBoundsException(index);
+	row = index - nStreamed;
     }
 
     /** Get the number of table rows. */
     public int getRowCount() {
-	return (rows.size());
+	return (size());
+    }
+
+
+    // -------- Streaming -----------
+
+    /**
+     * Stream the response to the given row sink.  This must be called
+     * before the first row is added.  The response metadata (INFOs,
+     * GROUPs, PARAMs, FIELDs) should be fully defined when the first row
+     * is added, as the sink begins output at that point.  Each row is
+     * written to the sink once it is complete, i.e., when the next row is
+     * added or the stream is ended, after which it is discarded.  The
+     * caller must call {@link #endStream} once the response is complete.
+     *
+     * @param	sink	The row sink, or null to buffer the entire
+     *			response in memory (the default).
+     */
+    public void setRowSink(RowSink sink) throws DalServerException {
+	if (store.size() > 0 || streamStarted)
+	    throw new DalServerException("response already has table rows");
+	this.sink = sink;
+    }
+
+    /**
+     * Hold the rows of a streamed response in memory rather than writing
+     * each to the row sink as it is completed, e.g., so that a set of rows
+     * may be edited together once some further processing is done.  The
+     * held rows may be accessed with setRow, or deleted.  Once rows are
+     * no longer held, the held rows are written when the next row is
+     * added or the stream is ended.
+     *
+     * @param	hold		Hold rows if true, else resume streaming
+     */
+    public void holdRows(boolean hold) {
+	this.holdRows = hold;
+    }
+
+    /** Test whether the response is being streamed to a row sink. */
+    public boolean isStreaming() {
+	return (sink != null);
+    }
+
+    /** Test whether any streamed output has been written. */
+    public boolean isStreamStarted() {
+	return (streamStarted);
+    }
+
+    /**
+     * Complete a streamed response, writing any remaining table row and
+     * trailing metadata.  If no rows were added the response header and
+     * an empty table are output.
+     */
+    public void endStream() throws DalServerException {
+	if (sink == null)
+	    return;
+
+	if (!streamStarted)
+	    startStream();
+	flushRow();
+
+	RequestTimer timer = getTimer();
+	timer.start(RequestTimer.SERIALIZE);
+	try {
+	    sink.end(this);
+	} finally {
+	    timer.stop(RequestTimer.SERIALIZE);
+	}
+	sink = null;
+    }
+
+    /**
+     * Terminate a streamed response following an error, once output has
+     * already begun.  Any partially built row is discarded, and the
+     * error is indicated by a trailing QUERY_STATUS=ERROR INFO.  Any
+     * further error while terminating the output is ignored.
+     *
+     * @param	message		Error message.
+     */
+    public void abortStream(String message) {
+	if (sink == null)
+	    return;
+
+	store.truncate(0);
+	row = -1;
+
+	String key = "QUERY_STATUS";
+	TableInfo info = getInfo(key);
+	if (info == null)
+	    addInfo(key, info = new TableInfo(key, "ERROR"));
+	info.setValue("ERROR");
+	if (message != null)
+	    info.setContent(message);
+
+	try {
+	    endStream();
+	} catch (DalServerException ex) {
+	    sink = null;
+	}
+    }
+
+    /** Begin output of a streamed response. */
+    private void startStream() throws DalServerException {
+	RequestTimer timer = getTimer();
+	streamStarted = true;
+	timer.start(RequestTimer.SERIALIZE);
+	try {
+	    sink.begin(this);
+	} finally {
+	    timer.stop(RequestTimer.SERIALIZE);
+	}
+    }
+
+    /**
+     * Write the current row, and any held rows, to the row sink and
+     * discard them.
+     */
+    private void flushRow() throws DalServerException {
+	if (store.size() > 0) {
+	    RequestTimer timer = getTimer();
+	    timer.start(RequestTimer.SERIALIZE);
+	    try {
+		for (row=0;  row < store.size();  row++)
+		    sink.writeRow(this);
+	    } finally {
+		timer.stop(RequestTimer.SERIALIZE);
+	    }
+	    nStreamed += store.size();
+	    store.truncate(0);
+	    row = -1;
+	}
+    }
+
+
+    // -------- Instrumentation -----------
+
+    /**
+     * Get the stage timer for the request.  The service and query code
+     * use this to record the time spent in each stage of processing the
+     * request (see {@link RequestTimer}).  If no timer has been set a new
+     * one is created.
+     */
+    public RequestTimer getTimer() {
+	if (timer == null)
+	    timer = new RequestTimer();
+	return (timer);
+    }
+
+    /**
+     * Set the stage timer for the request, e.g., to continue timing a
+     * request begun with a different RequestResponse.
+     *
+     * @param	timer	The request timer.
+     */
+    public void setTimer(RequestTimer timer) {
+	this.timer = timer;
+    }
+
+    /**
+     * Get the number of cells in a table row (for use by row sinks).
+     * Cells are addressed by field index.
+     */
+    int getRowWidth() {
+	return (nFields);
+    }
+
+    /**
+     * Get the text value of a cell of the current row (for use by row
+     * sinks), or null if the value is not set.
+     *
+     * @param	index	Field index of the cell.
+     */
+    String getCell(int index) {
+	return ((row < 0) ? null : store.get(index, row));
+    }
+
+    /**
+     * Test whether a cell of the current row is empty, i.e., is not set
+     * or is set to the empty string (for use by row sinks).
+     */
+    boolean isCellEmpty(int index) {
+	return ((row < 0) ? true : store.isEmpty(index, row));
+    }
+
+    /**
+     * Get the numeric value of a cell of the current row (for use by row
+     * sinks), or NaN if the value is not set or not numeric.
+     */
+    double getCellDouble(int index) {
+	return ((row < 0) ? Double.NaN : store.getDouble(index, row));
+    }
+
+    /**
+     * Get the integer value of a cell of the current row (for use by row
+     * sinks).
+     *
+     * @throws	NumberFormatException	if the value is not set or is
+     *					not numeric.
+     */
+    long getCellLong(int index) throws NumberFormatException {
+	if (row < 0)
+	    throw new NumberFormatException("table row not set");
+	return (store.getLong(index, row));
+    }
+
+    /**
+     * Get the table fields in cell order (for use by row sinks).  An
+     * element is null if no field has that index.
+     */
+    TableField[] getRowFields() {
+	TableField[] rowFields = new TableField[nFields];
+	for (TableField field : fields.values())
+	    if (field.getIndex() >= 0 && field.getIndex() < nFields)
+		rowFields[field.getIndex()] = field;
+	return (rowFields);
+    }
+
+    /** Define the table columns from the field list. */
+    private void defineColumns() {
+	TableField lastField = null;
+	for (TableField field : fields.values()) {
+	    if (field == lastField)
+		continue;
+	    store.setColumn(field.getIndex(), columnType(field));
+	    lastField = field;
+	}
+	columnsDefined = true;
+    }
+
+    /**
+     * Get the storage type of a table field.  Scalar numeric fields are
+     * stored in binary form; all other fields, including arrays, are
+     * stored as strings.
+     */
+    private int columnType(TableField field) {
+	String datatype = field.getDataType();
+	String arraysize = field.getArraySize();
+	if (datatype == null)
+	    return (ColumnStore.STRING);
+	if (arraysize != null && arraysize.length() > 0 && !arraysize.equals("1"))
+	    return (ColumnStore.STRING);
+
+	if (datatype.equals("double") || datatype.equals("float"))
+	    return (ColumnStore.DOUBLE);
+	if (datatype.equals("int") || datatype.equals("long") ||
+	    datatype.equals("short"))
+	    return (ColumnStore.LONG);
+
+	return (ColumnStore.STRING);
     }
 
     // -------- Table Ordering -----------
@@ -556,6 +917,9 @@ public class RequestResponse {
     public void score(ParamSet params, String fieldName)
 	throws DalServerException {
 
+	if (sink != null)
+	    throw new DalServerException("cannot score a streamed response");
+
 	// Internal data.
 	final double arcsec = 0.000277;
 
@@ -563,7 +927,7 @@ public class RequestResponse {
 	double maxScore = 0.0;
 
 	// Score each row (individual candidate dataset).
-	for (int i = 0;  i < rows.size();  i++) {
+	for (int i = 0;  i < size();  i++) {
 	    this.setRow(i);
 	    double score = 0.0;
 
@@ -593,17 +957,11 @@ public class RequestResponse {
 
 		} else if (pName.equalsIgnoreCase("BAND")) {
 		    // Use BAND only if numeric bandpasses are used.
-		    String bandStr = this.getValue("SpectralLocation");
-		    double band;
+		    double band = this.getDoubleValue("SpectralLocation");
 		    Range r;
 
-		    if (bandStr == null)
+		    if (Double.isNaN(band))
 			continue;
-		    try {
-			band = new Double(bandStr).doubleValue();
-		    } catch (NumberFormatException ex) {
-			continue;
-		    }
 
 		    try {
 			RangeList rl = p.rangeListValue();
@@ -633,17 +991,11 @@ public class RequestResponse {
 		    // TimeLocation in the candidate dataset is in MJD.
 
 		    // Get the dataset MJD value.
-		    String timeStr = this.getValue("TimeLocation");
-		    double obsTime;
+		    double obsTime = this.getDoubleValue("TimeLocation");
 		    Range r;
 
-		    if (timeStr == null)
-			continue;
-		    try {
-			obsTime = new Double(timeStr).doubleValue();
-		    } catch (NumberFormatException ex) {
+		    if (Double.isNaN(obsTime))
 			continue;
-		    }
 
 		    // Get the query TIME param as a Java Date object.
 		    try {
@@ -669,13 +1021,9 @@ public class RequestResponse {
 
 	    // Allow a good SNR to bias the ordering.
 	    try {
-		String snrStr = this.getValue("DerivedSNR");
-		if (snrStr != null) {
-		    double snr = new Double(snrStr).doubleValue();
+		double snr = this.getDoubleValue("DerivedSNR");
+		if (!Double.isNaN(snr))
 		    score += snr;
-		}
-	    } catch (NumberFormatException ex) {
-		// Skip if has no value
 	    } catch (DalServerException ex) {
 		// Skip if SNR not defined
 	    } 
@@ -692,7 +1040,7 @@ public class RequestResponse {
 	    }
 
 	    // Set the computed SCORE value in the table row.
-	    this.setValue(fieldName, new Double(score).toString());
+	    this.setValue(fieldName, score);
 
 	    // Keep track of the maximum score.
 	    if (score > maxScore)
@@ -700,11 +1048,11 @@ public class RequestResponse {
 	}
 
 	// Normalize the score to 1.0 for the whole table.
-	for (int i = 0;  i < rows.size();  i++) {
+	for (int i = 0;  i < size();  i++) {
 	    this.setRow(i);
-	    double score = new Double(this.getValue(fieldName)).doubleValue();
+	    double score = this.getDoubleValue(fieldName);
 	    score = (maxScore > 0) ? score / maxScore : 0.0;
-	    this.setValue(fieldName, new Double(score).toString());
+	    this.setValue(fieldName, score);
 	}
     }
 
@@ -716,17 +1064,32 @@ public class RequestResponse {
      *			negative for descending order.
      *
      */
-    @SuppressWarnings("unchecked")
     public void sort(String key, int order) throws DalServerException {
-	Comparator<Vector> comparator = new Compare(key, order);
-	Collections.sort((Vector)rows, comparator);
+	if (sink != null)
+	    throw new DalServerException("cannot sort a streamed response");
+
+	// Sort an index of the rows (the sort is stable), then reorder
+	// the table columns to match.
+
+	int nrows = store.size();
+	Integer[] index = new Integer[nrows];
+	for (int i=0;  i < nrows;  i++)
+	    index[i] = new Integer(i);
+
+	Arrays.sort(index, new Compare(key, order));
+
+	int[] perm = new int[nrows];
+	for (int i=0;  i < nrows;  i++)
+	    perm[i] = index[i].intValue();
+	store.permute(perm);
     }
 
     /**
      * Implementation of the List Comparator interface, used to sort a
-     * request response table.
+     * request response table.  The objects compared are table row
+     * indices.  Numeric keys are compared using the stored binary values.
      */
-    public class Compare implements Comparator<Vector> {
+    public class Compare implements Comparator<Integer> {
 
 	/** The index of the table field to be used for sorting. */
 	private int fieldIndex;
@@ -760,27 +1123,27 @@ public class RequestResponse {
 	}
 
 	/** Compare two table rows for their sort order. */
-	@SuppressWarnings("unchecked")
-	public int compare(Vector row1, Vector row2) {
-	    String val1 = ((Vector<SavotTD>)row1).get(fieldIndex).getContent();
-	    String val2 = ((Vector<SavotTD>)row2).get(fieldIndex).getContent();
-
-	    if (this.isNumeric)
-		return (new Double(val1).compareTo(new Double(val2)) * order);
-	    else 
-		return (val1.compareTo(val2) * order);
+	public int compare(Integer row1, Integer row2) {
+	    int i1 = row1.intValue(), i2 = row2.intValue();
+
+	    if (this.isNumeric) {
+		double val1 = store.getDouble(fieldIndex, i1);
+		double val2 = store.getDouble(fieldIndex, i2);
+		return (Double.compare(val1, val2) * order);
+	    } else {
+		String val1 = store.get(fieldIndex, i1);
+		String val2 = store.get(fieldIndex, i2);
+		return (nonNull(val1).compareTo(nonNull(val2)) * order);
+	    }
 	}
 
 	/** Compare the sort key of two table rows for equality. */
-	@SuppressWarnings("unchecked")
-	public boolean equals(Vector row1, Vector row2) {
-	    String val1 = ((Vector<SavotTD>)row1).get(fieldIndex).getContent();
-	    String val2 = ((Vector<SavotTD>)row2).get(fieldIndex).getContent();
-
-	    if (this.isNumeric)
-		return (new Double(val1).equals(new Double(val2)));
-	    else 
-		return (val1.equals(val2));
+	public boolean equals(Integer row1, Integer row2) {
+	    return (compare(row1, row2) == 0);
+	}
+
+	private String nonNull(String value) {
+	    return ((value == null) ? "" : value);
 	}
     }
 
@@ -888,7 +1251,7 @@ public class RequestResponse {
 	}
 
 	// Estimate the required table width.
-	for (int j=0, nchars=0;  j < rows.size();  j++) {
+	for (int j=0, nchars=0;  j < size();  j++) {
 	    this.setRow(j);
 	    if (j > 4)
 		break;
@@ -936,7 +1299,7 @@ public class RequestResponse {
 	output.println("</tr>");
 
 	// Output the table data.
-	for (int j=0;  j < rows.size();  j++) {
+	for (int j=0;  j < size();  j++) {
 	    if (j % 2 == 0)
 		output.println("<tr BGCOLOR=\"#FFFFFF\">");
 	    else
@@ -1084,7 +1447,7 @@ public class RequestResponse {
 	}
 
 	// Format the text data.
-	for (int j=0;  j < rows.size();  j++) {
+	for (int j=0;  j < size();  j++) {
 	    this.setRow(j);
 	    tf.nextRow();
 
@@ -1128,128 +1491,8 @@ public class RequestResponse {
      *
      * @param	out	OutputStream to which the VOTable is to be written.
      */
-    @SuppressWarnings("unchecked")
     public void writeCsv(OutputStream out) throws DalServerException {
-	final int MAXCOLS = 1024;
-	String[] fieldKeys = new String[MAXCOLS];
-	String[] fieldLabels = new String[MAXCOLS];
-	int nfields=0, maxIndex=0;
-	boolean useCsv = false;
-
-	for (int i=0;  i < MAXCOLS;  i++)
-	    fieldKeys[i] = fieldLabels[i] = null;
-
-	PrintWriter output = new PrintWriter(out);
-	Object obj=null, lastObj=null;
-	String delimChar = ",";
-
-	System.out.println ("In RequestResponse.writeCsv() ...\n");
-
-	// Check whether the table has CSV field tags.
-	for (Iterator i = fields.entrySet().iterator();  i.hasNext();  ) {
-	    Map.Entry me = (Map.Entry) i.next();
-	    obj = (Object) me.getValue();
-	    if (obj == lastObj)
-		continue;
-
-	    TableField p = (TableField) obj;
-	    String csv = p.getCsvKeyword();
-	    if (csv != null) {
-		useCsv = true;
-		break;
-	    }
-	}
-
-	// Get a list of the CSV columns and their labels.
-	for (Iterator i = fields.entrySet().iterator();  i.hasNext();  ) {
-	    Map.Entry me = (Map.Entry) i.next();
-	    obj = (Object) me.getValue();
-	    if (obj == lastObj)
-		continue;
-
-	    TableField p = (TableField) obj;
-	    String csv = p.getCsvKeyword();
-	    if (useCsv && csv == null)
-		continue;
-
-	    if (useCsv) {
-		String[] items = csv.split(";", 2);
-		int index = new Integer(items[0]).intValue();
-		String label = items[1];
-
-		if (label.equalsIgnoreCase("@Id"))
-		    label = p.getId();
-		else if (label.equalsIgnoreCase("@Utype"))
-		    label = p.getUtype();
-		else if (label.equalsIgnoreCase("@Ucd"))
-		    label = p.getUcd();
-		else if (label.equalsIgnoreCase("@FITS"))
-		    label = p.getFitsKeyword();
-		else if (label.equalsIgnoreCase("@Description"))
-		    label = p.getDescription();
-
-		if (index < MAXCOLS) {
-		    fieldKeys[index] = p.getId();
-		    fieldLabels[index] = label;
-		    nfields++;
-
-		    if (maxIndex < index)
-			maxIndex = index;
-		}
-	    } else {
-		fieldKeys[nfields] = p.getId();
-		fieldLabels[nfields] = p.getId();
-		maxIndex = nfields;
-		nfields++;
-	    }
-
-	    lastObj = obj;
-	}
-
-	// Output the CSV header.
-	StringBuilder line = new StringBuilder();
-	int ncols = 0;
-
-	for (int i=0;  i <= maxIndex;  i++) {
-	    String label = fieldLabels[i];
-	    if (label == null)
-		continue;
-
-	    if (ncols++ > 0)
-		line.append(delimChar);
-	    line.append(label);
-	}
-	output.println(line.toString());
-
-	// Output the CSV data.
-	for (int j=0;  j < rows.size();  j++) {
-	    this.setRow(j);
-
-	    line = new StringBuilder();
-	    ncols = 0;
-
-	    for (int i=0;  i <= maxIndex;  i++) {
-		String key = fieldKeys[i];
-		if (key == null)
-		    continue;
-
-		String value = this.getValue(key);
-		boolean quoteit = (value.contains(delimChar));
-
-		if (ncols++ > 0)
-		    line.append(delimChar);
-		if (quoteit)
-		    line.append("\"");
-		line.append(value);
-		if (quoteit)
-		    line.append("\"");
-	    }
-
-	    output.println(line.toString());
-	}
-
-	if (output != null)
-	    output.close();
+	this.writeRows(new DelimitedRowSink(out, ","));
     }
 
     /**
@@ -1269,24 +1512,53 @@ public class RequestResponse {
      *
      * @param	out	OutputStream to which the VOTable is to be written.
      */
-    @SuppressWarnings("unchecked")
     public void writeTsv(OutputStream out) throws DalServerException {
+	this.writeRows(new DelimitedRowSink(out, "\t"));
+    }
+
+    /**
+     * Create a FITS binary table representation of the RequestResponse
+     * object and write it to the given OutputStream.
+     *
+     * @param	out	OutputStream to which the FITS file is to be written.
+     */
+    public void writeFits(OutputStream out) throws DalServerException {
+	this.writeRows(new FitsRowSink(out));
+    }
+
+    /**
+     * Write a fully buffered RequestResponse to a row sink.
+     *
+     * @param	sink	The row sink to which the table is written.
+     */
+    public void writeRows(RowSink sink) throws DalServerException {
+	sink.begin(this);
+	for (int j=0;  j < store.size();  j++) {
+	    row = j;
+	    sink.writeRow(this);
+	}
+	sink.end(this);
+    }
+
+    /**
+     * Get the keys and labels of the columns to be output for a CSV or
+     * TSV serialization, in column order.  If any table field has a CSV
+     * keyword attribute, only such fields are output, in the order given
+     * by the CSV index; otherwise all fields are output, labelled by the
+     * field ID.
+     *
+     * @return		A two element array; element 0 contains the
+     *			field keys and element 1 the column labels.
+     */
+    String[][] getCsvColumns() {
 	final int MAXCOLS = 1024;
 	String[] fieldKeys = new String[MAXCOLS];
 	String[] fieldLabels = new String[MAXCOLS];
 	int nfields=0, maxIndex=0;
 	boolean useCsv = false;
-
-	for (int i=0;  i < MAXCOLS;  i++)
-	    fieldKeys[i] = fieldLabels[i] = null;
-
-	PrintWriter output = new PrintWriter(out);
 	Object obj=null, lastObj=null;
-	String delimChar = "\t";
 
-	System.out.println ("In RequestResponse.writeTsv() ...\n");
-
-	// Check whether the table has TSV field tags.
+	// Check whether the table has CSV field tags.
 	for (Iterator i = fields.entrySet().iterator();  i.hasNext();  ) {
 	    Map.Entry me = (Map.Entry) i.next();
 	    obj = (Object) me.getValue();
@@ -1301,7 +1573,7 @@ public class RequestResponse {
 	    }
 	}
 
-	// Get a list of the TSV columns and their labels.
+	// Get a list of the CSV columns and their labels.
 	for (Iterator i = fields.entrySet().iterator();  i.hasNext();  ) {
 	    Map.Entry me = (Map.Entry) i.next();
 	    obj = (Object) me.getValue();
@@ -1347,50 +1619,20 @@ public class RequestResponse {
 	    lastObj = obj;
 	}
 
-	// Output the TSV header.
-	StringBuilder line = new StringBuilder();
-	int ncols = 0;
-
+	// Compact the column list into column order.
+	ArrayList<String> keys = new ArrayList<String>();
+	ArrayList<String> labels = new ArrayList<String>();
 	for (int i=0;  i <= maxIndex;  i++) {
-	    String label = fieldLabels[i];
-	    if (label == null)
+	    if (fieldKeys[i] == null)
 		continue;
-
-	    if (ncols++ > 0)
-		line.append(delimChar);
-	    line.append(label);
-	}
-	output.println(line.toString());
-
-	// Output the TSV data.
-	for (int j=0;  j < rows.size();  j++) {
-	    this.setRow(j);
-
-	    line = new StringBuilder();
-	    ncols = 0;
-
-	    for (int i=0;  i <= maxIndex;  i++) {
-		String key = fieldKeys[i];
-		if (key == null)
-		    continue;
-
-		String value = this.getValue(key);
-		boolean quoteit = (value.contains(delimChar));
-
-		if (ncols++ > 0)
-		    line.append(delimChar);
-		if (quoteit)
-		    line.append("\"");
-		line.append(value);
-		if (quoteit)
-		    line.append("\"");
-	    }
-
-	    output.println(line.toString());
+	    keys.add(fieldKeys[i]);
+	    labels.add(fieldLabels[i] == null ? "" : fieldLabels[i]);
 	}
 
-	if (output != null)
-	    output.close();
+	String[][] columns = new String[2][];
+	columns[0] = keys.toArray(new String[keys.size()]);
+	columns[1] = labels.toArray(new String[labels.size()]);
+	return (columns);
     }
 
     /**
@@ -1400,8 +1642,20 @@ public class RequestResponse {
      * @param	out	OutputStream to which the VOTable is to be written.
      */
     public void writeVOTable(OutputStream out) throws DalServerException {
-	SavotWriter writer = new SavotWriter();
-	writer.generateDocument(this.createSavotVOTable(), out);
+	this.writeRows(new VOTableRowSink(out));
+    }
+
+    /**
+     * Write the RequestResponse as a VOTable using the given table data
+     * serialization.
+     *
+     * @param	out		OutputStream to which the VOTable is written.
+     * @param	serialization	"tabledata" (the default) or "binary2".
+     */
+    public void writeVOTable(OutputStream out, String serialization)
+	throws DalServerException {
+
+	this.writeRows(new VOTableRowSink(out, serialization));
     }
 
     /**
@@ -1416,6 +1670,19 @@ public class RequestResponse {
      * Fields, or table data.
      */
     public SavotVOTable createSavotVOTable() throws DalServerException {
+	return (this.createSavotVOTable(true));
+    }
+
+    /**
+     * Create a SAVOT VOTable representation of the RequestResponse object,
+     * optionally omitting the table rows.  The VOTable metadata alone is
+     * used by the VOTable row sink, which outputs the table rows directly.
+     *
+     * @param	withData	If false, the TABLEDATA element is empty.
+     */
+    SavotVOTable createSavotVOTable(boolean withData)
+	throws DalServerException {
+
 	SavotVOTable vot = new SavotVOTable();
 
 	// Set global VOTable metadata (namespaces, version, etc.)
@@ -1426,7 +1693,7 @@ public class RequestResponse {
 	//	vot.setXmlns(this.xmlnsPrefix + "," + this.xmlnsUrl);
 
 	// Add the RequestResponse as a RESOURCE containing a single TABLE.
-	this.addResource(vot);
+	this.addResource(vot, withData);
 
 	return (vot);
     }
@@ -1445,6 +1712,13 @@ public class RequestResponse {
      *			will be added.
      */
     public void addResource(SavotVOTable vot) throws DalServerException {
+	this.addResource(vot, true);
+    }
+
+    /** Add a RESOURCE, optionally omitting the table rows. */
+    private void addResource(SavotVOTable vot, boolean withData)
+	throws DalServerException {
+
 	// Create the RequestResponse RESOURCE element.
 	SavotResource res = new SavotResource();
 	vot.getResources().addItem((Object) res);
@@ -1586,24 +1860,19 @@ public class RequestResponse {
 
 	// Add any table data (Field data).
 	cds.savot.model.TRSet trSet = new cds.savot.model.TRSet();
-	for (int i=0;  i < rows.size();  i++) {
-	    Vector<Object> v = rows.get(i);
-
-	    // Ensure that we don't have any null elements in the row as
-	    // this will cause problems with the VOTable serialization.
-	    // If the client neglects to set a field value, this ensures
-	    // that an empty table data element is output.
-
-	    for (int j=0;  j < v.size();  j++)
-		if (v.get(j) == null) {
-		    SavotTD td = new SavotTD();
-		    td.setContent("");
-		    v.set(j, td);
-		}
+	for (int i=0;  withData && i < store.size();  i++) {
+	    // Format each cell of the row as a TD.  If the client neglects
+	    // to set a field value, an empty table data element is output,
+	    // as a null element will cause problems with the VOTable
+	    // serialization.
 
-	    // Store the row vector into a TDSet.
 	    cds.savot.model.TDSet tdSet = new cds.savot.model.TDSet();
-	    tdSet.setItems(rows.get(i));
+	    for (int j=0;  j < nFields;  j++) {
+		String value = store.get(j, i);
+		SavotTD td = new SavotTD();
+		td.setContent((value == null) ? "" : value);
+		tdSet.addItem((Object) td);
+	    }
 
 	    SavotTR savotTR = new SavotTR();
 	    savotTR.setTDSet(tdSet);
@@ -0,0 +1,268 @@
+/*
+ * RequestTimer.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the time spent in each processing stage of a single service
+ * request, together with the number of table rows and bytes output.  When
+ * the request completes the timings are added to the global
+ * {@link MetricsRegistry}.
+ *
+ * <p>Stages may be nested, in which case time is charged only to the
+ * innermost active stage.  For example when a response is streamed, each
+ * row is serialized to the client from within the row fetch loop, and the
+ * time spent writing the row is charged to SERIALIZE rather than FETCH.
+ * Stopping a stage which is not active has no effect; stopping an outer
+ * stage also stops any stages nested within it.
+ *
+ * <p>A RequestTimer is normally attached to the {@link RequestResponse}
+ * for the request (see {@link RequestResponse#getTimer}), which makes it
+ * available to the service and query code.  It is intended for use by a
+ * single request thread and is not thread safe.
+ */
+public class RequestTimer {
+
+    /** Request parameter processing (DalContext). */
+    public static final int PARAMS = 0;
+
+    /** Acquiring a DBMS connection. */
+    public static final int CONNECT = 1;
+
+    /** Executing the DBMS query. */
+    public static final int EXECUTE = 2;
+
+    /** Reading the query results into the response. */
+    public static final int FETCH = 3;
+
+    /** External cutout or virtual data generation tasks. */
+    public static final int CUTOUT = 4;
+
+    /** Serializing the response to the client. */
+    public static final int SERIALIZE = 5;
+
+    /** Number of timed stages. */
+    public static final int NSTAGES = 6;
+
+    /** Stage names, indexed by stage. */
+    static final String[] stageNames = {
+	"params", "connect", "execute", "fetch", "cutout", "serialize"
+    };
+
+    private String service = null;
+    private String operation = null;
+    private boolean failed = false;
+    private boolean recorded = false;
+    private long rows = 0;
+    private long bytes = 0;
+
+    /** Accumulated time of each stage, nsec. */
+    private final long[] nanos = new long[NSTAGES];
+
+    /** Stack of active stages, innermost last. */
+    private final int[] active = new int[NSTAGES];
+    private int depth = 0;
+    private long mark;
+
+    /** Request start time, nsec. */
+    private final long startTime;
+
+
+    /** Create a new timer; the request is timed from this point. */
+    public RequestTimer() {
+	startTime = System.nanoTime();
+    }
+
+    /**
+     * Create a new timer for the given service and operation.
+     *
+     * @param	service		The service name, e.g., "scs-messier"
+     * @param	operation	The service operation, e.g., "queryData"
+     */
+    public RequestTimer(String service, String operation) {
+	this();
+	this.service = service;
+	this.operation = operation;
+    }
+
+    /** Set the service name under which the request is recorded. */
+    public void setService(String service) {
+	this.service = service;
+    }
+
+    /** Get the service name. */
+    public String getService() {
+	return (service);
+    }
+
+    /** Set the service operation under which the request is recorded. */
+    public void setOperation(String operation) {
+	this.operation = operation;
+    }
+
+    /** Get the service operation. */
+    public String getOperation() {
+	return (operation);
+    }
+
+    /** Flag the request as having failed. */
+    public void setFailed(boolean failed) {
+	this.failed = failed;
+    }
+
+    /** Test whether the request failed. */
+    public boolean isFailed() {
+	return (failed);
+    }
+
+    /** Set the number of table rows output. */
+    public void setRows(long rows) {
+	this.rows = rows;
+    }
+
+    /** Get the number of table rows output. */
+    public long getRows() {
+	return (rows);
+    }
+
+    /** Add to the number of bytes output. */
+    public void addBytes(long nbytes) {
+	bytes += nbytes;
+    }
+
+    /** Get the number of bytes output. */
+    public long getBytes() {
+	return (bytes);
+    }
+
+    /**
+     * Start timing a stage.  Any currently active stage is suspended
+     * until this stage is stopped.
+     *
+     * @param	stage		The stage, e.g., RequestTimer.EXECUTE
+     */
+    public void start(int stage) {
+	long now = System.nanoTime();
+	if (depth > 0)
+	    nanos[active[depth-1]] += now - mark;
+	if (depth < active.length)
+	    active[depth++] = stage;
+	mark = now;
+    }
+
+    /**
+     * Stop timing a stage, resuming the enclosing stage if any.
+     *
+     * @param	stage		The stage, e.g., RequestTimer.EXECUTE
+     */
+    public void stop(int stage) {
+	int level = depth - 1;
+	while (level >= 0 && active[level] != stage)
+	    level--;
+	if (level < 0)
+	    return;
+
+	long now = System.nanoTime();
+	nanos[active[depth-1]] += now - mark;
+	depth = level;
+	mark = now;
+    }
+
+    /** Stop timing all active stages. */
+    public void stopAll() {
+	if (depth > 0)
+	    stop(active[0]);
+    }
+
+    /**
+     * Add externally measured time to a stage.
+     *
+     * @param	stage		The stage, e.g., RequestTimer.CUTOUT
+     * @param	nsec		Elapsed time, nsec
+     */
+    public void add(int stage, long nsec) {
+	nanos[stage] += nsec;
+    }
+
+    /** Get the accumulated time of a stage, nsec. */
+    public long getTime(int stage) {
+	return (nanos[stage]);
+    }
+
+    /** Get the total elapsed time of the request so far, nsec. */
+    public long getElapsed() {
+	return (System.nanoTime() - startTime);
+    }
+
+    /**
+     * Wrap an output stream so that the bytes written to it are added to
+     * the byte count of the request.
+     *
+     * @param	out		The output stream to be counted
+     */
+    public OutputStream countBytes(OutputStream out) {
+	return (new CountingOutputStream(out));
+    }
+
+    /**
+     * Complete timing of the request and add it to the metrics registry.
+     * Requests with no service name or operation are not recorded, and a
+     * request is recorded only once.
+     */
+    public void record() {
+	stopAll();
+	if (recorded || service == null || operation == null)
+	    return;
+
+	MetricsRegistry.record(this);
+	recorded = true;
+    }
+
+    /**
+     * Summarize the request timings, e.g., for output as an INFO in the
+     * query response.  Times are given in milliseconds.
+     */
+    public String toString() {
+	StringBuilder sb = new StringBuilder();
+	sb.append("total=").append(msec(getElapsed()));
+	for (int i=0;  i < NSTAGES;  i++) {
+	    if (nanos[i] > 0)
+		sb.append(' ').append(stageNames[i]).append('=').
+		    append(msec(nanos[i]));
+	}
+	sb.append(" rows=").append(rows);
+	sb.append(" bytes=").append(bytes);
+
+	return (sb.toString());
+    }
+
+    /** Format a time in nanoseconds as milliseconds. */
+    private static String msec(long nsec) {
+	return (String.format("%.3f", nsec / 1.0e6));
+    }
+
+
+    /** Output stream filter which counts the bytes written. */
+    private class CountingOutputStream extends FilterOutputStream {
+
+	CountingOutputStream(OutputStream out) {
+	    super(out);
+	}
+
+	public void write(int b) throws IOException {
+	    out.write(b);
+	    bytes++;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    out.write(b, off, len);
+	    bytes += len;
+	}
+    }
+}
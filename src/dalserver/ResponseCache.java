@@ -0,0 +1,612 @@
+/*
+ * ResponseCache.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of serialized query responses.  Services such as cone search and
+ * image or spectral access often receive many identical queries (portals
+ * polling, crawlers, validators querying canned positions), and the same
+ * response may be returned for each without repeating the DBMS query or
+ * the serialization.
+ *
+ * <p>Responses are keyed by the service name plus the normalized request
+ * parameters: names are case insensitive and sorted, the numeric values
+ * of the positional parameters (POS, SIZE, RA, DEC, SR) are reduced to a
+ * canonical form rounded to a fixed number of decimal places, and those
+ * of MAXREC and VERB to a canonical form.  Other values, which may be
+ * identifiers (e.g., ID=007), are compared verbatim.  Only
+ * GET requests are cached.  The serialized bytes of each response are
+ * held in memory, within a memory budget, with the least recently used
+ * responses evicted first.  Evicted responses may optionally be spilled
+ * to a disk directory, within a separate disk budget.  Each response
+ * expires after a per-service time to live.
+ *
+ * <p>Each cached response has an entity tag (ETag), which is returned
+ * with the response.  A client repeating a query with If-None-Match
+ * receives a 304 (Not Modified) response if the cached response is
+ * unchanged.
+ *
+ * <p>The cache is enabled for a service by the following parameters:
+ *
+ * <pre>
+ *   responseCache		Enable the response cache [false]
+ *   responseCacheSize		Memory budget, MB [64]
+ *   responseCacheTTL		Time to live of a cached response, sec [300]
+ *   responseCacheMaxEntry	Largest response cached, MB [8]
+ *   responseCacheDir		Directory for responses spilled to disk
+ *   responseCacheDiskSize	Disk budget, MB [1024]
+ *   responseCacheDigits	Decimal places kept for positions [6]
+ * </pre>
+ *
+ * All caches are cleared when the service configuration is reloaded.
+ * Responses which include stage timings (timingInfo) are not cached.  The
+ * caching headers set by {@link #capture} must be cleared if an error
+ * response is returned instead, e.g., by {@link #noStore}.
+ */
+public class ResponseCache {
+    private static final Logger log = Logger.getLogger(ResponseCache.class);
+
+    /** Registry of response caches, keyed by serviceName. */
+    private static final Map<String,ResponseCache> caches =
+	new HashMap<String,ResponseCache>();
+
+    /** Parameters whose numeric values are rounded in the cache key. */
+    private static final Set<String> positionParams = new HashSet<String>(
+	Arrays.asList("pos", "size", "ra", "dec", "sr"));
+
+    /** Other parameters whose numeric values are normalized. */
+    private static final Set<String> numericParams = new HashSet<String>(
+	Arrays.asList("maxrec", "verb"));
+
+    /** Cache identity and configuration. */
+    private String name;
+    private long maxBytes;
+    private long maxEntry;
+    private long ttl;
+    private File diskDir;
+    private long maxDiskBytes;
+    private int digits;
+
+    /** Cached responses held in memory, in LRU order. */
+    private LinkedHashMap<String,Entry> memory =
+	new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    /** Cached responses spilled to disk, in LRU order. */
+    private LinkedHashMap<String,Entry> disk =
+	new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    private long diskBytes = 0;
+
+    /** Usage metrics. */
+    private final AtomicLong nHits = new AtomicLong();
+    private final AtomicLong nMisses = new AtomicLong();
+    private final AtomicLong nNotModified = new AtomicLong();
+    private final AtomicLong nEvicted = new AtomicLong();
+    private final AtomicLong nSpilled = new AtomicLong();
+
+
+    /** A cached response. */
+    private static class Entry {
+	String key;
+	String etag;
+	String contentType;
+	long created;
+	long size;
+	byte[] data;		// null if spilled to disk
+	File file;		// spill file, if any
+
+	Entry(String key, String etag, String contentType, byte[] data) {
+	    this.key = key;
+	    this.etag = etag;
+	    this.contentType = contentType;
+	    this.data = data;
+	    this.size = data.length;
+	    this.created = System.currentTimeMillis();
+	}
+    }
+
+    /**
+     * An output stream which passes the response through to the client,
+     * and keeps a copy of the response to be cached.  If the response
+     * exceeds the maximum size of a cached response the copy is dropped.
+     */
+    public static class Capture extends FilterOutputStream {
+	private String key;
+	private String etag;
+	private long max;
+	private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+	Capture(OutputStream out, String key, String etag, long max) {
+	    super(out);
+	    this.key = key;
+	    this.etag = etag;
+	    this.max = max;
+	}
+
+	public void write(int b) throws IOException {
+	    out.write(b);
+	    if (copy != null) {
+		copy.write(b);
+		checkSize();
+	    }
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    out.write(b, off, len);
+	    if (copy != null) {
+		copy.write(b, off, len);
+		checkSize();
+	    }
+	}
+
+	private void checkSize() {
+	    if (copy.size() > max)
+		copy = null;
+	}
+    }
+
+
+    /**
+     * Get the response cache for a service, creating it if necessary.
+     * If the cache is not enabled for the service null is returned.
+     *
+     * @param	params		Service parameter set
+     */
+    public static ResponseCache getCache(ParamSet params)
+	throws DalServerException {
+
+	String enable = params.getValue("responseCache");
+	if (enable == null || !(enable.equalsIgnoreCase("true") ||
+	    enable.equalsIgnoreCase("yes"))) {
+	    return (null);
+	}
+
+	// A response reporting its stage timings is not reusable.
+	String timingInfo = params.getValue("timingInfo");
+	if (timingInfo != null && timingInfo.equalsIgnoreCase("true"))
+	    return (null);
+
+	String name = params.getValue("serviceName");
+	if (name == null)
+	    throw new DalServerException("response cache requires serviceName");
+
+	synchronized (caches) {
+	    ResponseCache cache = caches.get(name);
+	    if (cache == null) {
+		cache = new ResponseCache(name, params);
+		caches.put(name, cache);
+	    }
+	    return (cache);
+	}
+    }
+
+    /** Clear and remove all response caches, e.g., on a config reload. */
+    public static void invalidateAll() {
+	List<ResponseCache> all;
+	synchronized (caches) {
+	    all = new ArrayList<ResponseCache>(caches.values());
+	    caches.clear();
+	}
+	for (ResponseCache cache : all)
+	    cache.clear();
+    }
+
+    /** Return all current response caches. */
+    public static List<ResponseCache> getCaches() {
+	synchronized (caches) {
+	    return (new ArrayList<ResponseCache>(caches.values()));
+	}
+    }
+
+    /**
+     * Create a new response cache.
+     *
+     * @param	name		Cache (service) name
+     * @param	params		Service parameter set
+     */
+    private ResponseCache(String name, ParamSet params)
+	throws DalServerException {
+
+	this.name = name;
+	try {
+	    maxBytes = (long) (Double.parseDouble(
+		params.getValue("responseCacheSize", "64")) * 1048576);
+	    maxEntry = (long) (Double.parseDouble(
+		params.getValue("responseCacheMaxEntry", "8")) * 1048576);
+	    ttl = (long) (Double.parseDouble(
+		params.getValue("responseCacheTTL", "300")) * 1000);
+	    maxDiskBytes = (long) (Double.parseDouble(
+		params.getValue("responseCacheDiskSize", "1024")) * 1048576);
+	    digits = Integer.parseInt(
+		params.getValue("responseCacheDigits", "6"));
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException(
+		"invalid response cache parameter: " + ex.getMessage());
+	}
+
+	String dir = params.getValue("responseCacheDir");
+	if (dir != null && dir.trim().length() > 0) {
+	    diskDir = new File(dir.trim(), name);
+	    if (!diskDir.isDirectory() && !diskDir.mkdirs())
+		throw new DalServerException(
+		    "cannot create response cache directory " + diskDir);
+
+	    // Discard any responses spilled by a previous instance.
+	    File[] files = diskDir.listFiles();
+	    for (int i=0;  files != null && i < files.length;  i++)
+		if (files[i].getName().endsWith(".rsp"))
+		    files[i].delete();
+	}
+    }
+
+    /**
+     * Compute the cache key of a request, or null if the request is not
+     * cacheable (only GET requests are cached).
+     *
+     * @param	request		The servlet request
+     */
+    public String getKey(HttpServletRequest request) {
+	if (!"GET".equalsIgnoreCase(request.getMethod()))
+	    return (null);
+
+	TreeMap<String,String> sorted = new TreeMap<String,String>();
+	Map<?,?> map = request.getParameterMap();
+	for (Map.Entry<?,?> me : map.entrySet()) {
+	    String[] values = (String[]) me.getValue();
+	    String pname = ((String) me.getKey()).toLowerCase();
+	    String value = (values == null || values.length == 0) ?
+		"" : values[0];
+	    if (values != null && values.length > 1)
+		return (null);
+	    if (positionParams.contains(pname))
+		value = normalize(value, digits);
+	    else if (numericParams.contains(pname))
+		value = normalize(value, -1);
+	    sorted.put(pname, value);
+	}
+
+	StringBuilder key = new StringBuilder(name);
+	for (Map.Entry<String,String> me : sorted.entrySet())
+	    key.append('\n').append(me.getKey()).append('=').
+		append(me.getValue());
+
+	return (key.toString());
+    }
+
+    /**
+     * Normalize a parameter value.  Each numeric element of a value
+     * list (e.g., "10.0,+20") is reduced to a canonical form, optionally
+     * rounded to the given number of decimal places.
+     *
+     * @param	value		The parameter value
+     * @param	digits		Decimal places kept, or -1 for no rounding
+     */
+    static String normalize(String value, int digits) {
+	StringBuilder sb = new StringBuilder();
+	int start = 0;
+	value = value.trim();
+
+	for (int i=0;  i <= value.length();  i++) {
+	    char ch = (i < value.length()) ? value.charAt(i) : ',';
+	    if (ch != ',' && ch != '/' && ch != ';' && ch != ' ')
+		continue;
+
+	    String token = value.substring(start, i);
+	    try {
+		double v = Double.parseDouble(token);
+		if (digits >= 0) {
+		    double scale = Math.pow(10.0, digits);
+		    v = Math.round(v * scale) / scale;
+		}
+		if (v == Math.rint(v) && Math.abs(v) < 1.0e15)
+		    token = Long.toString((long) v);
+		else
+		    token = Double.toString(v);
+	    } catch (NumberFormatException ex) {
+		;
+	    }
+
+	    sb.append(token);
+	    if (i < value.length())
+		sb.append(ch);
+	    start = i + 1;
+	}
+
+	return (sb.toString());
+    }
+
+    /**
+     * Serve a request from the cache if possible.  If a current response
+     * is cached it is written to the client, or if the client already has
+     * it (If-None-Match) a 304 status is returned.
+     *
+     * @param	key		Cache key of the request
+     * @param	request		The servlet request
+     * @param	response	The servlet response
+     * @param	timer		The request timer, or null
+     *
+     * @return			True if the request was served
+     */
+    public boolean serve(String key, HttpServletRequest request,
+	HttpServletResponse response, RequestTimer timer) throws IOException {
+
+	Entry entry = lookup(key);
+	if (entry == null) {
+	    nMisses.incrementAndGet();
+	    return (false);
+	}
+
+	setHeaders(response, entry.etag, entry.created);
+	String match = request.getHeader("If-None-Match");
+	if (match != null && (match.trim().equals("*") ||
+	    match.contains(entry.etag))) {
+
+	    nNotModified.incrementAndGet();
+	    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	    return (true);
+	}
+
+	byte[] data = entry.data;
+	InputStream in = null;
+	if (data == null) {
+	    try {
+		in = new FileInputStream(entry.file);
+	    } catch (FileNotFoundException ex) {
+		remove(entry);
+		nMisses.incrementAndGet();
+		return (false);
+	    }
+	}
+
+	nHits.incrementAndGet();
+	response.setContentType(entry.contentType);
+	response.setContentLength((int) entry.size);
+	OutputStream out = response.getOutputStream();
+	if (timer != null)
+	    out = timer.countBytes(out);
+
+	try {
+	    if (data != null)
+		out.write(data);
+	    else {
+		byte[] buf = new byte[65536];
+		for (int n;  (n = in.read(buf)) > 0;  )
+		    out.write(buf, 0, n);
+	    }
+	} finally {
+	    if (in != null)
+		in.close();
+	    out.close();
+	}
+
+	return (true);
+    }
+
+    /**
+     * Begin capturing a response to be cached.  The ETag of the new
+     * response is set, so this must be called before any output is
+     * written.  The returned stream should be used for the output.
+     *
+     * @param	key		Cache key of the request
+     * @param	response	The servlet response
+     * @param	out		The response output stream
+     */
+    public Capture capture(String key, HttpServletResponse response,
+	OutputStream out) {
+
+	long now = System.currentTimeMillis();
+	String etag = "\"" + digest(key).substring(0, 16) + "-" +
+	    Long.toHexString(now) + "\"";
+	setHeaders(response, etag, now);
+	return (new Capture(out, key, etag, maxEntry));
+    }
+
+    /**
+     * Save a completely written response in the cache.  This should be
+     * called only if the request completed successfully.
+     *
+     * @param	capture		The captured response
+     * @param	contentType	MIME type of the response
+     */
+    public void put(Capture capture, String contentType) {
+	if (capture.copy == null || ttl <= 0)
+	    return;
+
+	Entry entry = new Entry(capture.key, capture.etag, contentType,
+	    capture.copy.toByteArray());
+	capture.copy = null;
+	List<Entry> victims = new ArrayList<Entry>();
+
+	synchronized (this) {
+	    Entry old = memory.remove(entry.key);
+	    if (old != null)
+		memoryBytes -= old.size;
+	    removeDisk(entry.key);
+
+	    memory.put(entry.key, entry);
+	    memoryBytes += entry.size;
+
+	    // Evict the least recently used responses over the budget.
+	    Iterator<Entry> it = memory.values().iterator();
+	    while (memoryBytes > maxBytes && it.hasNext()) {
+		Entry e = it.next();
+		it.remove();
+		memoryBytes -= e.size;
+		nEvicted.incrementAndGet();
+		if (diskDir != null && e.size <= maxDiskBytes &&
+		    System.currentTimeMillis() - e.created < ttl) {
+		    victims.add(e);
+		}
+	    }
+	}
+
+	// Spill the evicted responses to disk outside the lock.
+	for (Entry e : victims)
+	    spill(e);
+    }
+
+    /** Write an evicted response to disk, and add it to the disk cache. */
+    private void spill(Entry entry) {
+	File file = new File(diskDir, digest(entry.key) + ".rsp");
+	try {
+	    OutputStream out = new FileOutputStream(file);
+	    try {
+		out.write(entry.data);
+	    } finally {
+		out.close();
+	    }
+	} catch (IOException ex) {
+	    log.warn("cannot spill cached response to " + file + ": " +
+		ex.getMessage());
+	    file.delete();
+	    return;
+	}
+
+	List<File> expired = new ArrayList<File>();
+	synchronized (this) {
+	    // A newer response may have been cached meanwhile.
+	    if (memory.containsKey(entry.key)) {
+		file.delete();
+		return;
+	    }
+
+	    entry.data = null;
+	    entry.file = file;
+	    removeDisk(entry.key);
+	    disk.put(entry.key, entry);
+	    diskBytes += entry.size;
+	    nSpilled.incrementAndGet();
+
+	    Iterator<Entry> it = disk.values().iterator();
+	    while (diskBytes > maxDiskBytes && it.hasNext()) {
+		Entry e = it.next();
+		it.remove();
+		diskBytes -= e.size;
+		expired.add(e.file);
+	    }
+	}
+
+	for (File f : expired)
+	    f.delete();
+    }
+
+    /** Look up a current response in memory or on disk. */
+    private synchronized Entry lookup(String key) {
+	Entry entry = memory.get(key);
+	if (entry == null)
+	    entry = disk.get(key);
+	if (entry == null)
+	    return (null);
+
+	if (System.currentTimeMillis() - entry.created >= ttl) {
+	    remove(entry);
+	    return (null);
+	}
+	return (entry);
+    }
+
+    /** Remove an entry from the cache. */
+    private synchronized void remove(Entry entry) {
+	if (memory.get(entry.key) == entry) {
+	    memory.remove(entry.key);
+	    memoryBytes -= entry.size;
+	} else if (disk.get(entry.key) == entry)
+	    removeDisk(entry.key);
+    }
+
+    /** Remove a spilled response, deleting the spill file. */
+    private void removeDisk(String key) {
+	Entry old = disk.remove(key);
+	if (old != null) {
+	    diskBytes -= old.size;
+	    if (old.file != null)
+		old.file.delete();
+	}
+    }
+
+    /** Discard all cached responses. */
+    public synchronized void clear() {
+	for (Entry e : disk.values())
+	    if (e.file != null)
+		e.file.delete();
+	memory.clear();
+	disk.clear();
+	memoryBytes = diskBytes = 0;
+    }
+
+    /**
+     * Reset a response for an error response, clearing the buffer and any
+     * caching headers set by {@link #capture}, so that the error is not
+     * cached or validated by the client or a proxy.  As for resetBuffer,
+     * the response must not yet be committed.
+     *
+     * @param	response	The servlet response
+     */
+    public static void noStore(HttpServletResponse response) {
+	response.reset();
+	response.setHeader("Cache-Control", "no-store");
+    }
+
+    /** Set the validator and caching headers of a response. */
+    private void setHeaders(HttpServletResponse response, String etag,
+	long created) {
+
+	response.setHeader("ETag", etag);
+	response.setDateHeader("Last-Modified", created);
+	long age = (System.currentTimeMillis() - created) / 1000;
+	response.setHeader("Cache-Control", "max-age=" +
+	    Math.max(0, ttl / 1000 - age));
+    }
+
+    /** Compute the hex SHA-1 digest of a string. */
+    private static String digest(String s) {
+	try {
+	    MessageDigest md = MessageDigest.getInstance("SHA-1");
+	    byte[] hash = md.digest(s.getBytes("UTF-8"));
+	    StringBuilder sb = new StringBuilder();
+	    for (byte b : hash)
+		sb.append(String.format("%02x", b & 0xff));
+	    return (sb.toString());
+	} catch (Exception ex) {
+	    return (Integer.toHexString(s.hashCode()));
+	}
+    }
+
+    /** Return the cache (service) name. */
+    public String getName() { return (name); }
+
+    /** Return the number of responses served from the cache. */
+    public long getHitCount() { return (nHits.get()); }
+
+    /** Return the number of cacheable requests not found in the cache. */
+    public long getMissCount() { return (nMisses.get()); }
+
+    /** Return the number of 304 (Not Modified) responses. */
+    public long getNotModifiedCount() { return (nNotModified.get()); }
+
+    /** Return the number of responses evicted from memory. */
+    public long getEvictionCount() { return (nEvicted.get()); }
+
+    /** Return the number of responses spilled to disk. */
+    public long getSpillCount() { return (nSpilled.get()); }
+
+    /** Return the number of bytes of responses held in memory. */
+    public synchronized long getMemoryBytes() { return (memoryBytes); }
+
+    /** Return the number of bytes of responses spilled to disk. */
+    public synchronized long getDiskBytes() { return (diskBytes); }
+
+    /** Return the number of cached responses. */
+    public synchronized int size() { return (memory.size() + disk.size()); }
+}
@@ -0,0 +1,45 @@
+/*
+ * RowSink.java
+ * $ID*
+ */
+
+package dalserver;
+
+/**
+ * A RowSink receives the rows of a {@link RequestResponse} one at a time as
+ * they are generated, allowing a query response to be serialized directly
+ * to the output stream rather than first being built in memory.  The sink
+ * is attached to the RequestResponse with
+ * {@link RequestResponse#setRowSink}.
+ *
+ * <p>The response metadata (INFOs, GROUPs, PARAMs, FIELDs) must be fully
+ * defined before the first row is added; {@link #begin} is called at that
+ * point.  Each completed row is passed to {@link #writeRow} while it is the
+ * current row of the RequestResponse.  Finally {@link #end} is called once
+ * all rows have been written, at which point any INFOs added or modified
+ * since the stream began (e.g., TableRows, or a QUERY_STATUS of OVERFLOW
+ * or ERROR) may be output as trailing metadata.
+ */
+public interface RowSink {
+
+    /**
+     * Begin the output, writing the response header and table metadata.
+     *
+     * @param	response	The request response being streamed.
+     */
+    public void begin(RequestResponse response) throws DalServerException;
+
+    /**
+     * Write the current row of the request response.
+     *
+     * @param	response	The request response being streamed.
+     */
+    public void writeRow(RequestResponse response) throws DalServerException;
+
+    /**
+     * Complete the output, writing any trailing metadata.
+     *
+     * @param	response	The request response being streamed.
+     */
+    public void end(RequestResponse response) throws DalServerException;
+}
@@ -0,0 +1,173 @@
+/*
+ * SqlTemplate.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A parameterized SQL query.  The query text is composed as for a plain
+ * SQL string, except that query values (positions, ranges, identifiers,
+ * etc.) are not formatted into the SQL, but are appended as bind
+ * parameters ("?"), and are bound to the statement when the query is
+ * prepared.  The SQL text hence depends only upon the shape of the query
+ * (which constraints are present), not upon the values given, so the
+ * DBMS can reuse the query plan, and the prepared statement itself can
+ * be reused by the connection pool (see {@link DbmsConnectionPool}).
+ * Binding values also avoids any need to quote or escape them.
+ *
+ * <pre>
+ *   SqlTemplate query = new SqlTemplate("SELECT * FROM " + table);
+ *   query.append(" WHERE dec BETWEEN ").bind(dec1);
+ *   query.append(" AND ").bind(dec2);
+ *   PreparedStatement st = query.prepare(conn);
+ * </pre>
+ */
+public class SqlTemplate {
+
+    /** The SQL text, with a "?" for each bind parameter. */
+    private StringBuilder sql;
+
+    /** The bind parameter values. */
+    private List<Object> values = new ArrayList<Object>();
+
+
+    /** Create an empty query. */
+    public SqlTemplate() {
+	sql = new StringBuilder();
+    }
+
+    /**
+     * Create a query with the given initial SQL text.
+     *
+     * @param	text		SQL text (containing no bind parameters)
+     */
+    public SqlTemplate(String text) {
+	sql = new StringBuilder(text);
+    }
+
+    /**
+     * Append SQL text to the query.  The text should not contain query
+     * values; these should be added with one of the bind methods.
+     *
+     * @param	text		SQL text, e.g., " AND "
+     */
+    public SqlTemplate append(String text) {
+	sql.append(text);
+	return (this);
+    }
+
+    /**
+     * Append another query, e.g., a subquery, with its bind parameters.
+     *
+     * @param	query		The query to be appended
+     */
+    public SqlTemplate append(SqlTemplate query) {
+	sql.append(query.sql);
+	values.addAll(query.values);
+	return (this);
+    }
+
+    /** Append a floating point bind parameter. */
+    public SqlTemplate bind(double value) {
+	return (bindValue(new Double(value)));
+    }
+
+    /** Append an integer bind parameter. */
+    public SqlTemplate bind(long value) {
+	return (bindValue(new Long(value)));
+    }
+
+    /** Append a string bind parameter. */
+    public SqlTemplate bind(String value) {
+	return (bindValue(value));
+    }
+
+    private SqlTemplate bindValue(Object value) {
+	sql.append("?");
+	values.add(value);
+	return (this);
+    }
+
+    /** Get the number of bind parameters. */
+    public int size() {
+	return (values.size());
+    }
+
+    /**
+     * Prepare the query for execution on a connection, and bind the
+     * query values.  The caller must close the statement when done; for
+     * a pooled connection this returns the statement to the statement
+     * cache of the connection.
+     *
+     * @param	conn		An open DBMS connection
+     */
+    public PreparedStatement prepare(Connection conn) throws SQLException {
+	PreparedStatement st = conn.prepareStatement(sql.toString());
+
+	try {
+	    for (int i=0;  i < values.size();  i++) {
+		Object value = values.get(i);
+		if (value instanceof Double)
+		    st.setDouble(i+1, ((Double)value).doubleValue());
+		else if (value instanceof Long)
+		    st.setLong(i+1, ((Long)value).longValue());
+		else
+		    st.setString(i+1, (String)value);
+	    }
+	} catch (SQLException ex) {
+	    st.close();
+	    throw ex;
+	}
+
+	return (st);
+    }
+
+    /**
+     * Close a statement, ignoring any error.
+     *
+     * @param	st		The statement, or null
+     */
+    public static void close(Statement st) {
+	if (st != null) {
+	    try {
+		st.close();
+	    } catch (SQLException ex) {
+		;
+	    }
+	}
+    }
+
+    /** Get the SQL template text, with a "?" for each bind parameter. */
+    public String getSql() {
+	return (sql.toString());
+    }
+
+    /**
+     * Get the query with the bind parameter values substituted, e.g.,
+     * to be echoed in the query response or logged.  This is for
+     * information only and is not executed.
+     */
+    public String toString() {
+	StringBuilder sb = new StringBuilder();
+	int next = 0;
+
+	for (int i=0;  i < sql.length();  i++) {
+	    char ch = sql.charAt(i);
+	    if (ch == '?' && next < values.size()) {
+		Object value = values.get(next++);
+		if (value instanceof String)
+		    sb.append('\'').append(
+			((String)value).replace("'", "''")).append('\'');
+		else
+		    sb.append(value);
+	    } else
+		sb.append(ch);
+	}
+
+	return (sb.toString());
+    }
+}
@@ -52,6 +52,37 @@ public class TableField extends SavotField {
 	groupId = gid;
     }
 
+    /**
+     * Create a copy of the field, e.g., to add a cached field definition
+     * to a new response.  The values and links are shared.
+     */
+    public TableField copy() {
+	TableField f = new TableField();
+
+	f.setId(this.getId());
+	f.setName(this.getName());
+	f.setUnit(this.getUnit());
+	f.setDataType(this.getDataType());
+	f.setPrecision(this.getPrecision());
+	f.setWidth(this.getWidth());
+	f.setXtype(this.getXtype());
+	f.setRef(this.getRef());
+	f.setUcd(this.getUcd());
+	f.setUtype(this.getUtype());
+	f.setArraySize(this.getArraySize());
+	f.setDescription(this.getDescription());
+	f.setValues(this.getValues());
+	f.setLinks(this.getLinks());
+
+	f.groupId = groupId;
+	f.index = index;
+	f.fitsKeyword = fitsKeyword;
+	f.csvKeyword = csvKeyword;
+	f.hint = hint;
+
+	return (f);
+    }
+
     /**
      * Contruct a SavotField instance with the correct name space set
      * for the UTYPE tag.  The UTYPE name space prefix is used only in
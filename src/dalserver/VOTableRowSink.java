@@ -0,0 +1,379 @@
+/*
+ * VOTableRowSink.java
+ * $ID*
+ */
+
+package dalserver;
+
+import java.io.*;
+import java.util.*;
+import cds.savot.model.*;
+import cds.savot.writer.*;
+
+/**
+ * Row sink which serializes a RequestResponse as a VOTable, writing each
+ * table row to the output stream as it is generated.  The VOTable header
+ * (RESOURCE, INFOs, and the TABLE metadata) is written when the stream
+ * begins.  Any INFOs added or modified after that point, such as the
+ * TableRows count or a QUERY_STATUS of OVERFLOW or ERROR, are written
+ * at the end of the RESOURCE, following the TABLE, as permitted by
+ * VOTable 1.2 and later.
+ *
+ * <p>The document header and trailer are generated once by SAVOT, from the
+ * response metadata only, so that the output is identical to that of
+ * SavotWriter.generateDocument.  The table rows however bypass the SAVOT
+ * object model: the TABLEDATA TR and TD elements are formatted directly
+ * from the stored cell values into a reusable character buffer, escaping
+ * the same characters as SAVOT.  This sink is used for both streamed and
+ * fully buffered VOTable output.
+ *
+ * <p>Alternatively the table data may be serialized as VOTable 1.3
+ * BINARY2, a base64 encoded STREAM of binary rows each with a null mask.
+ * The rows are encoded by {@link Binary2Encoder} directly from the typed
+ * column values.  This is typically several times smaller than TABLEDATA
+ * and much faster for clients to parse.
+ */
+public class VOTableRowSink implements RowSink {
+    /** Marks the point in the SAVOT document where the rows go. */
+    private static final String TABLEDATA = "<TABLEDATA>\n";
+    private static final String RESOURCE = "<RESOURCE>\n";
+    private static final String END_RESOURCE = "</RESOURCE>";
+    private static final String END_TABLEDATA = "</TABLEDATA>\n";
+
+    /** Table data serializations. */
+    public static final String TABLEDATA_SERIALIZATION = "tabledata";
+    public static final String BINARY2_SERIALIZATION = "binary2";
+
+    /** Base64 alphabet, and output line length. */
+    private static final char[] BASE64 =
+	"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+	.toCharArray();
+    private static final int B64LINE = 76;
+
+    /** Size of the output character buffer. */
+    private static final int BUFSIZE = 8192;
+
+    /** Output stream, and writer (in the platform encoding, as SAVOT). */
+    private OutputStream out;
+    private Writer writer;
+
+    /** Reusable output buffer. */
+    private char[] buf = new char[BUFSIZE];
+    private int nchars = 0;
+
+    /** Document text following the table rows. */
+    private String trailer;
+
+    /** Number of cells per table row. */
+    private int width = 0;
+
+    /** INFO values output in the VOTable header. */
+    private HashMap<String,String> headerInfos = new HashMap<String,String>();
+
+    /** Set for BINARY2 output, with the row encoder. */
+    private boolean binary2 = false;
+    private Binary2Encoder encoder;
+
+    /** Base64 encoder state: pending bytes, and current line length. */
+    private int b64bits = 0, b64count = 0, b64line = 0;
+
+    /**
+     * Create a new VOTable row sink, serializing the table data as
+     * TABLEDATA.
+     *
+     * @param	out	OutputStream to which the VOTable is written.
+     */
+    public VOTableRowSink(OutputStream out) {
+	this.out = out;
+    }
+
+    /**
+     * Create a new VOTable row sink with the given table data
+     * serialization.
+     *
+     * @param	out		OutputStream to which the VOTable is written.
+     * @param	serialization	"tabledata" or "binary2"; null for the
+     *				default (tabledata).
+     */
+    public VOTableRowSink(OutputStream out, String serialization)
+	throws DalServerException {
+
+	this.out = out;
+	if (serialization == null ||
+	    serialization.equalsIgnoreCase(TABLEDATA_SERIALIZATION))
+	    binary2 = false;
+	else if (serialization.equalsIgnoreCase(BINARY2_SERIALIZATION))
+	    binary2 = true;
+	else
+	    throw new DalServerException(
+		"unsupported VOTable serialization [" + serialization + "]");
+    }
+
+    /**
+     * Get the VOTable serialization requested by a RESPONSEFORMAT or
+     * FORMAT value, e.g., "votable;serialization=binary2" or
+     * "application/x-votable+xml;serialization=BINARY2".  The default is
+     * TABLEDATA.
+     *
+     * @param	format		The requested response format.
+     */
+    public static String getSerialization(String format) {
+	if (format == null)
+	    return (TABLEDATA_SERIALIZATION);
+
+	for (String option : format.split(";")) {
+	    String[] kv = option.split("=", 2);
+	    if (kv.length == 2 &&
+		kv[0].trim().equalsIgnoreCase("serialization"))
+		return (kv[1].trim().toLowerCase());
+	}
+
+	return (TABLEDATA_SERIALIZATION);
+    }
+
+    /** Output the VOTable header and table metadata. */
+    public void begin(RequestResponse response) throws DalServerException {
+	// Build the VOTable metadata, without any table rows.  BINARY2
+	// requires VOTable 1.3.
+
+	SavotVOTable vot = response.createSavotVOTable(false);
+	SavotResource res = (SavotResource) vot.getResources().getItemAt(0);
+	if (binary2) {
+	    vot.setVersion("1.3");
+	    vot.setXmlns("http://www.ivoa.net/xml/VOTable/v1.3");
+	    vot.setXmlnsxsi("http://www.w3.org/2001/XMLSchema-instance");
+
+	    // A character field with no arraysize is encoded as a variable
+	    // length string, so declare it as such.
+	    TableSet tables = res.getTables();
+	    for (int i=0;  tables != null && i < tables.getItemCount();  i++) {
+		FieldSet fields = ((SavotTable) tables.getItemAt(i)).getFields();
+		for (int j=0;  fields != null && j < fields.getItemCount();  j++) {
+		    SavotField f = (SavotField) fields.getItemAt(j);
+		    String size = f.getArraySize();
+		    if (FieldType.elementCount(f.getDataType(), size) < 0 &&
+			(size == null || size.length() == 0))
+			f.setArraySize("*");
+		}
+	    }
+	}
+
+	InfoSet infos = res.getInfos();
+	if (infos != null) {
+	    for (int i=0;  i < infos.getItemCount();  i++) {
+		SavotInfo info = (SavotInfo) infos.getItemAt(i);
+		headerInfos.put(info.getName(), infoValue(info));
+	    }
+	}
+
+	// Split the document where the table rows go.  If there is no
+	// table this is the end of the RESOURCE.
+
+	String doc = generate(vot);
+	String header;
+	int split = doc.indexOf(TABLEDATA);
+
+	if (split >= 0 && binary2) {
+	    // Replace the empty TABLEDATA by a BINARY2 STREAM.
+	    int end = doc.indexOf(END_TABLEDATA, split) + END_TABLEDATA.length();
+	    header = doc.substring(0, split) +
+		"<BINARY2>\n<STREAM encoding=\"base64\">\n";
+	    trailer = "</STREAM>\n</BINARY2>\n" + doc.substring(end);
+	    encoder = new Binary2Encoder(response.getRowFields());
+
+	} else {
+	    if (split >= 0)
+		split += TABLEDATA.length();
+	    else if ((split = doc.lastIndexOf(END_RESOURCE)) < 0)
+		split = doc.length();
+
+	    header = doc.substring(0, split);
+	    trailer = doc.substring(split);
+	}
+
+	width = response.getRowWidth();
+	writer = new OutputStreamWriter(out);
+	append(header);
+    }
+
+    /** Output the current table row. */
+    public void writeRow(RequestResponse response) throws DalServerException {
+	if (encoder != null) {
+	    encoder.encode(response);
+	    appendBase64(encoder.getBuffer(), encoder.length());
+	    return;
+	}
+
+	append("<TR>");
+
+	// An empty TD is output for any field which was not set.
+	for (int j=0;  j < width;  j++) {
+	    append("<TD>");
+	    String value = response.getCell(j);
+	    if (value != null)
+		appendEscaped(value);
+	    append("</TD>");
+	}
+
+	append("</TR>\n");
+    }
+
+    /** Complete the table, and output any trailing INFOs. */
+    public void end(RequestResponse response) throws DalServerException {
+	InfoSet trailerInfos = new InfoSet();
+	for (Iterator<?> i = response.infoIterator();  i.hasNext();  ) {
+	    Map.Entry<?,?> me = (Map.Entry<?,?>) i.next();
+	    TableInfo info = (TableInfo) me.getValue();
+	    String value = headerInfos.get(info.getName());
+
+	    if (value == null || !value.equals(infoValue(info)))
+		trailerInfos.addItem((Object) info);
+	}
+
+	// Complete the base64 STREAM.
+	if (encoder != null)
+	    endBase64();
+
+	String text = trailer;
+	int split = text.lastIndexOf(END_RESOURCE);
+	if (trailerInfos.getItemCount() > 0 && split >= 0) {
+	    text = text.substring(0, split) + formatInfos(trailerInfos) +
+		text.substring(split);
+	}
+
+	append(text);
+	flush();
+	try {
+	    writer.flush();
+	} catch (IOException ex) {
+	    throw new DalServerException(ex.getMessage());
+	}
+    }
+
+    /**
+     * Format a set of INFOs as SAVOT would output them within a RESOURCE.
+     */
+    private String formatInfos(InfoSet infos) throws DalServerException {
+	SavotVOTable vot = new SavotVOTable();
+	SavotResource res = new SavotResource();
+	res.init();
+	res.setInfos(infos);
+	vot.getResources().addItem((Object) res);
+
+	String doc = generate(vot);
+	int i1 = doc.indexOf(RESOURCE);
+	int i2 = doc.lastIndexOf(END_RESOURCE);
+	if (i1 < 0 || i2 < i1)
+	    return ("");
+
+	return (doc.substring(i1 + RESOURCE.length(), i2));
+    }
+
+    /** Serialize a SAVOT VOTable to a string. */
+    private String generate(SavotVOTable vot) {
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	new SavotWriter().generateDocument(vot, bos);
+	return (bos.toString());
+    }
+
+    /** Get the value and content of an INFO, for change detection. */
+    private String infoValue(SavotInfo info) {
+	return (info.getValue() + "|" + info.getContent());
+    }
+
+    /** Append a string to the output buffer. */
+    private void append(String s) throws DalServerException {
+	int len = s.length();
+	for (int off=0;  off < len;  ) {
+	    if (nchars == BUFSIZE)
+		flush();
+	    int n = Math.min(len - off, BUFSIZE - nchars);
+	    s.getChars(off, off + n, buf, nchars);
+	    nchars += n;
+	    off += n;
+	}
+    }
+
+    /**
+     * Append element content to the output buffer, escaping the same
+     * characters as SAVOT (&amp; &quot; &lt; &gt;).
+     */
+    private void appendEscaped(String s) throws DalServerException {
+	int len = s.length();
+	for (int i=0;  i < len;  i++) {
+	    char ch = s.charAt(i);
+	    switch (ch) {
+	    case '&':
+		append("&amp;");
+		break;
+	    case '"':
+		append("&quot;");
+		break;
+	    case '<':
+		append("&lt;");
+		break;
+	    case '>':
+		append("&gt;");
+		break;
+	    default:
+		if (nchars == BUFSIZE)
+		    flush();
+		buf[nchars++] = ch;
+	    }
+	}
+    }
+
+    /**
+     * Append bytes to the output buffer as base64, continuing the
+     * encoding from the previous call.  Lines are broken at 76 characters.
+     */
+    private void appendBase64(byte[] bytes, int nbytes)
+	throws DalServerException {
+
+	for (int i=0;  i < nbytes;  i++) {
+	    b64bits = (b64bits << 8) | (bytes[i] & 0xff);
+	    if (++b64count == 3) {
+		if (nchars + 5 > BUFSIZE)
+		    flush();
+		buf[nchars++] = BASE64[(b64bits >> 18) & 0x3f];
+		buf[nchars++] = BASE64[(b64bits >> 12) & 0x3f];
+		buf[nchars++] = BASE64[(b64bits >> 6) & 0x3f];
+		buf[nchars++] = BASE64[b64bits & 0x3f];
+		b64bits = b64count = 0;
+
+		if ((b64line += 4) >= B64LINE) {
+		    buf[nchars++] = '\n';
+		    b64line = 0;
+		}
+	    }
+	}
+    }
+
+    /** Output any remaining base64 data, with padding. */
+    private void endBase64() throws DalServerException {
+	if (b64count > 0) {
+	    int bits = b64bits << ((3 - b64count) * 8);
+	    append(new String(new char[] {
+		BASE64[(bits >> 18) & 0x3f],
+		BASE64[(bits >> 12) & 0x3f],
+		(b64count > 1) ? BASE64[(bits >> 6) & 0x3f] : '=',
+		'=' }));
+	    b64line += 4;
+	    b64bits = b64count = 0;
+	}
+	if (b64line > 0) {
+	    append("\n");
+	    b64line = 0;
+	}
+    }
+
+    /** Write the buffered output. */
+    private void flush() throws DalServerException {
+	try {
+	    writer.write(buf, 0, nchars);
+	    nchars = 0;
+	} catch (IOException ex) {
+	    throw new DalServerException(ex.getMessage());
+	}
+    }
+}
@@ -29,6 +29,11 @@ public abstract class DbCreateTable {
      */
     protected String tbl = null;
 
+    /**
+     * the name of the HEALPix spatial index column to add, or null
+     */
+    protected String hpxcol = null;
+
     /**
      * instantiate for a given table definition 
      * @param kwf      the KeywordFactory containing the definition of the 
@@ -40,6 +45,15 @@ public abstract class DbCreateTable {
         tbl = tblName;
     }
 
+    /**
+     * add an indexed column to the table to hold the HEALPix pixel index
+     * of the position of each row (see {@link DbLoadCSV#setHealpixCol}).
+     * @param colname  the name of the pixel index column
+     */
+    public void setHealpixCol(String colname) {
+        hpxcol = colname;
+    }
+
     /**
      * write the SQL script that will create the table
      */
@@ -71,10 +85,24 @@ public abstract class DbCreateTable {
             }
         }
 
+        if (hpxcol != null) {
+            out.println(",");
+            out.print(indent);
+            out.print(hpxcol + " " + healpixType());
+        }
+
         // write closing bit
         out.println();
         out.println(");");
         out.println();
+
+        if (hpxcol != null) {
+            out.print("CREATE INDEX ");
+            out.print(tbl.replace('.', '_') + "_" + hpxcol);
+            out.print(" ON " + tbl + " (" + hpxcol + ");");
+            out.println();
+            out.println();
+        }
         out.flush();
     }
 
@@ -93,6 +121,12 @@ public abstract class DbCreateTable {
      */
     public abstract String dbTypeFor(TableParam param);
 
+    /**
+     * return the database type for the HEALPix pixel index column, a 
+     * 64-bit integer.
+     */
+    public String healpixType() { return "BIGINT"; }
+
     /**
      * write the table creation script to a named file
      */
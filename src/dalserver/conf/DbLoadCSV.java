@@ -1,12 +1,12 @@
 package dalserver.conf;
 
+import dalserver.CoordParser;
+import dalserver.Healpix;
 import dalserver.KeywordFactory;
 import dalserver.TableParam;
 
 import java.util.HashSet;
 import java.util.TreeSet;
-import java.util.StringTokenizer;
-import java.util.NoSuchElementException;
 import java.util.Iterator;
 import java.util.regex.Pattern;
 import java.io.File;
@@ -42,6 +42,8 @@ public class DbLoadCSV {
     HashSet<String> hms = new HashSet<String>();
     HashSet<String> dms = new HashSet<String>();
     HashSet<String> noq = new HashSet<String>();
+    String hpxcol = null;
+    int hpxorder = Healpix.DEFAULT_ORDER;
 
     /**
      * ready to write into a given table
@@ -107,36 +109,26 @@ public class DbLoadCSV {
         dms.add(colname);
     }
 
+    /**
+     * add a column containing the HEALPix (NESTED) pixel index of the 
+     * position of each row, for use as a spatial index by cone search.  
+     * The position is taken from the first of the RA (HMS) and Dec (DMS) 
+     * columns present in the CSV data.  
+     * @param colname  the name of the pixel index column to add
+     * @param order    the HEALPix order (resolution) of the index
+     */
+    public void setHealpixCol(String colname, int order) {
+        hpxcol = colname;
+        hpxorder = order;
+    }
+
     /**
      * Convert a coordinate value in various formats into a floating
-     * point value.  Both sexagesimal and decimal formats are permitted.
+     * point value.  Both sexagesimal and decimal formats are permitted
+     * (see {@link CoordParser}).
      */
     public double parseDMS(String hms) {
-	boolean negative = false;
-	String str = hms.trim();
-	if (str.startsWith("-")) {
-	    str = str.substring(1);
-	    negative = true;
-	}
-
-	StringTokenizer tok = new StringTokenizer(str);
-	double value = 0;
-
-	for (int i=0;  i < 3;  i++) {
-	    try {
-		String token = tok.nextToken(" :");
-		if (i == 0)
-		    value = new Float(token);
-		else
-		    value += (new Float(token) / 60.0);
-	    } catch (NoSuchElementException ex) {
-		continue;
-	    } catch (NullPointerException ex) {
-		continue;
-	    }
-	}
-
-	return (negative ? -value : value);
+	return (CoordParser.parse(hms));
     }
 
     String DMS2deg(String val) {
@@ -181,16 +173,40 @@ public class DbLoadCSV {
                 noqcol.add(i);
         }
 
+        // the position used for the HEALPix index column
+        int racol = -1, deccol = -1;
+        if (hpxcol != null) {
+            if (hmscol.isEmpty() || dmscol.isEmpty())
+                throw new IllegalStateException(
+                    "No RA/Dec columns found for HEALPix column "+hpxcol);
+            racol = hmscol.first();
+            deccol = dmscol.first();
+            cols = cols + ", " + hpxcol;
+        }
+
         String line = null;
         Pattern seg = Pattern.compile(".*[ :].*");
+        int row = 0;
         while ((line = csvin.readLine()) != null) {
+            row++;
             vals = line.split(",");
+            double ra = Double.NaN, dec = Double.NaN;
             for(i=0; i < vals.length; i++) {
                 if (hmscol.contains(i) && seg.matcher(vals[i]).matches())
                     vals[i] = HMS2deg(vals[i]);
                 else if (dmscol.contains(i) && seg.matcher(vals[i]).matches())
                     vals[i] = DMS2deg(vals[i]);
 
+                if (i == racol || i == deccol) {
+                    try {
+                        double val = Double.parseDouble(vals[i].trim());
+                        if (i == racol) 
+                            ra = val;
+                        else
+                            dec = val;
+                    } catch (NumberFormatException ex) { }
+                }
+
                 if (! noqcol.contains(i)) {
                     vals[i] = vals[i].replaceAll("'", "\\\\'");
                     vals[i] = "'"+vals[i]+"'";
@@ -198,6 +214,16 @@ public class DbLoadCSV {
             }
             line = strJoin(vals,",");
 
+            // the pixel index, once both RA and Dec have been read, in 
+            // whichever order they appear; a row which cannot be indexed 
+            // would never be found by a cone search
+            if (hpxcol != null) {
+                if (Double.isNaN(ra) || Double.isNaN(dec))
+                    throw new IllegalStateException("row " + row + 
+                        ": no valid RA/Dec for HEALPix column " + hpxcol);
+                line = line + "," + Healpix.ang2pix(hpxorder, ra, dec);
+            }
+
             out.print("INSERT INTO ");
             out.print(tbl);
             out.println(" (");
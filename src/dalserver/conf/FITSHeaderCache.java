@@ -0,0 +1,231 @@
+package dalserver.conf;
+
+import dalserver.conf.image.CoordSys;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * a shared, bounded cache of the parsed FITS headers of archival files.
+ * The same popular images and spectra are read many times, e.g. once per
+ * cutout planned by an SIA service, and by the ingest plugins; the cache
+ * saves re-opening and re-parsing their headers each time.
+ *
+ * Entries are keyed on the canonical path of the file, and are valid only
+ * while the size and modification time of the file are unchanged, so a
+ * file which is replaced or rewritten is re-read.  An entry holds the 
+ * headers of all HDUs of the file (see 
+ * {@link NTFITSHeaderKeywords#loadHeaders(File)}), and the coordinate 
+ * system ({@link CoordSys}) of each HDU once it has been requested.  The 
+ * cache has a memory budget, estimated from the number of header cards, 
+ * and the least recently used entries are evicted to stay within it.
+ *
+ * The budget defaults to 32 MB, and may be set with the system property
+ * "dalserver.headerCacheSize" (bytes), or by {@link #setMaxSize(long)};
+ * a budget of zero disables caching.  Cached headers are shared and must
+ * not be modified.
+ */
+public class FITSHeaderCache {
+
+    /** the default memory budget, bytes */
+    public static final long DEFAULT_MAX_SIZE = 32L * 1024 * 1024;
+
+    /** estimated memory use of a parsed header card, bytes */
+    static final int CARD_SIZE = 400;
+
+    /** estimated memory use of a CoordSys, bytes */
+    static final int WCS_SIZE = 4096;
+
+    private static long maxSize =
+        Long.getLong("dalserver.headerCacheSize", DEFAULT_MAX_SIZE);
+    private static long size = 0;
+    private static long hits = 0, misses = 0;
+
+    private static final LinkedHashMap<String, Entry> cache =
+        new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    /**
+     * the cached headers of a file, with their coordinate systems
+     */
+    static class Entry {
+        String key;
+        long length, mtime;
+        Cached kws;
+        long size;
+
+        Entry(String key, long length, long mtime, Cached kws) {
+            this.key = key;
+            this.length = length;
+            this.mtime = mtime;
+            this.kws = kws;
+            this.size = 512;
+            for(int i=0; i < kws.getHDUCount(); i++)
+                this.size += CARD_SIZE * kws.getHeader(i).getNumberOfCards();
+        }
+    }
+
+    /**
+     * cached headers, which remember the coordinate system of each HDU
+     */
+    static class Cached extends NTFITSHeaderKeywords {
+        CoordSys[] wcs = null;
+        Entry entry = null;
+    }
+
+    private FITSHeaderCache() { }
+
+    /**
+     * return the headers of all HDUs of a FITS file, from the cache if
+     * the file is unchanged since it was cached.
+     * @param fitsfile   the FITS file
+     * @throws FileNotFoundException  if the file does not exist
+     * @throws IOException  if there was trouble reading or parsing the FITS file
+     */
+    public static NTFITSHeaderKeywords getHeaders(File fitsfile)
+        throws IOException, FileNotFoundException
+    {
+        if (! fitsfile.exists())
+            throw new FileNotFoundException(fitsfile.toString());
+
+        String key = fitsfile.getCanonicalPath();
+        long length = fitsfile.length();
+        long mtime = fitsfile.lastModified();
+
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.length == length && 
+                entry.mtime == mtime) {
+                hits++;
+                return entry.kws;
+            }
+            misses++;
+        }
+
+        // Read outside the lock; concurrent misses on the same file may
+        // both read it, and the last one is kept.
+        Cached kws = new Cached();
+        NTFITSHeaderKeywords hdrs = NTFITSHeaderKeywords.loadHeaders(fitsfile);
+        for(int i=0; i < hdrs.getHDUCount(); i++)
+            kws.addHeader(hdrs.getHeader(i));
+        kws.wcs = new CoordSys[kws.getHDUCount()];
+
+        Entry entry = new Entry(key, length, mtime, kws);
+        kws.entry = entry;
+        synchronized (cache) {
+            Entry old = cache.remove(key);
+            if (old != null) size -= old.size;
+            if (entry.size <= maxSize) {
+                cache.put(key, entry);
+                size += entry.size;
+                trim();
+            }
+        }
+        return kws;
+    }
+
+    /**
+     * return the coordinate system of an HDU.  If the headers were
+     * obtained from the cache the coordinate system is created once and
+     * then shared, otherwise a new one is created.
+     * @param kws        the FITS headers
+     * @param hduIndex   the index of the desired HDU
+     */
+    public static CoordSys getCoordSys(FITSHeaderKeywords kws, int hduIndex)
+        throws DataFormatException
+    {
+        if (! (kws instanceof Cached) || hduIndex < 0 ||
+            hduIndex >= kws.getHDUCount())
+            return new CoordSys(kws, hduIndex);
+
+        Cached ckws = (Cached) kws;
+        synchronized (ckws) {
+            if (ckws.wcs[hduIndex] != null)
+                return ckws.wcs[hduIndex];
+        }
+
+        CoordSys wcs = new CoordSys(kws, hduIndex);
+        synchronized (ckws) {
+            if (ckws.wcs[hduIndex] == null) {
+                ckws.wcs[hduIndex] = wcs;
+                synchronized (cache) {
+                    // account for the WCS if the entry is still cached
+                    if (cache.get(ckws.entry.key) == ckws.entry) {
+                        ckws.entry.size += WCS_SIZE;
+                        size += WCS_SIZE;
+                        trim();
+                    }
+                }
+            }
+            return ckws.wcs[hduIndex];
+        }
+    }
+
+    /**
+     * set the memory budget of the cache, evicting entries as necessary.
+     * @param bytes   the budget in bytes; zero disables caching
+     */
+    public static void setMaxSize(long bytes) {
+        synchronized (cache) {
+            maxSize = Math.max(0, bytes);
+            trim();
+        }
+    }
+
+    /**
+     * return the memory budget of the cache, bytes
+     */
+    public static long getMaxSize() {
+        synchronized (cache) { return maxSize; }
+    }
+
+    /**
+     * return the estimated memory use of the cached entries, bytes
+     */
+    public static long getSize() {
+        synchronized (cache) { return size; }
+    }
+
+    /**
+     * return the number of cached files
+     */
+    public static int getCount() {
+        synchronized (cache) { return cache.size(); }
+    }
+
+    /**
+     * return the number of requests served from the cache
+     */
+    public static long getHits() {
+        synchronized (cache) { return hits; }
+    }
+
+    /**
+     * return the number of requests which had to read the file
+     */
+    public static long getMisses() {
+        synchronized (cache) { return misses; }
+    }
+
+    /**
+     * remove all entries from the cache
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+            size = 0;
+        }
+    }
+
+    /* evict least recently used entries until within budget */
+    private static void trim() {
+        Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+}
@@ -62,11 +62,11 @@ public class MetadataExtractor {
 	LinkedHashMap<String, String> headerVals = new LinkedHashMap<String, String>();
 	try {
 	    // Read the FITS headers
-    	    Fits fits = new Fits(filename);
+	    NTFITSHeaderKeywords kws = FITSHeaderCache.getHeaders(new File(filename));
 	    int hduCount = 0;
-	    for (BasicHDU hdu : fits.read()) {
+	    for (int i=0; i < kws.getHDUCount(); i++) {
 		// Use HDU number to select correct keyword...
-		for (Iterator iter = hdu.getHeader().iterator(); iter.hasNext();) {
+		for (Iterator iter = kws.getHeader(i).iterator(); iter.hasNext();) {
 		    HeaderCard card = (HeaderCard) iter.next();
 		    String key = card.getKey();
 		    // Enumerate duplicate keywords 
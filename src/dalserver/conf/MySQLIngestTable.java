@@ -1,5 +1,6 @@
 package dalserver.conf;
 
+import dalserver.Healpix;
 import dalserver.KeywordFactory;
 
 import java.util.List;
@@ -49,6 +50,16 @@ public class MySQLIngestTable {
      */
     protected String tbl = null;
 
+    /**
+     * the name of the HEALPix spatial index column to add, or null
+     */
+    protected String hpxcol = null;
+
+    /**
+     * the HEALPix order of the spatial index column
+     */
+    protected int hpxorder = Healpix.DEFAULT_ORDER;
+
     boolean tablecreated = false;
     ArrayList<String> emsgs = null;
 
@@ -81,6 +92,16 @@ public class MySQLIngestTable {
         this.host = host;
     }
 
+    /**
+     * add a HEALPix pixel index column to the table, computed from the
+     * RA and Dec of each row as it is loaded, for use as a spatial index 
+     * by the cone search service (healpixColumn, healpixOrder).
+     */
+    public void setHealpixCol(String colname, int order) {
+        hpxcol = colname;
+        hpxorder = order;
+    }
+
     /**
      * create the (empty) data table based on the information in the 
      * given table description
@@ -107,6 +128,8 @@ public class MySQLIngestTable {
         */
 
         DbCreateTable crtr = new MySQLCreateTable(kwf, tbl);
+        if (hpxcol != null) 
+            crtr.setHealpixCol(hpxcol);
 
         Process proc = startDbClient();
         Writer w = new OutputStreamWriter(proc.getOutputStream());
@@ -191,6 +214,8 @@ public class MySQLIngestTable {
         ldr.addHMSCol("RA");
         ldr.addDMSCol("Dec");
         ldr.addDMSCol("Decl");
+        if (hpxcol != null) 
+            ldr.setHealpixCol(hpxcol, hpxorder);
 
         Process proc = startDbClient();
         Writer w = new OutputStreamWriter(proc.getOutputStream());
@@ -316,6 +341,12 @@ public class MySQLIngestTable {
 
         MySQLIngestTable ingester = new MySQLIngestTable(args[0], args[1],
                                                          user, pass, host);
+        // optional HEALPix spatial index column, e.g. -DhealpixColumn=hpx
+        String hpxcol = System.getProperty("healpixColumn");
+        if (hpxcol != null) 
+            ingester.setHealpixCol(hpxcol, Integer.getInteger("healpixOrder", 
+                                                   Healpix.DEFAULT_ORDER));
+
         File coldesc = new File(args[2]);
         if (! coldesc.exists()) 
             fail("File not found: " + args[2], 2);
@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.io.IOException;
 
 import nom.tam.fits.*;
+import nom.tam.util.ArrayDataInput;
 import nom.tam.util.BufferedDataInputStream;
 
 /**
@@ -70,12 +71,65 @@ public class NTFITSHeaderKeywords extends FITSHeaderKeywords {
         }
     }
 
+    /**
+     * load the headers of all HDUs from a FITS file, without reading the 
+     * data.  The data units are skipped over, so that only the header 
+     * blocks of the file are read.
+     * @throws FileNotFoundException  if the file does not exist
+     * @throws IOException  if there was trouble reading or parsing the FITS file
+     */
+    public static NTFITSHeaderKeywords loadHeaders(File fitsfile) 
+        throws IOException, FileNotFoundException
+    {
+        if (! fitsfile.exists())
+            throw new FileNotFoundException(fitsfile.toString());
+
+        NTFITSHeaderKeywords hdrs = new NTFITSHeaderKeywords();
+        ArrayDataInput in = null;
+        try {
+            in = new Fits(fitsfile).getStream();
+
+            // a file seek past the end does not fail, so the data units 
+            // of an uncompressed file are checked against its length; a 
+            // compressed stream is read through, and is short if truncated
+            boolean compressed = FitsUtil.isCompressed(fitsfile);
+            long length = fitsfile.length(), pos = 0;
+            Header hdr = null;
+            while ((hdr = Header.readHeader(in)) != null) {
+                long size = hdr.getDataSize();
+                pos += hdr.getSize() + size;
+                long skipped = in.skipBytes(size);
+                if ((compressed) ? skipped < size : pos > length)
+                    throw new TruncatedFileException("HDU " + 
+                        hdrs.getHDUCount() + " data unit is incomplete");
+                hdrs.addHeader(hdr);
+            }
+        }
+        catch (FitsException ex) {
+            throw new IOException("Trouble reading FITS file, " + fitsfile +
+                                  ": "+ex.getMessage(), ex);
+        }
+        finally {
+            if (in != null) in.close();
+        }
+        return hdrs;
+    }
+
     /**
      * add an HDU Header
      * @param hdr   the HDU header to add.
      */
     public void addHeader(Header hdr) {  data.add(hdr); }
 
+    /**
+     * return the Header of an HDU, or null if there is no such HDU
+     * @param hduIndex   the index of the HDU, where 0 is the primary HDU
+     */
+    public Header getHeader(int hduIndex) {
+        if (hduIndex >= data.size()) return null;
+        return data.get(hduIndex);
+    }
+
     /**
      * return the number of HDUs this container had header values for
      */
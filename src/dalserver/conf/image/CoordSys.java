@@ -28,6 +28,10 @@ import java.io.PrintStream;
  * the mapping between pixel and world coordinates, implementing the 
  * mathematical models laid out in Papers I and II of the FITS WCS standard.
  * Interpretation of the actual FITS keywords is handled by this class.  
+ *
+ * A CoordSys may be shared between threads (see 
+ * {@link dalserver.conf.FITSHeaderCache}); the transformations are 
+ * synchronized.
  */
 public class CoordSys {
 
@@ -92,7 +96,7 @@ public class CoordSys {
      *                length must be the same as vox; null is returned if 
      *                the transformation is undefined for the given pixel.
      */
-    public double[] getCoordPos(double[] vox) {
+    public synchronized double[] getCoordPos(double[] vox) {
         try {
             return _cs.getCoordValue(vox);
         }
@@ -108,6 +112,28 @@ public class CoordSys {
         }
     }
 
+    /**
+     * return the pixel coordinate of a given world position; this is the
+     * inverse of {@link getCoordPos(double[])}.
+     * @param pos   the world coordinate position of interest given as an
+     *                array of doubles whose length must be equal to the
+     *                value returned by {@link getNaxes()}.
+     * @return double[]  the corresponding (1-based) pixel coordinate whose
+     *                length must be the same as pos; null is returned if
+     *                the transformation is undefined for the given position.
+     */
+    public synchronized double[] getDataPos(double[] pos) {
+        try {
+            return _cs.getDataLocation(pos);
+        }
+        catch (PositionBeyondDomainException ex) {
+            return null;
+        }
+        catch (TransformUndefinedException ex) {
+            return null;
+        }
+    }
+
     FITSCoordMetadata createCoordMetadata(FITSHeaderKeywords fhk, int hduIndex) {
         FITSCoordMetadata md = new FITSCoordMetadata();
 
@@ -1,5 +1,6 @@
 package dalserver.conf.image;
 
+import dalserver.conf.FITSHeaderCache;
 import dalserver.conf.FITSHeaderKeywords;
 import dalserver.conf.NTFITSHeaderKeywords;
 import dalserver.conf.DataFormatException;
@@ -76,12 +77,13 @@ public class ImageHeaderUtils {
     }
 
     /**
-     * wrap the FITS headers from a given file
+     * wrap the FITS headers from a given file.  The headers are obtained 
+     * from the shared {@link FITSHeaderCache}.
      */
     public static ImageHeaderUtils loadFromFile(File fitsfile) 
         throws IOException, FileNotFoundException
     {
-        return new ImageHeaderUtils(NTFITSHeaderKeywords.load(fitsfile));
+        return new ImageHeaderUtils(FITSHeaderCache.getHeaders(fitsfile));
     }
 
     /**
@@ -289,7 +291,7 @@ public class ImageHeaderUtils {
      * return a coordinate system for the given HDU
      */
     public CoordSys getCoordSys(int hduIndex) throws DataFormatException {
-        return new CoordSys(kws, hduIndex);
+        return FITSHeaderCache.getCoordSys(kws, hduIndex);
     }
 
     /**
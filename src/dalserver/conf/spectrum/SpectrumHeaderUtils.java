@@ -1,5 +1,6 @@
 package dalserver.conf.spectrum;
 
+import dalserver.conf.FITSHeaderCache;
 import dalserver.conf.FITSHeaderKeywords;
 import dalserver.conf.NTFITSHeaderKeywords;
 import dalserver.conf.DataFormatException;
@@ -27,12 +28,13 @@ public class SpectrumHeaderUtils extends ImageHeaderUtils {
     }
 
     /**
-     * wrap the FITS headers from a given file
+     * wrap the FITS headers from a given file.  The headers are obtained 
+     * from the shared {@link FITSHeaderCache}.
      */
     public static SpectrumHeaderUtils loadFromFile(File fitsfile) 
         throws IOException, FileNotFoundException
     {
-        return new SpectrumHeaderUtils(NTFITSHeaderKeywords.load(fitsfile));
+        return new SpectrumHeaderUtils(FITSHeaderCache.getHeaders(fitsfile));
     }
 
     /**
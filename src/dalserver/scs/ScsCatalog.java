@@ -0,0 +1,921 @@
+/*
+ * ScsCatalog.java
+ * $ID*
+ */
+
+package dalserver.scs;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import dalserver.*;
+
+/**
+ * A resident (in-memory) catalog for a cone search service.  Small and
+ * medium sized catalogs (up to some millions of rows) may be loaded into
+ * memory when the service is initialized, and cone searches are then
+ * answered directly from memory without a DBMS query.
+ *
+ * <p>The catalog is loaded either from the service DBMS table, or from a
+ * CSV file with a header line giving the column names.  Each column is
+ * stored as a primitive array (long, double, or String for other data
+ * types), with RA and DEC converted to decimal degrees once when the
+ * catalog is loaded.  The rows are sorted by their NESTED HEALPix pixel
+ * index, so that a cone maps to a few contiguous ranges of rows, which
+ * are located by binary search and then refined by an exact distance test.
+ *
+ * <p>The catalog is configured by the following service parameters, in
+ * addition to those used by {@link ScsQuery}:
+ *
+ * <pre>
+ *   residentCatalog	Load the catalog into memory [false]
+ *   catalogFile		CSV file to load, rather than the DBMS table;
+ *				relative to configDir if not an absolute path
+ *   catalogRefresh	Interval at which the catalog is reloaded, sec [0]
+ * </pre>
+ *
+ * A catalog is registered for each service (keyed by the serviceName) the
+ * first time it is referenced, normally when the servlet is initialized,
+ * and is discarded when the servlet is destroyed, e.g., when the
+ * configuration is reloaded.  A refresh loads a complete new copy of the
+ * catalog, which replaces the old one atomically; queries in progress
+ * complete using the old copy.  If a refresh fails the old copy is kept.
+ */
+public class ScsCatalog {
+    private static final Logger log = Logger.getLogger(ScsCatalog.class);
+
+    /** HEALPix order of the catalog spatial index. */
+    public static final int INDEX_ORDER = Healpix.DEFAULT_ORDER;
+
+    /** Column storage types. */
+    private static final int LONG = 0;
+    private static final int DOUBLE = 1;
+    private static final int STRING = 2;
+
+    /** Registry of resident catalogs, keyed by serviceName. */
+    private static final Map<String,ScsCatalog> catalogs =
+	new HashMap<String,ScsCatalog>();
+
+    /** Catalogs currently being loaded, keyed by serviceName. */
+    private static final ConcurrentHashMap<String,FutureTask<ScsCatalog>>
+	loading = new ConcurrentHashMap<String,FutureTask<ScsCatalog>>();
+
+    /** Shared scheduler for periodic catalog refresh. */
+    private static ScheduledExecutorService scheduler = null;
+
+    /** Catalog identity and configuration. */
+    private String name;
+    private ParamSet params;
+
+    /** The current copy of the catalog. */
+    private volatile Table table;
+
+    /** Periodic refresh task, if any. */
+    private ScheduledFuture<?> refreshTask = null;
+
+
+    /**
+     * A loaded copy of the catalog.  This is immutable once loaded.
+     */
+    private static class Table {
+	String[] names;
+	int[] types;
+	Object[] columns;
+	BitSet[] nulls;
+	long[] pix;
+	int nrows;
+	int raCol, decCol, idCol;
+	long loadTime;
+
+	/** Get the value of a numeric column as a double. */
+	double getDouble(int col, int row) {
+	    if (types[col] == LONG)
+		return (((long[]) columns[col])[row]);
+	    return (((double[]) columns[col])[row]);
+	}
+    }
+
+    /**
+     * A growable primitive column used while loading the catalog.
+     */
+    private static class Column {
+	int type;
+	long[] lval;
+	double[] dval;
+	String[] sval;
+	BitSet nulls = new BitSet();
+	int size = 0;
+
+	Column(int type) {
+	    this(type, 1024);
+	}
+
+	Column(int type, int capacity) {
+	    this.type = type;
+	    capacity = Math.max(1, capacity);
+	    if (type == LONG)
+		lval = new long[capacity];
+	    else if (type == DOUBLE)
+		dval = new double[capacity];
+	    else
+		sval = new String[capacity];
+	}
+
+	void grow() {
+	    int n = size * 2;
+	    if (type == LONG)
+		lval = Arrays.copyOf(lval, n);
+	    else if (type == DOUBLE)
+		dval = Arrays.copyOf(dval, n);
+	    else
+		sval = Arrays.copyOf(sval, n);
+	}
+
+	void addLong(long v, boolean isNull) {
+	    if (size == lval.length)
+		grow();
+	    if (isNull)
+		nulls.set(size);
+	    lval[size++] = v;
+	}
+
+	void addDouble(double v) {
+	    if (size == dval.length)
+		grow();
+	    dval[size++] = v;
+	}
+
+	void addString(String v) {
+	    if (size == sval.length)
+		grow();
+	    sval[size++] = v;
+	}
+
+	/** Return the column data in row order, trimmed to size. */
+	Object data(int[] order) {
+	    int n = order.length;
+	    if (type == LONG) {
+		long[] v = new long[n];
+		for (int i=0;  i < n;  i++)
+		    v[i] = lval[order[i]];
+		return (v);
+	    } else if (type == DOUBLE) {
+		double[] v = new double[n];
+		for (int i=0;  i < n;  i++)
+		    v[i] = dval[order[i]];
+		return (v);
+	    } else {
+		String[] v = new String[n];
+		for (int i=0;  i < n;  i++)
+		    v[i] = sval[order[i]];
+		return (v);
+	    }
+	}
+
+	/** Return the null flags in row order, or null if none. */
+	BitSet nulls(int[] order) {
+	    if (nulls.isEmpty())
+		return (null);
+	    BitSet b = new BitSet(order.length);
+	    for (int i=0;  i < order.length;  i++)
+		if (nulls.get(order[i]))
+		    b.set(i);
+	    return (b);
+	}
+    }
+
+
+    // -------- Catalog Registry -----------
+
+    /**
+     * Test whether a service is configured to use a resident catalog.
+     *
+     * @param	params		Service parameter set
+     */
+    public static boolean isResident(ParamSet params) {
+	String value = params.getValue("residentCatalog");
+	return (value != null && (value.equalsIgnoreCase("true") ||
+	    value.equalsIgnoreCase("yes")));
+    }
+
+    /**
+     * Get the resident catalog for a service, loading it if necessary.
+     * Null is returned if the service does not use a resident catalog.
+     * The catalog is loaded outside the registry lock, so that a slow
+     * load does not delay other services; concurrent requests for the
+     * same catalog wait for a single load.
+     *
+     * @param	params		Service parameter set
+     */
+    public static ScsCatalog getCatalog(final ParamSet params)
+	throws DalServerException {
+
+	if (!isResident(params))
+	    return (null);
+
+	final String name = params.getValue("serviceName");
+
+	// Get the interval for periodic reloading of the catalog, if any.
+	long interval = 0;
+	String value = params.getValue("catalogRefresh");
+	if (value != null && value.trim().length() > 0) {
+	    try {
+		interval = Long.parseLong(value.trim());
+	    } catch (NumberFormatException ex) {
+		throw new DalServerException("invalid catalogRefresh " + value);
+	    }
+	}
+
+	synchronized (catalogs) {
+	    ScsCatalog catalog = catalogs.get(name);
+	    if (catalog != null)
+		return (catalog);
+	}
+
+	final long refresh = interval;
+	FutureTask<ScsCatalog> task = new FutureTask<ScsCatalog>(
+	    new Callable<ScsCatalog>() {
+		public ScsCatalog call() throws Exception {
+		    ScsCatalog catalog = new ScsCatalog(name, params);
+		    catalog.refresh();
+		    synchronized (catalogs) {
+			catalogs.put(name, catalog);
+		    }
+		    if (refresh > 0)
+			catalog.schedule(refresh);
+		    return (catalog);
+		}
+	    });
+
+	FutureTask<ScsCatalog> current = loading.putIfAbsent(name, task);
+	if (current == null) {
+	    try {
+		// Another request may have completed the load meanwhile.
+		synchronized (catalogs) {
+		    ScsCatalog catalog = catalogs.get(name);
+		    if (catalog != null)
+			return (catalog);
+		}
+		task.run();
+	    } finally {
+		loading.remove(name, task);
+	    }
+	    current = task;
+	}
+
+	try {
+	    return (current.get());
+	} catch (ExecutionException ex) {
+	    Throwable cause = ex.getCause();
+	    if (cause instanceof DalServerException)
+		throw (DalServerException) cause;
+	    throw new DalServerException("resident catalog " + name +
+		": load failed: " + cause.getMessage());
+	} catch (InterruptedException ex) {
+	    throw new DalServerException("resident catalog " + name +
+		": load interrupted");
+	}
+    }
+
+    /**
+     * Discard the resident catalog for the named service, if any.
+     *
+     * @param	name		Service name
+     */
+    public static void closeCatalog(String name) {
+	ScsCatalog catalog;
+
+	synchronized (catalogs) {
+	    catalog = catalogs.remove(name);
+	}
+	if (catalog != null)
+	    catalog.close();
+    }
+
+
+    // -------- Catalog Instance -----------
+
+    /**
+     * Create a resident catalog instance.  The catalog is not loaded
+     * until {@link #refresh} is called.
+     *
+     * @param	name		Service name
+     * @param	params		Service parameter set
+     */
+    public ScsCatalog(String name, ParamSet params) {
+	this.name = name;
+	this.params = params;
+    }
+
+    /** Get the service name. */
+    public String getName() {
+	return (name);
+    }
+
+    /** Get the number of rows in the current copy of the catalog. */
+    public int size() {
+	Table t = table;
+	return (t == null ? 0 : t.nrows);
+    }
+
+    /**
+     * Load a new copy of the catalog, replacing the current copy once
+     * the load is complete.
+     */
+    public void refresh() throws DalServerException {
+	long start = System.currentTimeMillis();
+	String catalogFile = params.getValue("catalogFile");
+	Table t;
+
+	if (catalogFile != null && catalogFile.trim().length() > 0)
+	    t = loadFile(catalogFile.trim());
+	else
+	    t = loadDbms();
+
+	table = t;
+	log.info("resident catalog " + name + ": " + t.nrows + " rows loaded" +
+	    " in " + (t.loadTime - start) + " msec");
+    }
+
+    /** Schedule periodic refresh of the catalog. */
+    private void schedule(long interval) {
+	synchronized (ScsCatalog.class) {
+	    if (scheduler == null) {
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+		    new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+			    Thread thread = new Thread(r, "ScsCatalog-refresh");
+			    thread.setDaemon(true);
+			    return (thread);
+			}
+		    });
+	    }
+	}
+
+	refreshTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+	    public void run() {
+		try {
+		    refresh();
+		} catch (Exception ex) {
+		    log.error("resident catalog " + name +
+			": refresh failed: " + ex.getMessage());
+		}
+	    }
+	}, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /** Stop any refresh and release the catalog. */
+    private void close() {
+	if (refreshTask != null)
+	    refreshTask.cancel(false);
+	refreshTask = null;
+	table = null;
+    }
+
+    /**
+     * Perform a cone search on the catalog, writing the matching rows
+     * to the request response object.
+     *
+     * @param	params		The SCS service input parameters.
+     *
+     * @param	response	The request response object.
+     */
+    public void query(ScsParamSet params, RequestResponse response)
+	throws DalServerException, DalOverflowException {
+
+	Table t = table;
+	if (t == null)
+	    throw new DalServerException("resident catalog not loaded");
+
+	double ra, dec, sr;
+	Param p;
+
+	// The following parameters are mandatory, except for a multi-position
+	// query, where SR is the default radius for each target.
+	ScsTargetList targets = params.getTargets();
+	ra = dec = 0.0;
+
+	if (targets == null) {
+	    if ((p = params.getParam("RA")) == null || !p.isSet())
+		throw new DalServerException("Param RA not specified");
+	    else
+		ra = p.doubleValue();
+
+	    if ((p = params.getParam("DEC")) == null || !p.isSet())
+		throw new DalServerException("Param DEC not specified");
+	    else
+		dec = p.doubleValue();
+	}
+
+	if ((p = params.getParam("SR")) != null && p.isSet())
+	    sr = p.doubleValue();
+	else if (targets != null)
+	    sr = Double.NaN;
+	else
+	    throw new DalServerException("Param SR not specified");
+
+	boolean metadataQuery = (Math.abs(sr - 0.0) < 0.000001);
+
+	p = params.getParam("maxrec");
+	if (p != null && p.isSet())
+	    response.setMaxrec(p.intValue());
+
+	// Define the fields of the output table.  As for a DBMS query
+	// the optional ConfigTable may be used to customize the output.
+
+	String tableName = params.getValue("tableName");
+	ConfigTable conf = new ConfigTable(params, null);
+	String[] keys = new String[t.names.length];
+
+	for (int i=0;  i < t.names.length;  i++) {
+	    TableField field = new TableField();
+	    String colName = t.names[i];
+
+	    field.setId(colName);
+	    field.setName(colName);
+	    if (i == t.idCol)
+		field.setUcd("ID_MAIN");
+	    else if (i == t.raCol)
+		field.setUcd("POS_EQ_RA_MAIN");
+	    else if (i == t.decCol)
+		field.setUcd("POS_EQ_DEC_MAIN");
+
+	    if (t.types[i] == LONG)
+		field.setDataType("long");
+	    else if (t.types[i] == DOUBLE)
+		field.setDataType("double");
+	    else {
+		field.setDataType("char");
+		field.setArraySize("*");
+	    }
+
+	    field.setUtype(tableName + "." + colName);
+	    field.setIndex(i);
+	    conf.addField(response, field);
+
+	    if (response.getField(colName) != null)
+		keys[i] = colName;
+	}
+
+	if (targets != null)
+	    ScsTargetList.addFields(response);
+
+	if (metadataQuery)
+	    return;
+
+	// A multi-position query is a cone search for each target in turn.
+	if (targets != null) {
+	    for (int i=0;  i < targets.size();  i++) {
+		double t_sr = targets.getSr(i, sr);
+		if (Double.isNaN(t_sr))
+		    throw new DalServerException("Param SR not specified");
+		cone(t, keys, response, targets.getRa(i), targets.getDec(i),
+		    t_sr, i);
+	    }
+	} else
+	    cone(t, keys, response, ra, dec, sr, -1);
+    }
+
+    /**
+     * Output the rows of the catalog within a cone.
+     *
+     * @param	keys		Output field keys, indexed by column
+     * @param	target		Index of the target of a multi-position
+     *				query, or -1 for a single cone
+     */
+    private void cone(Table t, String[] keys, RequestResponse response,
+	double ra, double dec, double sr, int target)
+	throws DalServerException, DalOverflowException {
+
+	RequestTimer timer = response.getTimer();
+	boolean allsky = (Math.abs(sr - 180.0) < 0.000001);
+
+	// Find the contiguous ranges of rows which may be within the cone.
+	timer.start(RequestTimer.EXECUTE);
+	long[] ranges;
+	if (allsky)
+	    ranges = new long[] { 0, Healpix.npix(INDEX_ORDER) - 1 };
+	else
+	    ranges = Healpix.queryDisc(INDEX_ORDER, ra, dec, sr,
+		Healpix.DEFAULT_MAX_RANGES);
+	timer.stop(RequestTimer.EXECUTE);
+
+	// Refine each row against the cone, and output the matches.
+	double sdec = Math.sin(Math.toRadians(dec));
+	double cdec = Math.cos(Math.toRadians(dec));
+	double cosr = Math.cos(Math.toRadians(sr));
+
+	timer.start(RequestTimer.FETCH);
+	try {
+	    for (int r=0;  r < ranges.length;  r += 2) {
+		int first = lowerBound(t.pix, ranges[r]);
+		int last = lowerBound(t.pix, ranges[r+1] + 1);
+
+		for (int row=first;  row < last;  row++) {
+		    double c = 1.0;
+		    if (!allsky || target >= 0) {
+			double obj_ra = t.getDouble(t.raCol, row);
+			double obj_dec = Math.toRadians(t.getDouble(t.decCol, row));
+			c = sdec * Math.sin(obj_dec) + cdec *
+			    Math.cos(obj_dec) * Math.cos(Math.toRadians(obj_ra - ra));
+			if (!allsky && c < cosr)
+			    continue;
+		    }
+
+		    response.addRow();
+		    if (target >= 0) {
+			response.setValue("target_index", target);
+			response.setValue("target_sep", Math.toDegrees(
+			    Math.acos(Math.max(-1.0, Math.min(1.0, c)))));
+		    }
+		    for (int i=0;  i < keys.length;  i++) {
+			if (keys[i] == null)
+			    continue;
+			if (t.types[i] == LONG) {
+			    if (t.nulls[i] == null || !t.nulls[i].get(row))
+				response.setValue(keys[i],
+				    ((long[]) t.columns[i])[row]);
+			} else if (t.types[i] == DOUBLE) {
+			    double v = ((double[]) t.columns[i])[row];
+			    if (!Double.isNaN(v))
+				response.setValue(keys[i], v);
+			} else
+			    response.setValue(keys[i],
+				((String[]) t.columns[i])[row]);
+		    }
+		}
+	    }
+	} finally {
+	    timer.stop(RequestTimer.FETCH);
+	}
+    }
+
+    /** Get the index of the first element of a sorted array >= value. */
+    private static int lowerBound(long[] a, long value) {
+	int lo = 0, hi = a.length;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (a[mid] < value)
+		lo = mid + 1;
+	    else
+		hi = mid;
+	}
+	return (lo);
+    }
+
+
+    // -------- Catalog Loading -----------
+
+    /** Load the catalog from the service DBMS table. */
+    private Table loadDbms() throws DalServerException {
+	String tableName = params.getValue("tableName");
+	String schemaName = params.getValue("schemaName");
+	String healpixColumn = params.getValue("healpixColumn");
+	if (tableName == null)
+	    throw new DalServerException("Table name not specified.");
+	if (schemaName != null && schemaName.length() > 0)
+	    tableName = schemaName + "." + tableName;
+
+	DbmsQuery dbms = new DbmsQuery(params.getValue("dbType"),
+	    params.getValue("jdbcDriver"));
+	Statement st = null;
+
+	try {
+	    dbms.connect(DbmsConnectionPool.getPool(params));
+	    Connection conn = dbms.getConnection();
+	    st = conn.createStatement();
+	    st.setFetchSize(10000);
+	    ResultSet rs = st.executeQuery("SELECT * FROM " +
+		dbms.sqlName(tableName));
+
+	    ResultSetMetaData md = rs.getMetaData();
+	    ArrayList<String> names = new ArrayList<String>();
+	    ArrayList<Column> columns = new ArrayList<Column>();
+	    ArrayList<Integer> index = new ArrayList<Integer>();
+
+	    for (int i=1;  i <= md.getColumnCount();  i++) {
+		String colName = md.getColumnLabel(i).toLowerCase();
+		if (colName.equalsIgnoreCase(healpixColumn))
+		    continue;
+
+		int type;
+		switch (md.getColumnType(i)) {
+		case java.sql.Types.BIT:
+		case java.sql.Types.TINYINT:
+		case java.sql.Types.SMALLINT:
+		case java.sql.Types.INTEGER:
+		case java.sql.Types.BIGINT:
+		    type = LONG;
+		    break;
+		case java.sql.Types.REAL:
+		case java.sql.Types.FLOAT:
+		case java.sql.Types.DOUBLE:
+		case java.sql.Types.DECIMAL:
+		case java.sql.Types.NUMERIC:
+		    type = DOUBLE;
+		    break;
+		default:
+		    type = STRING;
+		    break;
+		}
+
+		names.add(colName);
+		columns.add(new Column(type));
+		index.add(i);
+	    }
+
+	    int raCol = findColumn(names, params.getValue("raColumn"), "RA");
+	    int decCol = findColumn(names, params.getValue("decColumn"), "DEC");
+
+	    // RA and DEC are always stored as decimal degrees.
+	    columns.set(raCol, new Column(DOUBLE));
+	    columns.set(decCol, new Column(DOUBLE));
+
+	    while (rs.next()) {
+		for (int i=0;  i < columns.size();  i++) {
+		    Column column = columns.get(i);
+		    int col = index.get(i);
+
+		    if (i == raCol || i == decCol) {
+			String value = rs.getString(col);
+			column.addDouble(parseCoord(value, i == raCol));
+		    } else if (column.type == LONG) {
+			long value = rs.getLong(col);
+			column.addLong(value, rs.wasNull());
+		    } else if (column.type == DOUBLE) {
+			double value = rs.getDouble(col);
+			column.addDouble(rs.wasNull() ? Double.NaN : value);
+		    } else
+			column.addString(rs.getString(col));
+		}
+	    }
+	    rs.close();
+
+	    return (build(names, columns, raCol, decCol,
+		findColumn(names, params.getValue("idColumn"), null)));
+
+	} catch (SQLException ex) {
+	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    if (st != null) {
+		try {
+		    st.close();
+		} catch (SQLException ex) {
+		    ;
+		}
+	    }
+	    dbms.disconnect();
+	}
+    }
+
+    /**
+     * Load the catalog from a CSV file.  The first line gives the column
+     * names.  The data type of each column is determined from the data:
+     * integer, floating point, or otherwise string.  RA and DEC may be
+     * given in sexagesimal (RA in hours) or decimal degrees.
+     *
+     * The file is read twice, first to determine the column types and
+     * the number of rows, then to convert the values directly into the
+     * primitive column arrays, so that the rows are never held in memory
+     * as text.
+     */
+    private Table loadFile(String catalogFile) throws DalServerException {
+	File file = new File(catalogFile);
+	String configDir = params.getValue("configDir");
+	if (!file.isAbsolute() && configDir != null)
+	    file = new File(configDir, catalogFile);
+
+	ArrayList<String> names = new ArrayList<String>();
+	ArrayList<Column> columns = new ArrayList<Column>();
+	int raCol, decCol;
+	BufferedReader in = null;
+
+	try {
+	    // Pass 1: the column names, types, and the number of rows.
+	    in = new BufferedReader(new FileReader(file));
+	    String line = in.readLine();
+	    if (line == null)
+		throw new DalServerException("empty catalog file " + file);
+	    for (String colName : splitCSV(line))
+		names.add(colName.trim());
+
+	    int ncols = names.size(), nrows = 0;
+	    boolean[] isLong = new boolean[ncols];
+	    boolean[] isDouble = new boolean[ncols];
+	    Arrays.fill(isLong, true);
+	    Arrays.fill(isDouble, true);
+
+	    while ((line = in.readLine()) != null) {
+		if (line.trim().length() == 0)
+		    continue;
+		String[] values = splitCSV(line);
+		if (values.length != ncols)
+		    throw new DalServerException("catalog file " + file +
+			": wrong number of values at row " + (nrows + 1));
+		nrows++;
+
+		for (int i=0;  i < ncols;  i++) {
+		    String value = values[i].trim();
+		    if (value.length() == 0 || !isDouble[i])
+			continue;
+		    if (isLong[i]) {
+			try {
+			    Long.parseLong(value);
+			    continue;
+			} catch (NumberFormatException ex) {
+			    isLong[i] = false;
+			}
+		    }
+		    try {
+			Double.parseDouble(value);
+		    } catch (NumberFormatException ex) {
+			isDouble[i] = false;
+		    }
+		}
+	    }
+	    in.close();
+
+	    raCol = findColumn(names, params.getValue("raColumn"), "RA");
+	    decCol = findColumn(names, params.getValue("decColumn"), "DEC");
+	    for (int i=0;  i < ncols;  i++) {
+		boolean coord = (i == raCol || i == decCol);
+		columns.add(new Column(
+		    (coord || (!isLong[i] && isDouble[i])) ? DOUBLE :
+		    (isLong[i] ? LONG : STRING), nrows));
+	    }
+
+	    // Pass 2: convert the data.
+	    in = new BufferedReader(new FileReader(file));
+	    in.readLine();
+	    int row = 0;
+	    while ((line = in.readLine()) != null) {
+		if (line.trim().length() == 0)
+		    continue;
+		String[] values = splitCSV(line);
+		if (values.length != ncols || ++row > nrows)
+		    throw new DalServerException("catalog file " + file +
+			" was modified while it was loaded");
+
+		try {
+		    for (int i=0;  i < ncols;  i++) {
+			String value = values[i].trim();
+			Column column = columns.get(i);
+			if (i == raCol || i == decCol)
+			    column.addDouble(parseCoord(value, i == raCol));
+			else if (column.type == STRING)
+			    column.addString(value.length() == 0 ? null : value);
+			else if (value.length() == 0) {
+			    if (column.type == LONG)
+				column.addLong(0, true);
+			    else
+				column.addDouble(Double.NaN);
+			} else if (column.type == LONG)
+			    column.addLong(Long.parseLong(value), false);
+			else
+			    column.addDouble(Double.parseDouble(value));
+		    }
+		} catch (NumberFormatException ex) {
+		    throw new DalServerException("catalog file " + file +
+			": invalid value at row " + row + ": " + ex.getMessage());
+		}
+	    }
+	} catch (IOException ex) {
+	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		} catch (IOException ex) {
+		    ;
+		}
+	    }
+	}
+
+	return (build(names, columns, raCol, decCol,
+	    findColumn(names, params.getValue("idColumn"), null)));
+    }
+
+    /**
+     * Sort the loaded rows by HEALPix pixel, and build the catalog table.
+     */
+    private static Table build(ArrayList<String> names,
+	ArrayList<Column> columns, int raCol, int decCol, int idCol)
+	throws DalServerException {
+
+	Column raColumn = columns.get(raCol);
+	Column decColumn = columns.get(decCol);
+	int nrows = raColumn.size;
+
+	// Sort keys combine the pixel index and row number; at the index
+	// order the pixel index fits in the upper 32 bits.
+
+	long[] keys = new long[nrows];
+	for (int i=0;  i < nrows;  i++) {
+	    double ra = raColumn.dval[i], dec = decColumn.dval[i];
+	    if (Double.isNaN(ra) || Double.isNaN(dec))
+		throw new DalServerException("resident catalog: " +
+		    "row " + (i + 1) + " has no position");
+	    keys[i] = (Healpix.ang2pix(INDEX_ORDER, ra, dec) << 32) | i;
+	}
+	Arrays.sort(keys);
+
+	int[] order = new int[nrows];
+	Table t = new Table();
+	t.pix = new long[nrows];
+	for (int i=0;  i < nrows;  i++) {
+	    order[i] = (int) (keys[i] & 0xffffffffL);
+	    t.pix[i] = keys[i] >>> 32;
+	}
+	keys = null;
+
+	int ncols = names.size();
+	t.names = names.toArray(new String[ncols]);
+	t.types = new int[ncols];
+	t.columns = new Object[ncols];
+	t.nulls = new BitSet[ncols];
+	for (int i=0;  i < ncols;  i++) {
+	    Column column = columns.get(i);
+	    t.types[i] = column.type;
+	    t.columns[i] = column.data(order);
+	    t.nulls[i] = column.nulls(order);
+	    columns.set(i, null);
+	}
+
+	t.nrows = nrows;
+	t.raCol = raCol;
+	t.decCol = decCol;
+	t.idCol = idCol;
+	t.loadTime = System.currentTimeMillis();
+
+	return (t);
+    }
+
+    /**
+     * Find the index of a named column.  If no default is given, -1 is
+     * returned if the column is not found.
+     */
+    private static int findColumn(ArrayList<String> names, String colName,
+	String defName) throws DalServerException {
+
+	if (colName == null)
+	    colName = defName;
+	for (int i=0;  colName != null && i < names.size();  i++)
+	    if (names.get(i).equalsIgnoreCase(colName))
+		return (i);
+
+	if (defName == null)
+	    return (-1);
+	throw new DalServerException("Designated " + defName +
+	    " field not found in resident catalog");
+    }
+
+    /**
+     * Convert a coordinate value in decimal degrees or sexagesimal format
+     * to decimal degrees.  An empty or null value is returned as NaN.
+     *
+     * @param	value		The coordinate value
+     * @param	hours		True if a sexagesimal value is in hours (RA)
+     */
+    private static double parseCoord(String value, boolean hours) {
+	if (value == null || value.trim().length() == 0)
+	    return (Double.NaN);
+
+	double v = CoordParser.parse(value);
+	return (hours && CoordParser.isSexagesimal(value) ? v * 15.0 : v);
+    }
+
+    /** Split a CSV line, allowing for double-quoted values. */
+    private static String[] splitCSV(String line) {
+	ArrayList<String> values = new ArrayList<String>();
+	StringBuilder sb = new StringBuilder();
+	boolean quoted = false;
+
+	for (int i=0;  i < line.length();  i++) {
+	    char ch = line.charAt(i);
+	    if (ch == '"') {
+		if (quoted && i + 1 < line.length() && line.charAt(i+1) == '"') {
+		    sb.append(ch);
+		    i++;
+		} else
+		    quoted = !quoted;
+	    } else if (ch == ',' && !quoted) {
+		values.add(sb.toString());
+		sb.setLength(0);
+	    } else
+		sb.append(ch);
+	}
+	values.add(sb.toString());
+
+	return (values.toArray(new String[values.size()]));
+    }
+}
@@ -223,34 +223,11 @@ public class ScsMessier {
 
     /**
      * Convert a coordinate value in various formats into a floating
-     * point value.  Both sexagesimal and decimal formats are permitted.
+     * point value.  Both sexagesimal and decimal formats are permitted
+     * (see {@link CoordParser}).
      */
     public double parseHMS(String hms) {
-	boolean negative = false;
-	String str = hms.trim();
-	if (str.startsWith("-")) {
-	    str = str.substring(1);
-	    negative = true;
-	}
-
-	StringTokenizer tok = new StringTokenizer(str);
-	double value = 0;
-
-	for (int i=0;  i < 3;  i++) {
-	    try {
-		String token = tok.nextToken(" :");
-		if (i == 0)
-		    value = new Float(token);
-		else
-		    value += (new Float(token) / 60.0);
-	    } catch (NoSuchElementException ex) {
-		continue;
-	    } catch (NullPointerException ex) {
-		continue;
-	    }
-	}
-
-	return (negative ? -value : value);
+	return (CoordParser.parse(hms));
     }
 
     
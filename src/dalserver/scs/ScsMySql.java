@@ -32,12 +32,8 @@ public class ScsMySql {
      * the functionality to query a remote MySQL-hosted catalog.
      */
     public ScsMySql(String jdbcDriver) throws DalServerException {
-	try {
-	    Class.forName(jdbcDriver).newInstance();
-	    conn = null;
-	} catch (Exception ex) {
-	    throw new DalServerException(ex.getMessage());
-	}
+	DbmsQuery.loadDriver(jdbcDriver);
+	conn = null;
     }
 
 
@@ -353,37 +349,11 @@ public class ScsMySql {
 
     /**
      * Convert a coordinate value in various formats into a floating
-     * point value.  Both sexagesimal and decimal formats are permitted.
+     * point value.  Both sexagesimal and decimal formats are permitted
+     * (see {@link CoordParser}).
      */
     public double parseHMS(String hms) {
-	boolean negative = false;
-	String str = hms.trim();
-	if (str.startsWith("-")) {
-	    str = str.substring(1);
-	    negative = true;
-	}
-
-	StringTokenizer tok = new StringTokenizer(str);
-	double scale = 60.0;
-	double value = 0;
-
-	for (int i=0;  i < 3;  i++) {
-	    try {
-		String token = tok.nextToken(" :");
-		if (i == 0)
-		    value = new Float(token);
-		else {
-		    value += (new Float(token) / scale);
-		    scale *= 60;
-		}
-	    } catch (NoSuchElementException ex) {
-		continue;
-	    } catch (NullPointerException ex) {
-		continue;
-	    }
-	}
-
-	return (negative ? -value : value);
+	return (CoordParser.parse(hms));
     }
 
     
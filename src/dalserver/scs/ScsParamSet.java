@@ -21,6 +21,9 @@ import dalserver.scs.*;
  */
 public class ScsParamSet extends ParamSet implements Iterable<Param> {
 
+    /** Uploaded target list for a multi-position query, if any. */
+    private ScsTargetList targets = null;
+
     /** Create an initial default SCS parameter set. */
     public ScsParamSet() throws DalServerException {
 	// Shorthand for param type and level.
@@ -59,12 +62,45 @@ public class ScsParamSet extends ParamSet implements Iterable<Param> {
 	this.addParam(new Param("RESPONSEFORMAT", STR, "Format of query response"));
 	this.addParam(new Param("Maxrec",      INT, "Maximum number of output records"));
 	this.addParam(new Param("RunID",       STR, "Runtime job ID string"));
+	this.addParam(new Param("TARGETS",     STR, "List of target positions (CSV or VOTable)"));
 
 	// Mark these as service-defined extensions as they are not in the SCS standard.
 	this.getParam("FROM").setLevel(ParamLevel.EXTENSION);
 	this.getParam("FORMAT").setLevel(ParamLevel.EXTENSION);
 	this.getParam("Maxrec").setLevel(ParamLevel.EXTENSION);
 	this.getParam("RunID").setLevel(ParamLevel.EXTENSION);
+	this.getParam("TARGETS").setLevel(ParamLevel.EXTENSION);
+    }
+
+    /**
+     * Get the target list for a multi-position query.  If no target list
+     * has been uploaded, the TARGETS parameter is parsed if set.  Null is
+     * returned for a single position query.
+     */
+    public ScsTargetList getTargets() throws DalServerException {
+	if (targets == null) {
+	    Param p = this.getParam("TARGETS");
+	    if (p != null && p.isSet() && p.stringValue() != null)
+		targets = ScsTargetList.parse(p.stringValue(), maxTargets());
+	}
+	return (targets);
+    }
+
+    /** Set the (uploaded) target list for a multi-position query. */
+    public void setTargets(ScsTargetList targets) {
+	this.targets = targets;
+    }
+
+    /** Get the maximum number of targets permitted (maxTargets). */
+    public int maxTargets() throws DalServerException {
+	String value = this.getValue("maxTargets");
+	if (value == null)
+	    return (ScsTargetList.DEFAULT_MAX_TARGETS);
+	try {
+	    return (Integer.parseInt(value.trim()));
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException("invalid maxTargets " + value);
+	}
     }
 
 
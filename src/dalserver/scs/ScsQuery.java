@@ -20,6 +20,10 @@ import dalserver.scs.*;
  * @author	Doug Tody
  */
 public class ScsQuery extends DbmsQuery {
+
+    /** Number of targets joined in each query of a multi-position query. */
+    public static final int TARGET_BATCH = 500;
+
     /** Constructor to generate a new ScsQuery object, providing
      * the functionality to query a remote catalog.
      */
@@ -43,13 +47,13 @@ public class ScsQuery extends DbmsQuery {
 	throws DalServerException, DalOverflowException {
 
 	Connection conn;
-	ConfigTable conf;
 	String tableName=null, schemaName=null;
 	int maxrec=10000;
 	boolean positional=true, allsky=false, metadataQuery=false;
 	String idColumn=null, raColumn=null, decColumn=null;
 	Param p_ra, p_dec, p_sr;
 	double ra=0, dec=0, sr=0;
+	RequestTimer timer = response.getTimer();
 
 	// A connection to the DBMS must already be open.
 	conn = this.getConnection();
@@ -66,21 +70,32 @@ public class ScsQuery extends DbmsQuery {
         if (schemaName == null)
             schemaName = "%";
 
-	// The following parameters are mandatory.
-	if ((p_ra = params.getParam("RA")) == null || !p_ra.isSet())
-	    throw new DalServerException("Param RA not specified");
-	else
-	    ra = p_ra.doubleValue();
-
-	if ((p_dec = params.getParam("DEC")) == null || !p_dec.isSet())
-	    throw new DalServerException("Param DEC not specified");
-	else
-	    dec = p_dec.doubleValue();
-
-	if ((p_sr = params.getParam("SR")) == null || !p_sr.isSet())
-	    throw new DalServerException("Param SR not specified");
-	else
-	    sr = p_sr.doubleValue();
+	// The following parameters are mandatory, except that for a
+	// multi-position query (target list) RA and DEC are given by the
+	// target list, and SR is the default radius for each target.
+
+	ScsTargetList targets = params.getTargets();
+	if (targets != null) {
+	    if ((p_sr = params.getParam("SR")) != null && p_sr.isSet())
+		sr = p_sr.doubleValue();
+	    else
+		sr = Double.NaN;
+	} else {
+	    if ((p_ra = params.getParam("RA")) == null || !p_ra.isSet())
+		throw new DalServerException("Param RA not specified");
+	    else
+		ra = p_ra.doubleValue();
+
+	    if ((p_dec = params.getParam("DEC")) == null || !p_dec.isSet())
+		throw new DalServerException("Param DEC not specified");
+	    else
+		dec = p_dec.doubleValue();
+
+	    if ((p_sr = params.getParam("SR")) == null || !p_sr.isSet())
+		throw new DalServerException("Param SR not specified");
+	    else
+		sr = p_sr.doubleValue();
+	}
 
 	// Check for SR=180 degrees (entire sky).
 	allsky = (Math.abs(sr - 180.0) < 0.000001);
@@ -108,6 +123,33 @@ public class ScsQuery extends DbmsQuery {
 	if (p != null)
 	    decColumn = p.stringValue();
 
+	// Get the spatial index to be used for positional queries:
+	// "healpix" (a column containing the NESTED HEALPix pixel index of
+	// each row, at order healpixOrder), "q3c" (PostgreSQL only), or
+	// "box" (RA/DEC range).  The default is healpix if a healpixColumn
+	// is given, else q3c for PostgreSQL and box for other DBMS.
+
+	String healpixColumn = params.getValue("healpixColumn");
+	int healpixOrder = Healpix.DEFAULT_ORDER;
+	if ((p = params.getParam("healpixOrder")) != null && p.isSet())
+	    healpixOrder = p.intValue();
+	if (healpixOrder < 0 || healpixOrder > Healpix.MAX_ORDER)
+	    throw new DalServerException("invalid healpixOrder " + healpixOrder);
+
+	String spatialIndex = params.getValue("spatialIndex");
+	if (spatialIndex == null) {
+	    if (healpixColumn != null)
+		spatialIndex = "healpix";
+	    else if (dbType().equals("postgresql"))
+		spatialIndex = "q3c";
+	    else
+		spatialIndex = "box";
+	}
+	spatialIndex = spatialIndex.toLowerCase();
+	if (spatialIndex.equals("healpix") && healpixColumn == null)
+	    throw new DalServerException("healpixColumn not specified");
+	boolean refine = positional && !spatialIndex.equals("q3c");
+
 	// *** MJF 092915
 	// Get the MAXREC value from the parameter set so we can enforce
 	// it in the request respose.
@@ -122,11 +164,439 @@ public class ScsQuery extends DbmsQuery {
 	    throw new DalServerException("Table RA,DEC fields " +
 		"must be specified for a cone search.");
 
-	// Query the DBMS for the table metadata.
+	// Get the column definitions of the table.  Reading these from the
+	// DBMS catalog may be costly, so they are cached (columnCacheTTL,
+	// seconds) and reused by subsequent queries of the same table.
+
+	long ttl = ColumnCache.DEFAULT_TTL;
+	if ((p = params.getParam("columnCacheTTL")) != null && p.isSet())
+	    ttl = (long) p.intValue() * 1000;
+
+	List<Object> cacheKey = Arrays.asList((Object)
+	    params.getValue("serviceName"), params.getValue("jdbcUrl"),
+	    params.getValue("dbName"), schemaName, tableName);
+
+	ColumnDefs columns = (ColumnDefs) ColumnCache.get(cacheKey, ttl);
+	if (columns == null) {
+	    long version = ColumnCache.getVersion();
+	    columns = readColumns(conn, params, schemaName, tableName,
+		idColumn, raColumn, decColumn, healpixColumn);
+	    ColumnCache.put(cacheKey, columns, version, ttl);
+	}
+
+	// Define the fields of the output query result table.
+	for (TableField field : columns.fields)
+	    response.addField(field.copy());
+
+	ArrayList<String> fields = columns.names;
+	boolean ra_found = columns.ra_found, dec_found = columns.dec_found;
+	boolean ra_numeric = columns.ra_numeric;
+	boolean dec_numeric = columns.dec_numeric;
+	ResultSet rs;
+
+	// Verify that the RA and DEC fields were found, if pos query.
+	if (!metadataQuery && (!ra_found || !dec_found))
+	    throw new DalServerException("Designated RA or DEC field " +
+		"not found in table " + tableName);
+
+	// A multi-position query identifies the target matched by each row.
+	if (targets != null)
+	    ScsTargetList.addFields(response);
+
+	// If this a metadata query we are done.
+	if (metadataQuery)
+	    return;
+
+	if (targets != null) {
+	    String join;
+	    if (spatialIndex.equals("healpix"))
+		join = "c." + sqlName(healpixColumn);
+	    else if (spatialIndex.equals("q3c"))
+		join = "q3c_join(t.target_ra, t.target_dec, c." +
+		    sqlName(raColumn) + ", c." + sqlName(decColumn) +
+		    ", t.target_sr)";
+	    else if (dec_numeric)
+		join = "c." + sqlName(decColumn);
+	    else
+		throw new DalServerException("a multi-position query " +
+		    "requires a numeric DEC column or a spatial index");
+
+	    queryTargets(params, response, targets, sr, spatialIndex, join,
+		healpixOrder, sqlName(schemaName+'.'+tableName), fields,
+		raColumn, ra_numeric, decColumn, dec_numeric);
+	    return;
+	}
+
+	// Perform the data query and write rows to the output table.
+	int nrows = 0, ncols = 0;;
+	ResultSetMetaData md;
+	PreparedStatement st = null;
+	String key;
+
+	try {
+	    SqlTemplate query = new SqlTemplate("SELECT * FROM " +
+		sqlName(schemaName+'.'+tableName));
+
+	    // If this is a positional query, restrict the query to the cone
+	    // using the spatial index available for the table.  A HEALPix
+	    // index column allows the cone to be translated into a set of
+	    // pixel ranges, which can use a B-tree index on any DBMS.  The
+	    // q3c extension may be used with PostgreSQL.  Otherwise the
+	    // query is restricted to a RA/DEC box, which may use an index
+	    // on RA or DEC.  Except for q3c the resulting candidate rows are
+	    // refined by an exact distance test.
+
+	    boolean where = false;
+	    if (positional) {
+		if (spatialIndex.equals("healpix")) {
+		    query.append(" WHERE ");
+		    healpixConstraint(query, healpixColumn, healpixOrder,
+			ra, dec, sr);
+		    where = true;
+
+		} else if (spatialIndex.equals("q3c")) {
+		    query.append(" WHERE q3c_radial_query(" + 
+			sqlName(raColumn) + "," + sqlName(decColumn) + ",");
+		    query.bind(ra).append(",").bind(dec).append(",");
+		    query.bind(sr).append(")");
+		    where = true;
+
+		} else if (spatialIndex.equals("box") && ra_numeric && dec_numeric) {
+		    query.append(" WHERE ");
+		    boxConstraint(query, raColumn, decColumn, ra, dec, sr);
+		    where = true;
+		}
+	    }
+
+	    // If the RA and DEC columns are numeric the cone is refined
+	    // exactly in the DBMS rather than below.  Every row returned is
+	    // then output, so MAXREC can be enforced by the DBMS as well;
+	    // one extra row is requested so that overflow is still detected.
+
+	    if (refine && ra_numeric && dec_numeric) {
+		query.append(where ? " AND " : " WHERE ");
+		coneConstraint(query, sqlName(raColumn), sqlName(decColumn),
+		    ra, dec, sr);
+		refine = false;
+	    }
+	    if (!refine)
+		query = limitRows(query, response.maxrec() + 1L);
+
+	    // Execute the query.
+	    response.addInfo(key="SQL_QUERY",
+		new TableInfo(key, query.toString()));
+	    st = query.prepare(conn);
+
+	    // *** MJF 092915
+	    // Increase the fetch size and set direction to speed up result.
+	    // *** MJF 092915
+            st.setFetchSize(10000);
+            st.setFetchDirection(ResultSet.FETCH_FORWARD);
+
+	    timer.start(RequestTimer.EXECUTE);
+	    rs = st.executeQuery();
+	    md = rs.getMetaData();
+	    ncols = md.getColumnCount();
+	    timer.stop(RequestTimer.EXECUTE);
+
+	    // Now check all the returned table rows to see if in ROI.
+	    // We assume J2000/ICRS coords here; the supplied cols should
+	    // conform (if necessary additional columns can be added to an
+	    // existing table).  For larger tables, numeric positions are
+	    // more efficient.
+
+	    timer.start(RequestTimer.FETCH);
+	    while (rs.next()) { 
+		double pos_ra=ra, pos_dec=dec;
+		double obj_ra, obj_dec;
+		double dx;
+
+		// Get the RA and DEC fields in type double.
+		if (ra_numeric)
+		    obj_ra = rs.getDouble(raColumn);
+		else
+		    obj_ra = parseHMS(rs.getString(raColumn)) * 15.0;
+		if (dec_numeric)
+		    obj_dec = rs.getDouble(decColumn);
+		else 
+		    obj_dec = parseHMS(rs.getString(decColumn));
+
+		// Refine the cone exactly; the pixel range and box queries
+		// may return rows outside the cone.
+		if (refine && distance(ra, dec, obj_ra, obj_dec) > sr)
+		    continue;
+
+		response.addRow();
+		setRow(response, rs, fields, raColumn, obj_ra, decColumn, obj_dec);
+		nrows++;
+	    }
+
+	} catch (DalOverflowException ex) {
+	    throw ex;
+	} catch (SQLException ex) {
+	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    timer.stop(RequestTimer.EXECUTE);
+	    timer.stop(RequestTimer.FETCH);
+	    SqlTemplate.close(st);
+	}
+
+	rs = null;
+    }
+
+
+    /**
+     * Perform a multi-position query.  The target list is joined with the
+     * catalog table in the DBMS as a derived table (VALUES list, or UNION
+     * of SELECTs for DBMS which do not support VALUES), in batches of up
+     * to {@link #TARGET_BATCH} rows.  For each target the derived table
+     * gives the RA, DEC and SR, and a range (target_lo, target_hi) of the
+     * join column: a HEALPix pixel range (one row for each range of the
+     * target), or the DEC range of the target.  For q3c the join uses
+     * q3c_join instead.  The rows returned are refined by an exact
+     * distance test (in the DBMS if the RA and DEC columns are numeric,
+     * with the remaining MAXREC enforced by the DBMS), and tagged with
+     * the target index and separation.
+     *
+     * @param	join		Join column, or q3c_join constraint
+     */
+    private void queryTargets(ScsParamSet params, RequestResponse response,
+	ScsTargetList targets, double sr, String spatialIndex, String join,
+	int healpixOrder, String table, ArrayList<String> fields,
+	String raColumn, boolean ra_numeric,
+	String decColumn, boolean dec_numeric)
+	throws DalServerException, DalOverflowException {
+
+	boolean healpix = spatialIndex.equals("healpix");
+	SqlTemplate batch = new SqlTemplate();
+	int nrows = 0;
+	boolean first = true;
+
+	for (int i=0;  i < targets.size();  i++) {
+	    double t_ra = targets.getRa(i), t_dec = targets.getDec(i);
+	    double t_sr = targets.getSr(i, sr);
+	    if (Double.isNaN(t_sr))
+		throw new DalServerException("Param SR not specified");
+
+	    long[] ranges = null;
+	    int nranges = 1;
+	    if (healpix) {
+		ranges = Healpix.queryDisc(healpixOrder, t_ra, t_dec, t_sr,
+		    Healpix.DEFAULT_MAX_RANGES);
+		nranges = ranges.length / 2;
+	    }
+
+	    // Join the current batch if this target would overflow it.
+	    if (nrows > 0 && nrows + nranges > TARGET_BATCH) {
+		joinTargets(response, targets, sr, batch, join, table, fields,
+		    raColumn, ra_numeric, decColumn, dec_numeric, first);
+		batch = new SqlTemplate();
+		nrows = 0;
+		first = false;
+	    }
+
+	    for (int r=0;  r < nranges;  r++) {
+		if (healpix)
+		    targetRow(batch, nrows++, i, t_ra, t_dec, t_sr,
+			new Long(ranges[r*2]), new Long(ranges[r*2+1]));
+		else
+		    targetRow(batch, nrows++, i, t_ra, t_dec, t_sr,
+			new Double(Math.max(-90.0, t_dec - t_sr)),
+			new Double(Math.min(90.0, t_dec + t_sr)));
+	    }
+	}
+
+	if (nrows > 0)
+	    joinTargets(response, targets, sr, batch, join, table, fields,
+		raColumn, ra_numeric, decColumn, dec_numeric, first);
+    }
+
+    /**
+     * Join one batch of targets with the catalog table, and output the
+     * matching rows.
+     *
+     * @param	batch		The derived table rows of the batch
+     * @param	first		True for the first batch of the query
+     */
+    private void joinTargets(RequestResponse response, ScsTargetList targets,
+	double sr, SqlTemplate batch, String join, String table,
+	ArrayList<String> fields, String raColumn, boolean ra_numeric,
+	String decColumn, boolean dec_numeric, boolean first)
+	throws DalServerException, DalOverflowException {
+
+	RequestTimer timer = response.getTimer();
+	boolean q3c = join.startsWith("q3c_join");
+	boolean exact = q3c || (ra_numeric && dec_numeric);
+	String key;
+
+	SqlTemplate query = new SqlTemplate("SELECT t.target_index, c.* FROM ");
+	if (dbType().equals("postgresql")) {
+	    query.append("(VALUES ").append(batch);
+	    query.append(") AS t (target_index, target_ra, target_dec, " +
+		"target_sr, target_lo, target_hi)");
+	} else
+	    query.append("(").append(batch).append(") t");
+	query.append(" JOIN " + table + " c ON " + (q3c ? join :
+	    (join + " BETWEEN t.target_lo AND t.target_hi")));
+
+	// As for a single cone, if the cone can be refined exactly in the
+	// DBMS the remaining MAXREC is enforced by the DBMS.
+	if (exact) {
+	    if (!q3c)
+		query.append(" AND " + targetCone(raColumn, decColumn));
+	    query = limitRows(query, response.maxrec() + 1L - response.size());
+	}
+
+	if (first) {
+	    String text = query.toString();
+	    response.addInfo(key="SQL_QUERY", new TableInfo(key,
+		text.length() > 1000 ? text.substring(0, 1000) + " ..." : text));
+	}
+
+	PreparedStatement st = null;
+	try {
+	    st = query.prepare(this.getConnection());
+	    st.setFetchSize(10000);
+
+	    timer.start(RequestTimer.EXECUTE);
+	    ResultSet rs = st.executeQuery();
+	    timer.stop(RequestTimer.EXECUTE);
+
+	    timer.start(RequestTimer.FETCH);
+	    while (rs.next()) {
+		int index = rs.getInt("target_index");
+		double obj_ra, obj_dec;
+
+		if (ra_numeric)
+		    obj_ra = rs.getDouble(raColumn);
+		else
+		    obj_ra = parseHMS(rs.getString(raColumn)) * 15.0;
+		if (dec_numeric)
+		    obj_dec = rs.getDouble(decColumn);
+		else
+		    obj_dec = parseHMS(rs.getString(decColumn));
+
+		double sep = distance(targets.getRa(index),
+		    targets.getDec(index), obj_ra, obj_dec);
+		if (!exact && sep > targets.getSr(index, sr))
+		    continue;
+
+		response.addRow();
+		setRow(response, rs, fields, raColumn, obj_ra,
+		    decColumn, obj_dec);
+		response.setValue("target_index", index);
+		response.setValue("target_sep", sep);
+	    }
+	    rs.close();
+
+	} catch (SQLException ex) {
+	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    timer.stop(RequestTimer.EXECUTE);
+	    timer.stop(RequestTimer.FETCH);
+	    SqlTemplate.close(st);
+	}
+    }
+
+    /**
+     * The cone constraint of the target join, as for coneConstraint but
+     * with the cone given by the columns of the target table.
+     */
+    private String targetCone(String raColumn, String decColumn) {
+	String c_ra = "c." + sqlName(raColumn);
+	String c_dec = "c." + sqlName(decColumn);
+
+	return ("POWER(SIN((" + c_dec + " - t.target_dec) * " + HALF_D2R +
+	    "), 2) + COS(" + c_dec + " * " + D2R + ") * COS(t.target_dec * " +
+	    D2R + ") * POWER(SIN((" + c_ra + " - t.target_ra) * " + HALF_D2R +
+	    "), 2) <= POWER(SIN(t.target_sr * " + HALF_D2R + "), 2)");
+    }
+
+    /**
+     * Add a row for one target (range) to the derived target table.
+     *
+     * @param	lo		Lower limit of the join column (Long or Double)
+     * @param	hi		Upper limit of the join column
+     */
+    private void targetRow(SqlTemplate sb, int nrows, int index,
+	double ra, double dec, double sr, Number lo, Number hi) {
+
+	boolean values = dbType().equals("postgresql");
+	if (nrows > 0)
+	    sb.append(values ? ", " : " UNION ALL ");
+	sb.append(values ? "(" : "SELECT ");
+
+	// For a UNION the columns are named by the first SELECT.
+	String[] names = { "target_index", "target_ra", "target_dec",
+	    "target_sr", "target_lo", "target_hi" };
+	Number[] row = { new Long(index), new Double(ra), new Double(dec),
+	    new Double(sr), lo, hi };
+
+	for (int i=0;  i < row.length;  i++) {
+	    if (i > 0)
+		sb.append(", ");
+	    if (row[i] instanceof Long)
+		sb.bind(row[i].longValue());
+	    else
+		sb.bind(row[i].doubleValue());
+	    if (!values && nrows == 0)
+		sb.append(" AS " + names[i]);
+	}
+
+	if (values)
+	    sb.append(")");
+	else if (dbType().equals("oracle"))
+	    sb.append(" FROM DUAL");
+    }
+
+    /** Set the table fields of the current output row. */
+    private void setRow(RequestResponse response, ResultSet rs,
+	ArrayList<String> fields, String raColumn, double obj_ra,
+	String decColumn, double obj_dec)
+	throws DalServerException, SQLException {
+
+	for (int i=0;  i < fields.size();  i++) {
+	    String fieldName = fields.get(i);
+	    if (response.getField(fieldName) == null)
+		continue;
+
+	    if (fieldName.equals(raColumn))
+		response.setValue(fieldName, obj_ra);
+	    else if (fieldName.equals(decColumn))
+		response.setValue(fieldName, obj_dec);
+	    else
+		response.setValue(fieldName, rs.getString(fieldName));
+	}
+    }
+
+    /**
+     * Column definitions of a table, as cached by {@link ColumnCache}.
+     * The fields are configured (see {@link ConfigTable}) but must be
+     * copied before being added to a response.
+     */
+    private static class ColumnDefs {
+	/** Configured fields of the output table. */
+	ArrayList<TableField> fields = new ArrayList<TableField>();
+
+	/** Names of all table columns. */
+	ArrayList<String> names = new ArrayList<String>();
+
 	boolean id_found=false, ra_found=false, dec_found=false;
 	boolean ra_numeric=false, dec_numeric=false;
-	ArrayList<String> fields = new ArrayList<String>();
+    }
+
+    /**
+     * Query the DBMS for the column metadata of a table, and define the
+     * corresponding fields of the output table.
+     */
+    private ColumnDefs readColumns(Connection conn, ScsParamSet params,
+	String schemaName, String tableName, String idColumn,
+	String raColumn, String decColumn, String healpixColumn)
+	throws DalServerException {
+
+	ColumnDefs defs = new ColumnDefs();
 	DatabaseMetaData dbm;
+	ConfigTable conf;
 	int nFields = 0;
 	ResultSet rs;
 
@@ -160,6 +630,10 @@ public class ScsQuery extends DbmsQuery {
 		String colName = rs.getString("COLUMN_NAME").toLowerCase();
 		int colType = rs.getInt("DATA_TYPE");
 
+		// The HEALPix index column is not output.
+		if (colName.equalsIgnoreCase(healpixColumn))
+		    continue;
+
 		// Define the corresponding field of the output table.
 		TableField field = new TableField();
 
@@ -167,36 +641,36 @@ public class ScsQuery extends DbmsQuery {
 		field.setName(colName);
 
 		// Check for the ID key field.
-		if (!id_found) {
+		if (!defs.id_found) {
 		    if (colName.equalsIgnoreCase(idColumn)) {
-			id_found = true;
+			defs.id_found = true;
 			field.setUcd("ID_MAIN");
 		    }
 		}
 
 		// Check for the POS key fields.
-		if (!ra_found) {
+		if (!defs.ra_found) {
 		    if (colName.equalsIgnoreCase(raColumn)) {
-			ra_numeric = (
+			defs.ra_numeric = (
 			    colType == java.sql.Types.REAL ||
 			    colType == java.sql.Types.FLOAT ||
 			    colType == java.sql.Types.DOUBLE ||
 			    colType == java.sql.Types.DECIMAL ||
 			    colType == java.sql.Types.NUMERIC);
-			ra_found = true;
+			defs.ra_found = true;
 			field.setUcd("POS_EQ_RA_MAIN");
 			colType = java.sql.Types.DOUBLE;
 		    }
 		}
-		if (!dec_found) {
+		if (!defs.dec_found) {
 		    if (colName.equalsIgnoreCase(decColumn)) {
-			dec_numeric = (
+			defs.dec_numeric = (
 			    colType == java.sql.Types.REAL ||
 			    colType == java.sql.Types.FLOAT ||
 			    colType == java.sql.Types.DOUBLE ||
 			    colType == java.sql.Types.DECIMAL ||
 			    colType == java.sql.Types.NUMERIC);
-			dec_found = true;
+			defs.dec_found = true;
 			field.setUcd("POS_EQ_DEC_MAIN");
 			colType = java.sql.Types.DOUBLE;
 		    }
@@ -230,201 +704,102 @@ public class ScsQuery extends DbmsQuery {
 		field.setUtype(tableName + "." + colName);
 		field.setIndex(nFields++);
 
-		conf.addField(response, field);
-		fields.add(colName);
+		if ((field = conf.configure(field)) != null)
+		    defs.fields.add(field);
+		defs.names.add(colName);
 	    }
+	    rs.close();
+
 	} catch (SQLException ex) {
 	    throw new DalServerException(ex.getMessage());
 	}
 
-	// Verify that the RA and DEC fields were found, if pos query.
-	if (!metadataQuery && (!ra_found || !dec_found))
-	    throw new DalServerException("Designated RA or DEC field " +
-		"not found in table " + tableName);
-
-	// If this a metadata query we are done.
-	if (metadataQuery)
-	    return;
-
-	// Perform the data query and write rows to the output table.
-	int nrows = 0, ncols = 0;;
-	ResultSetMetaData md;
-	Statement st;
-	String key;
-
-	try {
-	    String query = "SELECT * FROM " + sqlName(schemaName+'.'+tableName);
-
-	    // If this is a positional query we need to check that RA and
-	    // DEC are in range.  A simple DBMS index on either RA or DEC
-	    // may help on large tables.  More sophisticated spatial indexing
-	    // (HTM etc.) is not yet supported.
-
-	    query += (" WHERE q3c_radial_query(" + 
-	    	      sqlName(raColumn) + "," + sqlName(decColumn) + "," + 
-	    	      ra + "," + dec + "," + sr + ")");
-
-/*
-	    if (positional && (ra_numeric || dec_numeric)) {
-		query += (" WHERE ");
-		boolean first_term = true;
-
-		if (ra_numeric) {
-		    double ra1 = ra - sr;
-		    double ra2 = ra + sr;
-
-		    // Handle the case of SR crossing the 0/360 point.
-		    if (ra1 < 0) {
-			if (!first_term)
-			    query += (" AND ");
-			else
-			    first_term = false;
-
-			query += ("(" + sqlName(raColumn) +
-			    " BETWEEN " + (360.0 + ra1) + " AND " + 360.0);
-			query += (" OR " + sqlName(raColumn) +
-			    " BETWEEN " + 0.0 + " AND " + ra2 + ")");
-
-		    } else {
-			if (!first_term)
-			    query += (" AND ");
-			else
-			    first_term = false;
-
-			query += (sqlName(raColumn) +
-			    " BETWEEN " + ra1 + " AND " + ra2);
-		    }
-		}
-
-		if (dec_numeric) {
-		    double dec1 = Math.max(-90.0, Math.min(90.0, dec - sr));
-		    double dec2 = Math.max(-90.0, Math.min(90.0, dec + sr));
-
-		    if (!first_term)
-			query += (" AND ");
-		    else
-			first_term = false;
-
-		    query += (sqlName(decColumn) +
-			" BETWEEN " + dec1 + " AND " + dec2);
-		}
-	    }
-*/
-
-	    // Execute the query.
-	    response.addInfo(key="SQL_QUERY", new TableInfo(key, query));
-	    st = conn.createStatement();
-
-	    // *** MJF 092915
-	    // Increase the fetch size and set direction to speed up result.
-	    // *** MJF 092915
-            st.setFetchSize(10000);
-            st.setFetchDirection(ResultSet.FETCH_FORWARD);
-
-	    rs = st.executeQuery(query);
-	    md = rs.getMetaData();
-	    ncols = md.getColumnCount();
+	return (defs);
+    }
 
-	    // Now check all the returned table rows to see if in ROI.
-	    // We assume J2000/ICRS coords here; the supplied cols should
-	    // conform (if necessary additional columns can be added to an
-	    // existing table).  For larger tables, numeric positions are
-	    // more efficient.
 
-	    while (rs.next()) { 
-		double pos_ra=ra, pos_dec=dec;
-		double obj_ra, obj_dec;
-		double dx;
+    /**
+     * Append the SQL constraint selecting the HEALPix pixels which may
+     * intersect a cone.  The pixel ranges are bind parameters; the number
+     * of ranges is padded to a power of two (by repeating the last range)
+     * so that only a few distinct query shapes occur.
+     *
+     * @param	query		The query to which the constraint is added
+     * @param	column		Name of the HEALPix (NESTED) index column
+     * @param	order		HEALPix order of the index
+     * @param	ra		Right ascension of the cone center, degrees
+     * @param	dec		Declination of the cone center, degrees
+     * @param	sr		Cone radius, degrees
+     */
+    public void healpixConstraint(SqlTemplate query, String column,
+	int order, double ra, double dec, double sr) {
+
+	long[] ranges = Healpix.queryDisc(order, ra, dec, sr,
+	    Healpix.DEFAULT_MAX_RANGES);
+	String name = sqlName(column);
+	int nranges = 1;
+	while (nranges < ranges.length / 2)
+	    nranges *= 2;
+
+	query.append("(");
+	for (int i=0;  i < nranges;  i++) {
+	    int r = Math.min(i, ranges.length / 2 - 1) * 2;
+	    if (i > 0)
+		query.append(" OR ");
+	    query.append(name + " BETWEEN ").bind(ranges[r]);
+	    query.append(" AND ").bind(ranges[r+1]);
+	}
+	query.append(")");
+    }
 
-		// Get the RA and DEC fields in type double.
-		if (ra_numeric)
-		    obj_ra = rs.getDouble(raColumn);
-		else
-		    obj_ra = parseHMS(rs.getString(raColumn)) * 15.0;
-		if (dec_numeric)
-		    obj_dec = rs.getDouble(decColumn);
-		else 
-		    obj_dec = parseHMS(rs.getString(decColumn));
+    /**
+     * Append the SQL constraint selecting the RA/DEC box enclosing a cone.
+     * The RA range is omitted if the cone includes a pole.
+     *
+     * @param	query		The query to which the constraint is added
+     * @param	raColumn	Name of the RA column (degrees)
+     * @param	decColumn	Name of the DEC column (degrees)
+     * @param	ra		Right ascension of the cone center, degrees
+     * @param	dec		Declination of the cone center, degrees
+     * @param	sr		Cone radius, degrees
+     */
+    public void boxConstraint(SqlTemplate query, String raColumn,
+	String decColumn, double ra, double dec, double sr) {
 
-/*
-		if (positional) {
-		    // Shift the RA coords to zero=180 to avoid wrap when
-		    // computing the OBJ_RA to RA distance.
-		    // dx = pos_ra - 180.0;  pos_ra -= dx;
-		    // obj_ra -= dx;
-		    // if (obj_ra < 0)
-			// obj_ra += 360.0;
-		    // if (obj_ra >= 360)
-			// obj_ra -= 360.0;
-		    // double ra_dist = Math.abs(obj_ra - pos_ra);
-		    // double dec_dist = Math.abs(obj_dec - pos_dec);
-		    // if (ra_dist > sr || dec_dist > sr)
-			// continue;
-
-		    if (distance(pos_ra, pos_dec, obj_ra, obj_dec) > sr)
-			continue;
-		}
-*/
+	double dec1 = Math.max(-90.0, dec - sr);
+	double dec2 = Math.min(90.0, dec + sr);
+	query.append(sqlName(decColumn) + " BETWEEN ").bind(dec1);
+	query.append(" AND ").bind(dec2);
 
-		response.addRow();
-		for (int i=0;  i < fields.size();  i++) {
-		    String fieldName = fields.get(i);
-		    if (response.getField(fieldName) == null)
-			continue;
-
-		    if (fieldName.equals(raColumn))
-			response.setValue(fieldName, obj_ra);
-		    else if (fieldName.equals(decColumn))
-			response.setValue(fieldName, obj_dec);
-		    else
-			response.setValue(fieldName, rs.getString(fieldName));
-		}
-		nrows++;
-	    }
+	if (Math.abs(dec) + sr >= 90.0)
+	    return;
 
-	} catch (DalOverflowException ex) {
-	    throw ex;
-	} catch (SQLException ex) {
-	    throw new DalServerException(ex.getMessage());
+	// Half width in RA of the cone.
+	double dra = Math.toDegrees(Math.asin(Math.sin(Math.toRadians(sr)) /
+	    Math.cos(Math.toRadians(dec))));
+	double ra1 = ra - dra, ra2 = ra + dra;
+	String name = sqlName(raColumn);
+
+	// Handle the case of the cone crossing the 0/360 point.
+	if (ra1 < 0) {
+	    query.append(" AND (" + name + " >= ").bind(ra1 + 360.0);
+	    query.append(" OR " + name + " <= ").bind(ra2).append(")");
+	} else if (ra2 >= 360.0) {
+	    query.append(" AND (" + name + " >= ").bind(ra1);
+	    query.append(" OR " + name + " <= ").bind(ra2 - 360.0).append(")");
+	} else {
+	    query.append(" AND " + name + " BETWEEN ").bind(ra1);
+	    query.append(" AND ").bind(ra2);
 	}
-
-	rs = null;
     }
 
-
     /**
      * Convert a coordinate value in various formats into a floating
-     * point value.  Both sexagesimal and decimal formats are permitted.
+     * point value.  Both sexagesimal and decimal formats are permitted
+     * (see {@link CoordParser}).
      */
     public double parseHMS(String hms) {
-	boolean negative = false;
-	String str = hms.trim();
-	if (str.startsWith("-")) {
-	    str = str.substring(1);
-	    negative = true;
-	}
-
-	StringTokenizer tok = new StringTokenizer(str);
-	double scale = 60.0;
-	double value = 0;
-
-	for (int i=0;  i < 3;  i++) {
-	    try {
-		String token = tok.nextToken(" :");
-		if (i == 0)
-		    value = new Float(token);
-		else {
-		    value += (new Float(token) / scale);
-		    scale *= 60;
-		}
-	    } catch (NoSuchElementException ex) {
-		continue;
-	    } catch (NullPointerException ex) {
-		continue;
-	    }
-	}
-
-	return (negative ? -value : value);
+	return (CoordParser.parse(hms));
     }
 
     
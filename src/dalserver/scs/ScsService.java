@@ -132,8 +132,23 @@ public class ScsService {
 	if (!serviceClass.substring(0,3).equalsIgnoreCase("scs"))
 	    throw new DalServerException("Service only supports SCS");
 
+	// A resident catalog, if configured, is queried in memory.  A query
+	// of some other table (FROM) is passed through to the DBMS.
+
+	ScsCatalog catalog = null;
+	Param from = params.getParam("FROM");
+	if (from == null || !from.isSet())
+	    catalog = ScsCatalog.getCatalog(params);
+
 	// Create the table metadata for a standard SCS query response.
-	if (dbType.equalsIgnoreCase("builtin")) {
+	if (catalog != null) {
+	    try {
+		catalog.query(params, response);
+	    } catch (DalOverflowException ex) {
+		;
+	    }
+
+	} else if (dbType.equalsIgnoreCase("builtin")) {
 
 	    // Query the builtin test table.  This allows the service
 	    // to be exercised and tested without requiring configuration
@@ -144,6 +159,10 @@ public class ScsService {
 	    if (!tableName.equalsIgnoreCase("messier"))
 		throw new DalServerException("unknown table: " + tableName);
 
+	    if (params.getTargets() != null)
+		throw new DalServerException(
+		    "multi-position query not supported for builtin tables");
+
 	    ScsMessier messier = new ScsMessier();
 	    try {
 		messier.query(params, response);
@@ -166,7 +185,9 @@ public class ScsService {
 		}
 
 		dbms = new ScsQuery(dbType, jdbcDriver);
-		dbms.connect(jdbcUrl, dbName, dbUser, dbPassword);
+		response.getTimer().start(RequestTimer.CONNECT);
+		dbms.connect(DbmsConnectionPool.getPool(params));
+		response.getTimer().stop(RequestTimer.CONNECT);
 		dbms.query(params, response);
 
 	    } catch (DalOverflowException ex) {
@@ -124,6 +124,8 @@ public class ScsServlet extends HttpServlet {
     // Private data.
     // ----------------
     private final int BUFSIZE = 8192;
+    private DbmsConnectionPool dbPool = null;
+    private String catalogName = null;
 
 
     // ---------- Servlet Methods -------------------
@@ -131,12 +133,58 @@ public class ScsServlet extends HttpServlet {
     /** Servlet startup and initialization. */
     public void init(ServletConfig config) throws ServletException {
 	super.init(config);
-        // Add any servlet initialization here.
+
+	// Open the DBMS connection pool for the service, if one is configured,
+	// so that the first request does not pay the connection setup cost.
+
+	ScsParamSet pset = null;
+	try {
+	    pset = new ScsParamSet();
+	    new DalContext((ParamSet)pset, getServletContext(), config);
+	    String dbType = pset.getValue("dbType");
+	    if (pset.getValue("jdbcUrl") != null && dbType != null &&
+		!dbType.equalsIgnoreCase("builtin")) {
+
+		this.dbPool = DbmsConnectionPool.warmup(pset);
+	    }
+	} catch (DalServerException ex) {
+	    log("cannot initialize DBMS connection pool: " + ex.getMessage());
+	}
+
+	// Load the resident catalog for the service, if one is configured.
+	// If this fails it is retried on the first query.
+
+	if (pset != null && ScsCatalog.isResident(pset)) {
+	    this.catalogName = pset.getValue("serviceName");
+	    try {
+		ScsCatalog.getCatalog(pset);
+	    } catch (DalServerException ex) {
+		log("cannot load resident catalog: " + ex.getMessage());
+	    }
+	}
     }
 
     /** Servlet shutdown. */
     public void destroy() {
-        // Add any servlet shutdown here.
+
+	// Close the DBMS connection pool, if any.
+	if (this.dbPool != null) {
+	    DbmsConnectionPool.closePool(this.dbPool.getName());
+	    this.dbPool = null;
+	}
+
+	// Discard the resident catalog, if any.
+	if (this.catalogName != null) {
+	    ScsCatalog.closeCatalog(this.catalogName);
+	    this.catalogName = null;
+	}
+    }
+
+    /** Handle a POST request, e.g., with an uploaded target list. */
+    public void doPost(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+        throws ServletException, IOException {
+
+	doGet(servletRequest, servletResponse);
     }
 
     /** Return a brief description of the service.  */
@@ -156,6 +204,7 @@ public class ScsServlet extends HttpServlet {
 	String operation = null;
 	ScsParamSet params = null;
 	RequestResponse response = null;
+	RequestTimer timer = null;
 	boolean error = false;
 
 	try {
@@ -164,9 +213,25 @@ public class ScsServlet extends HttpServlet {
 	    ServletContext servletContext = getServletContext();
 	    ServletConfig servletConfig = getServletConfig();
 
+	    // Time the request, starting with parameter processing.
+	    timer = response.getTimer();
+	    timer.start(RequestTimer.PARAMS);
+
 	    this.dalContext = new DalContext((ParamSet)params, response,
 		servletRequest, servletContext, servletConfig);
 
+	    // A multi-position query may POST the target list directly as
+	    // the request body (CSV or VOTable).
+	    String contentType = servletRequest.getContentType();
+	    if ("POST".equalsIgnoreCase(servletRequest.getMethod()) &&
+		contentType != null &&
+		!contentType.startsWith("application/x-www-form-urlencoded") &&
+		!contentType.startsWith("multipart/")) {
+
+		params.setTargets(ScsTargetList.read(
+		    servletRequest.getInputStream(), params.maxTargets()));
+	    }
+
 	    // Get service config/context parameter values.  If the parameters
 	    // are not defined externally they are added within the given
 	    // default values.
@@ -189,6 +254,9 @@ public class ScsServlet extends HttpServlet {
 	    p.setLevel(ParamLevel.EXTENSION);
 	    params.addParam(p);
 
+	    timer.stop(RequestTimer.PARAMS);
+	    timer.setService(serviceName);
+
 	} catch (DalServerException ex) {
 	    error = this.errorResponse(params, servletResponse, ex);
 
@@ -239,17 +307,15 @@ public class ScsServlet extends HttpServlet {
         if (operation.equalsIgnoreCase("queryData")) {
 	    RequestResponse requestResponse = dalContext.response;
 	    ServletOutputStream out = null;
+	    timer.setOperation("queryData");
 
 	    try {
-		// Execute the queryData operation.
-		service.queryData(params, requestResponse);
-
 		String format =
 		    params.getValue("format", "votable");
 		String responseFormat =
 		    params.getValue("responseformat", format);
 
-		boolean htmlOut=false, textOut=false, csvOut=false;
+		boolean htmlOut=false, textOut=false, csvOut=false, fitsOut=false;
 		if (responseFormat != null) {
 		    if (responseFormat.equalsIgnoreCase("html")) 
 			htmlOut = true;
@@ -257,6 +323,9 @@ public class ScsServlet extends HttpServlet {
 			textOut = true;
 		    else if (responseFormat.equalsIgnoreCase("csv")) 
 			csvOut = true;
+		    else if (responseFormat.equalsIgnoreCase("fits") ||
+			responseFormat.equalsIgnoreCase("application/fits"))
+			fitsOut = true;
 		}
 
 		// Set up the output stream.
@@ -266,30 +335,122 @@ public class ScsServlet extends HttpServlet {
 		    servletResponse.setContentType("text/plain");
 		else if (csvOut)
 		    servletResponse.setContentType("text/plain");
+		else if (fitsOut)
+		    servletResponse.setContentType("application/fits");
 		else
 		    servletResponse.setContentType("text/xml;x-votable");
 
+		// Repeated queries may be answered from the response cache.
+		ResponseCache cache = ResponseCache.getCache(params);
+		String cacheKey = null;
+		if (cache != null) {
+		    cacheKey = cache.getKey(servletRequest);
+		    if (cacheKey != null && cache.serve(cacheKey,
+			servletRequest, servletResponse, timer)) {
+			return;
+		    }
+		}
+
+		// An expensive query is run as an asynchronous job, and the
+		// client is redirected to the job.  The cost of a
+		// multi-position query is summed over the targets.
+		AsyncQueryManager async = AsyncQueryManager.getManager(params);
+		double sr = AsyncQueryManager.coneRadius(params.getValue("SR"));
+		double[] radii = new double[] { sr };
+		ScsTargetList targets =
+		    (async != null) ? params.getTargets() : null;
+		if (targets != null) {
+		    radii = new double[targets.size()];
+		    for (int i=0;  i < radii.length;  i++)
+			radii[i] = targets.getSr(i, sr);
+		}
+
+		if (async != null && async.isExpensive(params, radii)) {
+
+		    final ScsService jobService = service;
+		    final ScsParamSet jobParams = params;
+		    final String jobFormat = responseFormat;
+		    final String jobServiceName = timer.getService();
+
+		    String jobUrl = async.submit(servletRequest,
+			servletResponse.getContentType(),
+			new AsyncQueryManager.Query() {
+			    public void execute(OutputStream os) throws Exception {
+				RequestTimer t =
+				    new RequestTimer(jobServiceName, "asyncQuery");
+				RequestResponse r = new RequestResponse();
+				r.setTimer(t);
+				try {
+				    writeQueryResponse(jobService, jobParams, r,
+					t.countBytes(os), jobFormat);
+				} catch (Exception ex) {
+				    t.setFailed(true);
+				    throw ex;
+				} finally {
+				    t.setRows(r.size());
+				    t.record();
+				}
+			    }
+			});
+
+		    timer.setOperation("asyncSubmit");
+		    servletResponse.setStatus(HttpServletResponse.SC_SEE_OTHER);
+		    servletResponse.setHeader("Location", jobUrl);
+		    return;
+		}
+
 		servletResponse.setBufferSize(BUFSIZE);
 		out = servletResponse.getOutputStream();
+		ResponseCache.Capture capture = null;
+		if (cacheKey != null)
+		    capture = cache.capture(cacheKey, servletResponse, out);
+		OutputStream os = timer.countBytes(
+		    (capture != null) ? capture : out);
 
-		// Write the query response output.
-		if (htmlOut)
-		    requestResponse.writeHTML((OutputStream)out);
-		else if (textOut)
-		    requestResponse.writeText((OutputStream)out);
-		else if (csvOut)
-		    requestResponse.writeCsv((OutputStream)out);
-		else
-		    requestResponse.writeVOTable((OutputStream)out);
+		// Execute the queryData operation and write the response.
+		writeQueryResponse(service, params, requestResponse, os,
+		    responseFormat);
+
+		if (capture != null)
+		    cache.put(capture, servletResponse.getContentType());
 
 	    } catch (DalServerException ex) {
-		error = this.errorResponse(params, servletResponse, ex);
+		timer.setFailed(true);
+
+		// Once streamed output has begun the error can only be
+		// reported at the end of the partial response.
+		if (requestResponse != null && requestResponse.isStreamStarted())
+		    requestResponse.abortStream(ex.getMessage());
+		else
+		    error = this.errorResponse(params, servletResponse, ex);
 
 	    } finally {
+		if (requestResponse != null)
+		    timer.setRows(requestResponse.size());
+		timer.record();
 		if (out != null) out.close();
 		requestResponse = null;
 	    }
 
+	// -------- GETJOB, GETJOBRESULT operations. --------
+
+        } else if (operation.equalsIgnoreCase("getJob") ||
+	    operation.equalsIgnoreCase("getJobResult")) {
+	    try {
+		AsyncQueryManager async = AsyncQueryManager.getManager(params);
+		if (async == null)
+		    throw new DalServerException("Async queries are not enabled");
+
+		String jobId = params.getValue("JOBID");
+		if (operation.equalsIgnoreCase("getJob"))
+		    async.writeJob(jobId, servletResponse);
+		else
+		    async.writeResult(jobId, servletResponse);
+
+	    } catch (DalServerException ex) {
+		error = this.errorResponse(params, servletResponse, ex);
+	    }
+
 	// -------- GETCAPABILITIES operation. --------
 
         } else if (operation.equalsIgnoreCase("getCapabilities")) {
@@ -336,6 +497,84 @@ public class ScsServlet extends HttpServlet {
 
     // ---------- Private Methods -------------------
 
+    /**
+     * Execute the queryData operation and write the query response to an
+     * output stream, streaming the table rows if possible.  This is used
+     * for a synchronous query, and for a query run as an asynchronous job,
+     * where the response is spooled to disk.
+     *
+     * @param	service		The service implementation.
+     * @param	params		The input service parameter set.
+     * @param	requestResponse	The request response object, with timer.
+     * @param	os		Output stream for the query response.
+     * @param	responseFormat	The requested response format.
+     */
+    private void writeQueryResponse(ScsService service, ScsParamSet params,
+	RequestResponse requestResponse, OutputStream os,
+	String responseFormat) throws DalServerException, IOException {
+
+	RequestTimer timer = requestResponse.getTimer();
+
+	boolean htmlOut=false, textOut=false, csvOut=false, fitsOut=false;
+	if (responseFormat != null) {
+	    if (responseFormat.equalsIgnoreCase("html")) 
+		htmlOut = true;
+	    else if (responseFormat.equalsIgnoreCase("text")) 
+		textOut = true;
+	    else if (responseFormat.equalsIgnoreCase("csv")) 
+		csvOut = true;
+	    else if (responseFormat.equalsIgnoreCase("fits") ||
+		responseFormat.equalsIgnoreCase("application/fits"))
+		fitsOut = true;
+	}
+
+	// A VOTable may be requested with the BINARY2 serialization,
+	// e.g., RESPONSEFORMAT=votable;serialization=binary2.
+	String serialization =
+	    VOTableRowSink.getSerialization(responseFormat);
+
+	// If enabled for the service, stream the table rows to the client
+	// as they are generated rather than first building the entire
+	// response in memory.  Streaming is off by default since services
+	// which score or sort the response need the whole table.  Only
+	// VOTable output is streamed, as an error occurring once output
+	// has begun can then still be reported, in a trailing QUERY_STATUS
+	// INFO; CSV and FITS have no way to mark a truncated table, and
+	// HTML and text output require the whole table.
+
+	String streaming = params.getSysValue("streaming", "false");
+	if (streaming.equalsIgnoreCase("true") &&
+	    !htmlOut && !textOut && !csvOut && !fitsOut) {
+	    requestResponse.setRowSink(
+		new VOTableRowSink(os, serialization));
+	}
+
+	// Execute the queryData operation.
+	service.queryData(params, requestResponse);
+
+	// Optionally report the stage timings in the response.
+	String timingInfo = params.getSysValue("timingInfo", "false");
+	if (timingInfo.equalsIgnoreCase("true"))
+	    requestResponse.addInfo("Timing",
+		new TableInfo("Timing", timer.toString()));
+
+	// Write the query response output.
+	timer.start(RequestTimer.SERIALIZE);
+	if (requestResponse.isStreaming())
+	    requestResponse.endStream();
+	else if (htmlOut)
+	    requestResponse.writeHTML(os);
+	else if (textOut)
+	    requestResponse.writeText(os);
+	else if (csvOut)
+	    requestResponse.writeCsv(os);
+	else if (fitsOut)
+	    requestResponse.writeFits(os);
+	else
+	    requestResponse.writeVOTable(os, serialization);
+	timer.stop(RequestTimer.SERIALIZE);
+    }
+
     /**
      * Handle an exception, returning an error response to the client.
      * This version return a VOTable.  If any further errors occur while
@@ -373,8 +612,9 @@ public class ScsServlet extends HttpServlet {
 	    r.addInfo(key, info);
 	    r.echoParamInfos(params);
 
-	    // Set up the output stream.
-	    servletResponse.resetBuffer();
+	    // Set up the output stream.  Any caching headers set for a
+	    // cached response are cleared.
+	    ResponseCache.noStore(servletResponse);
 	    servletResponse.setContentType("text/xml;x-votable");
 	    servletResponse.setBufferSize(BUFSIZE);
 	    out = servletResponse.getOutputStream();
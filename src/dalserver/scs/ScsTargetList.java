@@ -0,0 +1,314 @@
+/*
+ * ScsTargetList.java
+ * $ID*
+ */
+
+package dalserver.scs;
+
+import java.io.*;
+import java.util.*;
+import cds.savot.model.*;
+import cds.savot.pull.SavotPullEngine;
+import cds.savot.pull.SavotPullParser;
+import dalserver.*;
+
+/**
+ * A list of target positions for a multi-position cone search.  Rather
+ * than calling the cone search service once for each target, a client
+ * may upload a list of targets, and all the targets are searched in a
+ * single request.  Each output row is tagged with the index (zero-based)
+ * of the input target it matches, and the separation from the target.
+ *
+ * <p>The target list may be given either as CSV (comma or whitespace
+ * delimited) or as a VOTable (TABLEDATA).  The columns are identified by
+ * name (RA, DEC, and optionally SR, case insensitive), or for a VOTable
+ * by UCD (pos.eq.ra, pos.eq.dec).  A CSV list with no header line has
+ * the columns RA, DEC[, SR].  Positions are ICRS, decimal degrees.  If
+ * no SR is given for a target, the SR of the request is used.
+ */
+public class ScsTargetList {
+
+    /** Default maximum number of targets in a single request. */
+    public static final int DEFAULT_MAX_TARGETS = 10000;
+
+    private double[] ra, dec, sr;
+    private int size = 0;
+
+
+    /** Create an empty target list. */
+    public ScsTargetList() {
+	ra = new double[64];
+	dec = new double[64];
+	sr = new double[64];
+    }
+
+    /**
+     * Read a target list, as either CSV or VOTable.
+     *
+     * @param	in		Input stream containing the target list
+     * @param	maxTargets	Maximum number of targets permitted
+     */
+    public static ScsTargetList read(InputStream in, int maxTargets)
+	throws DalServerException {
+
+	BufferedInputStream bin = new BufferedInputStream(in);
+	int ch;
+
+	// A VOTable is recognized by the leading '<'.
+	try {
+	    bin.mark(1024);
+	    do {
+		ch = bin.read();
+	    } while (ch >= 0 && Character.isWhitespace(ch));
+	    bin.reset();
+	} catch (IOException ex) {
+	    throw new DalServerException(ex.getMessage());
+	}
+
+	if (ch == '<')
+	    return (readVOTable(bin, maxTargets));
+
+	try {
+	    return (readCSV(new BufferedReader(
+		new InputStreamReader(bin, "UTF-8")), maxTargets));
+	} catch (UnsupportedEncodingException ex) {
+	    throw new DalServerException(ex.getMessage());
+	}
+    }
+
+    /**
+     * Parse a target list given as a string, e.g., the value of the
+     * TARGETS parameter.
+     *
+     * @param	text		The target list (CSV or VOTable)
+     * @param	maxTargets	Maximum number of targets permitted
+     */
+    public static ScsTargetList parse(String text, int maxTargets)
+	throws DalServerException {
+
+	if (text.trim().startsWith("<")) {
+	    try {
+		return (readVOTable(new ByteArrayInputStream(
+		    text.getBytes("UTF-8")), maxTargets));
+	    } catch (UnsupportedEncodingException ex) {
+		throw new DalServerException(ex.getMessage());
+	    }
+	} else
+	    return (readCSV(new BufferedReader(new StringReader(text)),
+		maxTargets));
+    }
+
+    /** Read a CSV target list. */
+    private static ScsTargetList readCSV(BufferedReader in, int maxTargets)
+	throws DalServerException {
+
+	ScsTargetList targets = new ScsTargetList();
+	int raCol = 0, decCol = 1, srCol = 2;
+	boolean first = true;
+	String line;
+
+	try {
+	    while ((line = in.readLine()) != null) {
+		line = line.trim();
+		if (line.length() == 0 || line.startsWith("#"))
+		    continue;
+		String[] tok = line.split("\\s*[,\\s]\\s*");
+
+		// An optional header line gives the column names.
+		if (first) {
+		    first = false;
+		    if (!isNumber(tok[0])) {
+			raCol = decCol = srCol = -1;
+			for (int i=0;  i < tok.length;  i++) {
+			    String name = tok[i].replace("\"", "");
+			    if (name.equalsIgnoreCase("RA"))
+				raCol = i;
+			    else if (name.equalsIgnoreCase("DEC"))
+				decCol = i;
+			    else if (name.equalsIgnoreCase("SR"))
+				srCol = i;
+			}
+			if (raCol < 0 || decCol < 0)
+			    throw new DalServerException(
+				"target list requires RA and DEC columns");
+			continue;
+		    }
+		}
+
+		targets.add(value(tok, raCol), value(tok, decCol),
+		    value(tok, srCol), maxTargets);
+	    }
+	} catch (IOException ex) {
+	    throw new DalServerException(ex.getMessage());
+	}
+
+	return (targets);
+    }
+
+    /** Read a VOTable target list; the first table is used. */
+    private static ScsTargetList readVOTable(InputStream in, int maxTargets)
+	throws DalServerException {
+
+	ScsTargetList targets = new ScsTargetList();
+	SavotPullParser parser =
+	    new SavotPullParser(in, SavotPullEngine.FULL, "UTF-8");
+	SavotVOTable votable = parser.getVOTable();
+
+	SavotTable table = null;
+	ResourceSet resources = votable.getResources();
+	for (int i=0;  table == null && i < resources.getItemCount();  i++) {
+	    SavotResource r = (SavotResource) resources.getItemAt(i);
+	    if (r.getTables().getItemCount() > 0)
+		table = (SavotTable) r.getTables().getItemAt(0);
+	}
+	if (table == null)
+	    throw new DalServerException("no table in target list VOTable");
+
+	// Locate the position columns.
+	int raCol = -1, decCol = -1, srCol = -1;
+	FieldSet fields = table.getFields();
+	for (int i=0;  i < fields.getItemCount();  i++) {
+	    SavotField field = (SavotField) fields.getItemAt(i);
+	    String name = field.getName();
+	    String ucd = field.getUcd();
+	    if (ucd == null)
+		ucd = "";
+
+	    if (raCol < 0 && ("RA".equalsIgnoreCase(name) ||
+		ucd.startsWith("pos.eq.ra") || ucd.equals("POS_EQ_RA_MAIN")))
+		raCol = i;
+	    else if (decCol < 0 && ("DEC".equalsIgnoreCase(name) ||
+		ucd.startsWith("pos.eq.dec") || ucd.equals("POS_EQ_DEC_MAIN")))
+		decCol = i;
+	    else if (srCol < 0 && "SR".equalsIgnoreCase(name))
+		srCol = i;
+	}
+	if (raCol < 0 || decCol < 0)
+	    throw new DalServerException(
+		"target list requires RA and DEC columns");
+
+	SavotData data = table.getData();
+	if (data == null || data.getTableData() == null) {
+	    if (data != null && data.getBinary() != null)
+		throw new DalServerException(
+		    "target list VOTable must use TABLEDATA");
+	    return (targets);
+	}
+
+	TRSet rows = data.getTableData().getTRs();
+	for (int i=0;  i < rows.getItemCount();  i++) {
+	    TDSet tds = rows.getTDSet(i);
+	    String[] tok = new String[tds.getItemCount()];
+	    for (int j=0;  j < tok.length;  j++)
+		tok[j] = tds.getContent(j);
+
+	    targets.add(value(tok, raCol), value(tok, decCol),
+		value(tok, srCol), maxTargets);
+	}
+
+	return (targets);
+    }
+
+    /** Get a numeric column value, or NaN if not given. */
+    private static double value(String[] tok, int col)
+	throws DalServerException {
+
+	if (col < 0 || col >= tok.length)
+	    return (Double.NaN);
+	String s = tok[col].replace("\"", "").trim();
+	if (s.length() == 0)
+	    return (Double.NaN);
+
+	try {
+	    return (Double.parseDouble(s));
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException("invalid target list value: " + s);
+	}
+    }
+
+    private static boolean isNumber(String s) {
+	try {
+	    Double.parseDouble(s);
+	    return (true);
+	} catch (NumberFormatException ex) {
+	    return (false);
+	}
+    }
+
+    /**
+     * Add a target to the list.
+     *
+     * @param	ra		Right ascension, degrees
+     * @param	dec		Declination, degrees
+     * @param	sr		Search radius, degrees, or NaN for the default
+     * @param	maxTargets	Maximum number of targets permitted
+     */
+    public void add(double ra, double dec, double sr, int maxTargets)
+	throws DalServerException {
+
+	if (Double.isNaN(ra) || Double.isNaN(dec))
+	    throw new DalServerException("target " + size + ": no position");
+	if (dec < -90.0 || dec > 90.0 || sr < 0.0 || sr > 180.0)
+	    throw new DalServerException("target " + size +
+		": position or radius out of range");
+	if (size >= maxTargets)
+	    throw new DalServerException("too many targets (maximum " +
+		maxTargets + ")");
+
+	if (size == this.ra.length) {
+	    this.ra = Arrays.copyOf(this.ra, size * 2);
+	    this.dec = Arrays.copyOf(this.dec, size * 2);
+	    this.sr = Arrays.copyOf(this.sr, size * 2);
+	}
+
+	if (ra < 0.0 || ra >= 360.0)
+	    ra = ((ra % 360.0) + 360.0) % 360.0;
+	this.ra[size] = ra;
+	this.dec[size] = dec;
+	this.sr[size] = sr;
+	size++;
+    }
+
+    /** Get the number of targets. */
+    public int size() {
+	return (size);
+    }
+
+    /** Get the right ascension of a target, degrees. */
+    public double getRa(int i) {
+	return (ra[i]);
+    }
+
+    /** Get the declination of a target, degrees. */
+    public double getDec(int i) {
+	return (dec[i]);
+    }
+
+    /**
+     * Get the search radius of a target, degrees.
+     *
+     * @param	i		Target index
+     * @param	defaultSr	Search radius if none given for the target
+     */
+    public double getSr(int i, double defaultSr) {
+	return (Double.isNaN(sr[i]) ? defaultSr : sr[i]);
+    }
+
+    /**
+     * Add the output fields identifying the target matched by each row,
+     * "target_index" and "target_sep".
+     *
+     * @param	response	The request response object.
+     */
+    public static void addFields(RequestResponse response) {
+	TableField field = new TableField("target_index", "target_index",
+	    null, "int", null, null, "", "meta.id.cross",
+	    "Index (zero-based) of the matching input target");
+	response.addField(field);
+
+	field = new TableField("target_sep", "target_sep", null, "double",
+	    null, "deg", "", "pos.angDistance",
+	    "Angular separation from the input target");
+	response.addField(field);
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * CutoutCache.java
+ * $ID*
+ */
+
+package dalserver.sia;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+import dalserver.*;
+
+/**
+ * Content-addressed cache of generated cutout (virtual) images in the
+ * staging area.  Every SIA query in cutout mode describes its cutouts in
+ * new MDFILEs, so the same cutout of a popular image is otherwise
+ * regenerated by the cutout task each time it is retrieved.  Instead the
+ * generated image is stored under a key computed from what determines
+ * its content: the identity of the archival image (canonical path, size
+ * and modification time), and the filter (cutout) and pixel (section)
+ * terms of the MDFILE.  Spectral band and polarization constraints are
+ * included since they are expressed in the pixel ranges of the cutout
+ * term.  A repeated request for the same cutout is served directly from
+ * disk.
+ *
+ * <p>Concurrent requests for the same cutout are coalesced, so that only
+ * one request generates the image, while the others wait for it.  The
+ * cached images are kept in the "cutouts" subdirectory of the staging
+ * area, within a size cap.  A background sweeper periodically deletes the
+ * least recently used images to stay within the cap.  The time of last
+ * use is kept in memory rather than by touching the file, so that the
+ * modification time, and hence the ETag, of a cached image is stable for
+ * clients resuming a download.  As an image may be deleted while it is
+ * being sent, it is sent from an open file (see {@link #isCached(File)}).
+ *
+ * <p>The cache is configured by the following service parameters:
+ *
+ * <pre>
+ *   cutoutCacheSize	Size cap of the cached cutouts, MB [1024, 0 disables]
+ *   cutoutCacheSweep	Interval at which the sweeper runs, sec [60]
+ * </pre>
+ */
+public class CutoutCache {
+    private static final Logger log = Logger.getLogger(CutoutCache.class);
+
+    /** Registry of caches, keyed by staging directory. */
+    private static final Map<String,CutoutCache> caches =
+	new HashMap<String,CutoutCache>();
+
+    /** Sweeper thread, shared by all caches. */
+    private static ScheduledExecutorService sweeper = null;
+
+    /** Cache directory and size cap, bytes. */
+    private File dir;
+    private long maxSize;
+
+    /** Cutouts currently being generated, keyed by cache key. */
+    private final ConcurrentHashMap<String,FutureTask<File>> pending =
+	new ConcurrentHashMap<String,FutureTask<File>>();
+
+    /** Time of last use of the cached images, keyed by file name. */
+    private final ConcurrentHashMap<String,Long> used =
+	new ConcurrentHashMap<String,Long>();
+
+    /** Cache statistics. */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+
+    /**
+     * Generates a cutout image, e.g., by running the cutout task.  The
+     * returned file is moved into the cache.
+     */
+    public interface Generator {
+	File generate() throws DalServerException;
+    }
+
+
+    /**
+     * Get the cutout cache for a staging area, creating it if necessary.
+     * If the cache is disabled null is returned.
+     *
+     * @param	params		Service parameter set
+     * @param	stagingDir	The staging area of the service
+     */
+    public static CutoutCache getCache(ParamSet params, String stagingDir)
+	throws DalServerException {
+
+	long size, sweep;
+	try {
+	    size = Long.parseLong(value(params, "cutoutCacheSize", "1024"));
+	    sweep = Long.parseLong(value(params, "cutoutCacheSweep", "60"));
+	} catch (NumberFormatException ex) {
+	    throw new DalServerException(
+		"Bad cutout cache parameter: " + ex.getMessage());
+	}
+	if (size <= 0 || stagingDir == null)
+	    return (null);
+
+	File dir = new File(stagingDir, "cutouts");
+	String key;
+	try {
+	    key = dir.getCanonicalPath();
+	} catch (IOException ex) {
+	    key = dir.getAbsolutePath();
+	}
+
+	synchronized (caches) {
+	    CutoutCache cache = caches.get(key);
+	    if (cache == null) {
+		cache = new CutoutCache(dir, size * 1024L * 1024L, sweep);
+		caches.put(key, cache);
+	    }
+	    return (cache);
+	}
+    }
+
+    /**
+     * Test whether a file is held in a cutout cache, and hence may be
+     * deleted by the sweeper at any time.  Such a file must be opened
+     * before it is sent, rather than handed to the servlet container
+     * by name (sendfile).
+     *
+     * @param	file		The file to be tested
+     */
+    public static boolean isCached(File file) {
+	String parent;
+	try {
+	    parent = file.getCanonicalFile().getParent();
+	} catch (IOException ex) {
+	    parent = file.getAbsoluteFile().getParent();
+	}
+	synchronized (caches) {
+	    return (parent != null && caches.containsKey(parent));
+	}
+    }
+
+    /** Create a cutout cache. */
+    private CutoutCache(File dir, long maxSize, long sweepInterval)
+	throws DalServerException {
+
+	this.dir = dir;
+	this.maxSize = maxSize;
+	if (!dir.isDirectory() && !dir.mkdirs())
+	    throw new DalServerException("cannot create cutout cache " + dir);
+
+	if (sweepInterval > 0) {
+	    synchronized (CutoutCache.class) {
+		if (sweeper == null) {
+		    sweeper = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+			    public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cutout-cache-sweeper");
+				t.setDaemon(true);
+				return (t);
+			    }
+			});
+		}
+	    }
+
+	    sweeper.scheduleWithFixedDelay(new Runnable() {
+		public void run() {
+		    try {
+			sweep();
+		    } catch (Exception ex) {
+			log.error("cutout cache " + CutoutCache.this.dir +
+			    ": sweep failed: " + ex.getMessage());
+		    }
+		}
+	    }, sweepInterval, sweepInterval, TimeUnit.SECONDS);
+	}
+    }
+
+    private static String value(ParamSet params, String name, String def) {
+	String value = params.getValue(name);
+	return ((value == null || value.trim().length() == 0) ?
+	    def : value.trim());
+    }
+
+
+    /**
+     * Compute the cache key of the cutout described by an MDFILE.
+     *
+     * @param	md		The MDFILE keywords
+     * @param	stagingDir	The staging area, against which a relative
+     *				image pathname is resolved
+     *
+     * @return			The key, a hex SHA-256 digest, or null if the
+     *				MDFILE does not identify an existing image.
+     */
+    public static String key(KeywordTable md, String stagingDir) {
+	String image = md.getKeyword("image");
+	if (image == null)
+	    return (null);
+
+	File file = new File(image);
+	if (!file.isAbsolute())
+	    file = new File(stagingDir, image);
+	if (!file.isFile())
+	    return (null);
+
+	StringBuilder id = new StringBuilder();
+	try {
+	    id.append(file.getCanonicalPath());
+	} catch (IOException ex) {
+	    return (null);
+	}
+	id.append('\n').append(file.length());
+	id.append('\n').append(file.lastModified());
+
+	if ("true".equals(md.getKeyword("filter_term")))
+	    id.append("\ncutout=").append(md.getKeyword("cutout"));
+	if ("true".equals(md.getKeyword("pixel_term")))
+	    id.append("\nsection=").append(md.getKeyword("section"));
+
+	try {
+	    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+	    byte[] hash = digest.digest(id.toString().getBytes("UTF-8"));
+	    StringBuilder sb = new StringBuilder();
+	    for (byte b : hash)
+		sb.append(String.format("%02x", b & 0xff));
+	    return (sb.toString());
+	} catch (Exception ex) {
+	    return (null);
+	}
+    }
+
+    /**
+     * Get the cutout image described by an MDFILE, generating it only if
+     * it is not already cached, or being generated by another request.
+     *
+     * @param	md		The MDFILE keywords
+     * @param	stagingDir	The staging area of the service
+     * @param	generator	Generates the image if it is not cached
+     *
+     * @return			The cached image file
+     */
+    public File get(KeywordTable md, String stagingDir,
+	final Generator generator) throws DalServerException {
+
+	// If the image cannot be identified generate it uncached.
+	String key = key(md, stagingDir);
+	if (key == null)
+	    return (generator.generate());
+
+	final File file = new File(dir, key + ".fits");
+	if (file.isFile()) {
+	    hits.incrementAndGet();
+	    used.put(file.getName(), System.currentTimeMillis());
+	    return (file);
+	}
+
+	// Generate the image, unless another request is already doing so,
+	// in which case wait for it.
+
+	FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+	    public File call() throws Exception {
+		if (file.isFile())
+		    return (file);
+		store(generator.generate(), file);
+		return (file);
+	    }
+	});
+
+	FutureTask<File> current = pending.putIfAbsent(key, task);
+	if (current == null) {
+	    misses.incrementAndGet();
+	    try {
+		task.run();
+	    } finally {
+		pending.remove(key, task);
+	    }
+	    current = task;
+	} else
+	    coalesced.incrementAndGet();
+
+	try {
+	    return (current.get());
+	} catch (ExecutionException ex) {
+	    Throwable cause = ex.getCause();
+	    if (cause instanceof DalServerException)
+		throw (DalServerException) cause;
+	    throw new DalServerException("cutout generation failed: " +
+		cause.getMessage());
+	} catch (InterruptedException ex) {
+	    throw new DalServerException("cutout generation interrupted");
+	}
+    }
+
+    /** Move a generated image into the cache. */
+    private void store(File image, File file) throws DalServerException {
+	if (image == null || !image.isFile())
+	    throw new DalServerException("cutout generation failed");
+
+	// Copy to a temporary file in the cache directory if the image
+	// cannot be moved, so that the final rename is atomic.
+	try {
+	    try {
+		Files.move(image.toPath(), file.toPath(),
+		    StandardCopyOption.ATOMIC_MOVE,
+		    StandardCopyOption.REPLACE_EXISTING);
+	    } catch (IOException ex) {
+		File temp = new File(dir, file.getName() + ".tmp");
+		Files.copy(image.toPath(), temp.toPath(),
+		    StandardCopyOption.REPLACE_EXISTING);
+		Files.move(temp.toPath(), file.toPath(),
+		    StandardCopyOption.ATOMIC_MOVE,
+		    StandardCopyOption.REPLACE_EXISTING);
+	    }
+	} catch (IOException ex) {
+	    throw new DalServerException("cannot cache cutout " + image +
+		": " + ex.getMessage());
+	}
+    }
+
+    /**
+     * Delete the least recently used images until the cache is within
+     * its size cap.  This is normally called by the sweeper thread.
+     */
+    public void sweep() {
+	File[] files = dir.listFiles(new FileFilter() {
+	    public boolean accept(File f) {
+		return (f.isFile() && f.getName().endsWith(".fits"));
+	    }
+	});
+	if (files == null)
+	    return;
+
+	final Map<File,Long> times = new HashMap<File,Long>();
+	long total = 0;
+	for (File f : files) {
+	    Long time = used.get(f.getName());
+	    times.put(f, Math.max(f.lastModified(),
+		(time == null) ? 0 : time.longValue()));
+	    total += f.length();
+	}
+	if (total <= maxSize)
+	    return;
+
+	Arrays.sort(files, new Comparator<File>() {
+	    public int compare(File a, File b) {
+		return (times.get(a).compareTo(times.get(b)));
+	    }
+	});
+
+	int deleted = 0;
+	for (int i=0;  i < files.length && total > maxSize;  i++) {
+	    long length = files[i].length();
+	    if (files[i].delete()) {
+		used.remove(files[i].getName());
+		total -= length;
+		deleted++;
+	    }
+	}
+	log.info("cutout cache " + dir + ": " + deleted +
+	    " images deleted, " + total + " bytes cached");
+    }
+
+    /** Get the cache directory. */
+    public File getDirectory() { return (dir); }
+
+    /** Get the number of requests served from the cache. */
+    public long getHits() { return (hits.get()); }
+
+    /** Get the number of requests which generated a cutout. */
+    public long getMisses() { return (misses.get()); }
+
+    /** Get the number of requests which waited for another to generate. */
+    public long getCoalesced() { return (coalesced.get()); }
+}
@@ -0,0 +1,543 @@
+/*
+ * CutoutPlanner.java
+ * $ID*
+ */
+
+package dalserver.sia;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.*;
+
+import dalserver.*;
+import dalserver.conf.DataFormatException;
+import dalserver.conf.FITSHeaderKeywords;
+import dalserver.conf.image.CoordSys;
+import dalserver.conf.image.ImageHeaderUtils;
+
+/**
+ * In-JVM planner for the virtual image (cutout) of an archival image.
+ * Given the filter parameters of a SIAV2 request (POS, SIZE, BAND) and an
+ * optional pixel SECTION, the planner reads the header of the archival
+ * image, projects the requested region through the image WCS, clips it
+ * to the image, and writes an MDFILE describing the virtual image to the
+ * staging area.  This is the computation performed by "vocutout -m", and
+ * the MDFILE and returned keywords are the same, so that the image can
+ * later be generated by "vocutout -x"; no external task is required to
+ * plan a cutout, which avoids a process per candidate image of a query.
+ *
+ * <p>The computation follows vocutout closely, including its treatment of
+ * spectral units, so that the two planners compute the same cutout
+ * sections.  The planner used by a service is selected by the
+ * cutoutPlanner service parameter ("task" or "java").
+ */
+public class CutoutPlanner {
+    /* Axis map.  Maps logical axes to physical image axes. */
+    private static final int AX_SP1 = 0;	// First spatial axis
+    private static final int AX_SP2 = 1;	// Second spatial axis
+    private static final int AX_EM = 2;		// Spectral (EM) axis
+    private static final int AX_TIME = 3;	// Time axis
+    private static final int AX_POL = 4;	// Polarization axis
+
+    /** Speed of light, m/s. */
+    private static final double C = 299792458.0;
+
+    /** Directory in which MDFILEs are written. */
+    private String stagingDir;
+
+    /* Filter and pixel terms of the virtual image. */
+    boolean spatial = false;
+    boolean spectral = false;
+    double ra = 0.0, dec = 0.0, width = 0.0, height = 0.0;
+    double wavelo = 0.0, wavehi = 0.0;
+    String section = null;
+
+
+    /**
+     * Create a cutout planner for the filter parameters of a request.
+     *
+     * @param	params		A SIAPV2 parameter set with filter params
+     * @param	stagingDir	Directory in which MDFILEs are written
+     */
+    public CutoutPlanner(SiapParamSet params, String stagingDir)
+	throws DalServerException {
+
+	this.stagingDir = stagingDir;
+	Param p;
+
+	// --- FILTER TERM ---
+
+	// SPATIAL Coverage.
+	// ------------------
+
+        if ((p = params.getParam("POS")) != null && p.isSet()) {
+	    // Get POS (e.g., "<val1>,<val2>;<property>").
+            RangeList r = p.rangeListValue();
+            ra = r.doubleValue(0);
+            dec = r.doubleValue(1);
+	    spatial = true;
+
+	    // Verify that the coordinates are in a supported frame.
+	    // Frames are specified as a property of the range list.
+
+	    for (Iterator<?> i = r.propertiesIterator();  i.hasNext();  ) {
+		Map.Entry<?,?> me = (Map.Entry<?,?>) i.next();
+		String key = (String) me.getKey();
+
+		// Currently only ICRS is supported.
+		if (key != null && !key.equalsIgnoreCase("ICRS"))
+		    throw new DalServerException("unsupported coordinate frame '" + key + "'");
+	    }
+
+	    // GET SIZE (either a single value, or separate values for RA and DEC).
+            if ((p = params.getParam("SIZE")) != null && p.isSet()) {
+		r = p.rangeListValue();
+		width = r.doubleValue(0);
+		try {
+		    height = r.doubleValue(1);
+		} catch (DalServerException ex) {
+		    height = width;
+		}
+	    }
+        }
+
+        // SPECTRAL Coverage.
+	// ------------------
+
+        if ((p = params.getParam("BAND")) != null && p.isSet()) {
+            RangeList r = p.rangeListValue();
+            wavelo = r.getRange(0).doubleValue1();
+            wavehi = r.getRange(0).doubleValue2();
+	    spectral = true;
+        }
+
+	// TIME and POLARIZATION coverage are omitted for now.
+
+	// --- PIXEL TERM ---
+        if ((p = params.getParam("SECTION")) != null && p.isSet())
+	    section = p.stringValue();
+    }
+
+
+    /**
+     * Compute the metadata for the virtual image of an archival image.
+     * The metadata is written to a new MDFILE in the staging area, and
+     * returned as a KeywordTable, exactly as for "vocutout -m".
+     *
+     * @param	imagefile	The archival imagefile pathname
+     *
+     * @return			The metadata of the virtual image, including
+     *				the name of the MDFILE (keyword MDFILE).
+     */
+    public KeywordTable
+    plan (String imagefile) throws DalServerException {
+
+	ImageHeaderUtils hdr = readHeader(imagefile);
+	FITSHeaderKeywords kws = hdr.kws;
+
+	// Read the image geometry and WCS.
+	CoordSys wcs;
+	try {
+	    wcs = hdr.getCoordSys(0);
+	} catch (DataFormatException ex) {
+	    throw new DalServerException("cannot read WCS for image " +
+		imagefile + ": " + ex.getMessage());
+	} catch (IllegalArgumentException ex) {
+	    throw new DalServerException("cannot read WCS for image " +
+		imagefile + ": " + ex.getMessage());
+	}
+
+	// Since we are working with the WCS here, we want WCSDIM not NAXES.
+	// Degenerate axes beyond NAXIS have a length of one.
+	int naxes = Math.max(hdr.getNaxes(0), wcs.getNaxes());
+	long naxis[] = new long[naxes];
+	String ctype[] = new String[naxes];
+	String cunit[] = new String[naxes];
+	int axmap[] = new int[naxes];
+	int bitpix = kws.getIntValue(0, "BITPIX", 0);
+
+	for (int i=0;  i < naxes;  i++) {
+	    naxis[i] = kws.getLongValue(0, "NAXIS" + (i+1), 1);
+	    ctype[i] = kws.getStringValue(0, "CTYPE" + (i+1), "").trim();
+	    cunit[i] = kws.getStringValue(0, "CUNIT" + (i+1), "").trim();
+	    if ((axmap[i] = axisType(ctype[i])) < 0)
+		throw new DalServerException("unknown CTYPE value " + ctype[i]);
+	}
+
+	int ra_axis = findAxis(AX_SP1, axmap);
+	int dec_axis = findAxis(AX_SP2, axmap);
+	int em_axis = findAxis(AX_EM, axmap);
+
+	// Disable filtering on an axis if we don't have enough WCS info.
+	boolean spatial_filter = spatial && ra_axis >= 0 && dec_axis >= 0;
+	boolean spectral_filter = spectral && em_axis >= 0;
+	boolean filter_term = spatial || spectral;
+
+	String em_ctype = (em_axis < 0) ? "" : ctype[em_axis];
+	String em_unit = (em_axis < 0) ? "" : cunit[em_axis];
+
+	// Compute the world coordinates of the full image.  Axes which are
+	// not filtered keep these bounds.
+
+	double in1[] = new double[naxes];
+	double in2[] = new double[naxes];
+	for (int i=0;  i < naxes;  i++) {
+	    in1[i] = 1.0;
+	    in2[i] = naxis[i];
+	}
+	double out1[] = toWorld(wcs, in1, imagefile);
+	double out2[] = toWorld(wcs, in2, imagefile);
+
+	if (spatial_filter) {
+	    double h = (height <= 0.0) ? width : height;
+	    out1[ra_axis] = ra - (width / 2.0);
+	    out2[ra_axis] = ra + (width / 2.0);
+	    out1[dec_axis] = dec - (h / 2.0);
+	    out2[dec_axis] = dec + (h / 2.0);
+	}
+
+	if (spectral_filter) {
+	    // Only WAVE and FREQ image coords are supported; otherwise the
+	    // entire spectral axis is returned.
+	    if (isWaveOrFreq(em_ctype)) {
+		out1[em_axis] = wave2image(wavelo, em_ctype, em_unit);
+		out2[em_axis] = wave2image(wavehi, em_ctype, em_unit);
+	    }
+	}
+
+	// Transform the bounds of the (unclipped) cutout region back to
+	// image pixel coordinates, and clip to the image.  If any axis lies
+	// completely outside the image the cutout has no coverage.
+
+	double v1[] = wcs.getDataPos(out1);
+	double v2[] = wcs.getDataPos(out2);
+	if (v1 == null || v2 == null)
+	    throw new DalServerException("no coverage in selected region");
+
+	int cutout1[] = new int[naxes];
+	int cutout2[] = new int[naxes];
+	for (int i=0;  i < naxes;  i++) {
+	    if (!(v1[i] <= naxis[i] && v2[i] >= 1.0)) {
+		throw new DalServerException("no coverage in selected region" +
+		    " (axis" + (i+1) + ": " + ctype[i] + ")");
+	    }
+	    cutout1[i] = (int) Math.max(1, Math.min(naxis[i], nint(v1[i])));
+	    cutout2[i] = (int) Math.max(1, Math.min(naxis[i], nint(v2[i])));
+	    in1[i] = cutout1[i];
+	    in2[i] = cutout2[i];
+	}
+
+	// Compute RA,DEC of the corners of the clipped cutout region.
+	double ra_c[] = new double[4];
+	double dec_c[] = new double[4];
+	double ra_cen = 0.0, dec_cen = 0.0;
+
+	if (spatial_filter) {
+	    int corners[][] = {
+		{ cutout1[ra_axis], cutout1[dec_axis] },
+		{ cutout2[ra_axis], cutout1[dec_axis] },
+		{ cutout2[ra_axis], cutout2[dec_axis] },
+		{ cutout1[ra_axis], cutout2[dec_axis] } };
+
+	    for (int i=0;  i < 4;  i++) {
+		double pix[] = in1.clone();
+		pix[ra_axis] = corners[i][0];
+		pix[dec_axis] = corners[i][1];
+		double pos[] = toWorld(wcs, pix, imagefile);
+		ra_c[i] = (pos[ra_axis] < 0.0) ? 360.0 + pos[ra_axis] : pos[ra_axis];
+		dec_c[i] = pos[dec_axis];
+	    }
+
+	    ra_cen = Math.abs(ra_c[2] - ra_c[0]) / 2.0 + Math.min(ra_c[0], ra_c[2]);
+	    dec_cen = Math.abs(dec_c[2] - dec_c[0]) / 2.0 + Math.min(dec_c[0], dec_c[2]);
+	}
+
+	// Format the MDFILE.
+	StringBuilder md = new StringBuilder();
+	md.append("\n[filter]\n\n");
+
+	if (filter_term) {
+	    md.append("filter_term = true\n");
+
+	    // Record the filter term required to extract the cutout region.
+	    if (naxes >= 2 && naxes <= 4) {
+		md.append("cutout = [");
+		for (int i=0;  i < naxes;  i++) {
+		    md.append((i > 0) ? "," : "");
+		    md.append(cutout1[i] + ":" + cutout2[i]);
+		}
+		md.append("]\n");
+	    } else
+		md.append("cutout = [*]\n");
+
+	    // Count the number of axes and compute their lengths.
+	    StringBuilder cutaxis = new StringBuilder();
+	    int real_naxes = 0;
+	    long datalen = 1;
+	    for (int i=0;  i < naxes;  i++) {
+		long npix = Math.abs(cutout2[i] - cutout1[i]) + 1;
+		if (npix > 1) {
+		    cutaxis.append((real_naxes++ > 0) ? " " : "");
+		    cutaxis.append(npix);
+		}
+		datalen *= npix;
+	    }
+
+	    // A single pixel is an image with a single axis of length 1.
+	    md.append("im_naxes = " + Math.max(1, real_naxes) + "\n");
+	    if (real_naxes == 0 || real_naxes > 4)
+		md.append("im_naxis = ****\n");
+	    else
+		md.append("im_naxis = " + cutaxis + "\n");
+
+	    md.append("access_estsize = " +
+		(datalen * (Math.abs(bitpix) / 8) / 1024) + "\n");
+	    md.append("dataset_length = " + datalen + "\n");
+	    md.append("obs_creation_type = cutout\n");
+
+	    if (spatial_filter) {
+		// Image center.
+		md.append("s_ra = " + formatG(ra_cen, 15) + "\n");
+		md.append("s_dec = " + formatG(dec_cen, 15) + "\n");
+
+		// Image field of view.  Let's use the smaller extent.
+		double ra_width = Math.abs(ra_c[2] - ra_c[0]) *
+		    Math.cos(Math.toRadians(dec_c[2]));
+		double dec_width = Math.abs(dec_c[2] - dec_c[0]);
+		md.append("s_fov = " +
+		    formatG(Math.min(ra_width, dec_width), 6) + "\n");
+
+		// Image footprint (STC AstroCoordArea).
+		md.append("s_region = polygon icrs");
+		for (int i=0;  i < 4;  i++) {
+		    md.append(" " + formatG(ra_c[i], 15));
+		    md.append(" " + formatG(dec_c[i], 15));
+		}
+		md.append("\n");
+	    }
+
+	    // Spectral coverage, skipped unless CTYPE and CUNIT are defined.
+	    if (spectral_filter && em_ctype.length() > 0 &&
+		em_unit.length() > 0 && isWaveOrFreq(em_ctype)) {
+
+		double pos1[] = toWorld(wcs, in1, imagefile);
+		double pos2[] = toWorld(wcs, in2, imagefile);
+		double em1 = image2wave(pos1[em_axis], em_ctype, em_unit);
+		double em2 = image2wave(pos2[em_axis], em_ctype, em_unit);
+
+		// As in vocutout, em_min is the longer wavelength.
+		md.append("em_min = " + formatG(Math.max(em1, em2), 15) + "\n");
+		md.append("em_max = " + formatG(Math.min(em1, em2), 15) + "\n");
+	    }
+	} else
+	    md.append("filter_term = false\n");
+
+	// ---- WCS TERM ----
+	md.append("\n[wcs]\n\n");
+	md.append("wcs_term = false\n");
+
+	// ---- PIXEL TERM ----
+	md.append("\n[pixel]\n\n");
+	if (section != null) {
+	    md.append("pixel_term = true\n");
+	    md.append("section = " + section + "\n");
+	} else
+	    md.append("pixel_term = false\n");
+
+	// ---- FUNCTION TERM ----
+	md.append("\n[function]\n\n");
+	md.append("function_term = false\n");
+	md.append("END\n");
+
+	return (new KeywordTable(writeMdfile(imagefile, md.toString())));
+    }
+
+
+    // -------- Private Methods -----------
+
+    /**
+     * Read the headers of an image, from the shared header cache.
+     *
+     * @param	imagefile	The imagefile pathname
+     */
+    private ImageHeaderUtils
+    readHeader (String imagefile) throws DalServerException {
+	try {
+	    return (ImageHeaderUtils.loadFromFile(new File(imagefile)));
+	} catch (IOException ex) {
+	    throw new DalServerException("error reading FITS header " +
+		imagefile + ": " + ex.getMessage());
+	}
+    }
+
+    /**
+     * Write a new MDFILE to the staging area.  The MDFILE name and the
+     * image pathname are prepended to the given metadata.
+     *
+     * @param	imagefile	The archival imagefile pathname
+     * @param	metadata	The formatted metadata terms
+     *
+     * @return			The complete MDFILE text.
+     */
+    private String
+    writeMdfile (String imagefile, String metadata)
+	throws DalServerException {
+
+	if (stagingDir == null)
+	    throw new DalServerException("root directory of staging area not specified");
+
+	File mdfile;
+	try {
+	    mdfile = File.createTempFile("image-", "", new File(stagingDir));
+	} catch (IOException ex) {
+	    throw new DalServerException("cannot create metadata link file in " +
+		stagingDir + ": " + ex.getMessage());
+	}
+
+	String text = "# Virtual image definition file.\n\n" +
+	    "MDFILE = " + mdfile.getName() + "\n" +
+	    "image = " + imagefile + "\n" + metadata;
+
+	Writer out = null;
+	try {
+	    out = new OutputStreamWriter(new FileOutputStream(mdfile), "UTF-8");
+	    out.write(text);
+	} catch (IOException ex) {
+	    mdfile.delete();
+	    throw new DalServerException("cannot write metadata link file " +
+		mdfile + ": " + ex.getMessage());
+	} finally {
+	    try {
+		if (out != null)
+		    out.close();
+	    } catch (IOException ex) {
+		;
+	    }
+	}
+
+	return (text);
+    }
+
+    /** Transform a pixel position to world coordinates. */
+    private static double[]
+    toWorld (CoordSys wcs, double pix[], String imagefile)
+	throws DalServerException {
+
+	double pos[] = wcs.getCoordPos(pix);
+	if (pos == null)
+	    throw new DalServerException("cannot read metadata for image " +
+		imagefile);
+	return (pos);
+    }
+
+    /** Round to the nearest integer, as nint() in vocutout. */
+    private static long nint(double x) {
+	return ((long) (x + 0.5));
+    }
+
+    /** Find the given world axis in the axis map, or -1. */
+    private static int findAxis(int type, int axmap[]) {
+	for (int i=0;  i < axmap.length;  i++)
+	    if (axmap[i] == type)
+		return (i);
+	return (-1);
+    }
+
+    /** Map an image axis CTYPE to the axis type, or -1 if unknown. */
+    private static int axisType(String ctype) {
+	String t = ctype.toUpperCase();
+
+	if (t.startsWith("RA") || t.startsWith("GLON"))
+	    return (AX_SP1);
+	if (t.startsWith("DEC") || t.startsWith("GLAT"))
+	    return (AX_SP2);
+	if (t.startsWith("STOKES"))
+	    return (AX_POL);
+	for (String s : new String[] { "FREQ", "WAVE", "ENER", "WAVN",
+		"VRAD", "VOPT", "ZOPT", "AWAV", "FELO", "VELO" })
+	    if (t.startsWith(s))
+		return (AX_EM);
+	for (String s : new String[] { "UTC", "TT", "TAI", "GMT" })
+	    if (t.startsWith(s))
+		return (AX_TIME);
+	return (-1);
+    }
+
+    /** Test whether a spectral CTYPE is supported for filtering. */
+    private static boolean isWaveOrFreq(String ctype) {
+	String t = ctype.toUpperCase();
+	return (t.startsWith("FREQ") || t.startsWith("WAVE"));
+    }
+
+    /**
+     * Get the scale of a spectral unit.  Units are matched by prefix in
+     * the same order as vocutout, so that the planners agree.
+     */
+    private static double unitScale(String ctype, String unit)
+	throws DalServerException {
+
+	String u = unit.toUpperCase();
+	if (ctype.toUpperCase().startsWith("FREQ")) {
+	    String units[] = { "HZ", "KHZ", "MHZ", "GHZ" };
+	    double scale[] = { 1.0, 1.0E3, 1.0E6, 1.0E9 };
+	    for (int i=0;  i < units.length;  i++)
+		if (u.startsWith(units[i]))
+		    return (scale[i]);
+	    throw new DalServerException("unrecognized frequency unit " + unit);
+	} else {
+	    String units[] = { "M", "CM", "MM", "UM", "NM" };
+	    double scale[] = { 1.0, 1.0E2, 1.0E3, 1.0E6, 1.0E9 };
+	    for (int i=0;  i < units.length;  i++)
+		if (u.startsWith(units[i]))
+		    return (scale[i]);
+	    throw new DalServerException("unrecognized wavelength unit " + unit);
+	}
+    }
+
+    /** Convert a wavelength in meters to image WCS units (WAVE or FREQ). */
+    static double wave2image(double wave, String ctype, String unit)
+	throws DalServerException {
+
+	double scale = unitScale(ctype, unit);
+	if (ctype.toUpperCase().startsWith("FREQ"))
+	    return ((C / wave) * scale);
+	else
+	    return (wave * scale);
+    }
+
+    /** Convert a value in image WCS units (WAVE or FREQ) to meters. */
+    static double image2wave(double imval, String ctype, String unit)
+	throws DalServerException {
+
+	double scale = unitScale(ctype, unit);
+	if (ctype.toUpperCase().startsWith("FREQ"))
+	    return (C / (imval / scale));
+	else
+	    return (imval / scale);
+    }
+
+    /**
+     * Format a number as by the C printf "%.<prec>g" format, as used
+     * for the MDFILE keywords written by vocutout.
+     *
+     * @param	value		The value to be formatted
+     * @param	prec		The number of significant digits
+     */
+    static String formatG(double value, int prec) {
+	if (Double.isNaN(value) || Double.isInfinite(value))
+	    return (Double.toString(value).toLowerCase());
+	if (value == 0.0)
+	    return ("0");
+
+	BigDecimal bd = new BigDecimal(value).round(new MathContext(prec));
+	int exp = bd.precision() - bd.scale() - 1;
+
+	if (exp < -4 || exp >= prec) {
+	    String mant = bd.movePointLeft(exp).stripTrailingZeros().toPlainString();
+	    return (mant + "e" + (exp < 0 ? "-" : "+") +
+		(Math.abs(exp) < 10 ? "0" : "") + Math.abs(exp));
+	} else
+	    return (bd.stripTrailingZeros().toPlainString());
+    }
+}
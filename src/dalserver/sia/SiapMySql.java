@@ -41,12 +41,8 @@ public class SiapMySql {
      * the functionality to query a remote MySQL-hosted catalog.
      */
     public SiapMySql(String jdbcDriver) throws DalServerException {
-	try {
-	    Class.forName(jdbcDriver).newInstance();
-	    conn = null;
-	} catch (Exception ex) {
-	    throw new DalServerException(ex.getMessage());
-	}
+	DbmsQuery.loadDriver(jdbcDriver);
+	conn = null;
     }
 
     /**
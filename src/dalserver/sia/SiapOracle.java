@@ -6,6 +6,7 @@
 package dalserver.sia;
 
 import dalserver.DalServerException;
+import dalserver.DbmsQuery;
 import dalserver.DalOverflowException;
 import dalserver.RequestResponse;
 import dalserver.ConfigTable;
@@ -50,12 +51,8 @@ public class SiapOracle {
      * the functionality to query a remote Oracle-hosted catalog.
      */
     public SiapOracle(String jdbcDriver) throws DalServerException {
-	try {
-	    Class.forName(jdbcDriver).newInstance();
-	    conn = null;
-	} catch (Exception ex) {
-	    throw new DalServerException(ex.getMessage());
-	}
+	DbmsQuery.loadDriver(jdbcDriver);
+	conn = null;
     }
 
     /**
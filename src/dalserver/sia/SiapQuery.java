@@ -267,15 +267,17 @@ public class SiapQuery extends DbmsQuery {
 	Connection conn = this.getConnection();
 
 	// Compose the DBMS query.
-	String query = "".format("SELECT %s FROM %s WHERE (%s = '%s')",
-	    sqlName(attribute), tableName, sqlName("id"), id);
+	SqlTemplate query = new SqlTemplate("SELECT " + sqlName(attribute) +
+	    " FROM " + tableName + " WHERE (" + sqlName("id") + " = ");
+	query.bind(id).append(")");
 
 System.err.println ("queryDataset(): '" + query + "'\n");
 	// Perform the data query and write rows to the output table.
+	PreparedStatement st = null;
 	try {
 	    // Execute the query.
-	    Statement st = conn.createStatement();
-	    ResultSet rs = st.executeQuery(query);
+	    st = query.prepare(conn);
+	    ResultSet rs = st.executeQuery();
 
 	    // Walk through the resultset and output each row.
 	    if (rs.next())
@@ -283,6 +285,8 @@ System.err.println ("queryDataset(): '" + query + "'\n");
 
 	} catch (SQLException ex) {
 	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    SqlTemplate.close(st);
 	}
 
 	return (null);
@@ -305,6 +309,7 @@ System.err.println ("queryDataset(): '" + query + "'\n");
 	String tableName="siav2model";		// default
 	int maxrec = response.maxrec();
 	String sval; Param p;
+	RequestTimer timer = response.getTimer();
 
 	// An open DBMS connection is required.
 	Connection conn = this.getConnection();
@@ -472,16 +477,18 @@ System.err.println ("queryDataset(): '" + query + "'\n");
 
 	// Compose the DBMS query.
 	//-------------------------------------
-	String subselect = "(SELECT * FROM " + tableName + 
-		" WHERE q3c_radial_query (s_ra,s_dec," + ra + "," + dec + ",4.0)) s ";
+	SqlTemplate subselect = new SqlTemplate("(SELECT * FROM " + tableName +
+		" WHERE q3c_radial_query (s_ra,s_dec,");
+	subselect.bind(ra).append(",").bind(dec).append(",4.0)) s ");
 	//String query = "SELECT * FROM " + tableName + " WHERE ";
-	String query = "SELECT * FROM " + subselect + " WHERE ";
+	SqlTemplate query = new SqlTemplate("SELECT * FROM ");
+	query.append(subselect).append(" WHERE ");
 	boolean additional_term = false;
 
 	// Apply the spatial constraint if we have one.
 	if (spatial_constraint) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
 	    // This needs to be converted to a 2D radial test for SIAV2.
 	    // We use the old CAR/box test for now.  Note this need
@@ -511,44 +518,46 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 	    // Handle the case of RA+SR crossing the 0/360 point.
 	    if (ra1 < 0) {
 		if (additional_term)
-		    query += (" AND ");
+		    query.append(" AND ");
 
-		query += ("(" + sqlName(s1Column) +
-		    " BETWEEN " + (360.0 + ra1) + " AND " + 360.0);
-		query += (" OR " + sqlName(s1Column) +
-		    " BETWEEN " + 0.0 + " AND " + ra2 + ")");
+		query.append("(" + sqlName(s1Column) + " BETWEEN ");
+		query.bind(360.0 + ra1).append(" AND ").bind(360.0);
+		query.append(" OR " + sqlName(s1Column) + " BETWEEN ");
+		query.bind(0.0).append(" AND ").bind(ra2).append(")");
 		additional_term = true;
 
 	    } else {
 		if (additional_term)
-		    query += (" AND ");
+		    query.append(" AND ");
 
-		query += ("(" + sqlName(s1Column) +
-		    " BETWEEN " + ra1 + " AND " + ra2 + ")");
+		query.append("(" + sqlName(s1Column) + " BETWEEN ");
+		query.bind(ra1).append(" AND ").bind(ra2).append(")");
 		additional_term = true;
 	    }
 
 	    // DEC term
 	    if (additional_term)
-		query += (" AND ");
-	    query += ("(" + sqlName(s2Column) +
-		" BETWEEN " + dec1 + " AND " + dec2 + ")");
+		query.append(" AND ");
+	    query.append("(" + sqlName(s2Column) + " BETWEEN ");
+	    query.bind(dec1).append(" AND ").bind(dec2).append(")");
 	    additional_term = true;
 
 	  } else if (1 == 0) {
 		if (additional_term)
-		    query += (" AND ");
+		    query.append(" AND ");
 
-		query += " q3c_poly_query (" + sqlName(s1Column) + ", " +
-			sqlName(s2Column) + ", '" + poly + "')";
+		query.append(" q3c_poly_query (" + sqlName(s1Column) + ", " +
+			sqlName(s2Column) + ", ").bind(poly).append(")");
 	        additional_term = true;
 
 	  } else {
 		if (additional_term)
-		    query += (" AND ");
+		    query.append(" AND ");
 
-		query += " (" + ra  + " BETWEEN spat_lolimit1 and spat_hilimit1) AND ";
-		query += " (" + dec + " BETWEEN spat_lolimit2 and spat_hilimit2)";
+		query.append(" (").bind(ra);
+		query.append(" BETWEEN spat_lolimit1 and spat_hilimit1) AND ");
+		query.append(" (").bind(dec);
+		query.append(" BETWEEN spat_lolimit2 and spat_hilimit2)");
 	        additional_term = true;
 	  }
 	}
@@ -559,13 +568,13 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 
 	if (spectral_constraint) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
-	    query += ("(" + sqlName(e1Column) + " <= " + e2val +
-		" or " + sqlName(e1Column) + " is null)");
-	    query += (" AND ");
-	    query += ("(" + sqlName(e2Column) + " >= " + e1val +
-		" or " + sqlName(e2Column) + " is null)");
+	    query.append("(" + sqlName(e1Column) + " <= ").bind(e2val);
+	    query.append(" or " + sqlName(e1Column) + " is null)");
+	    query.append(" AND ");
+	    query.append("(" + sqlName(e2Column) + " >= ").bind(e1val);
+	    query.append(" or " + sqlName(e2Column) + " is null)");
 
 	    additional_term = true;
 	}
@@ -576,13 +585,13 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 
 	if (time_constraint) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
-	    query += ("(" + sqlName(t1Column) + " <= " + t2val +
-		" or " + sqlName(t1Column) + " is null)");
-	    query += (" AND ");
-	    query += ("(" + sqlName(t2Column) + " >= " + t1val +
-		" or " + sqlName(t2Column) + " is null)");
+	    query.append("(" + sqlName(t1Column) + " <= ").bind(t2val);
+	    query.append(" or " + sqlName(t1Column) + " is null)");
+	    query.append(" AND ");
+	    query.append("(" + sqlName(t2Column) + " >= ").bind(t1val);
+	    query.append(" or " + sqlName(t2Column) + " is null)");
 
 	    additional_term = true;
 	}
@@ -595,39 +604,43 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 
 	if (pol_constraint) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
 	    if (polAny) {
-		query += ("(" + sqlName(polColumn) + " IS NOT NULL)");
+		query.append("(" + sqlName(polColumn) + " IS NOT NULL)");
 		additional_term = true;
 	    } else {
 		boolean firstone = true;
-		query += ("(");
+		query.append("(");
 		if (pol1 != null) {
 		    if (!firstone)
-			query += (" || ");
-		    query += ("(" + sqlName(polColumn) + " LIKE '%" + pol1 + "%')");
+			query.append(" || ");
+		    query.append("(" + sqlName(polColumn) + " LIKE ");
+		    query.bind("%" + pol1 + "%").append(")");
 		    firstone = false;
 		}
 		if (pol2 != null) {
 		    if (!firstone)
-			query += (" || ");
-		    query += ("(" + sqlName(polColumn) + " LIKE '%" + pol2 + "%')");
+			query.append(" || ");
+		    query.append("(" + sqlName(polColumn) + " LIKE ");
+		    query.bind("%" + pol2 + "%").append(")");
 		    firstone = false;
 		}
 		if (pol3 != null) {
 		    if (!firstone)
-			query += (" || ");
-		    query += ("(" + sqlName(polColumn) + " LIKE '%" + pol3 + "%')");
+			query.append(" || ");
+		    query.append("(" + sqlName(polColumn) + " LIKE ");
+		    query.bind("%" + pol3 + "%").append(")");
 		    firstone = false;
 		}
 		if (pol4 != null) {
 		    if (!firstone)
-			query += (" || ");
-		    query += ("(" + sqlName(polColumn) + " LIKE '%" + pol4 + "%')");
+			query.append(" || ");
+		    query.append("(" + sqlName(polColumn) + " LIKE ");
+		    query.bind("%" + pol4 + "%").append(")");
 		    firstone = false;
 		}
-		query += (")");
+		query.append(")");
 		additional_term = true;
 	    }
 	}
@@ -635,27 +648,27 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 	// Minimum spatial resolution.
         if ((p = params.getParam("SPATRES")) != null && p.isSet()) {
 	    if (additional_term)
-		query += (" AND ");
-	    query += "".format("(%s >= %g OR %s is null)",
-		sqlName("s_resolution"), p.doubleValue(), sqlName("s_resolution"));
+		query.append(" AND ");
+	    query.append("(" + sqlName("s_resolution") + " >= ").bind(p.doubleValue());
+	    query.append(" OR " + sqlName("s_resolution") + " is null)");
 	    additional_term = true;
 	}
 
 	// Minimum spectral resolution.
         if ((p = params.getParam("SPECRES")) != null && p.isSet()) {
 	    if (additional_term)
-		query += (" AND ");
-	    query += "".format("(%s >= %g OR %s is null)",
-		sqlName("em_resolution"), p.doubleValue(), sqlName("em_resolution"));
+		query.append(" AND ");
+	    query.append("(" + sqlName("em_resolution") + " >= ").bind(p.doubleValue());
+	    query.append(" OR " + sqlName("em_resolution") + " is null)");
 	    additional_term = true;
 	}
 
 	// Minimum spectral resolving power.
         if ((p = params.getParam("SPECRP")) != null && p.isSet()) {
 	    if (additional_term)
-		query += (" AND ");
-	    query += "".format("(%s >= %g OR %s is null)",
-		sqlName("em_res_power"), p.doubleValue(), sqlName("em_res_power"));
+		query.append(" AND ");
+	    query.append("(" + sqlName("em_res_power") + " >= ").bind(p.doubleValue());
+	    query.append(" OR " + sqlName("em_res_power") + " is null)");
 	    additional_term = true;
 	}
 
@@ -668,13 +681,14 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 	// Publisher Dataset Identifier.
         if ((p = params.getParam("PubDID")) != null && p.isSet()) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
 	    // Extract the ID of the dataset within the index table.
 	    sval = p.stringValue();
 	    int offset = sval.lastIndexOf(":");
 	    String datasetID = sval.substring(offset+1);
-	    query += ("(" + sqlName("id") + " = '" + datasetID + "')");
+	    query.append("(" + sqlName("id") + " = ").bind(datasetID);
+	    query.append(")");
 
 	    additional_term = true;
 	}
@@ -690,19 +704,19 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 
 		if (collections.length > 0) {
 		    if (additional_term)
-			query += (" AND ");
-		    query += ("(");
+			query.append(" AND ");
+		    query.append("(");
 
 		    for (String collection : collections) {
 			if (!firstone)
-			    query += (" || ");
-			query += "".format("(%s like '%s')",
-			    sqlName("obs_collection"), "%" + collection + "%");
+			    query.append(" || ");
+			query.append("(" + sqlName("obs_collection") + " like ");
+			query.bind("%" + collection + "%").append(")");
 
 			firstone = false;
 		    }
 
-		    query += (")");
+		    query.append(")");
 		    additional_term = true;
 		}
 	    }
@@ -717,14 +731,14 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 
 	    if (sval.equalsIgnoreCase("relative")) {
 		if (additional_term)
-		    query += (" AND ");
-		query += ("(" + colname + " like '%relative%' " +
+		    query.append(" AND ");
+		query.append("(" + colname + " like '%relative%' " +
 		    " or " + colname + " like '%absolute%')");
 		additional_term = true;
 	    } else if (sval.equalsIgnoreCase("absolute")) {
 		if (additional_term)
-		    query += (" AND ");
-		query += ("(" + colname + " like '%absolute%')");
+		    query.append(" AND ");
+		query.append("(" + colname + " like '%absolute%')");
 		additional_term = true;
 	    }
 	}
@@ -736,57 +750,107 @@ System.err.println ("query(): poly: '" + poly + "'\n");
 	    boolean cube = sval.equalsIgnoreCase("cube");
 
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
 	    if (image)
-		query += ("(" + sqlName("im_naxes") + " = 2)");
+		query.append("(" + sqlName("im_naxes") + " = 2)");
 	    else if (cube)
-		query += ("(" + sqlName("im_naxes") + " >= 3)");
+		query.append("(" + sqlName("im_naxes") + " >= 3)");
 	    additional_term = true;
 
 	}
 
 	// Ensure a valid SQL query if no constraints were defined.
 	if (!additional_term)
-	    query = "SELECT * FROM " + tableName;
+	    query = new SqlTemplate("SELECT * FROM " + tableName);
+
+	// Push MAXREC down to the DBMS.  This requires that every row
+	// returned produces at least one output record, so the spatial
+	// refinement and the format selection done below are instead done
+	// in the DBMS.  This is possible unless cutouts (which may fail) are
+	// the only FITS records requested.  As every row then produces at
+	// least one record, one more row than MAXREC suffices to detect
+	// overflow; more records may be output per row (one per format), in
+	// which case overflow is detected earlier.
+
+	boolean fitsRows = retFITS && archival_mode;
+	boolean pushdown = (fitsRows || retGraphic) &&
+	    !(retFITS && cutout_mode && !archival_mode);
+
+	if (pushdown) {
+	    query.append(additional_term ? " AND " : " WHERE ");
+	    List<String> rowFormats = new ArrayList<String>();
+	    if (fitsRows)
+		rowFormats.add("fits");
+	    if (retGraphic)
+		rowFormats.addAll(Arrays.asList("gif", "jpg", "jpeg", "png"));
+	    query.append(containsAny(sqlName(getColName("access_format")),
+		rowFormats));
+
+	    if (spatial_constraint) {
+		String col_ra = sqlName(s1Column);
+		String col_scale = sqlName(getColName("im_scale"));
+
+		query.append(" AND LEAST(ABS(" + col_ra + " - ").bind(ra);
+		query.append("), 360 - ABS(" + col_ra + " - ").bind(ra);
+		query.append(")) <= ").bind(ra_sr);
+		query.append(" + COALESCE(" + sqlName(getColName("im_naxis1")) +
+		    " * ABS(" + col_scale + "), 0) / 7200.0");
+		query.append(" AND ABS(" + sqlName(s2Column) + " - ").bind(dec);
+		query.append(") <= ").bind(dec_sr);
+		query.append(" + COALESCE(" + sqlName(getColName("im_naxis2")) +
+		    " * ABS(" + col_scale + "), 0) / 7200.0");
+	    }
+	    query = limitRows(query, maxrec + 1L);
+	}
 
 
 	// Perform the data query and write rows to the output table.
 	//-------------------------------------------------------------
 	ResultSetMetaData md;
 	ResultSet rs;
-	Statement st;
+	PreparedStatement st = null;
 	String key;
 
+	// In cutout mode the rows for the virtual images are held until the
+	// cutouts of all the candidate images have been computed as a batch.
+	List<Integer> virtualRows = new ArrayList<Integer>();
+	List<String> virtualFiles = new ArrayList<String>();
+	DalOverflowException overflow = null;
+
 System.err.println ("query(): '" + query + "'\n");
 	try {
 	    // Execute the query.
 	    //String null_query = "SELECT * FROM " +
 	    //	tableName + " WHERE (" + sqlName("id") + " = 0);";
-	    String null_query = "SELECT * FROM " + tableName + " LIMIT 1;";
+	    SqlTemplate null_query =
+		limitRows(new SqlTemplate("SELECT * FROM " + tableName), 1);
 
-	    response.addInfo(key="QUERY", new TableInfo(key, query));
-	    st = conn.createStatement();
-	    rs = st.executeQuery((maxrec > 0) ? query : null_query);
+	    response.addInfo(key="QUERY", new TableInfo(key, query.toString()));
+	    st = ((maxrec > 0) ? query : null_query).prepare(conn);
+	    timer.start(RequestTimer.EXECUTE);
+	    rs = st.executeQuery();
 	    md = rs.getMetaData();
+	    timer.stop(RequestTimer.EXECUTE);
 
 	    // Walk through the resultset and output each row.
-	    int recnum = (maxrec > 0) ? maxrec : 1;
-	    while (rs.next() && recnum > 0) { 
+	    timer.start(RequestTimer.FETCH);
+	    if (retFITS && cutout_mode)
+		response.holdRows(true);
+	    while (rs.next()) { 
 	        double pos_ra=ra, pos_dec=dec;
 		double scale, ra_dist, dec_dist;
 		double obj_ra, obj_dec, dx;
 		long naxis1, naxis2;
 
-                recnum -= 1;
-
 		// Refine the spatial ROI intersect test.  The initial
 		// SQL spatial query is crude but fast, and may find images
 		// that do not satisfy the spatial constraint.  We do a
-		// more rigorous test here as a second pass.
+		// more rigorous test here as a second pass, unless this
+		// was already done in the DBMS.
 
 /**/
-		if (spatial_constraint) {
+		if (spatial_constraint && !pushdown) {
 		    obj_ra = rs.getDouble(s1Column);
 		    obj_dec = rs.getDouble(s2Column);
 
@@ -871,12 +935,10 @@ System.err.println ("query(): '" + query + "'\n");
 			    pubDID = setMetadata(params,
 				rs, response, "image/fits");
 
-			    // Edit the metadata if a virtual image.
-			    if (editVirtualImage(siap,
-				pubDID, params, response) < 0) {
-
-				response.deleteRow();
-			    }
+			    // The metadata of the virtual image is edited
+			    // once all the cutouts have been computed.
+			    virtualRows.add(response.size() - 1);
+			    virtualFiles.add(getImageFile(siap, pubDID));
 			}
 		    }
 
@@ -907,10 +969,23 @@ System.err.println ("query(): '" + query + "'\n");
 	    }
 
 	} catch (DalOverflowException ex) {
-	    throw ex;
+	    overflow = ex;
 	} catch (SQLException ex) {
 	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    timer.stop(RequestTimer.EXECUTE);
+	    timer.stop(RequestTimer.FETCH);
+	    SqlTemplate.close(st);
 	}
+
+	// Compute the virtual image metadata for all the candidate images
+	// in one batch, and edit the held rows.
+	if (!virtualRows.isEmpty())
+	    editVirtualImages(siap, params, response, virtualRows, virtualFiles);
+	response.holdRows(false);
+
+	if (overflow != null)
+	    throw overflow;
     }
 
     /**
@@ -1136,45 +1211,79 @@ System.err.println ("query(): '" + query + "'\n");
     }
 
     /**
-     * Edit the metadata for a virtual image.
+     * Get the internal imagefile pathname of an archival image.
      *
+     * @param	siap		SiapService instance
      * @param	pubDID		PubDID for the archival image
+     */
+    private String getImageFile (SiapService siap, String pubDID)
+	throws DalServerException {
+
+	String imageURL = siap.getImageURL(this, pubDID, false);
+	if (imageURL == null)
+	    throw new DalServerException(
+		"Invalid image PubDID (" + pubDID + ")");
+
+	try {
+	    return (new URL(imageURL).getPath());
+	} catch (Exception ex) {
+	    throw new DalServerException(ex.getMessage());
+	}
+    }
+
+    /**
+     * Edit the metadata for a set of virtual images.
+     *
      * @param	siap		SiapService instance
      * @param	params		Request parameter set
-     * @param	r		RequestResponse object
+     * @param	response	RequestResponse object
+     * @param	rows		The response rows of the virtual images
+     * @param	imagefiles	The parent archival imagefile of each
      *
-     * This routine is only called if a virtual image (e.g. cutout) is being
-     * added to the query response.  We invoke a task to compute the metadata
-     * for the virtual image, and then edit the changed metadata in the query
-     * response record for the virtual dataset.
-     *
-     * Zero is returned if a virtual image can be returned and the virtual
-     * image definition was successful, otherwise -1 is returned.
+     * This routine is only called if virtual images (e.g. cutouts) are
+     * being added to the query response.  The metadata for all the virtual
+     * images is computed in one batch, and the changed metadata is then
+     * edited in the query response record for each virtual dataset.  The
+     * record is deleted if the virtual image definition fails.
      */
-    private int editVirtualImage (SiapService siap, String pubDID,
-	SiapParamSet params, RequestResponse response)
+    private void editVirtualImages (SiapService siap, SiapParamSet params,
+	RequestResponse response, List<Integer> rows, List<String> imagefiles)
 	throws DalServerException {
 
-	RequestResponse r = response;
-	String imagefile;
-	URL fileURL;
+	RequestTimer timer = response.getTimer();
+	List<KeywordTable> tabs;
 
-	// Get the internal imagefile pathname for the given pubDID.
-	String imageURL = siap.getImageURL(this, pubDID, false);
-	if (imageURL != null) {
-	    try {
-		fileURL = new URL(imageURL);
-		imagefile = fileURL.getPath();
-	    } catch (Exception ex) {
-		throw new DalServerException(ex.getMessage());
-	    }
-	} else {
-	    throw new DalServerException(
-		"Invalid image PubDID (" + pubDID + ")");
+	// Compute the metadata for the optimum image cutouts.
+	timer.start(RequestTimer.CUTOUT);
+	try {
+	    tabs = siap.defineVirtualImages(params, imagefiles);
+	} finally {
+	    timer.stop(RequestTimer.CUTOUT);
+	}
+
+	List<Integer> failed = new ArrayList<Integer>();
+	for (int i=0;  i < rows.size();  i++) {
+	    response.setRow(rows.get(i));
+	    if (editVirtualImage(tabs.get(i), response) < 0)
+		failed.add(rows.get(i));
 	}
+	response.deleteRows(failed);
+    }
+
+    /**
+     * Edit the metadata for a virtual image in the current response
+     * record.
+     *
+     * @param	tab		The computed virtual image metadata, or
+     *				null if the definition failed
+     * @param	r		RequestResponse object
+     *
+     * Zero is returned if a virtual image can be returned and the virtual
+     * image definition was successful, otherwise -1 is returned.
+     */
+    private int editVirtualImage (KeywordTable tab, RequestResponse r)
+	throws DalServerException {
 
-	// Compute the metadata for the optimum image cutout.
-	KeywordTable tab = siap.defineVirtualImage(params, imagefile);
 	if (tab == null)
 	    return (-1);
 
@@ -107,6 +107,9 @@ public class SiapService {
     /** Task Manager */
     protected TaskManager taskman;
 
+    /** Service parameters, used to configure the DBMS connection pool. */
+    protected SiapParamSet serviceParams;
+
     /**
      * Create a new local SIAP service instance.
      *
@@ -114,6 +117,7 @@ public class SiapService {
      */
     public SiapService(SiapParamSet params, TaskManager taskman) {
 	this.taskman = taskman;
+	this.serviceParams = params;
 
 	if (params == null) {
 	    this.serviceName = "siap";
@@ -328,11 +332,15 @@ public class SiapService {
 		SiapQuery dbms = null;
 		Exception error = null;
 
+		RequestTimer timer = response.getTimer();
+		timer.start(RequestTimer.CONNECT);
 		try {
 		    dbms = new SiapQuery(dbType, jdbcDriver);
-		    dbms.connect(jdbcUrl, dbName, dbUser, dbPassword);
+		    dbms.connect(DbmsConnectionPool.getPool(params));
 		} catch (Exception ex) {
 		    throw new DalServerException("Cannot connect to database");
+		} finally {
+		    timer.stop(RequestTimer.CONNECT);
 		}
 
 		try {
@@ -412,6 +420,10 @@ System.err.println ("Executing query: ''");
      *			computed or may be dynamic streams, the content
      *			length is not always known in advance, in which
      *			case the value should be set to null.
+     *			If the dataset is an uncompressed local file its
+     *			pathname is given by datasetFile, and the
+     *			servlet sends the file directly (with support for
+     *			byte ranges), otherwise datasetFile is null.
      *
      * @param response  A request response object.  Not currently used.
      *
@@ -470,11 +482,14 @@ System.err.println ("Executing query: ''");
 	// data staging area.
 
 	if (cutout && imageURL != null) {
+	    response.getTimer().start(RequestTimer.CUTOUT);
 	    try {
 		md = defineVirtualImage(params, imagefile);
 		this.mdfile = md.getKeyword("MDFILE");
 	    } catch (Exception ex) {
 		throw new DalServerException(ex.getMessage());
+	    } finally {
+		response.getTimer().stop(RequestTimer.CUTOUT);
 	    }
 	}
 
@@ -483,30 +498,26 @@ System.err.println ("Executing query: ''");
 	// retrieve a virtual image described in a queryData response.
 
 	if (this.mdfile != null) {
-	    // Connect to the task manager.
-	    TaskManager tm = getTaskManager();
+	    // A generated image may be served from the cutout cache, if the
+	    // same cutout of the same image has been generated before.
+	    final String mdfile = this.mdfile;
+	    CutoutCache cache = CutoutCache.getCache(params, stagingDir);
 
-	    // Get a new Task instance to compute the metadata.
-	    Task task = tm.newTask(this.cutoutTask, this.tdName);
-
-	    task.addParam("-x");
-	    task.addParam("-l", this.mdfile);
-	    task.addParam("-d", stagingDir);
-
-	    // Execute the task.
+	    response.getTimer().start(RequestTimer.CUTOUT);
 	    try {
-		task.execute();
-		task.waitForCompletion();
-
-		KeywordTable opset = task.getOutputPset();
-		if (opset != null)
-		    imagefile = opset.getKeyword("image");
-		else
-		    imagefile = null;
-
+		if (cache != null) {
+		    File image = cache.get(readMdfile(mdfile), stagingDir,
+			new CutoutCache.Generator() {
+			    public File generate() throws DalServerException {
+				String path = extractVirtualImage(mdfile);
+				return ((path == null) ? null : new File(path));
+			    }
+			});
+		    imagefile = image.getPath();
+		} else
+		    imagefile = extractVirtualImage(mdfile);
 	    } finally {
-		task.close();
-		task = null;
+		response.getTimer().stop(RequestTimer.CUTOUT);
 	    }
 	}
 
@@ -620,6 +631,11 @@ System.err.println ("Executing query: ''");
 	    EnumSet.of(ParamType.STRING), file.getName(),
 	    ParamLevel.SERVICE, false, "Content disposition or filename"));
 
+	// An uncompressed local file may be sent directly by the servlet.
+	params.addParam(new Param("datasetFile",
+	    EnumSet.of(ParamType.STRING), gunzip ? null : file.getPath(),
+	    ParamLevel.SERVICE, false, "Local file of dataset"));
+
 	// Return an InputStream to stream the dataset out.  If we are
 	// accessing a GZIPed file then it is uncompressed on the fly.
 
@@ -693,83 +709,122 @@ System.err.println ("Executing query: ''");
     defineVirtualImage (SiapParamSet params, String imagefile)
 	throws DalServerException {
 
-	boolean spatial_constraint = true;
-	boolean spectral_constraint = true;
-	boolean time_constraint = false;
-	double ra=0.0, dec=0.0, ra_size=0.0, dec_size=0.0;
-	double wavelo=0.0, wavehi=0.0;
-	String section = null;
-	KeywordTable md;
-	Param p;
+	CutoutPlanner filter = new CutoutPlanner(params, this.stagingDir);
+	if (usePlanner(params))
+	    return (filter.plan(imagefile));
 
-	// --- FILTER TERM ---
+	// Get a new Task instance to compute the metadata.
+	Task task = newMetadataTask(getTaskManager(), filter, imagefile);
 
-	// SPATIAL Coverage.
-	// ------------------
+	// Execute the task.
+	KeywordTable opset = null;
 
-        if ((p = params.getParam("POS")) != null && p.isSet()) {
-	    // Get POS (e.g., "<val1>,<val2>;<property>").
-            RangeList r = p.rangeListValue();
-            ra = r.doubleValue(0);
-            dec = r.doubleValue(1);
+	try {
+	    task.execute();
+	    task.waitForCompletion();
+	    opset = task.getOutputPset();
+	} finally {
+	    task.close();
+	    task = null;
+	}
 
-	    // Verify that the coordinates are in a supported frame.
-	    // Frames are specified as a property of the range list.
+	return (opset);
+    }
 
-	    for (Iterator i = r.propertiesIterator();  i.hasNext();  ) {
-		Map.Entry me = (Map.Entry) i.next();
-		String key = (String) me.getKey();
 
-		// Currently only ICRS is supported.
-		if (key != null && !key.equalsIgnoreCase("ICRS"))
-		    throw new DalServerException("unsupported coordinate frame '" + key + "'");
-	    }
+    /**
+     * Compute the metadata for the virtual images (cutouts) of a set of
+     * archival images, given the same filter parameters, e.g., for all
+     * the candidate images of a query.  This is equivalent to calling
+     * {@link #defineVirtualImage} for each image, but the metadata tasks
+     * are run concurrently, up to the number given by the cutoutTasks
+     * service parameter (by default the number of processors), rather
+     * than one at a time.  If the in-JVM planner is selected no tasks
+     * are needed, and each image is planned in turn.
+     *
+     * @param	params		A SIAPV2 parameter set, containing the
+     *				filter parameters.
+     *
+     * @param	imagefiles	The archival imagefile pathnames.
+     *
+     * @return			A KeywordTable of the changed metadata for
+     *				each image, in the same order, or NULL for
+     *				an image if an error occurred.
+     */
+    public List<KeywordTable>
+    defineVirtualImages (SiapParamSet params, List<String> imagefiles)
+	throws DalServerException {
+
+	int maxTasks = Runtime.getRuntime().availableProcessors();
+	Param p = params.getParam("cutoutTasks");
+	if (p != null && p.isSet())
+	    maxTasks = Math.max(1, p.intValue());
+
+	int ntasks = imagefiles.size();
+	KeywordTable[] opsets = new KeywordTable[ntasks];
+	CutoutPlanner filter = new CutoutPlanner(params, this.stagingDir);
 
-	    // GET SIZE (either a single value, or separate values for RA and DEC).
-            if ((p = params.getParam("SIZE")) != null && p.isSet()) {
-		r = p.rangeListValue();
-		ra_size = r.doubleValue(0);
+	// The in-JVM planner is cheap enough to run for each image in turn.
+	if (usePlanner(params)) {
+	    for (int i=0;  i < ntasks;  i++) {
 		try {
-		    dec_size = r.doubleValue(1);
+		    opsets[i] = filter.plan(imagefiles.get(i));
 		} catch (DalServerException ex) {
-		    dec_size = ra_size;
+		    opsets[i] = null;
 		}
 	    }
-        } else
-	    spatial_constraint = false;
-
-
-        // SPECTRAL Coverage.
-	// ------------------
-
-        if ((p = params.getParam("BAND")) != null && p.isSet()) {
-            RangeList r = p.rangeListValue();
-            wavelo = r.getRange(0).doubleValue1();
-            wavehi = r.getRange(0).doubleValue2();
-        } else {
-	    spectral_constraint = false;
+	    return (Arrays.asList(opsets));
 	}
 
-        // TIME Coverage.
-	// ------------------
-	// omitted for now.
+	Task[] tasks = new Task[ntasks];
+	TaskManager tm = (ntasks > 0) ? getTaskManager() : null;
 
-	if (time_constraint) {
-	    ;
+	// Keep up to maxTasks tasks executing, waiting for the oldest
+	// before starting the next one.
+
+	try {
+	    for (int i=0, done=0;  done < ntasks;  ) {
+		if (i < ntasks && i - done < maxTasks) {
+		    Task task = newMetadataTask(tm, filter, imagefiles.get(i));
+		    try {
+			task.execute();
+		    } catch (DalServerException ex) {
+			task.close();
+			throw ex;
+		    }
+		    tasks[i++] = task;
+		} else {
+		    tasks[done].waitForCompletion();
+		    opsets[done] = tasks[done].getOutputPset();
+		    tasks[done].close();
+		    tasks[done++] = null;
+		}
+	    }
+	} finally {
+	    for (Task task : tasks) {
+		if (task != null) {
+		    task.waitForCompletion();
+		    task.close();
+		}
+	    }
 	}
 
-        // POLARIZATION Coverage.
-	// ------------------
-	// omitted for now.
-	
+	return (Arrays.asList(opsets));
+    }
 
-	// --- PIXEL TERM ---
-        if ((p = params.getParam("SECTION")) != null && p.isSet()) {
-	    section = p.stringValue();
-	}
 
-	// Connect to the task manager.
-	TaskManager tm = getTaskManager();
+    /**
+     * Create a task to compute the metadata for the virtual image of an
+     * archival image, given the filter parameters.
+     *
+     * @param	tm		The task manager
+     * @param	filter		The filter parameters, as parsed for the
+     *				in-JVM planner
+     * @param	imagefile	The archival imagefile pathname
+     */
+    private Task
+    newMetadataTask (TaskManager tm, CutoutPlanner filter, String imagefile)
+	throws DalServerException {
 
 	// Get a new Task instance to compute the metadata.
 	Task task = tm.newTask(this.cutoutTask, this.tdName);
@@ -778,38 +833,106 @@ System.err.println ("Executing query: ''");
 	task.addParam("-d", this.stagingDir);
 
 	/* FILTER term. */
-	if (spatial_constraint) {
-	    task.addParam("--ra", new Double(ra).toString());
-	    task.addParam("--dec", new Double(dec).toString());
-	    task.addParam("--width", new Double(ra_size).toString());
-	    task.addParam("--height", new Double(dec_size).toString());
+	if (filter.spatial) {
+	    task.addParam("--ra", new Double(filter.ra).toString());
+	    task.addParam("--dec", new Double(filter.dec).toString());
+	    task.addParam("--width", new Double(filter.width).toString());
+	    task.addParam("--height", new Double(filter.height).toString());
 	}
 
-	if (spectral_constraint) {
-	    task.addParam("--wavelo", new Double(wavelo).toString());
-	    task.addParam("--wavehi", new Double(wavehi).toString());
+	if (filter.spectral) {
+	    task.addParam("--wavelo", new Double(filter.wavelo).toString());
+	    task.addParam("--wavehi", new Double(filter.wavehi).toString());
 	}
 
 	/* PIXEL term. */
-	if (section != null) {
-	    task.addParam("--section", section);
+	if (filter.section != null) {
+	    task.addParam("--section", filter.section);
 	}
 
 	task.addParam(imagefile);
 
-	// Execute the task.
-	KeywordTable opset = null;
+	return (task);
+    }
+
+    /**
+     * Generate the virtual image described by an MDFILE in the staging
+     * area, by running the cutout task.
+     *
+     * @param	mdfile		The MDFILE name
+     *
+     * @return			The pathname of the generated image, or null
+     *				if the task failed.
+     */
+    private String
+    extractVirtualImage (String mdfile) throws DalServerException {
+	// Connect to the task manager.
+	TaskManager tm = getTaskManager();
+
+	// Get a new Task instance to generate the image.
+	Task task = tm.newTask(this.cutoutTask, this.tdName);
+
+	task.addParam("-x");
+	task.addParam("-l", mdfile);
+	task.addParam("-d", stagingDir);
 
+	// Execute the task.
 	try {
 	    task.execute();
 	    task.waitForCompletion();
-	    opset = task.getOutputPset();
+
+	    KeywordTable opset = task.getOutputPset();
+	    return ((opset != null) ? opset.getKeyword("image") : null);
+
 	} finally {
 	    task.close();
 	    task = null;
 	}
+    }
 
-	return (opset);
+    /**
+     * Read an MDFILE from the staging area.  The MDFILE name comes from
+     * a client supplied PubDID, and may not refer outside the staging
+     * area.
+     *
+     * @param	mdfile		The MDFILE name
+     */
+    private KeywordTable
+    readMdfile (String mdfile) throws DalServerException {
+	if (mdfile.indexOf('/') >= 0 || mdfile.indexOf('\\') >= 0 ||
+	    mdfile.startsWith(".")) {
+	    throw new DalServerException("invalid virtual image reference " +
+		mdfile);
+	}
+
+	BufferedReader in = null;
+	try {
+	    in = new BufferedReader(new FileReader(new File(stagingDir, mdfile)));
+	    return (new KeywordTable(in));
+	} catch (FileNotFoundException ex) {
+	    throw new DalServerException("unknown virtual image " + mdfile);
+	} finally {
+	    try {
+		if (in != null)
+		    in.close();
+	    } catch (IOException ex) {
+		;
+	    }
+	}
+    }
+
+    /**
+     * Test whether cutouts are planned in-JVM by {@link CutoutPlanner},
+     * rather than by the external cutout task.  This is selected by the
+     * cutoutPlanner service parameter ("task", the default, or "java").
+     *
+     * @param	params		The SIAPV2 parameter set
+     */
+    private boolean
+    usePlanner (SiapParamSet params) {
+	Param p = params.getParam("cutoutPlanner");
+	return (p != null && p.isSet() &&
+	    p.stringValue().equalsIgnoreCase("java"));
     }
 
 
@@ -876,7 +999,10 @@ System.err.println ("Executing query: ''");
 	    try {
 		if (onetime) {
 		    siap = new SiapQuery(dbType, jdbcDriver);
-		    siap.connect(jdbcUrl, dbName, dbUser, dbPassword);
+		    if (serviceParams != null)
+			siap.connect(DbmsConnectionPool.getPool(serviceParams));
+		    else
+			siap.connect(jdbcUrl, dbName, dbUser, dbPassword);
 		}
 
 		archiveId = siap.queryDataset(tableName, id, archive_key);
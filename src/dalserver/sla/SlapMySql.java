@@ -6,6 +6,7 @@
 package dalserver.sla;
 
 import dalserver.DalServerException;
+import dalserver.DbmsQuery;
 import dalserver.RequestResponse;
 import dalserver.Param;
 import dalserver.RangeList;
@@ -32,12 +33,8 @@ public class SlapMySql {
      * the functionality to query a remote MySQL-hosted catalog.
      */
     public SlapMySql(String jdbcDriver) throws DalServerException {
-	try {
-	    Class.forName(jdbcDriver).newInstance();
-	    conn = null;
-	} catch (Exception ex) {
-	    throw new DalServerException(ex.getMessage());
-	}
+	DbmsQuery.loadDriver(jdbcDriver);
+	conn = null;
     }
 
 
@@ -316,6 +316,10 @@ public class SlapService {
      *			computed or may be dynamic streams, the content
      *			length is not always known in advance, in which
      *			case the value should be set to null.
+     *			If the dataset is an uncompressed local file its
+     *			pathname is given by "datasetFile", and the
+     *			servlet sends the file directly (with support for
+     *			byte ranges), otherwise "datasetFile" is null.
      *
      * @param response  A request response object (not used in the SLAP
      *			implementation).
@@ -391,6 +395,15 @@ public class SlapService {
 	    (fileLength < 0) ? null : new Long(fileLength).toString(),
 	    ParamLevel.SERVICE, false, "Content length of dataset"));
 
+	// A local file may be sent directly by the servlet.
+	String datasetFile = null;
+	if (fileURL.getProtocol().equals("file") &&
+	    new File(fileURL.getPath()).isFile())
+	    datasetFile = fileURL.getPath();
+	params.addParam(new Param("datasetFile",
+	    EnumSet.of(ParamType.STRING), datasetFile,
+	    ParamLevel.SERVICE, false, "Local file of dataset"));
+
 	// Return an InputStream to stream the dataset out.
 	try {
 	    in = conn.getInputStream();
@@ -11,6 +11,8 @@ import dalserver.ParamLevel;
 import dalserver.DalServerException;
 import dalserver.TableInfo;
 import dalserver.RequestParams;
+import dalserver.RequestTimer;
+import dalserver.DatasetDelivery;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -21,6 +23,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import java.io.File;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -188,6 +191,10 @@ public class SlapServlet extends HttpServlet {
 	String operation = null;
 	boolean error = false;
 
+	// Time the request, starting with parameter processing.
+	RequestTimer timer = new RequestTimer();
+	timer.start(RequestTimer.PARAMS);
+
         HttpSession session = request.getSession(true);
         ResourceBundle messages =
             (ResourceBundle) session.getAttribute("messages");
@@ -266,6 +273,9 @@ public class SlapServlet extends HttpServlet {
 	    reqHandler = new RequestParams();
 	    reqHandler.getRequestParams(request, params);
 
+	    timer.stop(RequestTimer.PARAMS);
+	    timer.setService(serviceName);
+
 	} catch (DalServerException ex) {
 	    error = this.errorResponse(params, response, ex);
 	} finally {
@@ -318,20 +328,34 @@ public class SlapServlet extends HttpServlet {
 	    try {
 		// Execute the queryData operation.
 		requestResponse = new RequestResponse();
+		requestResponse.setTimer(timer);
+		timer.setOperation("queryData");
 		service.queryData(params, requestResponse);
 
+		// Optionally report the stage timings in the response.
+		String timingInfo = params.getValue("timingInfo");
+		if (timingInfo != null && timingInfo.equalsIgnoreCase("true"))
+		    requestResponse.addInfo("Timing",
+			new TableInfo("Timing", timer.toString()));
+
 		// Set up the output stream.
 		response.setContentType("text/xml;x-votable");
 		response.setBufferSize(BUFSIZE);
 		out = response.getOutputStream();
 
 		// Write the output VOTable.
-		requestResponse.writeVOTable((OutputStream)out);
+		timer.start(RequestTimer.SERIALIZE);
+		requestResponse.writeVOTable(timer.countBytes(out));
+		timer.stop(RequestTimer.SERIALIZE);
 
 	    } catch (DalServerException ex) {
+		timer.setFailed(true);
 		error = this.errorResponse(params, response, ex);
                 ex.printStackTrace();
 	    } finally {
+		if (requestResponse != null)
+		    timer.setRows(requestResponse.size());
+		timer.record();
 		if (out != null) out.close();
 		requestResponse = null;
 	    }
@@ -341,11 +365,18 @@ public class SlapServlet extends HttpServlet {
 
         } else if (operation.equalsIgnoreCase("getData")) {
 	    RequestResponse requestResponse = new RequestResponse();
+	    requestResponse.setTimer(timer);
+	    timer.setOperation("getData");
 	    InputStream inStream = null;
 	    String contentType = null;
 	    String contentLength = null;
+	    String datasetFile = null;
 
 	    try {
+		// Only the service may name a dataset file to be sent.
+		params.addParam(new Param("datasetFile", null,
+		    ParamLevel.SERVICE));
+
 		// Call the service's getData method.
 		inStream = service.getData(params, requestResponse);
 
@@ -358,8 +389,13 @@ public class SlapServlet extends HttpServlet {
 		// Get the dataset content length (null if unknown).
 		contentLength = params.getValue("datasetContentLength");
 
+		// Get the dataset file, if it is an uncompressed local file.
+		datasetFile = params.getValue("datasetFile");
+
 
 	    } catch (DalServerException ex) {
+		timer.setFailed(true);
+		timer.record();
 		if (this.errorResponse(params, response, ex))
 		    return;
 	    }
@@ -370,23 +406,36 @@ public class SlapServlet extends HttpServlet {
 
 	    response.setBufferSize(BUFSIZE);
 	    response.setContentType(contentType);
-	    if (contentLength != null)
+	    if (contentLength != null && datasetFile == null)
 		response.setContentLength(
 		    new Integer(contentLength).intValue());
 
-	    if (inStream != null) {
+	    if (inStream != null && datasetFile != null) {
+		// Send a local file directly from the file channel, with
+		// support for byte ranges and conditional requests.
+
+		inStream.close();
+		DatasetDelivery.send(new File(datasetFile), request,
+		    response, timer);
+
+	    } else if (inStream != null) {
 		// Write a binary-formatted data stream.
 
 		ServletOutputStream out = response.getOutputStream();
 		byte[] b = new byte[BUFSIZE];
 		int count;
 
-		while ((count = inStream.read(b, 0, BUFSIZE)) > 0)
+		timer.start(RequestTimer.SERIALIZE);
+		while ((count = inStream.read(b, 0, BUFSIZE)) > 0) {
 		    out.write(b, 0, count);
+		    timer.addBytes(count);
+		}
+		timer.stop(RequestTimer.SERIALIZE);
 
 		out.close();
 		inStream.close();
 	    }
+	    timer.record();
 
 
 	// -------- GETCAPABILITIES operation. --------
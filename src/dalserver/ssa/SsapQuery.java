@@ -276,14 +276,16 @@ public class SsapQuery extends DbmsQuery {
 	Connection conn = this.getConnection();
 
 	// Compose the DBMS query.
-	String query = "".format("SELECT %s FROM %s WHERE (%s = '%s')",
-	    sqlName(attribute), sqlName(tableName), sqlName("id"), id);
+	SqlTemplate query = new SqlTemplate("SELECT " + sqlName(attribute) +
+	    " FROM " + sqlName(tableName) + " WHERE (" + sqlName("id") + " = ");
+	query.bind(id).append(")");
 
 	// Perform the data query and write rows to the output table.
+	PreparedStatement st = null;
 	try {
 	    // Execute the query.
-	    Statement st = conn.createStatement();
-	    ResultSet rs = st.executeQuery(query);
+	    st = query.prepare(conn);
+	    ResultSet rs = st.executeQuery();
 
 	    // Walk through the resultset and output each row.
 	    if (rs.next())
@@ -291,6 +293,8 @@ public class SsapQuery extends DbmsQuery {
 
 	} catch (SQLException ex) {
 	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    SqlTemplate.close(st);
 	}
 
 	return (null);
@@ -313,6 +317,7 @@ public class SsapQuery extends DbmsQuery {
 	String tableName="ssav2model";		// default
 	int maxrec = response.maxrec();
 	String sval; Param p;
+	RequestTimer timer = response.getTimer();
 
 	// An open DBMS connection is required.
 	Connection conn = this.getConnection();
@@ -474,13 +479,14 @@ public class SsapQuery extends DbmsQuery {
 
 	// Compose the DBMS query.
 	//-------------------------------------
-	String query = "SELECT * FROM " + sqlName(tableName) + " WHERE ";
+	SqlTemplate query =
+	    new SqlTemplate("SELECT * FROM " + sqlName(tableName) + " WHERE ");
 	boolean additional_term = false;
 
 	// Apply the spatial constraint if we have one.
 	if (spatial_constraint) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
 	    // This needs to be converted to a 2D radial test for SSAV2.
 	    // We use the old CAR/box test for now.  Note this need
@@ -500,28 +506,28 @@ public class SsapQuery extends DbmsQuery {
 	    // Handle the case of RA+SR crossing the 0/360 point.
 	    if (ra1 < 0) {
 		if (additional_term)
-		    query += (" AND ");
+		    query.append(" AND ");
 
-		query += ("(" + sqlName(s1Column) +
-		    " BETWEEN " + (360.0 + ra1) + " AND " + 360.0);
-		query += (" OR " + sqlName(s1Column) +
-		    " BETWEEN " + 0.0 + " AND " + ra2 + ")");
+		query.append("(" + sqlName(s1Column) + " BETWEEN ");
+		query.bind(360.0 + ra1).append(" AND ").bind(360.0);
+		query.append(" OR " + sqlName(s1Column) + " BETWEEN ");
+		query.bind(0.0).append(" AND ").bind(ra2).append(")");
 		additional_term = true;
 
 	    } else {
 		if (additional_term)
-		    query += (" AND ");
+		    query.append(" AND ");
 
-		query += ("(" + sqlName(s1Column) +
-		    " BETWEEN " + ra1 + " AND " + ra2 + ")");
+		query.append("(" + sqlName(s1Column) + " BETWEEN ");
+		query.bind(ra1).append(" AND ").bind(ra2).append(")");
 		additional_term = true;
 	    }
 
 	    // DEC term
 	    if (additional_term)
-		query += (" AND ");
-	    query += ("(" + sqlName(s2Column) +
-		" BETWEEN " + dec1 + " AND " + dec2 + ")");
+		query.append(" AND ");
+	    query.append("(" + sqlName(s2Column) + " BETWEEN ");
+	    query.bind(dec1).append(" AND ").bind(dec2).append(")");
 	    additional_term = true;
 	}
 
@@ -531,13 +537,13 @@ public class SsapQuery extends DbmsQuery {
 
 	if (spectral_constraint) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
-	    query += ("(" + sqlName(e1Column) + " <= " + e2val +
-		" or " + sqlName(e1Column) + " is null)");
-	    query += (" AND ");
-	    query += ("(" + sqlName(e2Column) + " >= " + e1val +
-		" or " + sqlName(e2Column) + " is null)");
+	    query.append("(" + sqlName(e1Column) + " <= ").bind(e2val);
+	    query.append(" or " + sqlName(e1Column) + " is null)");
+	    query.append(" AND ");
+	    query.append("(" + sqlName(e2Column) + " >= ").bind(e1val);
+	    query.append(" or " + sqlName(e2Column) + " is null)");
 
 	    additional_term = true;
 	}
@@ -548,13 +554,13 @@ public class SsapQuery extends DbmsQuery {
 
 	if (time_constraint) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
-	    query += ("(" + sqlName(t1Column) + " <= " + t2val +
-		" or " + sqlName(t1Column) + " is null)");
-	    query += (" AND ");
-	    query += ("(" + sqlName(t2Column) + " >= " + t1val +
-		" or " + sqlName(t2Column) + " is null)");
+	    query.append("(" + sqlName(t1Column) + " <= ").bind(t2val);
+	    query.append(" or " + sqlName(t1Column) + " is null)");
+	    query.append(" AND ");
+	    query.append("(" + sqlName(t2Column) + " >= ").bind(t1val);
+	    query.append(" or " + sqlName(t2Column) + " is null)");
 
 	    additional_term = true;
 	}
@@ -567,39 +573,43 @@ public class SsapQuery extends DbmsQuery {
 
 	if (pol_constraint) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
 	    if (polAny) {
-		query += ("(" + sqlName(polColumn) + " IS NOT NULL)");
+		query.append("(" + sqlName(polColumn) + " IS NOT NULL)");
 		additional_term = true;
 	    } else {
 		boolean firstone = true;
-		query += ("(");
+		query.append("(");
 		if (pol1 != null) {
 		    if (!firstone)
-			query += (" || ");
-		    query += ("(" + sqlName(polColumn) + " LIKE '%" + pol1 + "%')");
+			query.append(" || ");
+		    query.append("(" + sqlName(polColumn) + " LIKE ");
+		    query.bind("%" + pol1 + "%").append(")");
 		    firstone = false;
 		}
 		if (pol2 != null) {
 		    if (!firstone)
-			query += (" || ");
-		    query += ("(" + sqlName(polColumn) + " LIKE '%" + pol2 + "%')");
+			query.append(" || ");
+		    query.append("(" + sqlName(polColumn) + " LIKE ");
+		    query.bind("%" + pol2 + "%").append(")");
 		    firstone = false;
 		}
 		if (pol3 != null) {
 		    if (!firstone)
-			query += (" || ");
-		    query += ("(" + sqlName(polColumn) + " LIKE '%" + pol3 + "%')");
+			query.append(" || ");
+		    query.append("(" + sqlName(polColumn) + " LIKE ");
+		    query.bind("%" + pol3 + "%").append(")");
 		    firstone = false;
 		}
 		if (pol4 != null) {
 		    if (!firstone)
-			query += (" || ");
-		    query += ("(" + sqlName(polColumn) + " LIKE '%" + pol4 + "%')");
+			query.append(" || ");
+		    query.append("(" + sqlName(polColumn) + " LIKE ");
+		    query.bind("%" + pol4 + "%").append(")");
 		    firstone = false;
 		}
-		query += (")");
+		query.append(")");
 		additional_term = true;
 	    }
 	}
@@ -607,27 +617,27 @@ public class SsapQuery extends DbmsQuery {
 	// Minimum spatial resolution.
         if ((p = params.getParam("SPATRES")) != null && p.isSet()) {
 	    if (additional_term)
-		query += (" AND ");
-	    query += "".format("(%s >= %g OR %s is null)",
-		sqlName("s_resolution"), p.doubleValue(), sqlName("s_resolution"));
+		query.append(" AND ");
+	    query.append("(" + sqlName("s_resolution") + " >= ").bind(p.doubleValue());
+	    query.append(" OR " + sqlName("s_resolution") + " is null)");
 	    additional_term = true;
 	}
 
 	// Minimum spectral resolution.
         if ((p = params.getParam("SPECRES")) != null && p.isSet()) {
 	    if (additional_term)
-		query += (" AND ");
-	    query += "".format("(%s >= %g OR %s is null)",
-		sqlName("em_resolution"), p.doubleValue(), sqlName("em_resolution"));
+		query.append(" AND ");
+	    query.append("(" + sqlName("em_resolution") + " >= ").bind(p.doubleValue());
+	    query.append(" OR " + sqlName("em_resolution") + " is null)");
 	    additional_term = true;
 	}
 
 	// Minimum spectral resolving power.
         if ((p = params.getParam("SPECRP")) != null && p.isSet()) {
 	    if (additional_term)
-		query += (" AND ");
-	    query += "".format("(%s >= %g OR %s is null)",
-		sqlName("em_res_power"), p.doubleValue(), sqlName("em_res_power"));
+		query.append(" AND ");
+	    query.append("(" + sqlName("em_res_power") + " >= ").bind(p.doubleValue());
+	    query.append(" OR " + sqlName("em_res_power") + " is null)");
 	    additional_term = true;
 	}
 
@@ -640,13 +650,14 @@ public class SsapQuery extends DbmsQuery {
 	// Publisher Dataset Identifier.
         if ((p = params.getParam("PubDID")) != null && p.isSet()) {
 	    if (additional_term)
-		query += (" AND ");
+		query.append(" AND ");
 
 	    // Extract the ID of the dataset within the index table.
 	    sval = p.stringValue();
 	    int offset = sval.lastIndexOf(":");
 	    String datasetID = sval.substring(offset+1);
-	    query += ("(" + sqlName("id") + " = '" + datasetID + "')");
+	    query.append("(" + sqlName("id") + " = ").bind(datasetID);
+	    query.append(")");
 
 	    additional_term = true;
 	}
@@ -662,19 +673,19 @@ public class SsapQuery extends DbmsQuery {
 
 		if (collections.length > 0) {
 		    if (additional_term)
-			query += (" AND ");
-		    query += ("(");
+			query.append(" AND ");
+		    query.append("(");
 
 		    for (String collection : collections) {
 			if (!firstone)
-			    query += (" || ");
-			query += "".format("(%s like '%s')",
-			    sqlName("obs_collection"), "%" + collection + "%");
+			    query.append(" || ");
+			query.append("(" + sqlName("obs_collection") + " like ");
+			query.bind("%" + collection + "%").append(")");
 
 			firstone = false;
 		    }
 
-		    query += (")");
+		    query.append(")");
 		    additional_term = true;
 		}
 	    }
@@ -687,14 +698,14 @@ public class SsapQuery extends DbmsQuery {
 
 	    if (sval.equalsIgnoreCase("relative")) {
 		if (additional_term)
-		    query += (" AND ");
-		query += ("(" + colname + " like '%relative%' " +
+		    query.append(" AND ");
+		query.append("(" + colname + " like '%relative%' " +
 		    " or " + colname + " like '%absolute%')");
 		additional_term = true;
 	    } else if (sval.equalsIgnoreCase("absolute")) {
 		if (additional_term)
-		    query += (" AND ");
-		query += ("(" + colname + " like '%absolute%')");
+		    query.append(" AND ");
+		query.append("(" + colname + " like '%absolute%')");
 		additional_term = true;
 	    }
 	}
@@ -706,41 +717,71 @@ public class SsapQuery extends DbmsQuery {
 
 	    if (sval.equalsIgnoreCase("relative")) {
 		if (additional_term)
-		    query += (" AND ");
-		query += ("(" + colname + " like '%relative%' " +
+		    query.append(" AND ");
+		query.append("(" + colname + " like '%relative%' " +
 		    " or " + colname + " like '%absolute%')");
 		additional_term = true;
 	    } else if (sval.equalsIgnoreCase("absolute")) {
 		if (additional_term)
-		    query += (" AND ");
-		query += ("(" + colname + " like '%absolute%')");
+		    query.append(" AND ");
+		query.append("(" + colname + " like '%absolute%')");
 		additional_term = true;
 	    }
 	}
 
 	// Ensure a valid SQL query if no constraints were defined.
 	if (!additional_term)
-	    query = "SELECT * FROM " + sqlName(tableName);
+	    query = new SqlTemplate("SELECT * FROM " + sqlName(tableName));
+
+	// Push MAXREC down to the DBMS.  As for SIA, this requires that the
+	// spatial refinement and format selection be done in the DBMS, so
+	// that every row returned produces at least one output record.
+
+	boolean fitsRows = retFITS && archival_mode;
+	boolean pushdown = (fitsRows || retGraphic) &&
+	    !(retFITS && cutout_mode && !archival_mode);
+
+	if (pushdown) {
+	    List<String> rowFormats = new ArrayList<String>();
+	    if (fitsRows)
+		rowFormats.add("fits");
+	    if (retGraphic)
+		rowFormats.addAll(Arrays.asList("gif", "jpg", "jpeg", "png"));
+
+	    query.append(additional_term ? " AND " : " WHERE ");
+	    query.append(containsAny(sqlName(getColName("access_format")),
+		rowFormats));
+
+	    if (spatial_constraint) {
+		query.append(" AND ");
+		coneConstraint(query, sqlName(s1Column), sqlName(s2Column),
+		    ra, dec, ra_sr);
+	    }
+	    query = limitRows(query, maxrec + 1L);
+	}
 
 
 	// Perform the data query and write rows to the output table.
 	//-------------------------------------------------------------
 	ResultSetMetaData md;
 	ResultSet rs;
-	Statement st;
+	PreparedStatement st = null;
 	String key;
 
 	try {
 	    // Execute the query.
-	    String null_query = "SELECT * FROM " +
-		sqlName(tableName) + " WHERE (" + sqlName("id") + " = 0);";
+	    SqlTemplate null_query = new SqlTemplate("SELECT * FROM " +
+		sqlName(tableName) + " WHERE (" + sqlName("id") + " = 0)");
 
-	    response.addInfo(key="QUERY", new TableInfo(key, query));
-	    st = conn.createStatement();
-	    rs = st.executeQuery((maxrec > 0) ? query : null_query);
+	    response.addInfo(key="QUERY", new TableInfo(key, query.toString()));
+	    st = ((maxrec > 0) ? query : null_query).prepare(conn);
+	    timer.start(RequestTimer.EXECUTE);
+	    rs = st.executeQuery();
 	    md = rs.getMetaData();
+	    timer.stop(RequestTimer.EXECUTE);
 
 	    // Walk through the resultset and output each row.
+	    timer.start(RequestTimer.FETCH);
 	    while (rs.next()) { 
 	        double pos_ra=ra, pos_dec=dec;
 		double obj_ra, obj_dec;
@@ -748,9 +789,10 @@ public class SsapQuery extends DbmsQuery {
 		// Refine the spatial ROI intersect test.  The initial
 		// SQL spatial query is crude but fast, and may find spectra
 		// that do not satisfy the spatial constraint.  We do a
-		// more rigorous test here as a second pass.
+		// more rigorous test here as a second pass, unless this
+		// was already done in the DBMS.
 
-		if (spatial_constraint) {
+		if (spatial_constraint && !pushdown) {
 		    obj_ra = rs.getDouble(s1Column);
 		    obj_dec = rs.getDouble(s2Column);
 
@@ -841,6 +883,10 @@ public class SsapQuery extends DbmsQuery {
 	    throw ex;
 	} catch (SQLException ex) {
 	    throw new DalServerException(ex.getMessage());
+	} finally {
+	    timer.stop(RequestTimer.EXECUTE);
+	    timer.stop(RequestTimer.FETCH);
+	    SqlTemplate.close(st);
 	}
     }
 
@@ -103,6 +103,9 @@ public class SsapService {
     /** Task Manager */
     protected TaskManager taskman;
 
+    /** Service parameters, used to configure the DBMS connection pool. */
+    protected SsapParamSet serviceParams;
+
     /**
      * Create a new local SSAP service instance.
      *
@@ -110,6 +113,7 @@ public class SsapService {
      */
     public SsapService(SsapParamSet params, TaskManager taskman) {
 	this.taskman = taskman;
+	this.serviceParams = params;
 
 	if (params == null) {
 	    this.serviceName = "ssap";
@@ -245,11 +249,15 @@ public class SsapService {
 		SsapQuery dbms = null;
 		Exception error = null;
 
+		RequestTimer timer = response.getTimer();
+		timer.start(RequestTimer.CONNECT);
 		try {
 		    dbms = new SsapQuery(dbType, jdbcDriver);
-		    dbms.connect(jdbcUrl, dbName, dbUser, dbPassword);
+		    dbms.connect(DbmsConnectionPool.getPool(params));
 		} catch (Exception ex) {
 		    throw new DalServerException("Cannot connect to database");
+		} finally {
+		    timer.stop(RequestTimer.CONNECT);
 		}
 
 		try {
@@ -326,6 +334,10 @@ public class SsapService {
      *			computed or may be dynamic streams, the content
      *			length is not always known in advance, in which
      *			case the value should be set to null.
+     *			If the dataset is an uncompressed local file its
+     *			pathname is given by "datasetFile", and the
+     *			servlet sends the file directly (with support for
+     *			byte ranges), otherwise "datasetFile" is null.
      *
      * @param response  A request response object.  Not currently used.
      *
@@ -384,11 +396,14 @@ public class SsapService {
 	// data staging area.
 
 	if (cutout && spectrumfile != null) {
+	    response.getTimer().start(RequestTimer.CUTOUT);
 	    try {
 		md = defineVirtualSpectrum(params, spectrumfile);
 		this.mdfile = md.getKeyword("MDFILE");
 	    } catch (Exception ex) {
 		throw new DalServerException(ex.getMessage());
+	    } finally {
+		response.getTimer().stop(RequestTimer.CUTOUT);
 	    }
 	}
 
@@ -408,6 +423,7 @@ public class SsapService {
 	    task.addParam("-d", stagingDir);
 
 	    // Execute the task.
+	    response.getTimer().start(RequestTimer.CUTOUT);
 	    try {
 		task.execute();
 		task.waitForCompletion();
@@ -419,6 +435,7 @@ public class SsapService {
 		    spectrumfile = null;
 
 	    } finally {
+		response.getTimer().stop(RequestTimer.CUTOUT);
 		task.close();
 		task = null;
 	    }
@@ -541,6 +558,11 @@ public class SsapService {
 	    EnumSet.of(ParamType.STRING), file.getName(),
 	    ParamLevel.SERVICE, false, "Content disposition or filename"));
 
+	// An uncompressed local file may be sent directly by the servlet.
+	params.addParam(new Param("datasetFile",
+	    EnumSet.of(ParamType.STRING), gunzip ? null : file.getPath(),
+	    ParamLevel.SERVICE, false, "Local file of dataset"));
+
 	// Return an InputStream to stream the dataset out.  If we are
 	// accessing a GZIPed file then it is uncompressed on the fly.
 
@@ -789,7 +811,10 @@ public class SsapService {
 	    try {
 		if (onetime) {
 		    ssap = new SsapQuery(dbType, jdbcDriver);
-		    ssap.connect(jdbcUrl, dbName, dbUser, dbPassword);
+		    if (serviceParams != null)
+			ssap.connect(DbmsConnectionPool.getPool(serviceParams));
+		    else
+			ssap.connect(jdbcUrl, dbName, dbUser, dbPassword);
 		}
 
 		archiveId = ssap.queryDataset(tableName, id, archive_key);
@@ -154,6 +154,7 @@ public class SsapServlet extends HttpServlet {
     private final int BUFSIZE = 8192;
     private SsapParamSet params = null;
     private TaskManager taskman = null;
+    private DbmsConnectionPool dbPool = null;
 
 
     // ---------- Servlet Methods -------------------
@@ -164,6 +165,22 @@ public class SsapServlet extends HttpServlet {
 	
         // Create a new, not yet connected Task manager.
 	this.taskman = new TaskManager();
+
+	// Open the DBMS connection pool for the service, if one is configured,
+	// so that the first request does not pay the connection setup cost.
+
+	try {
+	    SsapParamSet pset = new SsapParamSet();
+	    new DalContext((ParamSet)pset, getServletContext(), config);
+	    String dbType = pset.getValue("dbType");
+	    if (pset.getValue("jdbcUrl") != null && dbType != null &&
+		!dbType.equalsIgnoreCase("builtin")) {
+
+		this.dbPool = DbmsConnectionPool.warmup(pset);
+	    }
+	} catch (DalServerException ex) {
+	    log("cannot initialize DBMS connection pool: " + ex.getMessage());
+	}
     }
 
     /** Servlet shutdown. */
@@ -178,6 +195,12 @@ public class SsapServlet extends HttpServlet {
 	    this.taskman.close();
 	    this.taskman = null;
 	}
+
+	// Close the DBMS connection pool, if any.
+	if (this.dbPool != null) {
+	    DbmsConnectionPool.closePool(this.dbPool.getName());
+	    this.dbPool = null;
+	}
     }
 
     /** Return a brief description of the service.  */
@@ -198,6 +221,7 @@ public class SsapServlet extends HttpServlet {
 	String operation = null;
 	SsapParamSet params = null;
 	RequestResponse response = null;
+	RequestTimer timer = null;
 	boolean error = false;
 
 	try {
@@ -206,6 +230,10 @@ public class SsapServlet extends HttpServlet {
 	    ServletContext servletContext = getServletContext();
 	    ServletConfig servletConfig = getServletConfig();
 
+	    // Time the request, starting with parameter processing.
+	    timer = response.getTimer();
+	    timer.start(RequestTimer.PARAMS);
+
 	    this.dalContext = new DalContext((ParamSet)params, response,
 		servletRequest, servletContext, servletConfig);
 
@@ -230,6 +258,9 @@ public class SsapServlet extends HttpServlet {
 	    p.setLevel(ParamLevel.EXTENSION);
 	    params.addParam(p);
 
+	    timer.stop(RequestTimer.PARAMS);
+	    timer.setService(serviceName);
+
 	} catch (DalServerException ex) {
 	    error = this.errorResponse(params, servletResponse, ex);
 	} finally {
@@ -302,14 +333,14 @@ public class SsapServlet extends HttpServlet {
 	    ServletOutputStream out = null;
 
 	    try {
-		// Execute the queryData operation.
 		requestResponse = new RequestResponse();
-		service.queryData(params, requestResponse);
+		requestResponse.setTimer(timer);
+		timer.setOperation("queryData");
 
 		String responseFormat =
 		    params.getValue("responseformat", "votable");
 
-		boolean htmlOut=false, textOut=false, csvOut=false;
+		boolean htmlOut=false, textOut=false, csvOut=false, fitsOut=false;
 		if (responseFormat != null) {
 		    if (responseFormat.equalsIgnoreCase("html")) 
 			htmlOut = true;
@@ -317,6 +348,9 @@ public class SsapServlet extends HttpServlet {
 			textOut = true;
 		    else if (responseFormat.equalsIgnoreCase("csv")) 
 			csvOut = true;
+		    else if (responseFormat.equalsIgnoreCase("fits") ||
+			responseFormat.equalsIgnoreCase("application/fits"))
+			fitsOut = true;
 		}
 
 		// Set up the output stream.
@@ -326,26 +360,89 @@ public class SsapServlet extends HttpServlet {
 		    servletResponse.setContentType("text/plain");
 		else if (csvOut)
 		    servletResponse.setContentType("text/plain");
+		else if (fitsOut)
+		    servletResponse.setContentType("application/fits");
 		else
 		    servletResponse.setContentType("text/xml;x-votable");
 
+		// Repeated queries may be answered from the response cache.
+		ResponseCache cache = ResponseCache.getCache(params);
+		String cacheKey = null;
+		if (cache != null) {
+		    cacheKey = cache.getKey(servletRequest);
+		    if (cacheKey != null && cache.serve(cacheKey,
+			servletRequest, servletResponse, timer)) {
+			return;
+		    }
+		}
+
+		// An expensive query is run as an asynchronous job, and the
+		// client is redirected to the job.
+		AsyncQueryManager async = AsyncQueryManager.getManager(params);
+		if (async != null && async.isExpensive(params,
+		    AsyncQueryManager.apertureRadius(params.getValue("SIZE")))) {
+
+		    final SsapService jobService = service;
+		    final SsapParamSet jobParams = params;
+		    final String jobFormat = responseFormat;
+		    final String jobServiceName = timer.getService();
+
+		    String jobUrl = async.submit(servletRequest,
+			servletResponse.getContentType(),
+			new AsyncQueryManager.Query() {
+			    public void execute(OutputStream os) throws Exception {
+				RequestTimer t =
+				    new RequestTimer(jobServiceName, "asyncQuery");
+				RequestResponse r = new RequestResponse();
+				r.setTimer(t);
+				try {
+				    writeQueryResponse(jobService, jobParams, r,
+					t.countBytes(os), jobFormat);
+				} catch (Exception ex) {
+				    t.setFailed(true);
+				    throw ex;
+				} finally {
+				    t.setRows(r.size());
+				    t.record();
+				}
+			    }
+			});
+
+		    timer.setOperation("asyncSubmit");
+		    servletResponse.setStatus(HttpServletResponse.SC_SEE_OTHER);
+		    servletResponse.setHeader("Location", jobUrl);
+		    return;
+		}
+
 		servletResponse.setBufferSize(BUFSIZE);
 		out = servletResponse.getOutputStream();
+		ResponseCache.Capture capture = null;
+		if (cacheKey != null)
+		    capture = cache.capture(cacheKey, servletResponse, out);
+		OutputStream os = timer.countBytes(
+		    (capture != null) ? capture : out);
 
-		// Write the query response output.
-		if (htmlOut)
-		    requestResponse.writeHTML((OutputStream)out);
-		else if (textOut)
-		    requestResponse.writeText((OutputStream)out);
-		else if (csvOut)
-		    requestResponse.writeCsv((OutputStream)out);
-		else
-		    requestResponse.writeVOTable((OutputStream)out);
+		// Execute the queryData operation and write the response.
+		writeQueryResponse(service, params, requestResponse, os,
+		    responseFormat);
+
+		if (capture != null)
+		    cache.put(capture, servletResponse.getContentType());
 
 	    } catch (DalServerException ex) {
-		error = this.errorResponse(params, servletResponse, ex);
+		timer.setFailed(true);
+
+		// Once streamed output has begun the error can only be
+		// reported at the end of the partial response.
+		if (requestResponse != null && requestResponse.isStreamStarted())
+		    requestResponse.abortStream(ex.getMessage());
+		else
+		    error = this.errorResponse(params, servletResponse, ex);
 
 	    } finally {
+		if (requestResponse != null)
+		    timer.setRows(requestResponse.size());
+		timer.record();
 		if (out != null) out.close();
 		requestResponse = null;
 	    }
@@ -355,12 +452,19 @@ public class SsapServlet extends HttpServlet {
 
         } else if (operation.equalsIgnoreCase("accessData")) {
 	    RequestResponse requestResponse = new RequestResponse();
+	    requestResponse.setTimer(timer);
+	    timer.setOperation("accessData");
 	    InputStream inStream = null;
 	    String contentType = null;
 	    String contentLength = null;
+	    String datasetFile = null;
 	    String contentDisp = null;
 
 	    try {
+		// Only the service may name a dataset file to be sent.
+		params.addParam(new Param("datasetFile", null,
+		    ParamLevel.SERVICE));
+
 		// Call the service's accessData method.
 		inStream = service.accessData(params, requestResponse);
 
@@ -372,11 +476,16 @@ public class SsapServlet extends HttpServlet {
 
 		// Get the dataset content length (null if unknown).
 		contentLength = params.getValue("datasetContentLength");
+
+		// Get the dataset file, if it is an uncompressed local file.
+		datasetFile = params.getValue("datasetFile");
 		
 		// Get the dataset content disposition, e.g., filename.
 		contentDisp = params.getValue("datasetContentDisposition");
 
 	    } catch (DalServerException ex) {
+		timer.setFailed(true);
+		timer.record();
 		if (this.errorResponse(params, servletResponse, ex))
 		    return;
 	    }
@@ -387,27 +496,59 @@ public class SsapServlet extends HttpServlet {
 
 	    servletResponse.setBufferSize(BUFSIZE);
 	    servletResponse.setContentType(contentType);
-	    if (contentLength != null)
+	    if (contentLength != null && datasetFile == null)
 		servletResponse.setContentLength(
 		    new Integer(contentLength).intValue());
 	    if (contentDisp != null)
 		servletResponse.setHeader("Content-Disposition",
 		    "attachment;filename=" + contentDisp);
 
-	    if (inStream != null) {
+	    if (inStream != null && datasetFile != null) {
+		// Send a local file directly from the file channel, with
+		// support for byte ranges and conditional requests.
+
+		service.accessDataClose(inStream);
+		DatasetDelivery.send(new File(datasetFile), servletRequest,
+		    servletResponse, timer);
+
+	    } else if (inStream != null) {
 		// Write a binary-formatted data stream.
 
 		ServletOutputStream out = servletResponse.getOutputStream();
 		byte[] b = new byte[BUFSIZE];
 		int count;
 
-		while ((count = inStream.read(b, 0, BUFSIZE)) > 0)
+		timer.start(RequestTimer.SERIALIZE);
+		while ((count = inStream.read(b, 0, BUFSIZE)) > 0) {
 		    out.write(b, 0, count);
+		    timer.addBytes(count);
+		}
+		timer.stop(RequestTimer.SERIALIZE);
 
 		out.close();
 		service.accessDataClose(inStream);
 	    }
+	    timer.record();
+
 
+	// -------- GETJOB, GETJOBRESULT operations. --------
+
+        } else if (operation.equalsIgnoreCase("getJob") ||
+	    operation.equalsIgnoreCase("getJobResult")) {
+	    try {
+		AsyncQueryManager async = AsyncQueryManager.getManager(params);
+		if (async == null)
+		    throw new DalServerException("Async queries are not enabled");
+
+		String jobId = params.getValue("JOBID");
+		if (operation.equalsIgnoreCase("getJob"))
+		    async.writeJob(jobId, servletResponse);
+		else
+		    async.writeResult(jobId, servletResponse);
+
+	    } catch (DalServerException ex) {
+		error = this.errorResponse(params, servletResponse, ex);
+	    }
 
 	// -------- GETCAPABILITIES operation. --------
 
@@ -458,6 +599,84 @@ public class SsapServlet extends HttpServlet {
 
     // ---------- Private Methods -------------------
 
+    /**
+     * Execute the queryData operation and write the query response to an
+     * output stream, streaming the table rows if possible.  This is used
+     * for a synchronous query, and for a query run as an asynchronous job,
+     * where the response is spooled to disk.
+     *
+     * @param	service		The service implementation.
+     * @param	params		The input service parameter set.
+     * @param	requestResponse	The request response object, with timer.
+     * @param	os		Output stream for the query response.
+     * @param	responseFormat	The requested response format.
+     */
+    private void writeQueryResponse(SsapService service, SsapParamSet params,
+	RequestResponse requestResponse, OutputStream os,
+	String responseFormat) throws DalServerException, IOException {
+
+	RequestTimer timer = requestResponse.getTimer();
+
+	boolean htmlOut=false, textOut=false, csvOut=false, fitsOut=false;
+	if (responseFormat != null) {
+	    if (responseFormat.equalsIgnoreCase("html")) 
+		htmlOut = true;
+	    else if (responseFormat.equalsIgnoreCase("text")) 
+		textOut = true;
+	    else if (responseFormat.equalsIgnoreCase("csv")) 
+		csvOut = true;
+	    else if (responseFormat.equalsIgnoreCase("fits") ||
+		responseFormat.equalsIgnoreCase("application/fits"))
+		fitsOut = true;
+	}
+
+	// A VOTable may be requested with the BINARY2 serialization,
+	// e.g., RESPONSEFORMAT=votable;serialization=binary2.
+	String serialization =
+	    VOTableRowSink.getSerialization(responseFormat);
+
+	// If enabled for the service, stream the table rows to the client
+	// as they are generated rather than first building the entire
+	// response in memory.  Streaming is off by default since services
+	// which score or sort the response need the whole table.  Only
+	// VOTable output is streamed, as an error occurring once output
+	// has begun can then still be reported, in a trailing QUERY_STATUS
+	// INFO; CSV and FITS have no way to mark a truncated table, and
+	// HTML and text output require the whole table.
+
+	String streaming = params.getSysValue("streaming", "false");
+	if (streaming.equalsIgnoreCase("true") &&
+	    !htmlOut && !textOut && !csvOut && !fitsOut) {
+	    requestResponse.setRowSink(
+		new VOTableRowSink(os, serialization));
+	}
+
+	// Execute the queryData operation.
+	service.queryData(params, requestResponse);
+
+	// Optionally report the stage timings in the response.
+	String timingInfo = params.getSysValue("timingInfo", "false");
+	if (timingInfo.equalsIgnoreCase("true"))
+	    requestResponse.addInfo("Timing",
+		new TableInfo("Timing", timer.toString()));
+
+	// Write the query response output.
+	timer.start(RequestTimer.SERIALIZE);
+	if (requestResponse.isStreaming())
+	    requestResponse.endStream();
+	else if (htmlOut)
+	    requestResponse.writeHTML(os);
+	else if (textOut)
+	    requestResponse.writeText(os);
+	else if (csvOut)
+	    requestResponse.writeCsv(os);
+	else if (fitsOut)
+	    requestResponse.writeFits(os);
+	else
+	    requestResponse.writeVOTable(os, serialization);
+	timer.stop(RequestTimer.SERIALIZE);
+    }
+
     /**
      * Handle an exception, returning an error response to the client.
      * This version return a VOTable.  If any further errors occur while
@@ -497,8 +716,9 @@ public class SsapServlet extends HttpServlet {
 	    // Echo the query parameters as INFOs in the query response.
 	    r.echoParamInfos(params);
 
-	    // Set up the output stream.
-	    servletResponse.resetBuffer();
+	    // Set up the output stream.  Any caching headers set for a
+	    // cached response are cleared.
+	    ResponseCache.noStore(servletResponse);
 	    servletResponse.setContentType("text/xml;x-votable");
 	    servletResponse.setBufferSize(BUFSIZE);
 	    out = servletResponse.getOutputStream();
@@ -30,6 +30,7 @@ import ca.nrc.cadc.uws.server.JobRunner;
 import ca.nrc.cadc.uws.server.JobUpdater;
 import ca.nrc.cadc.uws.server.SyncOutput;
 import ca.nrc.cadc.uws.util.JobLogInfo;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -41,9 +42,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NameNotFoundException;
 import javax.sql.DataSource;
 import org.apache.log4j.Logger;
 
@@ -70,6 +68,7 @@ public class TapQueryRunner implements JobRunner {
   
     private String queryDataSourceName = "jdbc/tapuser";
     private String uploadDataSourceName = "jdbc/tapuploadadm";
+    private long tapSchemaTTL = TapSchemaCache.DEFAULT_TTL;
 
     private Job job;
     private DalContext dalContext;
@@ -91,9 +90,18 @@ public class TapQueryRunner implements JobRunner {
 	try {
 	    TapParamSet tapPset = new TapParamSet();
 	    RequestResponse response = new RequestResponse();
+	    RequestTimer timer = response.getTimer();
+	    timer.start(RequestTimer.PARAMS);
 	    this.dalContext = new DalContext((ParamSet)tapPset, response, job);
+	    timer.stop(RequestTimer.PARAMS);
 	    String sval;
 
+	    // Job metrics are recorded under the TAP service name.
+	    if ((sval = tapPset.getValue("serviceName")) != null)
+		timer.setService(sval);
+	    else
+		timer.setService("tap");
+
 	    // Check if any custom datasource names are defined.
 	    // These parameters may be specified as servlet init params,
 	    // as service instance globals (service properties file),
@@ -106,6 +114,15 @@ public class TapQueryRunner implements JobRunner {
 		queryDataSourceName = sval;
 	    if ((sval = tapPset.getValue("uploadDataSource")) != null)
 		uploadDataSourceName = sval;
+
+	    // Maximum age of the cached TAP_SCHEMA (seconds, 0 to disable).
+	    if ((sval = tapPset.getValue("tapSchemaTTL")) != null) {
+		try {
+		    tapSchemaTTL = Long.parseLong(sval.trim()) * 1000;
+		} catch (NumberFormatException ex) {
+		    log.error("invalid tapSchemaTTL: " + sval);
+		}
+	    }
 System.out.println ("TapQueryRunner: qDS = '" + queryDataSourceName + "'");
 System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
 
@@ -166,6 +183,12 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
         tList.add(System.currentTimeMillis());
         sList.add("start");
 
+        // Stage timings, recorded in the metrics registry when done.
+        RequestTimer timer = (dalContext != null) ?
+            dalContext.response.getTimer() : new RequestTimer("tap", null);
+        timer.setOperation((syncOutput != null) ? "sync" : "async");
+        timer.start(RequestTimer.PARAMS);
+
         log.debug("run: " + job.getID());
          List<Parameter> paramList = job.getParameterList();
         log.debug("job " + job.getID() + ": " + paramList.size() + " parameters");
@@ -199,17 +222,18 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
             tList.add(System.currentTimeMillis());
             sList.add("initialisation: ");
 
+            // The query DataSource may be a replica set; uploads are
+            // written to the primary.
             log.debug("find DataSource via JNDI lookup...");
-            Context initContext = new InitialContext();
-            Context envContext = (Context) initContext.lookup("java:comp/env");
-            DataSource queryDataSource = (DataSource) envContext.lookup(queryDataSourceName);
+            DbmsDataSourceFactory dsFactory = new DbmsDataSourceFactory();
+            DataSource queryDataSource = dsFactory.getDataSource(queryDataSourceName);
             // this one is optional, so take care
             DataSource uploadDataSource = null;
             try
             {
-                uploadDataSource = (DataSource) envContext.lookup(uploadDataSourceName);
+                uploadDataSource = dsFactory.getDataSource(uploadDataSourceName, true);
             }
-            catch (NameNotFoundException nex)
+            catch (DalServerException nex)
             {
                 log.debug(nex.toString());
             }
@@ -221,8 +245,8 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
 
             log.debug("reading TapSchema...");
             TapSchemaDAO dao = pfac.getTapSchemaDAO();
-            dao.setDataSource(queryDataSource);
-            TapSchema tapSchema = dao.get();
+            TapSchema tapSchema = TapSchemaCache.get(dao,
+                queryDataSourceName, queryDataSource, tapSchemaTTL);
             tList.add(System.currentTimeMillis());
             sList.add("read tap_schema: ");
 
@@ -236,7 +260,7 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
                 SchemaDesc tapUploadSchema = new SchemaDesc();
                 tapUploadSchema.setSchemaName("TAP_UPLOAD");
                 tapUploadSchema.setTableDescs(new ArrayList(tableDescs.values()));
-                tapSchema.getSchemaDescs().add(tapUploadSchema);
+                tapSchema = TapSchemaCache.overlay(tapSchema, tapUploadSchema);
             }
 
             log.debug("invoking MaxRecValidator...");
@@ -269,6 +293,7 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
 
             tList.add(System.currentTimeMillis());
             sList.add("parse/convert query: ");
+            timer.stop(RequestTimer.PARAMS);
 
             Connection connection = null;
             PreparedStatement pstmt = null;
@@ -279,7 +304,9 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
                 if (maxRows == null || maxRows.intValue() > 0)
                 {
                     log.debug("getting database connection...");
+                    timer.start(RequestTimer.CONNECT);
                     connection = queryDataSource.getConnection();
+                    timer.stop(RequestTimer.CONNECT);
                     tList.add(System.currentTimeMillis());
                     sList.add("get connection from data source: ");
 
@@ -292,7 +319,9 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
                     pstmt.setFetchDirection(ResultSet.FETCH_FORWARD);
 
                     log.debug("executing query: " + sql);
+                    timer.start(RequestTimer.EXECUTE);
                     resultSet = pstmt.executeQuery();
+                    timer.stop(RequestTimer.EXECUTE);
                 }
 
                 tList.add(System.currentTimeMillis());
@@ -308,10 +337,11 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
                     syncOutput.setHeader("Content-Type", contentType);
                     String disp = "attachment; filename=\""+filename+"\"";
                     syncOutput.setHeader("Content-Disposition", disp);
+                    OutputStream out = timer.countBytes(syncOutput.getOutputStream());
                     if (maxRows == null)
-                        tableWriter.write(resultSet, syncOutput.getOutputStream());
+                        tableWriter.write(resultSet, out);
                     else
-                        tableWriter.write(resultSet, syncOutput.getOutputStream(), maxRows.longValue());
+                        tableWriter.write(resultSet, out, maxRows.longValue());
                     tList.add(System.currentTimeMillis());
                     sList.add("stream Result set as " + contentType + ": ");
                 }
@@ -390,6 +420,7 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
         }
         catch (Throwable t)
         {
+            timer.setFailed(true);
             logInfo.setMessage(t.getMessage());
             logInfo.setSuccess(false);
             String errorMessage = null;
@@ -450,6 +481,7 @@ System.out.println ("TapQueryRunner: uDS = '" + uploadDataSourceName + "'");
                 long dt = tList.get(i) - tList.get(i - 1);
                 log.debug(job.getID() + " -- " + sList.get(i) + dt + "ms");
             }
+            timer.record();
         }
     }
 
@@ -349,6 +349,9 @@ public class TapSchema {
 
 	// TAP_SCHEMA.keys is created, but will require manual editing.
 	// TAP_SCHEMA.key_columns is created, but will require manual editing.
+
+	// Force the cached TAP_SCHEMA to be reloaded.
+	TapSchemaCache.invalidate();
     }
 
 
@@ -423,7 +426,7 @@ public class TapSchema {
 	try {
 	    String dsName = cli.getOptionValue("datasource", DEF_DATASOURCE);
 	    DbmsDataSourceFactory dsFactory = new DbmsDataSourceFactory();
-	    DataSource ds = dsFactory.getDataSource(dsName);
+	    DataSource ds = dsFactory.getDataSource(dsName, true);
 	    ts.setDataSource(ds);
 	} catch (DalServerException ex) {
 	    System.out.println("Cannot get DataSource:" + ex.getMessage());
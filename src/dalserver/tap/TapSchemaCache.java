@@ -0,0 +1,156 @@
+/*
+ * TapSchemaCache.java
+ * $ID*
+ */
+
+package dalserver.tap;
+
+import ca.nrc.cadc.tap.schema.SchemaDesc;
+import ca.nrc.cadc.tap.schema.TapSchema;
+import ca.nrc.cadc.tap.schema.TapSchemaDAO;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory cache of the TAP_SCHEMA, shared by all TAP query jobs and the
+ * VOSI tables resource.  Reading the TAP_SCHEMA requires a full select of
+ * each of the TAP_SCHEMA tables, and rebuilding the schema object graph,
+ * hence it is read once and reused until it is invalidated or expires.
+ *
+ * <p>The cache has a global version number, which is incremented whenever
+ * the TAP_SCHEMA is modified within the server (see
+ * {@link dalserver.tap.TapSchema#addTable}),
+ * causing all cached schemas to be reloaded on next use.  Modifications
+ * made externally, e.g., by the TapSchema command line utility, are seen
+ * once the cached schema expires (TTL).  A TTL of zero disables caching.
+ *
+ * <p>The cached TapSchema is shared and must not be modified.  Per-job
+ * additions such as uploaded tables should be added to a private overlay
+ * instance obtained from {@link #overlay}.
+ */
+public class TapSchemaCache {
+
+    private static final Logger log = Logger.getLogger(TapSchemaCache.class);
+
+    /** Default time to live of a cached schema, msec. */
+    public static final long DEFAULT_TTL = 300000;
+
+    /** Global schema version, incremented when the schema is modified. */
+    private static final AtomicLong version = new AtomicLong(0);
+
+    /**
+     * Cached schemas, keyed by DataSource reference, so that the TAP jobs
+     * (which use the configured plugin DAO) and the VOSI tables resource
+     * share the same schema.
+     */
+    private static final Map<String,Entry> cache =
+	new ConcurrentHashMap<String,Entry>();
+
+    /** A cached TapSchema. */
+    private static class Entry {
+	TapSchema tapSchema;
+	long version;
+	long loadTime;
+
+	Entry(TapSchema tapSchema, long version, long loadTime) {
+	    this.tapSchema = tapSchema;
+	    this.version = version;
+	    this.loadTime = loadTime;
+	}
+    }
+
+    /** Static class. */
+    private TapSchemaCache() { }
+
+    /**
+     * Get the TAP_SCHEMA for a DataSource, reading it via the given DAO
+     * if there is no current cached version.  A cached schema is returned
+     * regardless of the DAO which read it.
+     *
+     * @param	dao		TapSchemaDAO used to read the schema
+     * @param	dsref		The DataSource reference (e.g., JNDI name),
+     *				which identifies the schema in the cache
+     * @param	ds		The DataSource containing the TAP_SCHEMA
+     * @param	ttl		Maximum age of a cached schema, msec
+     *
+     * @return			The shared TapSchema instance (read only).
+     */
+    public static TapSchema get(TapSchemaDAO dao, String dsref,
+	DataSource ds, long ttl) {
+
+	String key = dsref;
+
+	Entry entry = cache.get(key);
+	if (isCurrent(entry, ttl))
+	    return (entry.tapSchema);
+
+	// Only one thread reads the schema; others wait for the result.
+	synchronized (TapSchemaCache.class) {
+	    entry = cache.get(key);
+	    if (isCurrent(entry, ttl))
+		return (entry.tapSchema);
+
+	    // The version is read before the schema, so that a concurrent
+	    // modification invalidates the schema read here.
+	    long v = version.get();
+	    long start = System.currentTimeMillis();
+
+	    // The schema is always read ordered, as required for VOSI.
+	    dao.setDataSource(ds);
+	    dao.setOrdered(true);
+	    TapSchema tapSchema = dao.get();
+
+	    long now = System.currentTimeMillis();
+	    if (ttl > 0)
+		cache.put(key, new Entry(tapSchema, v, now));
+	    log.debug("read tap_schema version " + v + " in " +
+		(now - start) + " msec");
+
+	    return (tapSchema);
+	}
+    }
+
+    /**
+     * Create a private copy of a shared TapSchema with an additional
+     * schema, e.g., TAP_UPLOAD for a job with uploaded tables.  The
+     * shared schema is not modified.
+     *
+     * @param	tapSchema	The shared TapSchema
+     * @param	schemaDesc	The schema to be added
+     */
+    public static TapSchema overlay(TapSchema tapSchema, SchemaDesc schemaDesc) {
+	List<SchemaDesc> schemaDescs =
+	    new ArrayList<SchemaDesc>(tapSchema.getSchemaDescs());
+	schemaDescs.add(schemaDesc);
+
+	TapSchema jobSchema = new TapSchema(schemaDescs);
+	jobSchema.functionDescs = tapSchema.functionDescs;
+	jobSchema.groupDescs = tapSchema.groupDescs;
+
+	return (jobSchema);
+    }
+
+    /**
+     * Invalidate all cached schemas.  This should be called whenever the
+     * TAP_SCHEMA is modified.
+     */
+    public static void invalidate() {
+	version.incrementAndGet();
+    }
+
+    /** Get the current schema version. */
+    public static long getVersion() {
+	return (version.get());
+    }
+
+    /** Test whether a cache entry is valid and has not expired. */
+    private static boolean isCurrent(Entry entry, long ttl) {
+	return (entry != null && entry.version == version.get() &&
+	    System.currentTimeMillis() - entry.loadTime < ttl);
+    }
+}
@@ -204,7 +204,18 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
         
 	System.out.println ("initFormat: format = " + format);
 	System.out.println ("initFormat: " + knownFormats);
-        String type = knownFormats.get(format.toLowerCase());
+
+        // A VOTable serialization may be given as a MIME type parameter,
+        // e.g., "votable;serialization=binary2".
+        String baseFormat = format;
+        String options = "";
+        int semi = format.indexOf(';');
+        if (semi >= 0 && knownFormats.get(format.toLowerCase()) == null) {
+            baseFormat = format.substring(0, semi).trim();
+            options = format.substring(semi);
+        }
+
+        String type = knownFormats.get(baseFormat.toLowerCase());
         if (type == null)
 	    System.out.println ("initFormat type is NULL ");
 	else
@@ -212,8 +223,10 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
         if (type == null)
             throw new UnsupportedOperationException("unknown format: " + format);
 
-        if (type.equals(VOTABLE) && format.equals(VOTABLE))
-            format = APPLICATION_VOTABLE_XML;
+        if (type.equals(VOTABLE) && baseFormat.equals(VOTABLE))
+            format = APPLICATION_VOTABLE_XML + options;
+        else if (!type.equals(VOTABLE) && options.length() > 0)
+            throw new UnsupportedOperationException("unknown format: " + format);
         
         // Create the table writer.
         // Note: This needs to be done before the write method is called so the contentType
@@ -226,6 +239,13 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
 	if (type.equals(TSV) || type.equals(TEXT) || type.equals(ASCII))
 	    tableWriter = new AsciiTableWriter(AsciiTableWriter.ContentType.TSV);
 
+	// FITS binary tables are written by our own FitsRowSink.
+	if (type.equals(FITS)) {
+	    this.contentType = APPLICATION_FITS;
+	    this.extension = FITS;
+	    return;
+	}
+
 	if (tableWriter == null) {
 	    // Legal format but we don't have a table writer for it
 	    throw new UnsupportedOperationException("unsupported format: " + type);
@@ -286,27 +306,56 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
 
 	// Stream the table to the outputStream.
 	if (dbTableName == null) {
+	    if (maxrec != null && maxrec.longValue() < response.maxrec())
+		response.setMaxrec((int) maxrec.longValue());
+
 	    try {
-		// Serialize the resultSet as a VOTable instance.
-		saveToVotable(rs, response);
+		// Define the output table.
+		List<String> fields = defineTable(response);
 
-		// Output the table in the desired format.
-		String format = params.getValue(FORMAT, VOTABLE);
+		// Output the table in the desired format.  Except for HTML
+		// the rows are written to the output as the resultSet is
+		// read, so that only the current row is held in memory.
 
-		if (format != null) {
-		    if (format.equalsIgnoreCase(HTML)) 
-			response.writeHTML(out);
-		    else if (format.equalsIgnoreCase(TEXT)) 
-			response.writeTsv(out);
-		    else if (format.equalsIgnoreCase(ASCII)) 
-			response.writeTsv(out);
-		    else if (format.equalsIgnoreCase(TSV)) 
-			response.writeTsv(out);
-		    else if (format.equalsIgnoreCase(CSV)) 
-			response.writeCsv(out);
-		    else
-			response.writeVOTable(out);
+		String format = params.getValue(FORMAT, VOTABLE);
+		boolean htmlOut = format.equalsIgnoreCase(HTML);
+
+		if (format.equalsIgnoreCase(TEXT) ||
+		    format.equalsIgnoreCase(ASCII) ||
+		    format.equalsIgnoreCase(TSV))
+		    response.setRowSink(new DelimitedRowSink(out, "\t"));
+		else if (format.equalsIgnoreCase(CSV))
+		    response.setRowSink(new DelimitedRowSink(out, ","));
+		else if (format.equalsIgnoreCase(FITS) ||
+		    format.equalsIgnoreCase(APPLICATION_FITS))
+		    response.setRowSink(new FitsRowSink(out));
+		else if (!htmlOut)
+		    response.setRowSink(new VOTableRowSink(out,
+			VOTableRowSink.getSerialization(format)));
+
+		// Rows streamed to the sink are timed as serialization
+		// within the fetch stage.
+		RequestTimer timer = response.getTimer();
+		timer.start(RequestTimer.FETCH);
+		try {
+		    addRows(rs, response, fields);
+		} catch (DalServerException ex) {
+		    // Terminate any partial output with an ERROR status.
+		    if (response.isStreamStarted())
+			response.abortStream(ex.getMessage());
+		    throw ex;
+		} finally {
+		    timer.stop(RequestTimer.FETCH);
+		    timer.setRows(response.size());
 		}
+
+		timer.start(RequestTimer.SERIALIZE);
+		if (response.isStreaming())
+		    response.endStream();
+		else
+		    response.writeHTML(out);
+		timer.stop(RequestTimer.SERIALIZE);
+
 	    } catch (DalServerException ex) {
 		throw new IOException(ex.getMessage());
 	    }
@@ -320,9 +369,9 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
 	DbmsTable dbms = new DbmsTable();
 	DataSource ds = null;
 
-	// Set the DataSource to be used.
+	// Set the DataSource to be used; writes always go to the primary.
 	try {
-	    ds = dsFactory.getDataSource(dsName);
+	    ds = dsFactory.getDataSource(dsName, true);
 	    if (ds == null)
 		throw new DalServerException("invalid DataSource: " + dsName);
 	    dbms.setDataSource(ds);
@@ -361,7 +410,7 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
 	    String tdsName = params.getValue(ADMIN_DATASOURCE);
 	    if (tdsName != null) {
 		try {
-		    DataSource tds = dsFactory.getDataSource(tdsName);
+		    DataSource tds = dsFactory.getDataSource(tdsName, true);
 		    ts.setDataSource(tds);
 		} catch (DalServerException ignore) {
 		    ts = null;
@@ -441,22 +490,28 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
     public void saveToVotable(ResultSet rs, RequestResponse r)
 	throws DalServerException {
 
-        if (rs != null && log.isDebugEnabled()) {
-            try {
-		log.debug("resultSet column count: " +
-		    rs.getMetaData().getColumnCount());
-	    } catch (Exception oops) {
-		log.error("failed to check resultset column count", oops);
-	    }
-	}
+	addRows(rs, r, defineTable(r));
+    }
+
+    /**
+     * Define the metadata and fields of the query response table.
+     *
+     * @param	r		RequestResponse (votable) object
+     *
+     * @return			The names of the table fields, in
+     *				selectList order.
+     */
+    private List<String> defineTable(RequestResponse r)
+	throws DalServerException {
 
 	// Set global metadata.
 	r.setDescription("DALServer TAP Query");
 	r.setType("results");
 
 	// The following indicates the query executed successfully.  If an
-	// exception occurs the output we generate here will never be returned
-	// anyway, so OK is always appropriate here.
+	// exception occurs before output begins the output we generate here
+	// will never be returned, and once a streamed response has begun an
+	// error is reported by a trailing QUERY_STATUS=ERROR.
 
 	String key;
 	r.addInfo(key="QUERY_STATUS", new TableInfo(key, "OK"));
@@ -489,8 +544,12 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
             f.setFormat(format);
 
 	    // Add the field to the DALServer output table.
+	    // Variable length columns (e.g., VARCHAR) have arraysize "*",
+	    // or "N*" if a maximum length is given.
 	    Integer size = f.getArraysize();
 	    String s_size = (size != null) ? size.toString() : null;
+	    if (f.isVariableSize())
+		s_size = (s_size != null) ? s_size + "*" : "*";
 	    TableField field = new TableField(colName, f.id, groupId,
 		f.getDatatype(), s_size, f.unit, f.utype, f.ucd, f.description);
 	    field.setXtype(f.xtype);
@@ -510,25 +569,65 @@ public class TapTableWriter implements ca.nrc.cadc.tap.TableWriter {
 	    fields.add(colName);
 	}
 
-	// Process the resultSet and add rows to the output table.
+	return (fields);
+    }
+
+    /**
+     * Read the query resultSet and add the rows to the response table.
+     * If the response is streamed each row is output as it is read.
+     * Input stops at MAXREC rows; if the resultSet has further rows the
+     * response QUERY_STATUS is set to OVERFLOW.
+     *
+     * @param	rs		ResultSet to be processed (null if MAXREC=0)
+     * @param	r		RequestResponse (votable) object
+     * @param	fields		Names of the table fields
+     */
+    private void addRows(ResultSet rs, RequestResponse r, List<String> fields)
+	throws DalServerException {
+
+        if (rs != null && log.isDebugEnabled()) {
+            try {
+		log.debug("resultSet column count: " +
+		    rs.getMetaData().getColumnCount());
+	    } catch (Exception oops) {
+		log.error("failed to check resultset column count", oops);
+	    }
+	}
+
 	// If table configuration is active it is applied here.
-	// Note rs=null if MAXREC=0.
 
 	if (rs != null) {
+	    int nfields = fields.size();
+	    String[] names = fields.toArray(new String[nfields]);
+
 	    try {
+		// Look up the resultSet columns once rather than per row.
+		int[] columns = new int[nfields];
+		for (int i=0;  i < nfields;  i++) {
+		    try {
+			columns[i] = rs.findColumn(names[i]);
+		    } catch (SQLException ex) {
+			columns[i] = i + 1;
+		    }
+		}
+
 		while (rs.next()) {
 		    r.addRow();
-		    for (String fieldName : fields)
-			r.setValue(fieldName, rs.getString(fieldName));
+		    for (int i=0;  i < nfields;  i++)
+			r.setValue(names[i], rs.getString(columns[i]));
 		}
 	    } catch (SQLException ex) {
 		throw new DalServerException(ex.getMessage());
 	    } catch (DalOverflowException ex) {
-		// Add overflow handling here; exit loop for now.
+		// The resultSet has more than MAXREC rows; addRow has
+		// already set QUERY_STATUS=OVERFLOW.
+		log.debug("query response truncated: " + ex.getMessage());
 	    }
 	}
 
-	// Show the number of table rows in the response header.
+	// Show the number of table rows in the response.  For a streamed
+	// response this follows the table.
+	String key;
 	r.addInfo(key="TableRows",
 	    new TableInfo(key, new Integer(r.size()).toString()));
     }
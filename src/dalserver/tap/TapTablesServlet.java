@@ -0,0 +1,94 @@
+/*
+ * TapTablesServlet.java
+ * $ID*
+ */
+
+package dalserver.tap;
+
+import ca.nrc.cadc.tap.schema.TapSchema;
+import ca.nrc.cadc.tap.schema.TapSchemaDAO;
+import ca.nrc.cadc.vosi.TableSet;
+import dalserver.DalServerException;
+import dalserver.DbmsDataSourceFactory;
+import java.io.IOException;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+/**
+ * VOSI tables resource for a TAP service.  This is equivalent to the
+ * OpenCADC TableServlet, except that the TAP_SCHEMA is obtained from the
+ * {@link TapSchemaCache} shared with the TAP query jobs, rather than being
+ * read from the database for every request.
+ *
+ * <p>The servlet init-params "queryDataSource" (reference to the TAP
+ * DataSource as for {@link DbmsDataSourceFactory}, default "jdbc/tapuser") and "tapSchemaTTL" (maximum age of
+ * the cached schema in seconds) may optionally be given.
+ */
+public class TapTablesServlet extends HttpServlet {
+
+    private static final Logger log = Logger.getLogger(TapTablesServlet.class);
+    private static final long serialVersionUID = 1;
+
+    private String queryDataSourceName = "jdbc/tapuser";
+    private long tapSchemaTTL = TapSchemaCache.DEFAULT_TTL;
+
+    /** Servlet initialization. */
+    public void init(ServletConfig config) throws ServletException {
+	super.init(config);
+	String sval;
+
+	if ((sval = config.getInitParameter("queryDataSource")) != null)
+	    queryDataSourceName = sval;
+	if ((sval = config.getInitParameter("tapSchemaTTL")) != null) {
+	    try {
+		tapSchemaTTL = Long.parseLong(sval.trim()) * 1000;
+	    } catch (NumberFormatException ex) {
+		throw new ServletException("invalid tapSchemaTTL: " + sval);
+	    }
+	}
+    }
+
+    /** Return the VOSI tableset document for the service. */
+    protected void doGet(HttpServletRequest request,
+	HttpServletResponse response) throws ServletException, IOException {
+
+	boolean started = false;
+	try {
+	    // The DataSource is resolved as for the TAP jobs, hence may be
+	    // a replica set or file-based DataSource as well as JNDI.
+	    DataSource queryDataSource = new DbmsDataSourceFactory().
+		getDataSource(queryDataSourceName);
+
+	    TapSchema tapSchema = TapSchemaCache.get(new TapSchemaDAO(),
+		queryDataSourceName, queryDataSource, tapSchemaTTL);
+
+	    Document doc = new TableSet(tapSchema).getDocument();
+	    XMLOutputter out = new XMLOutputter(Format.getPrettyFormat());
+	    started = true;
+	    response.setContentType("text/xml");
+	    out.output(doc, response.getOutputStream());
+
+	} catch (IOException ex) {
+	    throw ex;
+	} catch (DalServerException ex) {
+	    log.error("failed to find DataSource " + queryDataSourceName +
+		": " + ex.getMessage());
+	    if (!started)
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+		    "service unavailable (configuration error)");
+	} catch (Throwable t) {
+	    log.error("failed to read TAP_SCHEMA", t);
+	    if (!started)
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+		    t.getMessage());
+	}
+    }
+}
@@ -0,0 +1,148 @@
+package dalserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * AsyncQueryManager Class Test Suite
+ *   The cost of a query is estimated from the search radius of each
+ *   target, table size and MAXREC, and an expensive query run as a job
+ *   has its response spooled and returned as the job result.
+ */
+public class AsyncQueryManagerTest {
+
+    @Test
+    public void testEstimate() throws Exception {
+	// A 90 degree radius covers half the sky.
+	assertEquals(500000, AsyncQueryManager.estimateRows(1000000, 90.0, -1));
+	assertEquals(1000000, AsyncQueryManager.estimateRows(1000000, 200.0, -1));
+	assertEquals(100, AsyncQueryManager.estimateRows(1000000, 90.0, 100));
+	assertEquals(0.5, AsyncQueryManager.sizeRadius("0.6,0.8"), 1e-12);
+	assertTrue(Double.isNaN(AsyncQueryManager.sizeRadius(null)));
+	assertEquals(0.25, AsyncQueryManager.coneRadius("0.25"), 0.0);
+
+	ParamSet params = params("async-estimate");
+	assertNull(AsyncQueryManager.getManager(new ParamSet()));
+	AsyncQueryManager manager = AsyncQueryManager.getManager(params);
+	assertSame(manager, AsyncQueryManager.getManager(params));
+
+	// 1e9 rows within 1 degree is about 76000 rows.
+	assertTrue(manager.isExpensive(params, 1.0));
+	assertFalse(manager.isExpensive(params, 0.1));
+	assertFalse(manager.isExpensive(params, Double.NaN));
+	params.addParam(new Param("MAXREC", "1000"));
+	assertFalse(manager.isExpensive(params, 1.0));
+    }
+
+    @Test
+    public void testTargets() throws Exception {
+	// SSA SIZE is an aperture diameter.
+	assertEquals(0.05, AsyncQueryManager.apertureRadius("0.1"), 1e-12);
+	assertTrue(Double.isNaN(AsyncQueryManager.apertureRadius(" ")));
+
+	// About 760 rows within 0.1 degree, hence 20 targets are expensive.
+	ParamSet params = params("async-targets");
+	AsyncQueryManager manager = AsyncQueryManager.getManager(params);
+	double[] radii = new double[20];
+	Arrays.fill(radii, 0.1);
+	assertFalse(manager.isExpensive(params, 0.1));
+	assertTrue(manager.isExpensive(params, radii));
+	radii[3] = Double.NaN;
+	assertFalse(manager.isExpensive(params, radii));
+    }
+
+    @Test
+    public void testJob() throws Exception {
+	AsyncQueryManager manager =
+	    AsyncQueryManager.getManager(params("async-job"));
+
+	String url = manager.submit(request(), "text/plain",
+	    new AsyncQueryManager.Query() {
+		public void execute(OutputStream out) throws Exception {
+		    out.write("result".getBytes());
+		}
+	    });
+	assertTrue(url.startsWith("http://host/scs?REQUEST=getJob&JOBID="));
+	String jobId = url.substring(url.indexOf("JOBID=") + 6);
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	for (int i=0;  i < 100 && out.size() == 0;  i++) {
+	    try {
+		manager.writeResult(jobId, response(out));
+	    } catch (DalServerException ex) {
+		Thread.sleep(50);
+	    }
+	}
+	assertEquals("result", out.toString());
+	assertEquals(0, manager.getActiveCount());
+
+	out.reset();
+	manager.writeJob(jobId, response(out));
+	assertTrue(out.toString().contains("COMPLETED"));
+
+	try {
+	    manager.writeResult("nosuchjob", response(out));
+	    fail("expected DalServerException");
+	} catch (DalServerException ex) {
+	    ;
+	}
+    }
+
+    private static ParamSet params(String name) throws Exception {
+	ParamSet params = new ParamSet();
+	params.addParam(new Param("serviceName", name));
+	params.addParam(new Param("asyncThreshold", "10000"));
+	params.addParam(new Param("asyncThreads", "1"));
+	params.addParam(new Param("tableRows", "1000000000"));
+	return (params);
+    }
+
+    private static HttpServletRequest request() {
+	return ((HttpServletRequest) Proxy.newProxyInstance(
+	    AsyncQueryManagerTest.class.getClassLoader(),
+	    new Class[] { HttpServletRequest.class }, new InvocationHandler() {
+		public Object invoke(Object proxy, Method m, Object[] args) {
+		    if (m.getName().equals("getRequestURL"))
+			return (new StringBuffer("http://host/scs"));
+		    if (m.getName().equals("getParameterNames"))
+			return (Collections.enumeration(
+			    Collections.singletonList("SR")));
+		    if (m.getName().equals("getParameterValues"))
+			return (new String[] { "10" });
+		    return (null);
+		}
+	    }));
+    }
+
+    private static HttpServletResponse response(
+	final ByteArrayOutputStream out) {
+
+	final ServletOutputStream sos = new ServletOutputStream() {
+	    public void write(int b) throws IOException {
+		out.write(b);
+	    }
+	};
+
+	return ((HttpServletResponse) Proxy.newProxyInstance(
+	    AsyncQueryManagerTest.class.getClassLoader(),
+	    new Class[] { HttpServletResponse.class }, new InvocationHandler() {
+		public Object invoke(Object proxy, Method m, Object[] args) {
+		    if (m.getName().equals("getOutputStream"))
+			return (sos);
+		    return (null);
+		}
+	    }));
+    }
+}
@@ -0,0 +1,58 @@
+package dalserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * ColumnCache Class Test Suite
+ *   Cached column definitions are returned until they expire or the
+ *   cache is invalidated.
+ */
+public class ColumnCacheTest {
+
+    @Test
+    public void testCache() throws Exception {
+	List<Object> key = Arrays.asList((Object) "scs", "jdbc:test", "t1");
+	Object columns = new Object();
+
+	long version = ColumnCache.getVersion();
+	ColumnCache.put(key, columns, version, 60000);
+	assertSame(columns, ColumnCache.get(key, 60000));
+	assertSame(columns, ColumnCache.get(
+	    Arrays.asList((Object) "scs", "jdbc:test", "t1"), 60000));
+	assertNull(ColumnCache.get(Arrays.asList((Object) "scs", "t2"), 60000));
+
+	// Expired, or invalidated entries are not returned.
+	Thread.sleep(5);
+	assertNull(ColumnCache.get(key, 1));
+	ColumnCache.put(key, columns, version, 60000);
+	ColumnCache.invalidate();
+	assertNull(ColumnCache.get(key, 60000));
+
+	// Definitions read before an invalidation are not cached.
+	ColumnCache.put(key, columns, version, 60000);
+	assertNull(ColumnCache.get(key, 60000));
+
+	// A TTL of zero disables caching.
+	ColumnCache.put(key, columns, ColumnCache.getVersion(), 0);
+	assertEquals(0, ColumnCache.size());
+    }
+
+    @Test
+    public void testFieldCopy() {
+	TableField field = new TableField("ra", "ra", null, "double", null,
+	    "deg", "t.ra", "POS_EQ_RA_MAIN", "Right ascension");
+	field.setIndex(3);
+	TableField copy = field.copy();
+
+	assertNotSame(field, copy);
+	assertEquals("ra", copy.getName());
+	assertEquals("deg", copy.getUnit());
+	assertEquals("POS_EQ_RA_MAIN", copy.getUcd());
+	assertEquals("Right ascension", copy.getDescription());
+	assertEquals(3, copy.getIndex());
+    }
+}
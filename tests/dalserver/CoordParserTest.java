@@ -0,0 +1,69 @@
+package dalserver;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * CoordParser Class Test Suite
+ *   Sexagesimal and decimal values are parsed in full precision, and
+ *   malformed values are rejected.
+ */
+public class CoordParserTest {
+
+    @Test
+    public void testParse() {
+	assertEquals(12.0 + 34.0/60 + 56.789/3600,
+	    CoordParser.parse("12:34:56.789"), 1.0e-15);
+	assertEquals(-(5.0 + 43.0/60 + 21.09/3600),
+	    CoordParser.parse(" -05 43 21.09 "), 1.0e-15);
+	assertEquals(-(49.0/60), CoordParser.parse("-00 49"), 1.0e-15);
+	assertEquals(5.0 + 34.5/60, CoordParser.parse("05 34.5"), 1.0e-15);
+	assertEquals(22.0 + 1.0/60 + 2.0/3600,
+	    CoordParser.parse("+22 : 01 : 02"), 1.0e-15);
+
+	// Decimal values are exact, as for Double.parseDouble.
+	String[] values = { "182.25", "0.1", "-0.000123", "359.99999999999",
+	    "12345678901234567890.5", "1.5e2", "17" };
+	for (String value : values)
+	    assertEquals(Double.parseDouble(value),
+		CoordParser.parse(value), 0.0);
+	assertEquals(10.7, CoordParser.parse("x10.7y", 1, 5), 0.0);
+
+	assertTrue(CoordParser.isSexagesimal("12:34"));
+	assertTrue(CoordParser.isSexagesimal("12 34"));
+	assertFalse(CoordParser.isSexagesimal(" -12.5 "));
+    }
+
+    @Test
+    public void testInvalid() {
+	String[] values = { "", "  ", "-", "12:", "12:60", "12:34:60.5",
+	    "12.5:30", "1:2:3:4", "12a", "12..5", "12:-3", "1:2e3", "abc" };
+	for (String value : values) {
+	    try {
+		CoordParser.parse(value);
+		fail("accepted '" + value + "'");
+	    } catch (NumberFormatException ex) {
+		;
+	    }
+	}
+    }
+
+    @Test
+    public void testMessier() throws Exception {
+	BufferedReader in = new BufferedReader(new FileReader("lib/messier.csv"));
+	String line;
+	int n = 0;
+	while ((line = in.readLine()) != null) {
+	    String[] fields = line.split("\\|");
+	    double ra = CoordParser.parse(fields[5]);
+	    double dec = CoordParser.parse(fields[6]);
+	    assertTrue(ra >= 0 && ra < 24 && dec >= -90 && dec <= 90);
+	    n++;
+	}
+	in.close();
+	assertEquals(110, n);
+    }
+}
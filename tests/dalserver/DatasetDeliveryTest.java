@@ -0,0 +1,185 @@
+package dalserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * DatasetDelivery Class Test Suite
+ *   A dataset file is sent whole or as a single byte range, with its
+ *   ETag and Last-Modified date, and a stale If-Range returns it whole.
+ *   A file which may be deleted is sent by the servlet, not the container.
+ */
+public class DatasetDeliveryTest {
+
+    @Test
+    public void testRange() {
+	assertArrayEquals(new long[] { 0, 99 },
+	    DatasetDelivery.parseRange("bytes=0-", 100));
+	assertArrayEquals(new long[] { 10, 19 },
+	    DatasetDelivery.parseRange("bytes=10-19", 100));
+	assertArrayEquals(new long[] { 90, 99 },
+	    DatasetDelivery.parseRange("bytes=90-200", 100));
+	assertArrayEquals(new long[] { 80, 99 },
+	    DatasetDelivery.parseRange("bytes=-20", 100));
+	assertArrayEquals(new long[] { -1, -1 },
+	    DatasetDelivery.parseRange("bytes=100-", 100));
+	assertNull(DatasetDelivery.parseRange("bytes=0-1,5-6", 100));
+	assertNull(DatasetDelivery.parseRange("bytes=20-10", 100));
+	assertNull(DatasetDelivery.parseRange("items=0-1", 100));
+    }
+
+    @Test
+    public void testSend() throws Exception {
+	byte[] data = new byte[100000];
+	for (int i=0;  i < data.length;  i++)
+	    data[i] = (byte) i;
+	File file = File.createTempFile("dataset", ".fits");
+	FileOutputStream fout = new FileOutputStream(file);
+	fout.write(data);
+	fout.close();
+
+	// The whole dataset.
+	Map<String,String> headers = new HashMap<String,String>();
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	DatasetDelivery.send(file, request(new HashMap<String,String>()),
+	    response(headers, out), null);
+	assertArrayEquals(data, out.toByteArray());
+	assertEquals("100000", headers.get("Content-Length"));
+	assertEquals("bytes", headers.get("Accept-Ranges"));
+	assertNull(headers.get("status"));
+	String etag = headers.get("ETag");
+	assertEquals(DatasetDelivery.etag(data.length, file.lastModified()),
+	    etag);
+
+	// A range of the current dataset.
+	Map<String,String> req = new HashMap<String,String>();
+	req.put("Range", "bytes=1000-1999");
+	req.put("If-Range", etag);
+	headers.clear();
+	out.reset();
+	DatasetDelivery.send(file, request(req), response(headers, out), null);
+	assertEquals("206", headers.get("status"));
+	assertEquals("1000", headers.get("Content-Length"));
+	assertEquals("bytes 1000-1999/100000", headers.get("Content-Range"));
+	assertArrayEquals(Arrays.copyOfRange(data, 1000, 2000),
+	    out.toByteArray());
+
+	// A range of a changed dataset returns the whole dataset.
+	req.put("If-Range", "\"0-0\"");
+	headers.clear();
+	out.reset();
+	DatasetDelivery.send(file, request(req), response(headers, out), null);
+	assertNull(headers.get("status"));
+	assertEquals(data.length, out.size());
+
+	// The client already has the dataset.
+	req.clear();
+	req.put("If-None-Match", etag);
+	headers.clear();
+	out.reset();
+	DatasetDelivery.send(file, request(req), response(headers, out), null);
+	assertEquals("304", headers.get("status"));
+	assertEquals(0, out.size());
+
+	file.delete();
+    }
+
+    @Test
+    public void testSendfile() throws Exception {
+	byte[] data = new byte[100000];
+	File file = File.createTempFile("dataset", ".fits");
+	FileOutputStream fout = new FileOutputStream(file);
+	fout.write(data);
+	fout.close();
+
+	// The container sends the file.
+	Map<String,Object> attrs = new HashMap<String,Object>();
+	attrs.put("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+	Map<String,String> headers = new HashMap<String,String>();
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	DatasetDelivery.send(file,
+	    request(new HashMap<String,String>(), attrs),
+	    response(headers, out), null);
+	assertEquals(0, out.size());
+	assertEquals(file.getCanonicalPath(),
+	    attrs.get("org.apache.tomcat.sendfile.filename"));
+
+	// A file which may be deleted is sent from the open file.
+	attrs.remove("org.apache.tomcat.sendfile.filename");
+	DatasetDelivery.send(file,
+	    request(new HashMap<String,String>(), attrs),
+	    response(headers, out), null, false);
+	assertEquals(data.length, out.size());
+	assertNull(attrs.get("org.apache.tomcat.sendfile.filename"));
+
+	file.delete();
+    }
+
+    private static HttpServletRequest request(
+	final Map<String,String> headers) {
+
+	return (request(headers, new HashMap<String,Object>()));
+    }
+
+    private static HttpServletRequest request(
+	final Map<String,String> headers, final Map<String,Object> attrs) {
+
+	return ((HttpServletRequest) Proxy.newProxyInstance(
+	    DatasetDeliveryTest.class.getClassLoader(),
+	    new Class[] { HttpServletRequest.class }, new InvocationHandler() {
+		public Object invoke(Object proxy, Method m, Object[] args) {
+		    if (m.getName().equals("getMethod"))
+			return ("GET");
+		    if (m.getName().equals("getHeader"))
+			return (headers.get(args[0]));
+		    if (m.getName().equals("getAttribute"))
+			return (attrs.get(args[0]));
+		    if (m.getName().equals("setAttribute"))
+			attrs.put((String) args[0], args[1]);
+		    return (null);
+		}
+	    }));
+    }
+
+    private static HttpServletResponse response(
+	final Map<String,String> headers, final ByteArrayOutputStream out) {
+
+	final ServletOutputStream sos = new ServletOutputStream() {
+	    public void write(int b) throws IOException {
+		out.write(b);
+	    }
+	    public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	    }
+	};
+
+	return ((HttpServletResponse) Proxy.newProxyInstance(
+	    DatasetDeliveryTest.class.getClassLoader(),
+	    new Class[] { HttpServletResponse.class }, new InvocationHandler() {
+		public Object invoke(Object proxy, Method m, Object[] args) {
+		    if (m.getName().equals("getOutputStream"))
+			return (sos);
+		    if (m.getName().equals("setHeader"))
+			headers.put((String) args[0], (String) args[1]);
+		    if (m.getName().equals("setStatus") ||
+			m.getName().equals("sendError"))
+			headers.put("status", "" + args[0]);
+		    return (null);
+		}
+	    }));
+    }
+}
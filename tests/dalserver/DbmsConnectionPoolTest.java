@@ -0,0 +1,42 @@
+package dalserver;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * DbmsConnectionPool Class Test Suite
+ *   A service's pool is reused while its configuration is unchanged, and
+ *   replaced if the password or pool settings change.
+ */
+public class DbmsConnectionPoolTest {
+
+    private static ParamSet params(String password, String maxActive)
+	throws Exception {
+
+	ParamSet params = new ParamSet();
+	params.addParam(new Param("serviceName", "pool-test"));
+	params.addParam(new Param("dbType", "postgresql"));
+	params.addParam(new Param("jdbcUrl", "jdbc:postgresql://localhost/"));
+	params.addParam(new Param("dbName", "test"));
+	params.addParam(new Param("dbUser", "dal"));
+	params.addParam(new Param("dbPassword", password));
+	params.addParam(new Param("poolMaxActive", maxActive));
+	return (params);
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+	DbmsConnectionPool pool =
+	    DbmsConnectionPool.getPool(params("secret", "8"));
+	assertSame(pool, DbmsConnectionPool.getPool(params("secret", "8")));
+
+	DbmsConnectionPool p2 =
+	    DbmsConnectionPool.getPool(params("changed", "8"));
+	assertNotSame(pool, p2);
+	DbmsConnectionPool p3 =
+	    DbmsConnectionPool.getPool(params("changed", "16"));
+	assertNotSame(p2, p3);
+
+	DbmsConnectionPool.closePool("pool-test");
+    }
+}
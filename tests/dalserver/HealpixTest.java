@@ -0,0 +1,85 @@
+package dalserver;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Healpix Class Test Suite
+ *   Nested pixel indices are consistent with the pixel centers, and the
+ *   pixel ranges of a cone contain every position within the cone.
+ */
+public class HealpixTest {
+
+    @Test
+    public void testPixels() {
+	// Base pixels: the north and south poles, and the equator.
+	assertEquals(0, Healpix.ang2pix(0, 45.0, 60.0));
+	assertEquals(4, Healpix.ang2pix(0, 0.0, 0.0));
+	assertEquals(8, Healpix.ang2pix(0, 45.0, -60.0));
+	assertEquals(48, Healpix.npix(1));
+
+	// Every pixel center maps back to the same pixel.
+	for (int order=0;  order <= 4;  order++) {
+	    for (long pix=0;  pix < Healpix.npix(order);  pix++) {
+		double[] pos = Healpix.pix2ang(order, pix);
+		assertEquals(pix, Healpix.ang2pix(order, pos[0], pos[1]));
+	    }
+	}
+
+	long pix = Healpix.ang2pix(Healpix.MAX_ORDER, 123.456, -45.678);
+	double[] pos = Healpix.pix2ang(Healpix.MAX_ORDER, pix);
+	assertEquals(123.456, pos[0], 1.0e-6);
+	assertEquals(-45.678, pos[1], 1.0e-6);
+    }
+
+    @Test
+    public void testDisc() {
+	Random random = new Random(42);
+	double[][] cones = {
+	    { 10.0, 20.0, 1.0 }, { 359.9, 0.0, 0.5 }, { 0.0, 89.9, 2.0 },
+	    { 180.0, -89.5, 1.0 }, { 83.6, 22.0, 0.01 }, { 200.0, 40.0, 30.0 }
+	};
+
+	for (double[] cone : cones) {
+	    int order = 10;
+	    long[] ranges = Healpix.queryDisc(order, cone[0], cone[1], cone[2],
+		Healpix.DEFAULT_MAX_RANGES);
+	    assertTrue(ranges.length > 0);
+	    assertTrue(ranges.length / 2 <= Healpix.DEFAULT_MAX_RANGES);
+
+	    // Random positions within the cone must all be covered.
+	    for (int i=0;  i < 2000;  i++) {
+		double ra = cone[0] + (random.nextDouble() * 2 - 1) *
+		    cone[2] / Math.max(0.01, Math.cos(Math.toRadians(cone[1])));
+		double dec = cone[1] + (random.nextDouble() * 2 - 1) * cone[2];
+		if (dec > 90 || dec < -90)
+		    continue;
+		ra = (ra + 360.0) % 360.0;
+		if (distance(ra, dec, cone[0], cone[1]) > cone[2])
+		    continue;
+
+		long pix = Healpix.ang2pix(order, ra, dec);
+		boolean found = false;
+		for (int j=0;  j < ranges.length && !found;  j += 2)
+		    found = (pix >= ranges[j] && pix <= ranges[j+1]);
+		assertTrue("ra=" + ra + " dec=" + dec, found);
+	    }
+	}
+
+	// The whole sky is a single range.
+	long[] ranges = Healpix.queryDisc(8, 0.0, 0.0, 180.0, 10);
+	assertEquals(2, ranges.length);
+	assertEquals(Healpix.npix(8) - 1, ranges[1]);
+    }
+
+    private static double distance(double ra1, double dec1,
+	double ra2, double dec2) {
+
+	double d1 = Math.toRadians(dec1), d2 = Math.toRadians(dec2);
+	double c = Math.sin(d1) * Math.sin(d2) + Math.cos(d1) * Math.cos(d2) *
+	    Math.cos(Math.toRadians(ra1 - ra2));
+	return (Math.toDegrees(Math.acos(Math.min(1.0, c))));
+    }
+}
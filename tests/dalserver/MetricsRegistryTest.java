@@ -0,0 +1,73 @@
+package dalserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * MetricsRegistry Class Test Suite
+ *   Request stage timings are recorded per service and operation, and
+ *   output in the Prometheus text format.
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void testTimer() throws Exception {
+	RequestTimer timer = new RequestTimer("test", "queryData");
+
+	// Time within a nested stage is charged only to the inner stage.
+	timer.start(RequestTimer.FETCH);
+	timer.start(RequestTimer.SERIALIZE);
+	Thread.sleep(5);
+	timer.stop(RequestTimer.SERIALIZE);
+	timer.stop(RequestTimer.FETCH);
+	assertTrue(timer.getTime(RequestTimer.SERIALIZE) >= 5000000L);
+	assertTrue(timer.getTime(RequestTimer.FETCH) <
+	    timer.getTime(RequestTimer.SERIALIZE));
+
+	// Stopping an outer stage stops any nested stage.
+	timer.start(RequestTimer.EXECUTE);
+	timer.start(RequestTimer.SERIALIZE);
+	timer.stop(RequestTimer.EXECUTE);
+	long t = timer.getTime(RequestTimer.SERIALIZE);
+	timer.stop(RequestTimer.SERIALIZE);
+	assertEquals(t, timer.getTime(RequestTimer.SERIALIZE));
+
+	OutputStream out = timer.countBytes(new ByteArrayOutputStream());
+	out.write(new byte[100], 10, 50);
+	out.write('x');
+	assertEquals(51, timer.getBytes());
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+	MetricsRegistry.reset();
+	for (int i=0;  i < 3;  i++) {
+	    RequestTimer timer = new RequestTimer("scs-test", "queryData");
+	    timer.start(RequestTimer.EXECUTE);
+	    timer.stop(RequestTimer.EXECUTE);
+	    timer.setRows(10);
+	    timer.setFailed(i == 0);
+	    timer.record();
+	    timer.record();
+	}
+	assertEquals(3, MetricsRegistry.getRequestCount("scs-test", "queryData"));
+
+	StringWriter sw = new StringWriter();
+	MetricsRegistry.writeText(new PrintWriter(sw));
+	String text = sw.toString();
+
+	String labels = "service=\"scs-test\",operation=\"queryData\"";
+	assertTrue(text.contains("dalserver_requests_total{" + labels + "} 3"));
+	assertTrue(text.contains("dalserver_request_errors_total{" + labels + "} 1"));
+	assertTrue(text.contains("dalserver_rows_total{" + labels + "} 30"));
+	assertTrue(text.contains("dalserver_request_seconds_count{" + labels + "} 3"));
+	assertTrue(text.contains("dalserver_stage_seconds_bucket{" + labels +
+	    ",stage=\"execute\",le=\"+Inf\"} 3"));
+	assertFalse(text.contains("stage=\"cutout\""));
+    }
+}
@@ -0,0 +1,188 @@
+package dalserver;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import javax.sql.DataSource;
+import org.apache.commons.dbcp.BasicDataSource;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * ReplicaDataSource Class Test Suite
+ *   Read connections are spread across the replicas, an unreachable
+ *   replica is ejected and readmitted once it passes the health probe, writes
+ *   are routed to the primary, and DataSources are shared by reference.
+ */
+public class ReplicaDataSourceTest {
+
+    /** A fake member DataSource, which may be marked as down. */
+    private static class Fake implements InvocationHandler {
+	boolean down = false;
+	boolean busy = false;
+	int connects = 0;
+
+	public Object invoke(Object proxy, Method method, Object[] args)
+	    throws Throwable {
+
+	    String name = method.getName();
+	    if (name.equals("getConnection")) {
+		if (down)
+		    throw new SQLException("connection refused", "08001");
+		if (busy)
+		    throw new SQLException("Cannot get a connection, pool " +
+			"error Timeout waiting for idle object");
+		connects++;
+		return (Proxy.newProxyInstance(getClass().getClassLoader(),
+		    new Class<?>[] { Connection.class }, this));
+	    } else if (name.equals("isValid"))
+		return (!down);
+	    return (null);
+	}
+
+	DataSource ds() {
+	    return ((DataSource) Proxy.newProxyInstance(
+		getClass().getClassLoader(),
+		new Class<?>[] { DataSource.class }, this));
+	}
+    }
+
+    private ReplicaDataSource replicas(Fake[] fakes, String routing)
+	throws DalServerException {
+
+	List<String> names = new ArrayList<String>();
+	List<DataSource> members = new ArrayList<DataSource>();
+	for (int i=0;  i < fakes.length;  i++) {
+	    fakes[i] = new Fake();
+	    names.add("db" + i);
+	    members.add(fakes[i].ds());
+	}
+
+	Properties options = new Properties();
+	options.setProperty("routing", routing);
+	options.setProperty("probeInterval", "0");
+	return (new ReplicaDataSource("test", names, members, options));
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+	Fake[] fakes = new Fake[3];
+	ReplicaDataSource rds = replicas(fakes, "roundRobin");
+
+	for (int i=0;  i < 30;  i++)
+	    rds.getConnection().close();
+	for (Fake f : fakes)
+	    assertEquals(10, f.connects);
+	assertEquals(0, rds.getOutstanding(0));
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+	Fake[] fakes = new Fake[2];
+	ReplicaDataSource rds = replicas(fakes, "leastOutstanding");
+
+	// Held connections steer new requests to the other member.
+	Connection c1 = rds.getConnection();
+	Connection c2 = rds.getConnection();
+	assertEquals(1, rds.getOutstanding(0));
+	assertEquals(1, rds.getOutstanding(1));
+	Connection c3 = rds.getConnection();
+	c3.close();
+	c3.close();
+	assertEquals(2, rds.getOutstanding(0) + rds.getOutstanding(1));
+	c1.close();
+	c2.close();
+	assertEquals(0, rds.getOutstanding(0) + rds.getOutstanding(1));
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+	Fake[] fakes = new Fake[3];
+	ReplicaDataSource rds = replicas(fakes, "roundRobin");
+
+	// A failed member is ejected and requests go to the others.
+	fakes[1].down = true;
+	for (int i=0;  i < 20;  i++)
+	    rds.getConnection().close();
+	assertFalse(rds.isHealthy(1));
+	assertEquals(0, fakes[1].connects);
+	assertEquals(20, fakes[0].connects + fakes[2].connects);
+
+	// A member whose pool is exhausted is skipped but not ejected.
+	fakes[2].busy = true;
+	for (int i=0;  i < 4;  i++)
+	    rds.getConnection().close();
+	assertTrue(rds.isHealthy(2));
+	fakes[2].busy = false;
+
+	// It is readmitted after two successful probes.
+	fakes[1].down = false;
+	rds.probe();
+	assertFalse(rds.isHealthy(1));
+	rds.probe();
+	assertTrue(rds.isHealthy(1));
+	for (int i=0;  i < 3;  i++)
+	    rds.getConnection().close();
+	assertTrue(fakes[1].connects > 0);
+
+	// Requests still succeed if every member has been ejected.
+	for (Fake f : fakes)
+	    f.down = true;
+	rds.probe();
+	rds.probe();
+	fakes[2].down = false;
+	rds.getConnection().close();
+
+	fakes[2].down = true;
+	try {
+	    rds.getConnection();
+	    fail("expected SQLException");
+	} catch (SQLException ex) {
+	    ;
+	}
+    }
+
+    @Test
+    public void testPrimary() throws Exception {
+	Properties props = new Properties();
+	props.setProperty("url", "jdbc:postgresql://primary:5432/db");
+	props.setProperty("replicaUrls",
+	    "jdbc:postgresql://r1:5432/db, jdbc:postgresql://r2:5432/db");
+	props.setProperty("probeInterval", "0");
+
+	ReplicaDataSource rds =
+	    new DbmsDataSourceFactory().replicatedDataSource(props);
+	assertEquals(3, rds.size());
+	assertEquals("jdbc:postgresql://primary:5432/db",
+	    ((BasicDataSource)rds.getPrimary()).getUrl());
+	assertEquals("jdbc:postgresql://r2:5432/db",
+	    ((BasicDataSource)rds.getMembers().get(2)).getUrl());
+	rds.close();
+    }
+
+    @Test
+    public void testShared() throws Exception {
+	java.io.File file = java.io.File.createTempFile("dsref", ".properties");
+	java.io.FileWriter out = new java.io.FileWriter(file);
+	out.write("url = jdbc:postgresql://primary:5432/db\n");
+	out.close();
+
+	// A file: reference creates one connection pool, shared by callers.
+	String ref = "file:" + file.getPath();
+	DataSource ds = new DbmsDataSourceFactory().getDataSource(ref);
+	assertTrue(ds instanceof BasicDataSource);
+	assertSame(ds, new DbmsDataSourceFactory().getDataSource(ref));
+
+	DbmsDataSourceFactory.closeDataSources();
+	assertNotSame(ds, new DbmsDataSourceFactory().getDataSource(ref));
+	DbmsDataSourceFactory.closeDataSources();
+	file.delete();
+    }
+}
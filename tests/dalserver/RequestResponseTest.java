@@ -0,0 +1,480 @@
+package dalserver;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * RequestResponse Class Test Suite
+ *   Buffered and streamed (RowSink) output of the same response
+ *   should produce the same table data.
+ */
+public class RequestResponseTest {
+
+    RequestResponse r = null;
+
+    @Before
+    public void setup() throws Exception {
+	r = newResponse();
+    }
+
+    @After
+    public void teardown() {
+	r = null;
+    }
+
+    /** Create a small response with metadata but no rows. */
+    private RequestResponse newResponse() throws Exception {
+	RequestResponse r = new RequestResponse();
+	r.setType("results");
+	r.addInfo("QUERY_STATUS", new TableInfo("QUERY_STATUS", "OK"));
+	r.addField(new TableField("id", "id", null, "char", "*",
+	    null, "", "meta.id", "Object ID"));
+	r.addField(new TableField("ra", "ra", null, "double", null,
+	    "deg", "", "pos.eq.ra", "Right ascension"));
+	r.addField(new TableField("dec", "dec", null, "double", null,
+	    "deg", "", "pos.eq.dec", "Declination"));
+	return (r);
+    }
+
+    /** Add n rows to a response. */
+    private void addRows(RequestResponse r, int n) throws Exception {
+	for (int i=0;  i < n;  i++) {
+	    r.addRow();
+	    r.setValue("id", "obj" + i);
+	    r.setValue("ra", 10.0 + i);
+	    if (i % 2 == 0)
+		r.setValue("dec", -5.5 * i);
+	}
+    }
+
+    @Test
+    public void testBufferedCsv() throws Exception {
+	addRows(r, 3);
+	assertEquals(3, r.size());
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.writeCsv(out);
+
+	String[] lines = out.toString().split("\n");
+	assertEquals(4, lines.length);
+	assertEquals("id,ra,dec", lines[0]);
+	assertEquals("obj0,10.0,-0.0", lines[1]);
+	assertEquals("obj1,11.0,", lines[2]);
+    }
+
+    @Test
+    public void testStreamedCsv() throws Exception {
+	ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+	addRows(r, 5);
+	r.writeCsv(buffered);
+
+	ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+	RequestResponse s = newResponse();
+	s.setRowSink(new DelimitedRowSink(streamed, ","));
+	assertTrue(s.isStreaming());
+	addRows(s, 5);
+	assertEquals(5, s.size());
+	s.endStream();
+
+	assertEquals(buffered.toString(), streamed.toString());
+	assertEquals(5, s.size());
+    }
+
+    @Test
+    public void testStreamedDeleteRow() throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.setRowSink(new DelimitedRowSink(out, ","));
+	addRows(r, 2);
+	r.deleteRow();
+	assertEquals(1, r.size());
+	r.endStream();
+
+	String[] lines = out.toString().split("\n");
+	assertEquals(2, lines.length);
+	assertEquals("obj0,10.0,-0.0", lines[1]);
+    }
+
+    @Test
+    public void testStreamedHoldRows() throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.setRowSink(new DelimitedRowSink(out, ","));
+	addRows(r, 1);
+
+	// Held rows may be edited or deleted until they are released.
+	r.holdRows(true);
+	addRows(r, 4);
+	r.setRow(2);
+	r.setValue("id", "edited");
+	r.deleteRows(Arrays.asList(1, 3));
+	assertEquals(3, r.size());
+	r.holdRows(false);
+	r.endStream();
+
+	String[] lines = out.toString().split("\n");
+	assertEquals(4, lines.length);
+	assertEquals("obj0,10.0,-0.0", lines[1]);
+	assertEquals("edited,11.0,", lines[2]);
+	assertEquals("obj3,13.0,", lines[3]);
+    }
+
+    @Test
+    public void testStreamedVOTable() throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.setMaxrec(4);
+	r.setRowSink(new VOTableRowSink(out));
+
+	try {
+	    addRows(r, 10);
+	    fail("expected overflow");
+	} catch (DalOverflowException ex) {
+	    ;
+	}
+	r.addInfo("TableRows", new TableInfo("TableRows",
+	    Integer.toString(r.size())));
+	r.endStream();
+
+	String vot = out.toString();
+	assertEquals(4, count(vot, "<TR>"));
+	assertTrue(vot.contains("<FIELD"));
+	assertTrue(vot.indexOf("value=\"OK\"") < vot.indexOf("<TABLE"));
+	assertTrue(vot.indexOf("value=\"OVERFLOW\"") > vot.indexOf("</TABLE>"));
+	assertTrue(vot.indexOf("TableRows") > vot.indexOf("</TABLE>"));
+	assertTrue(vot.trim().endsWith("</VOTABLE>"));
+    }
+
+    @Test
+    public void testStreamedEmpty() throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.setRowSink(new VOTableRowSink(out));
+	r.endStream();
+
+	String vot = out.toString();
+	assertEquals(0, count(vot, "<TR>"));
+	assertTrue(vot.contains("<TABLEDATA>"));
+    }
+
+    @Test
+    public void testStreamedAbort() throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.setRowSink(new VOTableRowSink(out));
+	addRows(r, 3);
+	r.abortStream("connection lost");
+
+	String vot = out.toString();
+	assertEquals(2, count(vot, "<TR>"));
+	assertTrue(vot.indexOf("value=\"ERROR\"") > vot.indexOf("</TABLE>"));
+	assertTrue(vot.contains("connection lost"));
+    }
+
+    @Test(expected=DalServerException.class)
+    public void testStreamedSort() throws Exception {
+	r.setRowSink(new DelimitedRowSink(new ByteArrayOutputStream(), ","));
+	addRows(r, 2);
+	r.sort("ra", -1);
+    }
+
+    @Test
+    public void testTypedValues() throws Exception {
+	r.addRow();
+	r.setValue("id", "a");
+	r.setValue("ra", "12.300000");
+	r.setValue("dec", "-1.5");
+	assertEquals("12.300000", r.getValue("ra"));
+	assertEquals("-1.5", r.getValue("dec"));
+	assertEquals(12.3, r.getDoubleValue("ra"), 0.0);
+	assertEquals(-1.5, r.getDoubleValue("dec"), 0.0);
+
+	r.setValue("dec", 7);
+	assertEquals("7", r.getValue("dec"));
+	r.setValue("dec", (String) null);
+	assertEquals("", r.getValue("dec"));
+	assertTrue(Double.isNaN(r.getDoubleValue("dec")));
+
+	r.addRow();
+	assertNull(r.getValue("ra"));
+	r.deleteRow();
+	assertEquals(1, r.size());
+	assertEquals("a", r.getValue("id"));
+    }
+
+    @Test
+    public void testManyRows() throws Exception {
+	int n = ColumnStore.CHUNK * 3 + 7;
+	for (int i=0;  i < n;  i++) {
+	    r.addRow();
+	    r.setValue("id", "obj" + i);
+	    r.setValue("ra", 0.5 * i);
+	}
+	assertEquals(n, r.size());
+
+	r.setRow(ColumnStore.CHUNK + 1);
+	assertEquals("obj" + (ColumnStore.CHUNK + 1), r.getValue("id"));
+	r.setRow(n - 1);
+	assertEquals(Double.toString(0.5 * (n-1)), r.getValue("ra"));
+	assertNull(r.getValue("dec"));
+    }
+
+    @Test
+    public void testSort() throws Exception {
+	double[] ra = { 30.0, 10.0, 20.0, 10.0 };
+	for (int i=0;  i < ra.length;  i++) {
+	    r.addRow();
+	    r.setValue("id", "obj" + i);
+	    r.setValue("ra", ra[i]);
+	}
+
+	r.sort("ra", 1);
+	String[] expect = { "obj1", "obj3", "obj2", "obj0" };
+	for (int i=0;  i < expect.length;  i++) {
+	    r.setRow(i);
+	    assertEquals(expect[i], r.getValue("id"));
+	}
+
+	r.sort("id", -1);
+	r.setRow(0);
+	assertEquals("obj3", r.getValue("id"));
+	assertEquals("10.0", r.getValue("ra"));
+    }
+
+    @Test
+    public void testSavotTable() throws Exception {
+	addRows(r, 3);
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.writeVOTable(out);
+
+	String vot = out.toString();
+	assertEquals(3, count(vot, "<TR>"));
+	assertTrue(vot.contains("<TD>obj2</TD><TD>12.0</TD><TD>-11.0</TD>"));
+	assertTrue(vot.contains("<TD>obj1</TD><TD>11.0</TD><TD></TD>"));
+    }
+
+    @Test
+    public void testSavotCompatible() throws Exception {
+	r.setDescription("Test <table> & data");
+	TableInfo info = new TableInfo("Note", "a&b");
+	info.setContent("see <here>");
+	r.addInfo("Note", info);
+	r.addGroup(new TableGroup("grp", "grp", "grp", null, null, "Group"));
+	r.addParam(new TableParam("p1", "v<1>", "p1", "grp", "char", "*",
+	    null, "", "meta.code", "A param"));
+	addRows(r, 3);
+	r.addRow();
+	r.setValue("id", "x<&>\"'y");
+
+	ByteArrayOutputStream savot = new ByteArrayOutputStream();
+	new cds.savot.writer.SavotWriter().generateDocument(
+	    r.createSavotVOTable(), savot);
+
+	ByteArrayOutputStream direct = new ByteArrayOutputStream();
+	r.writeVOTable(direct);
+
+	assertEquals(savot.toString(), direct.toString());
+	assertTrue(direct.toString().contains("<TD>x&lt;&amp;&gt;&quot;'y</TD>"));
+    }
+
+    @Test
+    public void testBinary2() throws Exception {
+	r.addField(new TableField("n", "n", null, "int", null,
+	    null, "", "meta.number", "Count"));
+	addRows(r, 2);
+	r.setValue("n", 42);
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.writeVOTable(out, VOTableRowSink.getSerialization(
+	    "votable;serialization=binary2"));
+
+	String vot = out.toString();
+	assertTrue(vot.contains("version=\"1.3\""));
+	assertFalse(vot.contains("<TABLEDATA>"));
+	int i1 = vot.indexOf("<STREAM encoding=\"base64\">");
+	int i2 = vot.indexOf("</STREAM>");
+	assertTrue(i1 > 0 && i2 > i1);
+
+	String b64 = vot.substring(vot.indexOf('>', i1) + 1, i2);
+	java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(
+	    java.util.Base64.getMimeDecoder().decode(b64));
+
+	// Row 0: id="obj0", ra=10.0, dec=-0.0, n null.
+	assertEquals(0x10, bb.get());
+	assertEquals(4, bb.getInt());
+	byte[] id = new byte[4];
+	bb.get(id);
+	assertEquals("obj0", new String(id, "US-ASCII"));
+	assertEquals(10.0, bb.getDouble(), 0.0);
+	assertEquals(-0.0, bb.getDouble(), 0.0);
+	bb.getInt();
+
+	// Row 1: dec null, n=42.
+	assertEquals(0x20, bb.get());
+	assertEquals(4, bb.getInt());
+	bb.get(id);
+	assertEquals("obj1", new String(id, "US-ASCII"));
+	assertEquals(11.0, bb.getDouble(), 0.0);
+	assertTrue(Double.isNaN(bb.getDouble()));
+	assertEquals(42, bb.getInt());
+	assertEquals(0, bb.remaining());
+    }
+
+    @Test
+    public void testFits() throws Exception {
+	addRows(r, 3);
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.writeFits(out);
+
+	// Primary HDU, table header, and one block of table data.
+	byte[] fits = out.toByteArray();
+	assertEquals(3 * 2880, fits.length);
+	String header = new String(fits, 2880, 2880, "US-ASCII");
+	assertTrue(header.startsWith("XTENSION= 'BINTABLE'"));
+	assertEquals("NAXIS2  =                    3",
+	    header.substring(320, 350));
+	assertTrue(header.contains("TFORM1  = '4A      '"));
+	assertTrue(header.contains("TFORM2  = '1D      '"));
+	assertTrue(header.contains("TUNIT3  = 'deg     '"));
+
+	// Rows are 20 bytes: id (4A), ra, dec.
+	java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(fits, 5760, 60);
+	byte[] id = new byte[4];
+	bb.get(id);
+	assertEquals("obj0", new String(id, "US-ASCII"));
+	assertEquals(10.0, bb.getDouble(), 0.0);
+	bb.position(5760 + 20 + 12);
+	assertTrue(Double.isNaN(bb.getDouble()));
+    }
+
+    @Test
+    public void testFitsFile() throws Exception {
+	java.io.File file = java.io.File.createTempFile("rrtest", ".fits");
+	try {
+	    // All columns are fixed width, so rows are written directly.
+	    RequestResponse s = new RequestResponse();
+	    s.addField(new TableField("ra", "ra", null, "double", null,
+		"deg", "", "pos.eq.ra", "Right ascension"));
+	    s.addField(new TableField("n", "n", null, "int", null,
+		null, "", "meta.number", "Count"));
+
+	    java.io.FileOutputStream out = new java.io.FileOutputStream(file);
+	    s.setRowSink(new FitsRowSink(out));
+	    for (int i=0;  i < 100;  i++) {
+		s.addRow();
+		s.setValue("ra", 10.0 + i);
+		if (i > 0)
+		    s.setValue("n", i);
+	    }
+	    s.endStream();
+	    out.close();
+	    assertEquals(0, file.length() % 2880);
+
+	    nom.tam.fits.Fits fits = new nom.tam.fits.Fits(file);
+	    nom.tam.fits.BinaryTableHDU hdu =
+		(nom.tam.fits.BinaryTableHDU) fits.getHDU(1);
+	    assertEquals(100, hdu.getNRows());
+	    assertEquals(11.0, ((double[]) hdu.getRow(1)[0])[0], 0.0);
+	    assertEquals(Integer.MIN_VALUE, ((int[]) hdu.getRow(0)[1])[0]);
+	    assertEquals(99, ((int[]) hdu.getRow(99)[1])[0]);
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testFitsAbort() throws Exception {
+	// The spooled table is replaced by the error.
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	r.setRowSink(new FitsRowSink(out));
+	addRows(r, 3);
+	r.abortStream("connection lost");
+	byte[] fits = out.toByteArray();
+	assertEquals(2880, fits.length);
+	String header = new String(fits, "US-ASCII");
+	assertTrue(header.contains("STATUS  = 'ERROR   '"));
+	assertTrue(header.contains("connection lost"));
+	assertFalse(header.contains("BINTABLE"));
+
+	// Rows written directly to a file are discarded.
+	java.io.File file = java.io.File.createTempFile("rrtest", ".fits");
+	try {
+	    RequestResponse s = new RequestResponse();
+	    s.addField(new TableField("ra", "ra", null, "double", null,
+		"deg", "", "pos.eq.ra", "Right ascension"));
+	    java.io.FileOutputStream fout = new java.io.FileOutputStream(file);
+	    s.setRowSink(new FitsRowSink(fout));
+	    for (int i=0;  i < 1000;  i++) {
+		s.addRow();
+		s.setValue("ra", 10.0 + i);
+	    }
+	    s.abortStream("connection lost");
+	    fout.close();
+	    assertEquals(2880, file.length());
+	    nom.tam.fits.Fits f = new nom.tam.fits.Fits(file);
+	    assertEquals("ERROR",
+		f.getHDU(0).getHeader().getStringValue("STATUS"));
+	} finally {
+	    file.delete();
+	}
+    }
+
+    @Test
+    public void testVarchar() throws Exception {
+	// A char field with no arraysize, e.g., a TAP VARCHAR column.
+	RequestResponse s = new RequestResponse();
+	s.addField(new TableField("name", "name", null, "char", null,
+	    null, "", "meta.id", "Object name"));
+	s.addRow();
+	s.setValue("name", "M31 Andromeda");
+	s.addRow();
+	s.setValue("name", "M1");
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	s.writeVOTable(out, VOTableRowSink.getSerialization(
+	    "votable;serialization=binary2"));
+	String vot = out.toString();
+	assertTrue(vot.contains("arraysize=\"*\""));
+	int i1 = vot.indexOf("<STREAM encoding=\"base64\">");
+	int i2 = vot.indexOf("</STREAM>");
+	java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(
+	    java.util.Base64.getMimeDecoder().decode(
+	    vot.substring(vot.indexOf('>', i1) + 1, i2)));
+
+	assertEquals(0, bb.get());
+	byte[] name = new byte[bb.getInt()];
+	bb.get(name);
+	assertEquals("M31 Andromeda", new String(name, "US-ASCII"));
+	assertEquals(0, bb.get());
+	name = new byte[bb.getInt()];
+	bb.get(name);
+	assertEquals("M1", new String(name, "US-ASCII"));
+	assertEquals(0, bb.remaining());
+
+	java.io.File file = java.io.File.createTempFile("rrtest", ".fits");
+	try {
+	    java.io.FileOutputStream fout = new java.io.FileOutputStream(file);
+	    s.writeFits(fout);
+	    fout.close();
+
+	    nom.tam.fits.Fits fits = new nom.tam.fits.Fits(file);
+	    nom.tam.fits.BinaryTableHDU hdu =
+		(nom.tam.fits.BinaryTableHDU) fits.getHDU(1);
+	    assertEquals(2, hdu.getNRows());
+	    assertEquals("M31 Andromeda", ((String) hdu.getRow(0)[0]).trim());
+	    assertEquals("M1", ((String) hdu.getRow(1)[0]).trim());
+	} finally {
+	    file.delete();
+	}
+    }
+
+    /** Count occurrences of a substring. */
+    private int count(String text, String pattern) {
+	int n = 0;
+	for (int i = text.indexOf(pattern);  i >= 0;
+	    i = text.indexOf(pattern, i + 1)) {
+	    n++;
+	}
+	return (n);
+    }
+}
@@ -0,0 +1,190 @@
+package dalserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * ResponseCache Class Test Suite
+ *   Equivalent requests share a cache key, cached responses are served
+ *   with an ETag (or 304 if unchanged), responses evicted from memory
+ *   are spilled to disk, and error responses are not cacheable.
+ */
+public class ResponseCacheTest {
+
+    @Test
+    public void testKey() throws Exception {
+	ResponseCache cache = ResponseCache.getCache(params("cache-key", null));
+	String k1 = cache.getKey(request("GET",
+	    "POS", "10.0000001,+20;ICRS", "SIZE", "0.5", "FORMAT", "votable"));
+	String k2 = cache.getKey(request("GET",
+	    "format", "votable", "pos", "10,20.00000004;ICRS", "size", ".50"));
+	assertEquals(k1, k2);
+	assertFalse(k1.equals(cache.getKey(request("GET",
+	    "POS", "10,20.00001;ICRS", "SIZE", "0.5", "FORMAT", "votable"))));
+	assertNull(cache.getKey(request("POST", "POS", "10,20")));
+
+	// Only the positional and known numeric parameters are normalized.
+	assertEquals(cache.getKey(request("GET", "MAXREC", "100", "ID", "7")),
+	    cache.getKey(request("GET", "maxrec", "100.0", "id", "7")));
+	assertFalse(cache.getKey(request("GET", "ID", "007")).equals(
+	    cache.getKey(request("GET", "ID", "7"))));
+	assertFalse(cache.getKey(request("GET", "TARGET", "1e3")).equals(
+	    cache.getKey(request("GET", "TARGET", "1000"))));
+
+	assertEquals("4.0E-7/5.0E-7", ResponseCache.normalize("4e-7/5.0E-7", -1));
+	ResponseCache.invalidateAll();
+    }
+
+    @Test
+    public void testServe() throws Exception {
+	File dir = new File(System.getProperty("java.io.tmpdir"),
+	    "rcache" + System.nanoTime());
+	ResponseCache cache = ResponseCache.getCache(
+	    params("cache-serve", dir.getPath()));
+
+	// Two responses of 600 bytes exceed the 1000 byte memory budget,
+	// so the first is spilled to disk.
+	String[] keys = new String[2];
+	String[] etags = new String[2];
+	for (int i=0;  i < 2;  i++) {
+	    keys[i] = cache.getKey(request("GET", "RA", "" + i));
+	    assertFalse(cache.serve(keys[i], request("GET"), response(null),
+		null));
+
+	    Map<String,String> headers = new HashMap<String,String>();
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    ResponseCache.Capture capture =
+		cache.capture(keys[i], response(headers), out);
+	    for (int j=0;  j < 600;  j++)
+		capture.write('0' + i);
+	    cache.put(capture, "text/xml");
+	    etags[i] = headers.get("ETag");
+	    assertNotNull(etags[i]);
+	}
+	assertEquals(1, cache.getSpillCount());
+	assertEquals(600, cache.getDiskBytes());
+
+	for (int i=0;  i < 2;  i++) {
+	    Map<String,String> headers = new HashMap<String,String>();
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    assertTrue(cache.serve(keys[i], request("GET"),
+		response(headers, out), null));
+	    assertEquals(600, out.size());
+	    assertEquals('0' + i, out.toByteArray()[599]);
+	    assertEquals(etags[i], headers.get("ETag"));
+
+	    // A conditional request for the same response is not modified.
+	    headers.clear();
+	    Map<String,String> req = new HashMap<String,String>();
+	    req.put("If-None-Match", etags[i]);
+	    assertTrue(cache.serve(keys[i], request("GET", req),
+		response(headers), null));
+	    assertEquals("304", headers.get("status"));
+	}
+	assertEquals(2, cache.getHitCount());
+	assertEquals(2, cache.getNotModifiedCount());
+
+	ResponseCache.invalidateAll();
+	assertEquals(0, cache.size());
+	assertEquals(0, dir.listFiles()[0].listFiles().length);
+    }
+
+    @Test
+    public void testNoStore() throws Exception {
+	// Responses with stage timings are not cached.
+	ParamSet params = params("cache-timing", null);
+	params.addParam(new Param("timingInfo", "true"));
+	assertNull(ResponseCache.getCache(params));
+
+	// An error response does not keep the caching headers.
+	ResponseCache cache = ResponseCache.getCache(
+	    params("cache-nostore", null));
+	Map<String,String> headers = new HashMap<String,String>();
+	HttpServletResponse response = response(headers);
+	cache.capture(cache.getKey(request("GET", "RA", "1")), response,
+	    new ByteArrayOutputStream());
+	assertNotNull(headers.get("ETag"));
+	ResponseCache.noStore(response);
+	assertNull(headers.get("ETag"));
+	assertEquals("no-store", headers.get("Cache-Control"));
+	ResponseCache.invalidateAll();
+    }
+
+    private static ParamSet params(String name, String dir) throws Exception {
+	ParamSet params = new ParamSet();
+	params.addParam(new Param("serviceName", name));
+	params.addParam(new Param("responseCache", "true"));
+	params.addParam(new Param("responseCacheSize", "0.001"));
+	if (dir != null)
+	    params.addParam(new Param("responseCacheDir", dir));
+	return (params);
+    }
+
+    private static HttpServletRequest request(String method, String... kv) {
+	return (request(method, new HashMap<String,String>(), kv));
+    }
+
+    private static HttpServletRequest request(final String method,
+	final Map<String,String> headers, String... kv) {
+
+	final Map<String,String[]> map = new HashMap<String,String[]>();
+	for (int i=0;  i < kv.length;  i += 2)
+	    map.put(kv[i], new String[] { kv[i+1] });
+
+	return ((HttpServletRequest) Proxy.newProxyInstance(
+	    ResponseCacheTest.class.getClassLoader(),
+	    new Class[] { HttpServletRequest.class }, new InvocationHandler() {
+		public Object invoke(Object proxy, Method m, Object[] args) {
+		    if (m.getName().equals("getMethod"))
+			return (method);
+		    if (m.getName().equals("getParameterMap"))
+			return (map);
+		    if (m.getName().equals("getHeader"))
+			return (headers.get(args[0]));
+		    return (null);
+		}
+	    }));
+    }
+
+    private static HttpServletResponse response(Map<String,String> headers) {
+	return (response(headers, new ByteArrayOutputStream()));
+    }
+
+    private static HttpServletResponse response(
+	final Map<String,String> headers, final ByteArrayOutputStream out) {
+
+	final ServletOutputStream sos = new ServletOutputStream() {
+	    public void write(int b) throws IOException {
+		out.write(b);
+	    }
+	};
+
+	return ((HttpServletResponse) Proxy.newProxyInstance(
+	    ResponseCacheTest.class.getClassLoader(),
+	    new Class[] { HttpServletResponse.class }, new InvocationHandler() {
+		public Object invoke(Object proxy, Method m, Object[] args) {
+		    if (m.getName().equals("getOutputStream"))
+			return (sos);
+		    if (headers != null && m.getName().equals("setHeader"))
+			headers.put((String) args[0], (String) args[1]);
+		    if (headers != null && m.getName().equals("setStatus"))
+			headers.put("status", "" + args[0]);
+		    if (headers != null && m.getName().equals("reset"))
+			headers.clear();
+		    return (null);
+		}
+	    }));
+    }
+}
@@ -0,0 +1,70 @@
+package dalserver;
+
+import dalserver.scs.ScsQuery;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * SqlTemplate Class Test Suite
+ *   Query values are bound rather than formatted into the SQL, so the
+ *   SQL text depends only upon the shape of the query.
+ */
+public class SqlTemplateTest {
+
+    @Test
+    public void testTemplate() {
+	SqlTemplate sub = new SqlTemplate("(SELECT * FROM t WHERE x = ");
+	sub.bind(1L).append(") s");
+
+	SqlTemplate query = new SqlTemplate("SELECT * FROM ").append(sub);
+	query.append(" WHERE dec BETWEEN ").bind(10.5).append(" AND ").bind(20.0);
+	query.append(" AND id = ").bind("it's");
+
+	assertEquals("SELECT * FROM (SELECT * FROM t WHERE x = ?) s " +
+	    "WHERE dec BETWEEN ? AND ? AND id = ?", query.getSql());
+	assertEquals(4, query.size());
+	assertEquals("SELECT * FROM (SELECT * FROM t WHERE x = 1) s " +
+	    "WHERE dec BETWEEN 10.5 AND 20.0 AND id = 'it''s'",
+	    query.toString());
+    }
+
+    @Test
+    public void testShape() throws Exception {
+	ScsQuery scs = new ScsQuery("postgresql", null);
+
+	// Cones of a similar size have the same SQL shape.
+	SqlTemplate q1 = new SqlTemplate(), q2 = new SqlTemplate();
+	scs.boxConstraint(q1, "ra", "dec", 10.0, 20.0, 0.5);
+	scs.boxConstraint(q2, "ra", "dec", 150.0, -30.0, 0.25);
+	assertEquals(q1.getSql(), q2.getSql());
+	assertFalse(q1.toString().equals(q2.toString()));
+
+	// HEALPix range lists are padded to a power of two.
+	for (int i=0;  i < 20;  i++) {
+	    SqlTemplate q = new SqlTemplate();
+	    scs.healpixConstraint(q, "hpx", 12, i * 17.0, i * 4.0 - 40.0, 0.1);
+	    int nranges = q.size() / 2;
+	    assertEquals(0, nranges & (nranges - 1));
+	}
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+	DbmsQuery pg = new DbmsQuery("postgresql", null);
+	SqlTemplate q = pg.limitRows(new SqlTemplate("SELECT * FROM t"), 101);
+	assertEquals("SELECT * FROM t LIMIT 101", q.toString());
+
+	DbmsQuery ora = new DbmsQuery("oracle", null);
+	q = ora.limitRows(new SqlTemplate("SELECT * FROM t ORDER BY x"), 101);
+	assertEquals("SELECT * FROM (SELECT * FROM t ORDER BY x) " +
+	    "WHERE ROWNUM <= 101", q.toString());
+
+	// The cone constraint has a fixed shape.
+	SqlTemplate c1 = new SqlTemplate(), c2 = new SqlTemplate();
+	pg.coneConstraint(c1, "ra", "dec", 10.0, 20.0, 0.5);
+	pg.coneConstraint(c2, "ra", "dec", 150.0, -30.0, 1.0E-6);
+	assertEquals(c1.getSql(), c2.getSql());
+	assertEquals(4, c1.size());
+    }
+}
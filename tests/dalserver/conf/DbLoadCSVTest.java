@@ -0,0 +1,41 @@
+package dalserver.conf;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import dalserver.Healpix;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * DbLoadCSV Class Test Suite
+ *   The HEALPix index column is computed whatever the order of the RA and
+ *   Dec columns, and a row with no valid position is an error.
+ */
+public class DbLoadCSVTest {
+
+    private static DbLoadCSV loader(String csv) throws Exception {
+	DbLoadCSV loader = new DbLoadCSV("cat", null, new StringReader(csv));
+	loader.addHMSCol("ra");
+	loader.addDMSCol("dec");
+	loader.setHealpixCol("hpx", 10);
+	return (loader);
+    }
+
+    @Test
+    public void testHealpix() throws Exception {
+	StringWriter sql = new StringWriter();
+	loader("id,dec,ra\n1,+20:00:00,01:00:00\n").sendData(sql);
+
+	long pix = Healpix.ang2pix(10, 15.0, 20.0);
+	assertTrue(sql.toString().contains("," + pix + "\n"));
+	assertFalse(sql.toString().contains("NULL"));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testNoPosition() throws Exception {
+	loader("id,dec,ra\n1,+20:00:00,01:00:00\n2,,01:00:00\n").
+	    sendData(new StringWriter());
+    }
+}
@@ -0,0 +1,138 @@
+package dalserver.conf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.Fits;
+import nom.tam.util.BufferedFile;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * FITSHeaderCache Class Test Suite
+ *   Headers are read once per file version, the coordinate system of an
+ *   HDU is shared, entries are evicted to stay within the budget, and a
+ *   truncated file, compressed or not, is an error.
+ */
+public class FITSHeaderCacheTest {
+
+    private File file = null;
+
+    /** Write a two-HDU image file. */
+    private File image() throws Exception {
+	Fits fits = new Fits();
+	BasicHDU hdu = Fits.makeHDU(new short[20][30]);
+	hdu.getHeader().addValue("CTYPE1", "RA---TAN", "");
+	hdu.getHeader().addValue("CTYPE2", "DEC--TAN", "");
+	hdu.getHeader().addValue("CRPIX1", 1.0, "");
+	hdu.getHeader().addValue("CRPIX2", 1.0, "");
+	hdu.getHeader().addValue("CRVAL1", 10.0, "");
+	hdu.getHeader().addValue("CDELT1", -0.001, "");
+	hdu.getHeader().addValue("CDELT2", 0.001, "");
+	fits.addHDU(hdu);
+	fits.addHDU(Fits.makeHDU(new float[4][5]));
+
+	file = File.createTempFile("hdrcache", ".fits");
+	BufferedFile out = new BufferedFile(file.getPath(), "rw");
+	fits.write(out);
+	out.close();
+	return (file);
+    }
+
+    @After
+    public void teardown() {
+	FITSHeaderCache.setMaxSize(FITSHeaderCache.DEFAULT_MAX_SIZE);
+	FITSHeaderCache.clear();
+	if (file != null)
+	    file.delete();
+    }
+
+    @Test
+    public void testCache() throws Exception {
+	File f = image();
+	FITSHeaderCache.clear();
+	NTFITSHeaderKeywords kws = FITSHeaderCache.getHeaders(f);
+	assertEquals(2, kws.getHDUCount());
+	assertEquals(30, kws.getIntValue(0, "NAXIS1", 0));
+	assertEquals(4, kws.getIntValue(1, "NAXIS2", 0));
+
+	// The same file is served from the cache, with a shared WCS.
+	long hits = FITSHeaderCache.getHits();
+	assertSame(kws, FITSHeaderCache.getHeaders(new File(f.getPath())));
+	assertEquals(hits + 1, FITSHeaderCache.getHits());
+	assertSame(FITSHeaderCache.getCoordSys(kws, 0),
+	    FITSHeaderCache.getCoordSys(kws, 0));
+	assertEquals(10.0, FITSHeaderCache.getCoordSys(kws, 0).
+	    getCoordPos(new double[] { 1.0, 1.0 })[0], 1e-9);
+
+	// A modified file is read again.
+	f.setLastModified(f.lastModified() - 10000);
+	NTFITSHeaderKeywords kws2 = FITSHeaderCache.getHeaders(f);
+	assertNotSame(kws, kws2);
+	assertSame(kws2, FITSHeaderCache.getHeaders(f));
+
+	// Entries are evicted to stay within the budget.
+	long size = FITSHeaderCache.getSize();
+	assertTrue(size > 0);
+	FITSHeaderCache.setMaxSize(size - 1);
+	assertEquals(0, FITSHeaderCache.getCount());
+	assertNotSame(kws2, FITSHeaderCache.getHeaders(f));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+	File f = image();
+	FITSHeaderCache.clear();
+	assertEquals(2, NTFITSHeaderKeywords.loadHeaders(f).getHDUCount());
+
+	// The data unit of the second HDU is missing, then part of its header.
+	long length = f.length();
+	for (long cut : new long[] { length - 2880, length - 2880 - 1000 }) {
+	    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+	    raf.setLength(cut);
+	    raf.close();
+	    try {
+		FITSHeaderCache.getHeaders(f);
+		fail("truncated file accepted");
+	    } catch (IOException ex) {
+	    }
+	    assertEquals(0, FITSHeaderCache.getCount());
+	}
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+	byte[] data = Files.readAllBytes(image().toPath());
+	File gz = File.createTempFile("hdrcache", ".fits.gz");
+	try {
+	    gzip(gz, data);
+	    NTFITSHeaderKeywords kws = NTFITSHeaderKeywords.loadHeaders(gz);
+	    assertEquals(2, kws.getHDUCount());
+	    assertEquals(4, kws.getIntValue(1, "NAXIS2", 0));
+
+	    // The data unit of the second HDU is missing.
+	    gzip(gz, Arrays.copyOf(data, data.length - 2880));
+	    try {
+		NTFITSHeaderKeywords.loadHeaders(gz);
+		fail("truncated file accepted");
+	    } catch (IOException ex) {
+	    }
+	} finally {
+	    gz.delete();
+	}
+    }
+
+    private static void gzip(File file, byte[] data) throws Exception {
+	GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+	out.write(data);
+	out.close();
+    }
+}
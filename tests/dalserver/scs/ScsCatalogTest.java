@@ -0,0 +1,145 @@
+package dalserver.scs;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import dalserver.RequestResponse;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * ScsCatalog Class Test Suite
+ *   A cone search of a resident catalog returns the same rows as a
+ *   brute force search, and a refresh replaces the catalog.
+ */
+public class ScsCatalogTest {
+
+    @Test
+    public void testQuery() throws Exception {
+	File csv = File.createTempFile("catalog", ".csv");
+	csv.deleteOnExit();
+
+	Random random = new Random(7);
+	double[] ra = new double[5000], dec = new double[5000];
+	PrintWriter out = new PrintWriter(csv);
+	out.println("id,name,ra,dec,mag");
+	out.println("0,\"Polaris, alpha UMi\",02:31:49.09,+89:15:50.8,");
+	for (int i=0;  i < ra.length;  i++) {
+	    ra[i] = random.nextDouble() * 360.0;
+	    dec[i] = Math.toDegrees(Math.asin(random.nextDouble() * 2 - 1));
+	    out.println((i+1) + ",obj" + (i+1) + "," + ra[i] + "," + dec[i] +
+		"," + (i % 20));
+	}
+	out.close();
+
+	ScsParamSet params = new ScsParamSet();
+	params.addParam("serviceName", "scs-test");
+	params.addParam("residentCatalog", "true");
+	params.addParam("catalogFile", csv.getPath());
+	params.addParam("tableName", "test");
+	params.addParam("idColumn", "id");
+	params.addParam("raColumn", "ra");
+	params.addParam("decColumn", "dec");
+
+	ScsCatalog catalog = ScsCatalog.getCatalog(params);
+	assertSame(catalog, ScsCatalog.getCatalog(params));
+	assertEquals(5001, catalog.size());
+
+	double[][] cones = { { 10.0, 20.0, 5.0 }, { 359.0, -1.0, 3.0 },
+	    { 37.9, 89.26, 0.01 }, { 200.0, -60.0, 20.0 } };
+	for (double[] cone : cones) {
+	    int expected = (cone[1] > 89) ? 1 : 0;
+	    for (int i=0;  i < ra.length;  i++)
+		if (ScsMessier.distance(ra[i], dec[i], cone[0], cone[1]) <= cone[2])
+		    expected++;
+
+	    assertEquals(expected, query(catalog, params, cone).size());
+	}
+	assertEquals(5001, query(catalog, params,
+	    new double[] { 0.0, 0.0, 180.0 }).size());
+
+	// A multi-position query returns the union of the cones, with each
+	// row tagged by its target.
+	ScsTargetList targets = ScsTargetList.parse(
+	    "ra,dec,sr\n10.0,20.0,5.0\n359.0,-1.0,\n", 10);
+	assertEquals(2, targets.size());
+	params.setTargets(targets);
+	int expected = 0;
+	for (int i=0;  i < ra.length;  i++) {
+	    if (ScsMessier.distance(ra[i], dec[i], 10.0, 20.0) <= 5.0)
+		expected++;
+	    if (ScsMessier.distance(ra[i], dec[i], 359.0, -1.0) <= 3.0)
+		expected++;
+	}
+	RequestResponse response = query(catalog, params,
+	    new double[] { 0.0, 0.0, 3.0 });
+	assertEquals(expected, response.size());
+	assertNotNull(response.getField("target_index"));
+	params.setTargets(null);
+
+	// A refresh replaces the catalog.
+	out = new PrintWriter(csv);
+	out.println("id,name,ra,dec,mag");
+	out.println("1,one,10.0,20.0,1.5");
+	out.close();
+	catalog.refresh();
+	assertEquals(1, catalog.size());
+
+	ScsCatalog.closeCatalog("scs-test");
+	assertEquals(0, catalog.size());
+    }
+
+    @Test
+    public void testConcurrentLoad() throws Exception {
+	File csv = File.createTempFile("catalog", ".csv");
+	csv.deleteOnExit();
+	PrintWriter out = new PrintWriter(csv);
+	out.println("id,ra,dec");
+	for (int i=0;  i < 20000;  i++)
+	    out.println(i + "," + (i % 360) + "," + (i % 180 - 90));
+	out.close();
+
+	final ScsParamSet params = new ScsParamSet();
+	params.addParam("serviceName", "scs-load");
+	params.addParam("residentCatalog", "true");
+	params.addParam("catalogFile", csv.getPath());
+
+	// Concurrent requests share a single load of the catalog.
+	final ScsCatalog[] loaded = new ScsCatalog[4];
+	Thread[] threads = new Thread[loaded.length];
+	for (int i=0;  i < threads.length;  i++) {
+	    final int k = i;
+	    threads[i] = new Thread() {
+		public void run() {
+		    try {
+			loaded[k] = ScsCatalog.getCatalog(params);
+		    } catch (Exception ex) {
+			;
+		    }
+		}
+	    };
+	    threads[i].start();
+	}
+	for (Thread t : threads)
+	    t.join();
+
+	assertEquals(20000, loaded[0].size());
+	for (ScsCatalog catalog : loaded)
+	    assertSame(loaded[0], catalog);
+	ScsCatalog.closeCatalog("scs-load");
+    }
+
+    private static RequestResponse query(ScsCatalog catalog,
+	ScsParamSet params, double[] cone) throws Exception {
+
+	params.setValue("RA", Double.toString(cone[0]));
+	params.setValue("DEC", Double.toString(cone[1]));
+	params.setValue("SR", Double.toString(cone[2]));
+
+	RequestResponse response = new RequestResponse();
+	catalog.query(params, response);
+	return (response);
+    }
+}
@@ -0,0 +1,61 @@
+package dalserver.scs;
+
+import dalserver.DalServerException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * ScsTargetList Class Test Suite
+ *   Target lists are read from CSV (with or without a header) and from
+ *   VOTable, and invalid lists are rejected.
+ */
+public class ScsTargetListTest {
+
+    @Test
+    public void testCSV() throws Exception {
+	ScsTargetList targets = ScsTargetList.parse(
+	    "# targets\n10.5, 20.0\n-1.0 -45.0 0.5\n", 10);
+	assertEquals(2, targets.size());
+	assertEquals(10.5, targets.getRa(0), 0.0);
+	assertEquals(0.1, targets.getSr(0, 0.1), 0.0);
+	assertEquals(359.0, targets.getRa(1), 1.0e-9);
+	assertEquals(0.5, targets.getSr(1, 0.1), 0.0);
+
+	targets = ScsTargetList.parse("\"Dec\",\"RA\"\n-30,120\n", 10);
+	assertEquals(120.0, targets.getRa(0), 0.0);
+	assertEquals(-30.0, targets.getDec(0), 0.0);
+    }
+
+    @Test
+    public void testVOTable() throws Exception {
+	String votable =
+	    "<?xml version=\"1.0\"?>\n" +
+	    "<VOTABLE version=\"1.2\"><RESOURCE><TABLE>\n" +
+	    "<FIELD name=\"id\" datatype=\"int\"/>\n" +
+	    "<FIELD name=\"alpha\" datatype=\"double\" ucd=\"pos.eq.ra;meta.main\"/>\n" +
+	    "<FIELD name=\"delta\" datatype=\"double\" ucd=\"pos.eq.dec;meta.main\"/>\n" +
+	    "<DATA><TABLEDATA>\n" +
+	    "<TR><TD>1</TD><TD>83.6</TD><TD>22.0</TD></TR>\n" +
+	    "<TR><TD>2</TD><TD>10.7</TD><TD>41.3</TD></TR>\n" +
+	    "</TABLEDATA></DATA></TABLE></RESOURCE></VOTABLE>\n";
+
+	ScsTargetList targets = ScsTargetList.parse(votable, 10);
+	assertEquals(2, targets.size());
+	assertEquals(10.7, targets.getRa(1), 0.0);
+	assertEquals(41.3, targets.getDec(1), 0.0);
+    }
+
+    @Test
+    public void testInvalid() {
+	String[] lists = { "10.0,95.0\n", "a,b\n1,2\n", "1,2\n3,4\n5,6\n" };
+	for (String list : lists) {
+	    try {
+		ScsTargetList.parse(list, 2);
+		fail("accepted " + list);
+	    } catch (DalServerException ex) {
+		;
+	    }
+	}
+    }
+}
@@ -0,0 +1,143 @@
+package dalserver.sia;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dalserver.DalServerException;
+import dalserver.KeywordTable;
+import dalserver.Param;
+import dalserver.ParamSet;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * CutoutCache Class Test Suite
+ *   A cutout is generated once per source image and section, concurrent
+ *   requests for it are coalesced, and the least recently used cutouts
+ *   are swept to stay within the size cap.
+ */
+public class CutoutCacheTest {
+
+    /** Generates a cutout of the given size, counting the calls. */
+    private static class Gen implements CutoutCache.Generator {
+	AtomicInteger calls = new AtomicInteger();
+	File dir;
+	int size;
+	long delay;
+
+	Gen(File dir, int size, long delay) {
+	    this.dir = dir;
+	    this.size = size;
+	    this.delay = delay;
+	}
+
+	public File generate() throws DalServerException {
+	    calls.incrementAndGet();
+	    try {
+		Thread.sleep(delay);
+		File f = File.createTempFile("image-", ".fits", dir);
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(new byte[size]);
+		out.close();
+		return (f);
+	    } catch (Exception ex) {
+		throw new DalServerException(ex.getMessage());
+	    }
+	}
+    }
+
+    private static KeywordTable mdfile(File image, String cutout) {
+	KeywordTable md = new KeywordTable();
+	md.addKeyword("image", image.getPath());
+	md.addKeyword("filter_term", "true");
+	md.addKeyword("cutout", cutout);
+	md.addKeyword("pixel_term", "false");
+	return (md);
+    }
+
+    private static File tempDir() throws Exception {
+	File dir = File.createTempFile("staging", "");
+	dir.delete();
+	dir.mkdir();
+	return (dir);
+    }
+
+    private static void delete(File dir) {
+	for (File f : dir.listFiles()) {
+	    if (f.isDirectory())
+		delete(f);
+	    else
+		f.delete();
+	}
+	dir.delete();
+    }
+
+    @Test
+    public void testCache() throws Exception {
+	File staging = tempDir();
+	File image = new File(staging, "archive.fits");
+	new FileOutputStream(image).close();
+
+	ParamSet params = new SiapParamSet();
+	params.addParam(new Param("cutoutCacheSize", "1"));
+	params.addParam(new Param("cutoutCacheSweep", "0"));
+	final CutoutCache cache =
+	    CutoutCache.getCache(params, staging.getPath());
+	assertSame(cache, CutoutCache.getCache(params, staging.getPath()));
+
+	// A repeated cutout is served from the cache.
+	final String dir = staging.getPath();
+	final KeywordTable md = mdfile(image, "[1:10,1:10]");
+	final Gen gen = new Gen(staging, 600000, 0);
+	File f1 = cache.get(md, dir, gen);
+	File f2 = cache.get(mdfile(image, "[1:10,1:10]"), dir, gen);
+	assertEquals(f1, f2);
+	assertEquals(1, gen.calls.get());
+	assertEquals(cache.getDirectory(), f1.getParentFile());
+	assertTrue(CutoutCache.isCached(f1));
+	assertFalse(CutoutCache.isCached(image));
+	assertEquals(CutoutCache.key(md, dir), CutoutCache.key(
+	    mdfile(new File(staging, "./archive.fits"), "[1:10,1:10]"), dir));
+	assertFalse(CutoutCache.key(md, dir).equals(
+	    CutoutCache.key(mdfile(image, "[1:10,1:20]"), dir)));
+
+	// Concurrent requests for a new cutout generate it once.
+	final KeywordTable md2 = mdfile(image, "[5:20,5:20]");
+	final Gen slow = new Gen(staging, 600000, 300);
+	List<Thread> threads = new ArrayList<Thread>();
+	final List<File> files = new ArrayList<File>();
+	for (int i=0;  i < 6;  i++) {
+	    Thread t = new Thread() {
+		public void run() {
+		    try {
+			File f = cache.get(md2, dir, slow);
+			synchronized (files) {
+			    files.add(f);
+			}
+		    } catch (DalServerException ex) {
+			;
+		    }
+		}
+	    };
+	    threads.add(t);
+	    t.start();
+	}
+	for (Thread t : threads)
+	    t.join();
+	assertEquals(1, slow.calls.get());
+	assertEquals(6, files.size());
+	assertEquals(5, cache.getCoalesced());
+
+	// The least recently used cutout is swept to stay within 1 MB.
+	f2.setLastModified(System.currentTimeMillis() - 60000);
+	cache.sweep();
+	assertFalse(f1.exists());
+	assertTrue(files.get(0).exists());
+
+	delete(staging);
+    }
+}
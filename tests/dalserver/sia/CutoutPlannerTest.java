@@ -0,0 +1,111 @@
+package dalserver.sia;
+
+import java.io.File;
+
+import dalserver.DalServerException;
+import dalserver.KeywordTable;
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.Fits;
+import nom.tam.fits.Header;
+import nom.tam.util.BufferedFile;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * CutoutPlanner Class Test Suite
+ *   The requested region is projected through the image WCS and clipped
+ *   to the image, and the MDFILE keywords are those written by vocutout.
+ */
+public class CutoutPlannerTest {
+
+    /** Write a 100x100x10 RA/DEC/WAVE cube, 0.01 deg pixels, at 180,0. */
+    private static String cube(File dir) throws Exception {
+	BasicHDU hdu = Fits.makeHDU(new short[10][100][100]);
+	Header hdr = hdu.getHeader();
+	hdr.addValue("CTYPE1", "RA---TAN", "");
+	hdr.addValue("CTYPE2", "DEC--TAN", "");
+	hdr.addValue("CTYPE3", "WAVE", "");
+	hdr.addValue("CUNIT3", "nm", "");
+	hdr.addValue("CRPIX1", 50.0, "");
+	hdr.addValue("CRPIX2", 50.0, "");
+	hdr.addValue("CRPIX3", 1.0, "");
+	hdr.addValue("CRVAL1", 180.0, "");
+	hdr.addValue("CRVAL2", 0.0, "");
+	hdr.addValue("CRVAL3", 500.0, "");
+	hdr.addValue("CDELT1", -0.01, "");
+	hdr.addValue("CDELT2", 0.01, "");
+	hdr.addValue("CDELT3", 1.0, "");
+
+	File file = new File(dir, "cube.fits");
+	Fits fits = new Fits();
+	fits.addHDU(hdu);
+	BufferedFile out = new BufferedFile(file.getPath(), "rw");
+	fits.write(out);
+	out.close();
+	return (file.getPath());
+    }
+
+    private static File tempDir() throws Exception {
+	File dir = File.createTempFile("cutout", "");
+	dir.delete();
+	dir.mkdir();
+	return (dir);
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+	File dir = tempDir();
+	String image = cube(dir);
+
+	SiapParamSet params = new SiapParamSet();
+	params.setValue("POS", "180.0,0.0");
+	params.setValue("SIZE", "0.2");
+	params.setValue("BAND", "502e-9/505e-9");
+	KeywordTable md = new CutoutPlanner(params, dir.getPath()).plan(image);
+
+	// RA increases to the left, so the RA axis is flipped.
+	assertEquals("[60:40,40:60,3:6]", md.getKeyword("cutout"));
+	assertEquals("3", md.getKeyword("im_naxes"));
+	assertEquals("21 21 4", md.getKeyword("im_naxis"));
+	assertEquals("1764", md.getKeyword("dataset_length"));
+	assertEquals("3", md.getKeyword("access_estsize"));
+	assertEquals(image, md.getKeyword("image"));
+	assertEquals(180.0, Double.parseDouble(md.getKeyword("s_ra")), 1e-9);
+	assertEquals(0.0, Double.parseDouble(md.getKeyword("s_dec")), 1e-9);
+	assertEquals(0.2, Double.parseDouble(md.getKeyword("s_fov")), 1e-5);
+	assertTrue(md.getKeyword("s_region").startsWith("polygon icrs 179.9"));
+	assertEquals("5.05e-07", md.getKeyword("em_min"));
+	assertEquals("false", md.getKeyword("pixel_term"));
+
+	// The MDFILE is written to the staging area.
+	File mdfile = new File(dir, md.getKeyword("MDFILE"));
+	assertTrue(mdfile.exists());
+	KeywordTable saved = new KeywordTable(new String(
+	    java.nio.file.Files.readAllBytes(mdfile.toPath()), "UTF-8"));
+	assertEquals("[60:40,40:60,3:6]", saved.getKeyword("cutout"));
+
+	// A region with no coverage is rejected.
+	params.setValue("POS", "10.0,40.0");
+	try {
+	    new CutoutPlanner(params, dir.getPath()).plan(image);
+	    fail("expected DalServerException");
+	} catch (DalServerException ex) {
+	    ;
+	}
+
+	for (File f : dir.listFiles())
+	    f.delete();
+	dir.delete();
+    }
+
+    @Test
+    public void testFormat() {
+	assertEquals("180", CutoutPlanner.formatG(180.0, 15));
+	assertEquals("0.2", CutoutPlanner.formatG(0.2, 6));
+	assertEquals("0.000123", CutoutPlanner.formatG(0.000123, 6));
+	assertEquals("1.5e-05", CutoutPlanner.formatG(0.000015, 6));
+	assertEquals("1.23457e+06", CutoutPlanner.formatG(1234567.0, 6));
+	assertEquals("-33.25", CutoutPlanner.formatG(-33.25, 15));
+    }
+}
@@ -0,0 +1,65 @@
+package dalserver.tap;
+
+import ca.nrc.cadc.tap.schema.SchemaDesc;
+import ca.nrc.cadc.tap.schema.TapSchema;
+import ca.nrc.cadc.tap.schema.TapSchemaDAO;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * TapSchemaCache Class Test Suite
+ *   The TAP_SCHEMA is read once, and reread only when invalidated or
+ *   expired; per-job overlays do not modify the shared schema.
+ */
+public class TapSchemaCacheTest {
+
+    /** A DAO which counts reads rather than querying a database. */
+    static class CountingDAO extends TapSchemaDAO {
+	static int nreads = 0;
+
+	public TapSchema get() {
+	    nreads++;
+	    ArrayList<SchemaDesc> schemas = new ArrayList<SchemaDesc>();
+	    schemas.add(new SchemaDesc("tap_schema", null, null));
+	    return (new TapSchema(schemas));
+	}
+    }
+
+    @Test
+    public void testCache() throws Exception {
+	int n0 = CountingDAO.nreads;
+	TapSchema s1 = TapSchemaCache.get(new CountingDAO(), "jdbc/test", null, 60000);
+	TapSchema s2 = TapSchemaCache.get(new CountingDAO(), "jdbc/test", null, 60000);
+	assertSame(s1, s2);
+	assertEquals(n0 + 1, CountingDAO.nreads);
+
+	long version = TapSchemaCache.getVersion();
+	TapSchemaCache.invalidate();
+	assertEquals(version + 1, TapSchemaCache.getVersion());
+	TapSchema s3 = TapSchemaCache.get(new CountingDAO(), "jdbc/test", null, 60000);
+	assertNotSame(s1, s3);
+	assertEquals(n0 + 2, CountingDAO.nreads);
+
+	// The schema is shared by callers using a different DAO.
+	assertSame(s3, TapSchemaCache.get(new TapSchemaDAO(), "jdbc/test",
+	    null, 60000));
+
+	// A zero TTL disables caching.
+	TapSchemaCache.get(new CountingDAO(), "jdbc/test", null, 0);
+	TapSchemaCache.get(new CountingDAO(), "jdbc/test", null, 0);
+	assertEquals(n0 + 4, CountingDAO.nreads);
+    }
+
+    @Test
+    public void testOverlay() throws Exception {
+	TapSchema shared = new CountingDAO().get();
+	SchemaDesc upload = new SchemaDesc("TAP_UPLOAD", null, null);
+	TapSchema job = TapSchemaCache.overlay(shared, upload);
+
+	assertEquals(1, shared.getSchemaDescs().size());
+	assertEquals(2, job.getSchemaDescs().size());
+	assertSame(upload, job.getSchemaDescs().get(1));
+    }
+}